@@ -0,0 +1,70 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestStatusToXContentListener;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.elasticsearch.rest.RestRequest.Method.PUT;
+
+/**
+ * Streaming variant of {@code _aknn_index}: the body holds one {@code {"_id": ..., "_source": {...}}} document per
+ * line, like the body of {@code _bulk}, and is parsed one document at a time. It is a handler of its own because
+ * only handlers that support content streams accept {@code application/x-ndjson} bodies, and those are limited to
+ * JSON and SMILE. The body is still received in full before it is parsed, so its size is bounded by
+ * {@code http.max_content_length}.
+ */
+public class AknnBulkRestAction extends BaseRestHandler {
+
+    public static final String NAME = "_aknn_bulk";
+
+    public AknnBulkRestAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(POST, "/{index}/{type}/" + NAME, this);
+        controller.registerHandler(PUT, "/{index}/{type}/" + NAME, this);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supportsContentStream() {
+        return true;
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest restRequest, NodeClient client) throws IOException {
+        AknnIndexAction.Request request = new AknnIndexAction.Request(
+                restRequest.param("index"), restRequest.param("type"), restRequest.param("_aknn_uri"))
+                .retryOnConflict(restRequest.paramAsInt("retryOnConflict", 5))
+                .opType(restRequest.param("op_type", "update"))
+                .bulkSize(restRequest.paramAsInt("bulk_size", AknnIndexAction.Request.DEFAULT_BULK_SIZE))
+                .concurrentBulks(restRequest.paramAsInt("concurrent_bulks", AknnIndexAction.Request.DEFAULT_CONCURRENT_BULKS))
+                .hashFormat(restRequest.param("hash_format", AknnService.HASH_FORMAT_FIELDS))
+                .content(restRequest.requiredContent(), restRequest.getXContentType());
+        return channel -> client.execute(AknnIndexAction.INSTANCE, request, new RestStatusToXContentListener<>(channel));
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Empties the LSH model cache of every node, along with the HNSW graphs it holds in memory, or drops only the given
+ * models from it.
+ */
+public class AknnClearCacheAction extends Action<AknnClearCacheAction.Request, AknnClearCacheAction.Response,
+        AknnClearCacheAction.RequestBuilder> {
+
+    public static final AknnClearCacheAction INSTANCE = new AknnClearCacheAction();
+    public static final String NAME = "cluster:admin/aknn/clear_cache";
+
+    private AknnClearCacheAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RequestBuilder(client);
+    }
+
+    @Override
+    public Response newResponse() {
+        return new Response();
+    }
+
+    public static class Request extends BaseNodesRequest<Request> {
+
+        private String[] aknnURIs = Strings.EMPTY_ARRAY;
+
+        public Request(String... nodesIds) {
+            super(nodesIds);
+        }
+
+        public String[] aknnURIs() {
+            return aknnURIs;
+        }
+
+        /**
+         * The models to drop from the caches. All cached models are dropped if none is given.
+         */
+        public Request aknnURIs(String... aknnURIs) {
+            this.aknnURIs = aknnURIs;
+            return this;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            aknnURIs = in.readStringArray();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeStringArray(aknnURIs);
+        }
+    }
+
+    public static class RequestBuilder extends NodesOperationRequestBuilder<Request, Response, RequestBuilder> {
+
+        public RequestBuilder(ElasticsearchClient client) {
+            super(client, INSTANCE, new Request());
+        }
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        private String[] aknnURIs;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId, Request request) {
+            super(nodeId);
+            this.aknnURIs = request.aknnURIs();
+        }
+
+        public String[] aknnURIs() {
+            return aknnURIs;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            aknnURIs = in.readStringArray();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeStringArray(aknnURIs);
+        }
+    }
+
+    public static class NodeResponse extends BaseNodeResponse {
+
+        public NodeResponse() {
+        }
+
+        NodeResponse(DiscoveryNode node) {
+            super(node);
+        }
+    }
+
+    public static class Response extends BaseNodesResponse<NodeResponse> implements ToXContentFragment {
+
+        public Response() {
+        }
+
+        public Response(ClusterName clusterName, List<NodeResponse> nodes, List<FailedNodeException> failures) {
+            super(clusterName, nodes, failures);
+        }
+
+        @Override
+        protected List<NodeResponse> readNodesFrom(StreamInput in) throws IOException {
+            return in.readStreamableList(NodeResponse::new);
+        }
+
+        @Override
+        protected void writeNodesTo(StreamOutput out, List<NodeResponse> nodes) throws IOException {
+            out.writeStreamableList(nodes);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("cluster_name", getClusterName().value());
+            builder.field("acknowledged", hasFailures() == false);
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.StatusToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Creates an LSH model document, either from a sample of vectors or from a random seed, an HNSW model document,
+ * which only holds the parameters of the graphs built per segment, or an IVF model document holding the centroids of
+ * k-means clusters of a sample of vectors.
+ * Models are immutable: creating a model in an already existing model index is a no-op.
+ */
+public class AknnCreateAction extends Action<AknnCreateAction.Request, AknnCreateAction.Response, AknnCreateAction.RequestBuilder> {
+
+    public static final AknnCreateAction INSTANCE = new AknnCreateAction();
+    public static final String NAME = "cluster:admin/aknn/create";
+
+    public static final String STORAGE_INDEX = "index";
+    public static final String STORAGE_CLUSTER_STATE = "cluster_state";
+
+    private AknnCreateAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RequestBuilder(client);
+    }
+
+    @Override
+    public Response newResponse() {
+        return new Response();
+    }
+
+    public static class Request extends ActionRequest {
+
+        private String index;
+        private String type;
+        private String id;
+        private String modelType = LshModel.TYPE_LSH;
+        private String description;
+        private Integer nbTables;
+        private Integer nbBitsPerTable;
+        private Integer nbDimensions;
+        private boolean randomBase;
+        private List<List<Double>> vectorSample;
+        private String storage = STORAGE_INDEX;
+        private int hnswM = LshModel.DEFAULT_HNSW_M;
+        private int hnswEfConstruction = LshModel.DEFAULT_HNSW_EF_CONSTRUCTION;
+        private Integer ivfNlist;
+        private int ivfNprobe = LshModel.DEFAULT_IVF_NPROBE;
+        private int ivfAssignments = LshModel.DEFAULT_IVF_ASSIGNMENTS;
+        private Integer pqM;
+
+        public Request() {
+        }
+
+        public Request(String index, String type, String id) {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+        }
+
+        public String index() {
+            return index;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public String modelType() {
+            return modelType;
+        }
+
+        /**
+         * One of {@link LshModel#TYPE_LSH} (the default), {@link LshModel#TYPE_HNSW} and {@link LshModel#TYPE_IVF}.
+         */
+        public Request modelType(String modelType) {
+            this.modelType = modelType;
+            return this;
+        }
+
+        public String description() {
+            return description;
+        }
+
+        public Request description(String description) {
+            this.description = description;
+            return this;
+        }
+
+        public Integer nbTables() {
+            return nbTables;
+        }
+
+        public Request nbTables(Integer nbTables) {
+            this.nbTables = nbTables;
+            return this;
+        }
+
+        public Integer nbBitsPerTable() {
+            return nbBitsPerTable;
+        }
+
+        public Request nbBitsPerTable(Integer nbBitsPerTable) {
+            this.nbBitsPerTable = nbBitsPerTable;
+            return this;
+        }
+
+        public Integer nbDimensions() {
+            return nbDimensions;
+        }
+
+        public Request nbDimensions(Integer nbDimensions) {
+            this.nbDimensions = nbDimensions;
+            return this;
+        }
+
+        public boolean randomBase() {
+            return randomBase;
+        }
+
+        public Request randomBase(boolean randomBase) {
+            this.randomBase = randomBase;
+            return this;
+        }
+
+        public List<List<Double>> vectorSample() {
+            return vectorSample;
+        }
+
+        public Request vectorSample(List<List<Double>> vectorSample) {
+            this.vectorSample = vectorSample;
+            return this;
+        }
+
+        public String storage() {
+            return storage;
+        }
+
+        /**
+         * Where the model is stored: in a model document, or in the cluster state for seeded models.
+         */
+        public Request storage(String storage) {
+            this.storage = storage;
+            return this;
+        }
+
+        public int hnswM() {
+            return hnswM;
+        }
+
+        /**
+         * Number of neighbors of a node on the upper layers of the graphs of an HNSW model, twice as many on the bottom one.
+         */
+        public Request hnswM(int hnswM) {
+            this.hnswM = hnswM;
+            return this;
+        }
+
+        public int hnswEfConstruction() {
+            return hnswEfConstruction;
+        }
+
+        /**
+         * Number of candidates considered when linking a node into the graph of an HNSW model.
+         */
+        public Request hnswEfConstruction(int hnswEfConstruction) {
+            this.hnswEfConstruction = hnswEfConstruction;
+            return this;
+        }
+
+        public Integer ivfNlist() {
+            return ivfNlist;
+        }
+
+        /**
+         * Number of centroids, or cells, of an IVF model. The vector sample must hold at least as many vectors.
+         */
+        public Request ivfNlist(Integer ivfNlist) {
+            this.ivfNlist = ivfNlist;
+            return this;
+        }
+
+        public int ivfNprobe() {
+            return ivfNprobe;
+        }
+
+        /**
+         * Number of cells an IVF model probes by default, searches can override it with {@code nprobe}.
+         */
+        public Request ivfNprobe(int ivfNprobe) {
+            this.ivfNprobe = ivfNprobe;
+            return this;
+        }
+
+        public int ivfAssignments() {
+            return ivfAssignments;
+        }
+
+        /**
+         * Number of cells a document is put into by an IVF model, its nearest centroids.
+         */
+        public Request ivfAssignments(int ivfAssignments) {
+            this.ivfAssignments = ivfAssignments;
+            return this;
+        }
+
+        public Integer pqM() {
+            return pqM;
+        }
+
+        /**
+         * Number of subspaces of the product quantization codes of the documents, which must divide the number of
+         * dimensions of the vectors, null for no codes. Each subspace takes a byte of the code.
+         */
+        public Request pqM(Integer pqM) {
+            this.pqM = pqM;
+            return this;
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException validationException = null;
+            if (index == null || type == null || id == null) {
+                validationException = addValidationError("_index, _type and _id are required", validationException);
+            }
+            if (pqM != null) {
+                if (LshModel.TYPE_HNSW.equals(modelType) || randomBase) {
+                    validationException = addValidationError("_aknn_pq_m requires a model trained on _aknn_vector_sample",
+                            validationException);
+                } else if (vectorSample == null || vectorSample.isEmpty() || pqM < 1 || vectorSample.get(0).size() % pqM != 0) {
+                    validationException = addValidationError("_aknn_pq_m must divide the number of dimensions of the vectors of "
+                            + "_aknn_vector_sample", validationException);
+                }
+            }
+            if (LshModel.TYPE_HNSW.equals(modelType)) {
+                if (hnswM < 2 || hnswEfConstruction < 1) {
+                    validationException = addValidationError("_aknn_hnsw_m must be at least 2 and _aknn_hnsw_ef_construction "
+                            + "positive", validationException);
+                }
+                if (STORAGE_INDEX.equals(storage) == false) {
+                    validationException = addValidationError("only lsh models can be stored in the cluster state",
+                            validationException);
+                }
+                return validationException;
+            }
+            if (LshModel.TYPE_IVF.equals(modelType)) {
+                if (ivfNlist == null || ivfNlist < 1) {
+                    validationException = addValidationError("_aknn_ivf_nlist is required and must be positive", validationException);
+                } else if (vectorSample == null || vectorSample.size() < ivfNlist) {
+                    validationException = addValidationError("_aknn_vector_sample must hold at least _aknn_ivf_nlist vectors",
+                            validationException);
+                } else if (vectorSample.stream().mapToInt(List::size).distinct().count() != 1) {
+                    validationException = addValidationError("the vectors of _aknn_vector_sample must have the same number of "
+                            + "dimensions", validationException);
+                } else if (ivfAssignments < 1 || ivfAssignments > ivfNlist || ivfNprobe < 1) {
+                    validationException = addValidationError("_aknn_ivf_assignments must be between 1 and _aknn_ivf_nlist and "
+                            + "_aknn_ivf_nprobe positive", validationException);
+                }
+                if (STORAGE_INDEX.equals(storage) == false) {
+                    validationException = addValidationError("only lsh models can be stored in the cluster state",
+                            validationException);
+                }
+                return validationException;
+            }
+            if (LshModel.TYPE_LSH.equals(modelType) == false) {
+                validationException = addValidationError("_aknn_model_type must be one of [" + LshModel.TYPE_LSH + ", "
+                        + LshModel.TYPE_HNSW + ", " + LshModel.TYPE_IVF + "]", validationException);
+            }
+            if (nbTables == null || nbBitsPerTable == null) {
+                validationException = addValidationError("_aknn_nb_tables and _aknn_nb_bits_per_table are required",
+                        validationException);
+            }
+            if (!randomBase && vectorSample == null) {
+                validationException = addValidationError("_aknn_vector_sample is required", validationException);
+            }
+            if (!STORAGE_INDEX.equals(storage) && !STORAGE_CLUSTER_STATE.equals(storage)) {
+                validationException = addValidationError("_aknn_storage must be one of [" + STORAGE_INDEX + ", "
+                        + STORAGE_CLUSTER_STATE + "]", validationException);
+            } else if (STORAGE_CLUSTER_STATE.equals(storage) && !randomBase) {
+                validationException = addValidationError("only models with random bases can be stored in the cluster state",
+                        validationException);
+            }
+            return validationException;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            index = in.readString();
+            type = in.readString();
+            id = in.readString();
+            description = in.readOptionalString();
+            nbTables = in.readOptionalVInt();
+            nbBitsPerTable = in.readOptionalVInt();
+            nbDimensions = in.readOptionalVInt();
+            randomBase = in.readBoolean();
+            if (in.readBoolean()) {
+                int rows = in.readVInt();
+                vectorSample = new ArrayList<>(rows);
+                for (int i = 0; i < rows; i++) {
+                    int columns = in.readVInt();
+                    List<Double> row = new ArrayList<>(columns);
+                    for (int j = 0; j < columns; j++) {
+                        row.add(in.readDouble());
+                    }
+                    vectorSample.add(row);
+                }
+            }
+            storage = in.readString();
+            modelType = in.readString();
+            hnswM = in.readVInt();
+            hnswEfConstruction = in.readVInt();
+            ivfNlist = in.readOptionalVInt();
+            ivfNprobe = in.readVInt();
+            ivfAssignments = in.readVInt();
+            pqM = in.readOptionalVInt();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(index);
+            out.writeString(type);
+            out.writeString(id);
+            out.writeOptionalString(description);
+            out.writeOptionalVInt(nbTables);
+            out.writeOptionalVInt(nbBitsPerTable);
+            out.writeOptionalVInt(nbDimensions);
+            out.writeBoolean(randomBase);
+            out.writeBoolean(vectorSample != null);
+            if (vectorSample != null) {
+                out.writeVInt(vectorSample.size());
+                for (List<Double> row : vectorSample) {
+                    out.writeVInt(row.size());
+                    for (Double v : row) {
+                        out.writeDouble(v);
+                    }
+                }
+            }
+            out.writeString(storage);
+            out.writeString(modelType);
+            out.writeVInt(hnswM);
+            out.writeVInt(hnswEfConstruction);
+            out.writeOptionalVInt(ivfNlist);
+            out.writeVInt(ivfNprobe);
+            out.writeVInt(ivfAssignments);
+            out.writeOptionalVInt(pqM);
+        }
+    }
+
+    public static class RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder> {
+
+        public RequestBuilder(ElasticsearchClient client) {
+            super(client, INSTANCE, new Request());
+        }
+    }
+
+    public static class Response extends ActionResponse implements StatusToXContentObject {
+
+        private long tookInMillis;
+        private boolean created;
+
+        public Response() {
+        }
+
+        public Response(long tookInMillis, boolean created) {
+            this.tookInMillis = tookInMillis;
+            this.created = created;
+        }
+
+        public long getTookInMillis() {
+            return tookInMillis;
+        }
+
+        public boolean isCreated() {
+            return created;
+        }
+
+        @Override
+        public RestStatus status() {
+            return created ? RestStatus.CREATED : RestStatus.OK;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            tookInMillis = in.readVLong();
+            created = in.readBoolean();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVLong(tookInMillis);
+            out.writeBoolean(created);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("took", tookInMillis);
+            return builder.endObject();
+        }
+    }
+}
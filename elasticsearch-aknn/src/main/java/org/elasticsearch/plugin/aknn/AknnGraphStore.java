@@ -0,0 +1,495 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.util.StringHelper;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.lucene.Lucene;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.engine.Segment;
+import org.elasticsearch.index.fieldvisitor.FieldsVisitor;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.search.lookup.SourceLookup;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.elasticsearch.plugin.aknn.AknnService.VECTOR_KEY;
+
+/**
+ * Keeps the HNSW graphs and the contiguous vectors of the segments of the local shards. They are built from the stored
+ * vectors in the background the first time their segment is searched, and written to a file named after the segment in
+ * the {@code aknn} directory of the shard, next to its {@code index} and {@code translog} directories. Files are
+ * memory-mapped and survive restarts, a file is only used for the segment, identified by its name and id, and for graphs
+ * the model parameters it was built for. Files of segments that were merged away are deleted whenever a new file is
+ * written. Graphs and vectors that could not be written stay on the heap, within the size of their cache. A file is
+ * mapped as a single buffer, so graphs and vectors over 2gb are not written and only stay on the heap if they fit
+ * their cache, otherwise their segment keeps being searched from the stored vectors.
+ */
+public class AknnGraphStore extends AbstractComponent {
+
+    private static final int MAGIC = 0x414b4e47;
+    private static final int FORMAT_VERSION = 1;
+    private static final String DIRECTORY = "aknn";
+    private static final String GRAPH_SUFFIX = ".hnsw";
+    private static final String VECTORS_SUFFIX = ".vec";
+    private static final int HEADER_BYTES = 2 * Integer.BYTES + StringHelper.ID_LENGTH;
+
+    // Only graphs and vectors kept on the heap count against these sizes, most are memory-mapped and weigh nothing.
+    public static final Setting<ByteSizeValue> GRAPH_CACHE_SIZE_SETTING = Setting.memorySizeSetting("aknn.graph_cache.size", "4%",
+            Setting.Property.NodeScope);
+    public static final Setting<ByteSizeValue> SEGMENT_VECTORS_CACHE_SIZE_SETTING = Setting.memorySizeSetting(
+            "aknn.segment_vectors_cache.size", "2%", Setting.Property.NodeScope);
+
+    private final ThreadPool threadPool;
+    // Memory-mapped graphs and vectors weigh nothing, they are paged in and out by the operating system.
+    private final Cache<IndexReader.CacheKey, HnswGraph> graphs;
+    private final Cache<IndexReader.CacheKey, SegmentVectors> vectors;
+    private final Set<IndexReader.CacheKey> segments = ConcurrentCollections.newConcurrentSet();
+    // Segment and suffix of the files being built or loaded in the background.
+    private final Set<Tuple<IndexReader.CacheKey, String>> loading = ConcurrentCollections.newConcurrentSet();
+    // Segment and suffix of the files too large to be mapped or cached, that are not built again.
+    private final Set<Tuple<IndexReader.CacheKey, String>> tooLarge = ConcurrentCollections.newConcurrentSet();
+    private final long graphCacheSize;
+    private final long vectorsCacheSize;
+
+    public AknnGraphStore(Settings settings, ThreadPool threadPool) {
+        super(settings);
+        this.threadPool = threadPool;
+        this.graphCacheSize = GRAPH_CACHE_SIZE_SETTING.get(settings).getBytes();
+        this.vectorsCacheSize = SEGMENT_VECTORS_CACHE_SIZE_SETTING.get(settings).getBytes();
+        this.graphs = CacheBuilder.<IndexReader.CacheKey, HnswGraph>builder()
+                .setMaximumWeight(graphCacheSize)
+                .weigher((key, graph) -> graph.ramBytesUsed())
+                .build();
+        this.vectors = CacheBuilder.<IndexReader.CacheKey, SegmentVectors>builder()
+                .setMaximumWeight(vectorsCacheSize)
+                .weigher((key, segmentVectors) -> segmentVectors.ramBytesUsed())
+                .build();
+    }
+
+    /**
+     * The graph of a segment of the given shard, built for the given model parameters, or null if it is not loaded yet.
+     * It is then loaded or built in the background, for the next searches.
+     */
+    @Nullable
+    HnswGraph graph(IndexShard shard, LeafReader leaf, int m, int efConstruction) {
+        IndexReader.CacheKey key = cacheHelper(leaf).getKey();
+        HnswGraph graph = graphs.get(key);
+        if (graph != null && graph.m() == m && graph.efConstruction() == efConstruction) {
+            return graph;
+        }
+        // Searched with another model than before, the graph of that model replaces the current one once built.
+        loadInBackground(shard, key, graphs, graphCacheSize, new SegmentFile<HnswGraph>("graph", GRAPH_SUFFIX) {
+            @Override
+            HnswGraph read(ByteBuffer buffer) {
+                HnswGraph graph = HnswGraph.read(buffer);
+                return graph.m() == m && graph.efConstruction() == efConstruction ? graph : null;
+            }
+
+            @Override
+            HnswGraph build(int[] docIds, float[][] vectors, long seed) {
+                return HnswGraph.build(docIds, vectors, m, efConstruction, seed);
+            }
+
+            @Override
+            long sizeInBytes(HnswGraph graph) {
+                return graph.sizeInBytes();
+            }
+
+            @Override
+            long ramBytesUsed(HnswGraph graph) {
+                return graph.ramBytesUsed();
+            }
+
+            @Override
+            void writeTo(HnswGraph graph, WritableByteChannel channel) throws IOException {
+                graph.writeTo(channel);
+            }
+        });
+        return null;
+    }
+
+    /**
+     * The vectors of a segment of the given shard, for exact searches, or null if they are not loaded yet. They are then
+     * loaded or built in the background, for the next searches.
+     */
+    @Nullable
+    SegmentVectors vectors(IndexShard shard, LeafReader leaf) {
+        IndexReader.CacheKey key = cacheHelper(leaf).getKey();
+        SegmentVectors segmentVectors = vectors.get(key);
+        if (segmentVectors == null) {
+            loadInBackground(shard, key, vectors, vectorsCacheSize, VECTORS_FILE);
+        }
+        return segmentVectors;
+    }
+
+    /**
+     * Loads or builds the file of a segment on the index thread pool, at most once at a time, with a searcher of its own
+     * so the segment stays open meanwhile. Nothing is loaded if the segment was merged away by then, or if its file was
+     * found too large before.
+     */
+    private <T> void loadInBackground(IndexShard shard, IndexReader.CacheKey key, Cache<IndexReader.CacheKey, T> cache,
+                                      long cacheSize, SegmentFile<T> segmentFile) {
+        Tuple<IndexReader.CacheKey, String> loadingKey = new Tuple<>(key, segmentFile.suffix);
+        if (tooLarge.contains(loadingKey) || loading.add(loadingKey) == false) {
+            return;
+        }
+        try {
+            threadPool.executor(AknnPlugin.INDEX_THREAD_POOL_NAME).execute(new AbstractRunnable() {
+                @Override
+                protected void doRun() throws Exception {
+                    try (Engine.Searcher searcher = shard.acquireSearcher("aknn")) {
+                        for (LeafReaderContext leaf : searcher.reader().leaves()) {
+                            IndexReader.CacheHelper cacheHelper = leaf.reader().getCoreCacheHelper();
+                            if (cacheHelper != null && cacheHelper.getKey().equals(key)) {
+                                T value = load(shard, leaf.reader(), cacheSize, segmentFile);
+                                if (segments.add(key)) {
+                                    cacheHelper.addClosedListener(AknnGraphStore.this::invalidate);
+                                }
+                                if (value != null) {
+                                    cache.put(key, value);
+                                } else {
+                                    tooLarge.add(loadingKey);
+                                }
+                                return;
+                            }
+                        }
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    logger.warn(new ParameterizedMessage("Failed to load the aknn {} of a segment of {}", segmentFile.description,
+                            shard.shardId()), e);
+                }
+
+                @Override
+                public void onRejection(Exception e) {
+                    logger.debug("Rejected loading the aknn {} of a segment of {}, left to the next search", segmentFile.description,
+                            shard.shardId());
+                }
+
+                @Override
+                public void onAfter() {
+                    loading.remove(loadingKey);
+                }
+            });
+        } catch (EsRejectedExecutionException e) {
+            loading.remove(loadingKey);
+        }
+    }
+
+    private void invalidate(IndexReader.CacheKey segment) {
+        segments.remove(segment);
+        tooLarge.remove(new Tuple<>(segment, GRAPH_SUFFIX));
+        tooLarge.remove(new Tuple<>(segment, VECTORS_SUFFIX));
+        graphs.invalidate(segment);
+        vectors.invalidate(segment);
+    }
+
+    private static IndexReader.CacheHelper cacheHelper(LeafReader leaf) {
+        IndexReader.CacheHelper cacheHelper = leaf.getCoreCacheHelper();
+        if (cacheHelper == null) {
+            throw new IllegalArgumentException("segment reader " + leaf + " can not be cached");
+        }
+        return cacheHelper;
+    }
+
+    /**
+     * A kind of per segment file: how it is read, built from the vectors of a segment and written.
+     */
+    private abstract static class SegmentFile<T> {
+
+        private final String description;
+        private final String suffix;
+
+        SegmentFile(String description, String suffix) {
+            this.description = description;
+            this.suffix = suffix;
+        }
+
+        /**
+         * Reads the content of a file from the current position of the buffer, null if it was built for other parameters.
+         */
+        @Nullable
+        abstract T read(ByteBuffer buffer);
+
+        abstract T build(int[] docIds, float[][] vectors, long seed);
+
+        /**
+         * Size of the file without its header.
+         */
+        abstract long sizeInBytes(T value);
+
+        abstract long ramBytesUsed(T value);
+
+        abstract void writeTo(T value, WritableByteChannel channel) throws IOException;
+    }
+
+    private static final SegmentFile<SegmentVectors> VECTORS_FILE = new SegmentFile<SegmentVectors>("vectors", VECTORS_SUFFIX) {
+        @Override
+        SegmentVectors read(ByteBuffer buffer) {
+            return SegmentVectors.read(buffer);
+        }
+
+        @Override
+        SegmentVectors build(int[] docIds, float[][] vectors, long seed) {
+            return SegmentVectors.build(docIds, vectors);
+        }
+
+        @Override
+        long sizeInBytes(SegmentVectors segmentVectors) {
+            return segmentVectors.sizeInBytes();
+        }
+
+        @Override
+        long ramBytesUsed(SegmentVectors segmentVectors) {
+            return segmentVectors.ramBytesUsed();
+        }
+
+        @Override
+        void writeTo(SegmentVectors segmentVectors, WritableByteChannel channel) throws IOException {
+            segmentVectors.writeTo(channel);
+        }
+    };
+
+    /**
+     * The content of the file of the segment, built and written if it is missing, or null if it is too large to be
+     * written and to be kept in a cache of the given size on the heap.
+     */
+    @Nullable
+    private <T> T load(IndexShard shard, LeafReader leaf, long cacheSize, SegmentFile<T> segmentFile) throws IOException {
+        SegmentReader segmentReader = Lucene.segmentReader(leaf);
+        String segmentName = segmentReader.getSegmentName();
+        byte[] segmentId = segmentReader.getSegmentInfo().info.getId();
+        Path directory = shard.shardPath().getDataPath().resolve(DIRECTORY);
+        Path file = directory.resolve(segmentName + segmentFile.suffix);
+
+        T value = open(file, segmentId, segmentFile);
+        if (value != null) {
+            return value;
+        }
+
+        logger.debug("Build aknn {} of segment [{}] of {}", segmentFile.description, segmentName, shard.shardId());
+        long startNanos = System.nanoTime();
+        try {
+            value = build(leaf, segmentFile, Arrays.hashCode(segmentId));
+        } catch (ArithmeticException e) {
+            logger.warn("The aknn {} of segment [{}] of {} has more than 2^31 values, the segment is searched from its stored "
+                    + "vectors", segmentFile.description, segmentName, shard.shardId());
+            return null;
+        }
+        logger.debug("Built aknn {} of segment [{}] of {} in [{}ms]", segmentFile.description, segmentName, shard.shardId(),
+                (System.nanoTime() - startNanos) / 1000000L);
+
+        if (HEADER_BYTES + segmentFile.sizeInBytes(value) > Integer.MAX_VALUE) {
+            if (segmentFile.ramBytesUsed(value) > cacheSize) {
+                logger.warn("The aknn {} of segment [{}] of {} takes [{}], too large to be memory-mapped or cached, the segment "
+                        + "is searched from its stored vectors", segmentFile.description, segmentName, shard.shardId(),
+                        new ByteSizeValue(segmentFile.sizeInBytes(value)));
+                return null;
+            }
+            logger.warn("The aknn {} of segment [{}] of {} takes [{}], too large to be memory-mapped, keeping it on the heap",
+                    segmentFile.description, segmentName, shard.shardId(), new ByteSizeValue(segmentFile.sizeInBytes(value)));
+            return value;
+        }
+
+        try {
+            store(directory, file, segmentId, value, segmentFile);
+            T mapped = open(file, segmentId, segmentFile);
+            if (mapped != null) {
+                value = mapped;
+            }
+            deleteMergedAway(directory, shard);
+        } catch (IOException e) {
+            logger.warn("Failed to write aknn " + segmentFile.description + " file " + file + ", keeping it on the heap", e);
+        }
+        return value;
+    }
+
+    /**
+     * Builds from the vectors of every document of the segment, deleted ones included as the files outlive deletes.
+     * Documents without a valid vector, or with another number of dimensions than the first one, are left out.
+     */
+    private <T> T build(LeafReader leaf, SegmentFile<T> segmentFile, long seed) throws IOException {
+        List<float[]> vectors = new ArrayList<>();
+        int[] docIds = new int[leaf.maxDoc()];
+        FieldsVisitor visitor = new FieldsVisitor(true);
+        for (int doc = 0; doc < leaf.maxDoc(); doc++) {
+            visitor.reset();
+            leaf.document(doc, visitor);
+            if (visitor.source() == null) {
+                continue;
+            }
+            Object value = SourceLookup.sourceAsMap(visitor.source()).get(VECTOR_KEY);
+            if (value == null) {
+                continue;
+            }
+            float[] vector;
+            try {
+                vector = HnswGraph.normalize(AknnService.parseVector(value));
+            } catch (IllegalArgumentException e) {
+                logger.debug("Leaving document [{}] out of the aknn {} of {}: {}", doc, segmentFile.description, leaf,
+                        e.getMessage());
+                continue;
+            }
+            if (vectors.isEmpty() == false && vector.length != vectors.get(0).length) {
+                logger.debug("Leaving document [{}] out of the aknn {} of {}: it has [{}] dimensions, not [{}]",
+                        doc, segmentFile.description, leaf, vector.length, vectors.get(0).length);
+                continue;
+            }
+            docIds[vectors.size()] = doc;
+            vectors.add(vector);
+        }
+        return segmentFile.build(Arrays.copyOf(docIds, vectors.size()), vectors.toArray(new float[0][]), seed);
+    }
+
+    @Nullable
+    private <T> T open(Path file, byte[] segmentId, SegmentFile<T> segmentFile) {
+        try {
+            return doPrivileged(() -> {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    if (channel.size() > Integer.MAX_VALUE) {
+                        logger.warn("Ignoring aknn {} file {} of [{}], too large to be memory-mapped", segmentFile.description,
+                                file, new ByteSizeValue(channel.size()));
+                        return null;
+                    }
+                    // The mapping stays valid after the channel is closed and after the file is deleted.
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                    buffer.order(ByteOrder.LITTLE_ENDIAN);
+                    if (buffer.remaining() < HEADER_BYTES
+                            || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                        logger.warn("Ignoring aknn {} file {} of an unknown format", segmentFile.description, file);
+                        return null;
+                    }
+                    byte[] id = new byte[StringHelper.ID_LENGTH];
+                    buffer.get(id);
+                    if (Arrays.equals(id, segmentId) == false) {
+                        return null;
+                    }
+                    try {
+                        return segmentFile.read(buffer);
+                    } catch (RuntimeException e) {
+                        logger.warn("Ignoring truncated aknn " + segmentFile.description + " file " + file, e);
+                        return null;
+                    }
+                }
+            });
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warn("Failed to open aknn " + segmentFile.description + " file " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the file next to its final location and moves it into place, so readers never see a partial file.
+     */
+    private <T> void store(Path directory, Path file, byte[] segmentId, T value, SegmentFile<T> segmentFile) throws IOException {
+        doPrivileged(() -> {
+            Files.createDirectories(directory);
+            Path tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                    header.putInt(MAGIC).putInt(FORMAT_VERSION).put(segmentId);
+                    header.flip();
+                    while (header.hasRemaining()) {
+                        channel.write(header);
+                    }
+                    segmentFile.writeTo(value, channel);
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Deletes the files of the segments the shard does not have anymore. Searches still holding one of these segments
+     * keep the mapping of its files.
+     */
+    private void deleteMergedAway(Path directory, IndexShard shard) throws IOException {
+        Set<String> segmentNames = new HashSet<>();
+        for (Segment segment : shard.segments(false)) {
+            segmentNames.add(segment.getName());
+        }
+        doPrivileged(() -> {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*{" + GRAPH_SUFFIX + "," + VECTORS_SUFFIX + "}")) {
+                for (Path file : files) {
+                    String fileName = file.getFileName().toString();
+                    if (segmentNames.contains(fileName.substring(0, fileName.lastIndexOf('.'))) == false) {
+                        logger.debug("Delete aknn file {} of a merged away segment", file);
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    public void clear() {
+        graphs.invalidateAll();
+        vectors.invalidateAll();
+    }
+
+    private static <T> T doPrivileged(PrivilegedExceptionAction<T> action) throws IOException {
+        try {
+            return AccessController.doPrivileged(action);
+        } catch (PrivilegedActionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.ingest.AbstractProcessor;
+import org.elasticsearch.ingest.ConfigurationUtils;
+import org.elasticsearch.ingest.IngestDocument;
+import org.elasticsearch.ingest.Processor;
+
+import java.util.Map;
+import java.util.function.Supplier;
+
+import static org.elasticsearch.plugin.aknn.AknnService.HASHES_KEY;
+import static org.elasticsearch.plugin.aknn.AknnService.VECTOR_KEY;
+
+/**
+ * Ingest processor adding the LSH hashes of the vector of a document, so documents can be indexed with the standard
+ * {@code _bulk} and index APIs, or reindexed, through a pipeline instead of {@code _aknn_index}. The model is loaded
+ * through the model cache of the ingest node. Documents are left as they are with an HNSW model, and also get the
+ * product quantization code of their vector in {@code _aknn_pq_code} with a model that has codebooks.
+ */
+public final class AknnHashProcessor extends AbstractProcessor {
+
+    public static final String TYPE = "aknn_hash";
+
+    private final Supplier<AknnService> aknnService;
+    private final String aknnURI;
+    private final String field;
+    private final String targetField;
+    private final String hashFormat;
+    private final boolean ignoreMissing;
+
+    AknnHashProcessor(String tag, Supplier<AknnService> aknnService, String aknnURI, String field, String targetField,
+                      String hashFormat, boolean ignoreMissing) {
+        super(tag);
+        this.aknnService = aknnService;
+        this.aknnURI = aknnURI;
+        this.field = field;
+        this.targetField = targetField;
+        this.hashFormat = hashFormat;
+        this.ignoreMissing = ignoreMissing;
+    }
+
+    @Override
+    public IngestDocument execute(IngestDocument ingestDocument) throws Exception {
+        Object value = ingestDocument.getFieldValue(field, Object.class, ignoreMissing);
+        if (value == null) {
+            if (ignoreMissing) {
+                return ingestDocument;
+            }
+            throw new IllegalArgumentException("field [" + field + "] is null, cannot compute its aknn hashes");
+        }
+        double[] vector = AknnService.parseVector(value);
+        LshModel lshModel = aknnService.get().initLsh(aknnURI);
+        if (lshModel.isHnsw()) {
+            // Documents of HNSW models are found through the graphs of their segments, they only need their vector.
+            return ingestDocument;
+        }
+        if (!lshModel.hasBases()) {
+            // Ingest runs on the write thread pool, which the write of the model document needs too.
+            aknnService.get().ensureBases(aknnURI, lshModel, vector.length, false);
+        }
+        ingestDocument.setFieldValue(targetField, AknnService.hashesValue(lshModel.getVectorHashes(vector), hashFormat));
+        if (lshModel.hasProductQuantizer()) {
+            ingestDocument.setFieldValue(AknnService.PQ_CODE_KEY, lshModel.getProductQuantizer().encode(vector));
+        }
+        return ingestDocument;
+    }
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    String getAknnURI() {
+        return aknnURI;
+    }
+
+    public static final class Factory implements Processor.Factory {
+
+        private final Supplier<AknnService> aknnService;
+
+        // The processors are registered before the plugin components exist, so the service is looked up lazily.
+        Factory(Supplier<AknnService> aknnService) {
+            this.aknnService = aknnService;
+        }
+
+        @Override
+        public AknnHashProcessor create(Map<String, Processor.Factory> registry, String processorTag,
+                                        Map<String, Object> config) {
+            String aknnURI = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "model");
+            if (aknnURI.split("/").length != 3) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, "model",
+                        "must be a model uri of the form index/type/id");
+            }
+            String field = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "field", VECTOR_KEY);
+            String targetField = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "target_field", HASHES_KEY);
+            String hashFormat = ConfigurationUtils.readStringProperty(TYPE, processorTag, config, "format",
+                    AknnService.HASH_FORMAT_FIELDS);
+            if (!AknnService.HASH_FORMAT_FIELDS.equals(hashFormat) && !AknnService.HASH_FORMAT_TOKENS.equals(hashFormat)) {
+                throw ConfigurationUtils.newConfigurationException(TYPE, processorTag, "format", "must be one of [fields, tokens]");
+            }
+            boolean ignoreMissing = ConfigurationUtils.readBooleanProperty(TYPE, processorTag, config, "ignore_missing", false);
+            return new AknnHashProcessor(processorTag, aknnService, aknnURI, field, targetField, hashFormat, ignoreMissing);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.StatusToXContentObject;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Hashes a batch of documents with an LSH model and upserts them, together with their hashes, into the target index.
+ * The documents are either added to the request or streamed in its content and parsed one at a time.
+ */
+public class AknnIndexAction extends Action<AknnIndexAction.Request, AknnIndexAction.Response, AknnIndexAction.RequestBuilder> {
+
+    public static final AknnIndexAction INSTANCE = new AknnIndexAction();
+    public static final String NAME = "indices:data/write/aknn/index";
+
+    private AknnIndexAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RequestBuilder(client);
+    }
+
+    @Override
+    public Response newResponse() {
+        return new Response();
+    }
+
+    public static class Doc implements Writeable {
+
+        private final String id;
+        private final Map<String, Object> source;
+
+        public Doc(String id, Map<String, Object> source) {
+            this.id = id;
+            this.source = source;
+        }
+
+        public Doc(StreamInput in) throws IOException {
+            id = in.readString();
+            source = in.readMap();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Map<String, Object> getSource() {
+            return source;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeString(id);
+            out.writeMap(source);
+        }
+    }
+
+    public static class Request extends ActionRequest {
+
+        public static final int DEFAULT_BULK_SIZE = 500;
+        public static final int DEFAULT_CONCURRENT_BULKS = 2;
+
+        private String index;
+        private String type;
+        private String aknnURI;
+        private int retryOnConflict = 5;
+        private DocWriteRequest.OpType opType = DocWriteRequest.OpType.UPDATE;
+        private int bulkSize = DEFAULT_BULK_SIZE;
+        private int concurrentBulks = DEFAULT_CONCURRENT_BULKS;
+        private String hashFormat = AknnService.HASH_FORMAT_FIELDS;
+        private List<Doc> docs = new ArrayList<>();
+        private BytesReference content;
+        private XContentType xContentType;
+
+        public Request() {
+        }
+
+        public Request(String index, String type, String aknnURI) {
+            this.index = index;
+            this.type = type;
+            this.aknnURI = aknnURI;
+        }
+
+        public String index() {
+            return index;
+        }
+
+        public Request index(String index) {
+            this.index = index;
+            return this;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        public Request type(String type) {
+            this.type = type;
+            return this;
+        }
+
+        public String aknnURI() {
+            return aknnURI;
+        }
+
+        public Request aknnURI(String aknnURI) {
+            this.aknnURI = aknnURI;
+            return this;
+        }
+
+        public int retryOnConflict() {
+            return retryOnConflict;
+        }
+
+        public Request retryOnConflict(int retryOnConflict) {
+            this.retryOnConflict = retryOnConflict;
+            return this;
+        }
+
+        public DocWriteRequest.OpType opType() {
+            return opType;
+        }
+
+        /**
+         * How documents are written: {@code index} replaces them, {@code create} fails for existing ones and
+         * {@code update} (the default) merges them into existing ones, at the cost of a get and a merge per document.
+         */
+        public Request opType(DocWriteRequest.OpType opType) {
+            this.opType = opType;
+            return this;
+        }
+
+        public Request opType(String opType) {
+            return opType(DocWriteRequest.OpType.fromString(opType));
+        }
+
+        public int bulkSize() {
+            return bulkSize;
+        }
+
+        /**
+         * Number of documents sent per bulk request, -1 sends them all in a single bulk request.
+         */
+        public Request bulkSize(int bulkSize) {
+            this.bulkSize = bulkSize;
+            return this;
+        }
+
+        public int concurrentBulks() {
+            return concurrentBulks;
+        }
+
+        /**
+         * Number of bulk requests that may be in flight while the following documents are hashed, 0 executes each
+         * bulk request before hashing further documents.
+         */
+        public Request concurrentBulks(int concurrentBulks) {
+            this.concurrentBulks = concurrentBulks;
+            return this;
+        }
+
+        public String hashFormat() {
+            return hashFormat;
+        }
+
+        /**
+         * Format of the hashes when the index is created, or has not mapped them yet: {@code fields} (the default) or
+         * {@code tokens}. The hashes of other indices keep the format of their mapping.
+         */
+        public Request hashFormat(String hashFormat) {
+            this.hashFormat = hashFormat;
+            return this;
+        }
+
+        public List<Doc> docs() {
+            return docs;
+        }
+
+        public BytesReference content() {
+            return content;
+        }
+
+        public XContentType xContentType() {
+            return xContentType;
+        }
+
+        /**
+         * Documents as a stream of {@code {"_id": ..., "_source": {...}}} objects, one per line for JSON, that are
+         * parsed and hashed one at a time instead of being added up front.
+         */
+        public Request content(BytesReference content, XContentType xContentType) {
+            this.content = content;
+            this.xContentType = xContentType;
+            return this;
+        }
+
+        public Request add(String id, Map<String, Object> source) {
+            docs.add(new Doc(id, source));
+            return this;
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException validationException = null;
+            if (index == null) {
+                validationException = addValidationError("_index is missing", validationException);
+            }
+            if (type == null) {
+                validationException = addValidationError("_type is missing", validationException);
+            }
+            if (aknnURI == null) {
+                validationException = addValidationError("_aknn_uri is missing", validationException);
+            }
+            if (content != null && docs.isEmpty() == false) {
+                validationException = addValidationError("documents can not be both added and streamed", validationException);
+            }
+            if (opType == DocWriteRequest.OpType.DELETE) {
+                validationException = addValidationError("op_type must be one of [index, create, update]", validationException);
+            }
+            if (bulkSize == 0 || bulkSize < -1) {
+                validationException = addValidationError("bulk_size must be positive or -1", validationException);
+            }
+            if (!AknnService.HASH_FORMAT_FIELDS.equals(hashFormat) && !AknnService.HASH_FORMAT_TOKENS.equals(hashFormat)) {
+                validationException = addValidationError("hash_format must be one of [fields, tokens]", validationException);
+            }
+            if (concurrentBulks < 0) {
+                validationException = addValidationError("concurrent_bulks must not be negative", validationException);
+            }
+            return validationException;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            index = in.readString();
+            type = in.readString();
+            aknnURI = in.readString();
+            retryOnConflict = in.readVInt();
+            opType = DocWriteRequest.OpType.fromId(in.readByte());
+            docs = in.readList(Doc::new);
+            bulkSize = in.readInt();
+            concurrentBulks = in.readVInt();
+            hashFormat = in.readString();
+            content = in.readOptionalBytesReference();
+            if (content != null) {
+                xContentType = in.readEnum(XContentType.class);
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(index);
+            out.writeString(type);
+            out.writeString(aknnURI);
+            out.writeVInt(retryOnConflict);
+            out.writeByte(opType.getId());
+            out.writeList(docs);
+            out.writeInt(bulkSize);
+            out.writeVInt(concurrentBulks);
+            out.writeString(hashFormat);
+            out.writeOptionalBytesReference(content);
+            if (content != null) {
+                out.writeEnum(xContentType);
+            }
+        }
+    }
+
+    public static class RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder> {
+
+        public RequestBuilder(ElasticsearchClient client) {
+            super(client, INSTANCE, new Request());
+        }
+    }
+
+    /**
+     * The failure of a single document, either when hashing it or when writing it.
+     */
+    public static class Failure implements Writeable, ToXContentObject {
+
+        private final String id;
+        private final RestStatus status;
+        private final String reason;
+
+        public Failure(String id, RestStatus status, String reason) {
+            this.id = id;
+            this.status = status;
+            this.reason = reason;
+        }
+
+        public Failure(StreamInput in) throws IOException {
+            id = in.readOptionalString();
+            status = RestStatus.readFrom(in);
+            reason = in.readString();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public RestStatus getStatus() {
+            return status;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeOptionalString(id);
+            RestStatus.writeTo(out, status);
+            out.writeString(reason);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("_id", id);
+            builder.field("status", status.getStatus());
+            builder.field("reason", reason);
+            return builder.endObject();
+        }
+    }
+
+    public static class Response extends ActionResponse implements StatusToXContentObject {
+
+        private long tookInMillis;
+        private int size;
+        private Map<String, Long> results;
+        private List<Failure> failures;
+
+        public Response() {
+        }
+
+        /**
+         * @param results number of written documents per result, like {@code created} or {@code updated}
+         */
+        public Response(long tookInMillis, int size, Map<String, Long> results, List<Failure> failures) {
+            this.tookInMillis = tookInMillis;
+            this.size = size;
+            this.results = results;
+            this.failures = failures;
+        }
+
+        public long getTookInMillis() {
+            return tookInMillis;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public Map<String, Long> getResults() {
+            return results;
+        }
+
+        public List<Failure> getFailures() {
+            return failures;
+        }
+
+        public boolean hasFailures() {
+            return failures.isEmpty() == false;
+        }
+
+        public String getFailureMessage() {
+            if (hasFailures() == false) {
+                return null;
+            }
+            StringBuilder message = new StringBuilder("failure in aknn index:");
+            for (Failure failure : failures) {
+                message.append("\n[").append(failure.getId()).append("]: ").append(failure.getReason());
+            }
+            return message.toString();
+        }
+
+        /**
+         * The most severe status of the failed documents, so that rejections ({@code 429}) and conflicts ({@code 409}) are not
+         * reported as server faults, or {@code 200} if none failed.
+         */
+        @Override
+        public RestStatus status() {
+            RestStatus status = RestStatus.OK;
+            for (Failure failure : failures) {
+                if (failure.getStatus().getStatus() > status.getStatus()) {
+                    status = failure.getStatus();
+                }
+            }
+            return status;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            tookInMillis = in.readVLong();
+            size = in.readVInt();
+            results = new TreeMap<>(in.readMap(StreamInput::readString, StreamInput::readVLong));
+            failures = in.readList(Failure::new);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVLong(tookInMillis);
+            out.writeVInt(size);
+            out.writeMap(results, StreamOutput::writeString, StreamOutput::writeVLong);
+            out.writeList(failures);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("size", size);
+            builder.field("took", tookInMillis);
+            builder.field("results", results);
+            if (hasFailures()) {
+                builder.field("error", getFailureMessage());
+                builder.startArray("failures");
+                for (Failure failure : failures) {
+                    failure.toXContent(builder, params);
+                }
+                builder.endArray();
+            }
+            return builder.endObject();
+        }
+    }
+}
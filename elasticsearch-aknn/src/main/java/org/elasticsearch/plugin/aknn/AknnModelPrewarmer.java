@@ -0,0 +1,204 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.gateway.GatewayService;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Loads the models listed in {@code aknn.model_cache.prewarm} into the model cache in the background, so the first
+ * requests after a restart do not pay for it. An entry is either a model uri ({@code index/type/id}) or the name of
+ * a model index, in which case every model document of that index is loaded. Models are loaded as soon as the primaries
+ * of their index are active, and again whenever that index is recreated or reopened or the setting changes.
+ */
+public class AknnModelPrewarmer extends AbstractComponent implements ClusterStateListener {
+
+    public static final Setting<List<String>> PREWARM_SETTING = Setting.listSetting("aknn.model_cache.prewarm",
+            Collections.emptyList(), Function.identity(), Setting.Property.Dynamic, Setting.Property.NodeScope);
+
+    // Only model documents have this field, it is how the models of a model index are found.
+    private static final String MODEL_FIELD = "_aknn_nb_tables";
+    private static final int MAX_MODELS_PER_INDEX = 10000;
+
+    public static final String LOADING = "loading";
+    public static final String LOADED = "loaded";
+
+    private final Client client;
+    private final ThreadPool threadPool;
+    private final AknnService aknnService;
+
+    private volatile List<String> targets;
+    // Uuids of the target indices whose primaries were active in the last applied cluster state.
+    private final Map<String, String> activeIndices = new HashMap<>();
+    private final Set<String> pendingIndices = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> models = new ConcurrentHashMap<>();
+
+    public AknnModelPrewarmer(Settings settings, ClusterService clusterService, ThreadPool threadPool, Client client,
+                              AknnService aknnService) {
+        super(settings);
+        this.client = client;
+        this.threadPool = threadPool;
+        this.aknnService = aknnService;
+        this.targets = PREWARM_SETTING.get(settings);
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(PREWARM_SETTING, targets -> {
+            synchronized (this) {
+                this.targets = targets;
+                activeIndices.clear();
+                models.clear();
+            }
+            // The consumer runs while the new cluster state is applied, so the models are warmed by clusterChanged.
+        });
+        clusterService.addListener(this);
+    }
+
+    @Override
+    public synchronized void clusterChanged(ClusterChangedEvent event) {
+        ClusterState state = event.state();
+        if (state.blocks().hasGlobalBlock(GatewayService.STATE_NOT_RECOVERED_BLOCK)) {
+            return;
+        }
+        Map<String, List<String>> targetsByIndex = new HashMap<>();
+        for (String target : targets) {
+            targetsByIndex.computeIfAbsent(target.split("/")[0], index -> new ArrayList<>()).add(target);
+        }
+        activeIndices.keySet().retainAll(targetsByIndex.keySet());
+        for (Map.Entry<String, List<String>> entry : targetsByIndex.entrySet()) {
+            String index = entry.getKey();
+            IndexMetaData indexMetaData = state.metaData().index(index);
+            IndexRoutingTable routingTable = state.routingTable().index(index);
+            if (indexMetaData == null || routingTable == null || routingTable.allPrimaryShardsActive() == false) {
+                activeIndices.remove(index);
+                continue;
+            }
+            String uuid = indexMetaData.getIndexUUID();
+            if (uuid.equals(activeIndices.put(index, uuid)) == false) {
+                warm(index, entry.getValue());
+            }
+        }
+    }
+
+    private void warm(String index, List<String> indexTargets) {
+        pendingIndices.add(index);
+        threadPool.generic().execute(new AbstractRunnable() {
+            @Override
+            protected void doRun() {
+                List<String> aknnURIs = new ArrayList<>();
+                for (String target : indexTargets) {
+                    if (target.contains("/")) {
+                        aknnURIs.add(target);
+                    } else {
+                        aknnURIs.addAll(findModels(index));
+                    }
+                }
+                logger.debug("Prewarming {} aknn models of index [{}]", aknnURIs.size(), index);
+                for (String aknnURI : aknnURIs) {
+                    models.put(aknnURI, LOADING);
+                    try {
+                        aknnService.initLsh(aknnURI);
+                        models.put(aknnURI, LOADED);
+                    } catch (Exception e) {
+                        logger.warn("Failed to prewarm aknn model " + aknnURI, e);
+                        models.put(aknnURI, "failed: " + e.getMessage());
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                logger.warn("Failed to prewarm the aknn models of index [" + index + "]", e);
+                models.put(index, "failed: " + e.getMessage());
+            }
+
+            @Override
+            public void onAfter() {
+                pendingIndices.remove(index);
+            }
+        });
+    }
+
+    private List<String> findModels(String index) {
+        SearchResponse response = client.prepareSearch(index)
+                .setQuery(QueryBuilders.existsQuery(MODEL_FIELD))
+                .setFetchSource(false)
+                .setSize(MAX_MODELS_PER_INDEX)
+                .get();
+        if (response.getHits().getTotalHits() > MAX_MODELS_PER_INDEX) {
+            logger.warn("Index [{}] has more than {} aknn models, only prewarming the first ones", index, MAX_MODELS_PER_INDEX);
+        }
+        List<String> aknnURIs = new ArrayList<>();
+        for (SearchHit hit : response.getHits()) {
+            aknnURIs.add(index + "/" + hit.getType() + "/" + hit.getId());
+        }
+        return aknnURIs;
+    }
+
+    /**
+     * Whether every model to prewarm is loaded: all target indices are active, none is still being warmed and no
+     * model failed to load.
+     */
+    public synchronized boolean isReady() {
+        for (String target : targets) {
+            if (activeIndices.containsKey(target.split("/")[0]) == false) {
+                return false;
+            }
+        }
+        return pendingIndices.isEmpty() && models.values().stream().allMatch(LOADED::equals);
+    }
+
+    public synchronized List<String> getPendingIndices() {
+        List<String> pending = new ArrayList<>(pendingIndices);
+        for (String target : targets) {
+            String index = target.split("/")[0];
+            if (activeIndices.containsKey(index) == false && pending.contains(index) == false) {
+                pending.add(index);
+            }
+        }
+        Collections.sort(pending);
+        return pending;
+    }
+
+    /**
+     * The state of each prewarmed model: {@code loading}, {@code loaded} or the reason it failed.
+     */
+    public Map<String, String> getModels() {
+        return new TreeMap<>(models);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.DoubleBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * Keeps the LSH models of a node in binary files under its data path and memory-maps them, so their bases are read
+ * off-heap from the page cache and survive restarts. A file holds one model and the index uuid and version of the model
+ * document it was written from, the model cache only uses it if that document is still current.
+ */
+public class AknnModelStore extends AbstractComponent {
+
+    public static final Setting<Boolean> ENABLED_SETTING = Setting.boolSetting("aknn.model_cache.mmap", true,
+            Setting.Property.NodeScope);
+
+    private static final int MAGIC = 0x414b4e4e;
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".model";
+
+    private final Path directory;
+
+    public AknnModelStore(Settings settings, Path directory) {
+        super(settings);
+        this.directory = directory;
+    }
+
+    /**
+     * Memory-maps the stored copy of a model, or returns null if there is none for this version of the model.
+     */
+    @Nullable
+    public LshModel open(String aknnURI, @Nullable String indexUUID, long version) {
+        Path file = file(aknnURI);
+        try {
+            return doPrivileged(() -> {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    // Not buffered, so the channel is positioned right after the header once it is read.
+                    DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+                    if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                        logger.warn("Ignoring aknn model file {} of an unknown format", file);
+                        return null;
+                    }
+                    if (in.readUTF().equals(aknnURI) == false || in.readUTF().equals(String.valueOf(indexUUID)) == false
+                            || in.readLong() != version) {
+                        return null;
+                    }
+                    int nbTables = in.readInt();
+                    int nbBitsPerTable = in.readInt();
+                    int nbDimensions = in.readInt();
+                    Long seed = in.readBoolean() ? in.readLong() : null;
+                    String description = in.readBoolean() ? in.readUTF() : null;
+                    long position = channel.position();
+                    long size = (long) nbTables * nbBitsPerTable * nbDimensions * Double.BYTES;
+                    if (channel.size() != position + size) {
+                        logger.warn("Ignoring truncated aknn model file {}", file);
+                        return null;
+                    }
+                    // The mapping stays valid after the channel is closed and after the file is replaced or deleted.
+                    DoubleBuffer bases = channel.map(FileChannel.MapMode.READ_ONLY, position, size).asDoubleBuffer();
+                    return LshModel.withMappedBases(nbTables, nbBitsPerTable, nbDimensions, description, seed, bases);
+                }
+            });
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warn("Failed to open aknn model file " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the model and returns it memory-mapped. The file is written next to its final location and moved into
+     * place, so readers never see a partial file.
+     */
+    public LshModel store(String aknnURI, @Nullable String indexUUID, long version, LshModel model) {
+        Path file = file(aknnURI);
+        try {
+            doPrivileged(() -> {
+                Files.createDirectories(directory);
+                Path tmp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeUTF(aknnURI);
+                    out.writeUTF(String.valueOf(indexUUID));
+                    out.writeLong(version);
+                    out.writeInt(model.getNbTables());
+                    out.writeInt(model.getNbBitsPerTable());
+                    out.writeInt(model.basesDimensions());
+                    out.writeBoolean(model.getBasesSeed() != null);
+                    if (model.getBasesSeed() != null) {
+                        out.writeLong(model.getBasesSeed());
+                    }
+                    out.writeBoolean(model.getDescription() != null);
+                    if (model.getDescription() != null) {
+                        out.writeUTF(model.getDescription());
+                    }
+                    model.writeBasesTo(out);
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return null;
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("failed to write aknn model file " + file, e);
+        }
+        LshModel mapped = open(aknnURI, indexUUID, version);
+        return mapped != null ? mapped : model;
+    }
+
+    public void delete(String aknnURI) {
+        Path file = file(aknnURI);
+        try {
+            doPrivileged(() -> Files.deleteIfExists(file));
+        } catch (IOException e) {
+            logger.warn("Failed to delete aknn model file " + file, e);
+        }
+    }
+
+    public void deleteAll() {
+        try {
+            doPrivileged(() -> {
+                if (Files.isDirectory(directory)) {
+                    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                        for (Path file : files) {
+                            Files.deleteIfExists(file);
+                        }
+                    }
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            logger.warn("Failed to delete the aknn model files in " + directory, e);
+        }
+    }
+
+    private Path file(String aknnURI) {
+        // Model URIs contain slashes, the file is named after their hash.
+        byte[] digest = MessageDigests.sha256().digest(aknnURI.getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(MessageDigests.toHexString(digest) + SUFFIX);
+    }
+
+    private static <T> T doPrivileged(PrivilegedExceptionAction<T> action) throws IOException {
+        try {
+            return AccessController.doPrivileged(action);
+        } catch (PrivilegedActionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.AbstractNamedDiffable;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.NamedDiff;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * LSH models kept in the cluster state instead of in a model document, by model uri. Only the definition of a seeded
+ * model is stored, the bases are generated from the seed, so every node can build the model locally and is told about
+ * changes through the cluster state publication.
+ */
+public class AknnModelsMetaData extends AbstractNamedDiffable<MetaData.Custom> implements MetaData.Custom {
+
+    public static final String TYPE = "aknn_models";
+    public static final AknnModelsMetaData EMPTY = new AknnModelsMetaData(Collections.emptySortedMap());
+
+    private final SortedMap<String, Model> models;
+
+    public AknnModelsMetaData(SortedMap<String, Model> models) {
+        this.models = Collections.unmodifiableSortedMap(models);
+    }
+
+    public AknnModelsMetaData(StreamInput in) throws IOException {
+        int size = in.readVInt();
+        SortedMap<String, Model> models = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            models.put(in.readString(), new Model(in));
+        }
+        this.models = Collections.unmodifiableSortedMap(models);
+    }
+
+    public static AknnModelsMetaData get(ClusterState state) {
+        AknnModelsMetaData metaData = state.metaData().custom(TYPE);
+        return metaData == null ? EMPTY : metaData;
+    }
+
+    @Nullable
+    public Model get(String aknnURI) {
+        return models.get(aknnURI);
+    }
+
+    public SortedMap<String, Model> getModels() {
+        return models;
+    }
+
+    public AknnModelsMetaData put(String aknnURI, Model model) {
+        SortedMap<String, Model> updated = new TreeMap<>(models);
+        updated.put(aknnURI, model);
+        return new AknnModelsMetaData(updated);
+    }
+
+    public AknnModelsMetaData remove(String aknnURI) {
+        SortedMap<String, Model> updated = new TreeMap<>(models);
+        updated.remove(aknnURI);
+        return new AknnModelsMetaData(updated);
+    }
+
+    public static NamedDiff<MetaData.Custom> readDiffFrom(StreamInput in) throws IOException {
+        return readDiffFrom(MetaData.Custom.class, TYPE, in);
+    }
+
+    public static AknnModelsMetaData fromXContent(XContentParser parser) throws IOException {
+        SortedMap<String, Model> models = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : parser.map().entrySet()) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> model = (Map<String, Object>) entry.getValue();
+            models.put(entry.getKey(), Model.fromMap(model));
+        }
+        return new AknnModelsMetaData(models);
+    }
+
+    @Override
+    public EnumSet<MetaData.XContentContext> context() {
+        return MetaData.ALL_CONTEXTS;
+    }
+
+    @Override
+    public String getWriteableName() {
+        return TYPE;
+    }
+
+    @Override
+    public Version getMinimalSupportedVersion() {
+        return Version.V_6_0_0;
+    }
+
+    @Override
+    public Optional<String> getRequiredFeature() {
+        // Transport clients without the plugin could not read these models.
+        return Optional.of(AknnPlugin.FEATURE);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(models.size());
+        for (Map.Entry<String, Model> entry : models.entrySet()) {
+            out.writeString(entry.getKey());
+            entry.getValue().writeTo(out);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        for (Map.Entry<String, Model> entry : models.entrySet()) {
+            builder.field(entry.getKey());
+            entry.getValue().toXContent(builder, params);
+        }
+        return builder;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return models.equals(((AknnModelsMetaData) o).models);
+    }
+
+    @Override
+    public int hashCode() {
+        return models.hashCode();
+    }
+
+    /**
+     * Definition of a seeded LSH model. The number of dimensions is not known until the first vector is indexed.
+     */
+    public static class Model implements Writeable, ToXContentObject {
+
+        private final int nbTables;
+        private final int nbBitsPerTable;
+        private final Integer nbDimensions;
+        private final String description;
+        private final long seed;
+
+        public Model(int nbTables, int nbBitsPerTable, @Nullable Integer nbDimensions, @Nullable String description,
+                     long seed) {
+            this.nbTables = nbTables;
+            this.nbBitsPerTable = nbBitsPerTable;
+            this.nbDimensions = nbDimensions;
+            this.description = description;
+            this.seed = seed;
+        }
+
+        public Model(StreamInput in) throws IOException {
+            nbTables = in.readVInt();
+            nbBitsPerTable = in.readVInt();
+            nbDimensions = in.readOptionalVInt();
+            description = in.readOptionalString();
+            seed = in.readLong();
+        }
+
+        static Model fromMap(Map<String, Object> map) {
+            Number nbDimensions = (Number) map.get("nb_dimensions");
+            return new Model(((Number) map.get("nb_tables")).intValue(), ((Number) map.get("nb_bits_per_table")).intValue(),
+                    nbDimensions == null ? null : nbDimensions.intValue(), (String) map.get("description"),
+                    ((Number) map.get("seed")).longValue());
+        }
+
+        public Integer getNbDimensions() {
+            return nbDimensions;
+        }
+
+        public Model withDimensions(int nbDimensions) {
+            return new Model(nbTables, nbBitsPerTable, nbDimensions, description, seed);
+        }
+
+        /**
+         * Builds the model, generating its bases from the seed once the number of dimensions is known.
+         */
+        public LshModel toLshModel() {
+            LshModel lshModel = new LshModel(nbTables, nbBitsPerTable, nbDimensions, description, seed);
+            if (nbDimensions != null) {
+                lshModel.generateBases(nbDimensions);
+            }
+            return lshModel;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVInt(nbTables);
+            out.writeVInt(nbBitsPerTable);
+            out.writeOptionalVInt(nbDimensions);
+            out.writeOptionalString(description);
+            out.writeLong(seed);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("nb_tables", nbTables);
+            builder.field("nb_bits_per_table", nbBitsPerTable);
+            if (nbDimensions != null) {
+                builder.field("nb_dimensions", nbDimensions);
+            }
+            if (description != null) {
+                builder.field("description", description);
+            }
+            builder.field("seed", seed);
+            return builder.endObject();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Model model = (Model) o;
+            return nbTables == model.nbTables && nbBitsPerTable == model.nbBitsPerTable && seed == model.seed
+                    && Objects.equals(nbDimensions, model.nbDimensions) && Objects.equals(description, model.description);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(nbTables, nbBitsPerTable, nbDimensions, description, seed);
+        }
+    }
+}
@@ -17,30 +17,155 @@
 
 package org.elasticsearch.plugin.aknn;
 
+import org.apache.lucene.util.SetOnce;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.NamedDiff;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.metadata.MetaData;
 import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
 import org.elasticsearch.common.settings.ClusterSettings;
 import org.elasticsearch.common.settings.IndexScopedSettings;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.ingest.Processor;
 import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.IngestPlugin;
 import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.plugins.SearchPlugin;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.function.Supplier;
 
-public class AknnPlugin extends Plugin implements ActionPlugin {
+public class AknnPlugin extends Plugin implements ActionPlugin, IngestPlugin, SearchPlugin {
 
-    private static final Setting<String> SETTINGS =
-            new Setting<>("aknn.sample.setting", "foo", (value) -> value, Setting.Property.NodeScope);
+    public static final String SEARCH_THREAD_POOL_NAME = "aknn_search";
+    public static final String INDEX_THREAD_POOL_NAME = "aknn_index";
+    public static final String FEATURE = "aknn";
+
+    private final SetOnce<AknnService> aknnService = new SetOnce<>();
+    private final SetOnce<AknnVectorCache> vectorCache = new SetOnce<>();
 
     @Override
     public List<Setting<?>> getSettings() {
-        return Arrays.asList(SETTINGS);
+        List<Setting<?>> settings = new ArrayList<>();
+        settings.add(AknnService.VERSION_CHECK_INTERVAL_SETTING);
+        settings.add(AknnModelStore.ENABLED_SETTING);
+        settings.add(AknnModelPrewarmer.PREWARM_SETTING);
+        settings.add(AknnVectorCache.SIZE_SETTING);
+        settings.add(AknnGraphStore.GRAPH_CACHE_SIZE_SETTING);
+        settings.add(AknnGraphStore.SEGMENT_VECTORS_CACHE_SIZE_SETTING);
+        settings.add(TransportAknnSearchAction.EXACT_FILTER_THRESHOLD_SETTING);
+        settings.add(TransportAknnSearchAction.EXACT_FILTER_COUNT_TTL_SETTING);
+        settings.add(AknnSearchCursors.MAX_KEEP_ALIVE_SETTING);
+        settings.add(AknnSearchCursors.SIZE_SETTING);
+        settings.addAll(AknnSearchSlowLog.getSettings());
+        return settings;
+    }
+
+    @Override
+    protected Optional<String> getFeature() {
+        return Optional.of(FEATURE);
+    }
+
+    @Override
+    public List<NamedWriteableRegistry.Entry> getNamedWriteables() {
+        return Arrays.asList(
+                new NamedWriteableRegistry.Entry(MetaData.Custom.class, AknnModelsMetaData.TYPE, AknnModelsMetaData::new),
+                new NamedWriteableRegistry.Entry(NamedDiff.class, AknnModelsMetaData.TYPE, AknnModelsMetaData::readDiffFrom),
+                new NamedWriteableRegistry.Entry(Task.Status.class, AknnRehashTask.Status.NAME, AknnRehashTask.Status::new));
+    }
+
+    @Override
+    public List<NamedXContentRegistry.Entry> getNamedXContent() {
+        return Collections.singletonList(new NamedXContentRegistry.Entry(MetaData.Custom.class,
+                new ParseField(AknnModelsMetaData.TYPE), AknnModelsMetaData::fromXContent));
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry, Environment environment,
+                                               NodeEnvironment nodeEnvironment, NamedWriteableRegistry namedWriteableRegistry) {
+        Settings settings = clusterService.getSettings();
+        AknnModelStore modelStore = null;
+        if (AknnModelStore.ENABLED_SETTING.get(settings) && nodeEnvironment.hasNodeFile()) {
+            modelStore = new AknnModelStore(settings, nodeEnvironment.nodeDataPaths()[0].resolve("aknn").resolve("models"));
+        }
+        AknnService aknnService = new AknnService(settings, clusterService, client, modelStore);
+        this.aknnService.set(aknnService);
+        AknnVectorCache vectorCache = new AknnVectorCache(settings);
+        this.vectorCache.set(vectorCache);
+        return Arrays.asList(
+                aknnService,
+                new AknnGraphStore(settings, threadPool),
+                vectorCache,
+                new AknnSearchCursors(settings),
+                new AknnSearchSlowLog(settings, clusterService, threadPool),
+                new AknnModelPrewarmer(settings, clusterService, threadPool, client, aknnService));
+    }
+
+    @Override
+    public Map<String, Processor.Factory> getProcessors(Processor.Parameters parameters) {
+        return Collections.singletonMap(AknnHashProcessor.TYPE, new AknnHashProcessor.Factory(aknnService::get));
+    }
+
+    @Override
+    public List<RescorerSpec<?>> getRescorers() {
+        return Collections.singletonList(new RescorerSpec<>(AknnRescorerBuilder.NAME,
+                in -> new AknnRescorerBuilder(in, vectorCache::get),
+                parser -> AknnRescorerBuilder.fromXContent(parser, vectorCache::get)));
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        // Bounded queues, so an overloaded node rejects requests (429) instead of queueing them on the heap.
+        final int processors = EsExecutors.numberOfProcessors(settings);
+        return Arrays.asList(
+                new FixedExecutorBuilder(settings, SEARCH_THREAD_POOL_NAME, ((processors * 3) / 2) + 1, 1000,
+                        "thread_pool." + SEARCH_THREAD_POOL_NAME),
+                new FixedExecutorBuilder(settings, INDEX_THREAD_POOL_NAME, processors, 200,
+                        "thread_pool." + INDEX_THREAD_POOL_NAME),
+                new FixedExecutorBuilder(settings, AknnSearchSlowLog.THREAD_POOL_NAME, 1, 1000,
+                        "thread_pool." + AknnSearchSlowLog.THREAD_POOL_NAME));
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Arrays.asList(
+                new ActionHandler<>(AknnSearchAction.INSTANCE, TransportAknnSearchAction.class),
+                new ActionHandler<>(AknnIndexAction.INSTANCE, TransportAknnIndexAction.class),
+                new ActionHandler<>(AknnCreateAction.INSTANCE, TransportAknnCreateAction.class),
+                new ActionHandler<>(AknnClearCacheAction.INSTANCE, TransportAknnClearCacheAction.class),
+                new ActionHandler<>(AknnStatsAction.INSTANCE, TransportAknnStatsAction.class),
+                new ActionHandler<>(AknnReadinessAction.INSTANCE, TransportAknnReadinessAction.class),
+                new ActionHandler<>(AknnPutModelAction.INSTANCE, TransportAknnPutModelAction.class),
+                new ActionHandler<>(AknnDeleteModelAction.INSTANCE, TransportAknnDeleteModelAction.class),
+                new ActionHandler<>(AknnRehashAction.INSTANCE, TransportAknnRehashAction.class),
+                new ActionHandler<>(AknnShardSearchAction.INSTANCE, TransportAknnShardSearchAction.class));
     }
 
     @Override
@@ -51,6 +176,6 @@ public class AknnPlugin extends Plugin implements ActionPlugin {
                                              final SettingsFilter settingsFilter,
                                              final IndexNameExpressionResolver indexNameExpressionResolver,
                                              final Supplier<DiscoveryNodes> nodesInCluster) {
-        return Arrays.asList(new AknnRestAction(settings, restController));
+        return Arrays.asList(new AknnRestAction(settings, restController), new AknnBulkRestAction(settings, restController));
     }
-}
\ No newline at end of file
+}
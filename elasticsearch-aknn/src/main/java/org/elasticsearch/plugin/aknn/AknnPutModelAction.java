@@ -0,0 +1,123 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.master.AcknowledgedRequest;
+import org.elasticsearch.action.support.master.AcknowledgedRequestBuilder;
+import org.elasticsearch.action.support.master.AcknowledgedResponse;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Adds or replaces a seeded LSH model in the cluster state.
+ */
+public class AknnPutModelAction extends Action<AknnPutModelAction.Request, AcknowledgedResponse, AknnPutModelAction.RequestBuilder> {
+
+    public static final AknnPutModelAction INSTANCE = new AknnPutModelAction();
+    public static final String NAME = "cluster:admin/aknn/model/put";
+
+    private AknnPutModelAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RequestBuilder(client);
+    }
+
+    @Override
+    public AcknowledgedResponse newResponse() {
+        return new AcknowledgedResponse();
+    }
+
+    public static class Request extends AcknowledgedRequest<Request> {
+
+        private String aknnURI;
+        private AknnModelsMetaData.Model model;
+        private boolean create = false;
+
+        public Request() {
+        }
+
+        public Request(String aknnURI, AknnModelsMetaData.Model model) {
+            this.aknnURI = aknnURI;
+            this.model = model;
+        }
+
+        public String aknnURI() {
+            return aknnURI;
+        }
+
+        public AknnModelsMetaData.Model model() {
+            return model;
+        }
+
+        public boolean create() {
+            return create;
+        }
+
+        /**
+         * Fail if a model is already stored under this uri instead of replacing it.
+         */
+        public Request create(boolean create) {
+            this.create = create;
+            return this;
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException validationException = null;
+            if (aknnURI == null || aknnURI.split("/").length != 3) {
+                validationException = addValidationError("_aknn_uri must be of the form index/type/id", validationException);
+            }
+            if (model == null) {
+                validationException = addValidationError("model is missing", validationException);
+            }
+            return validationException;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            aknnURI = in.readString();
+            model = new AknnModelsMetaData.Model(in);
+            create = in.readBoolean();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(aknnURI);
+            model.writeTo(out);
+            out.writeBoolean(create);
+        }
+    }
+
+    public static class RequestBuilder extends AcknowledgedRequestBuilder<Request, AcknowledgedResponse, RequestBuilder> {
+
+        public RequestBuilder(ElasticsearchClient client) {
+            super(client, INSTANCE, new Request());
+        }
+    }
+}
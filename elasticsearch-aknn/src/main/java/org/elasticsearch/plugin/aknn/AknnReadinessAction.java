@@ -0,0 +1,131 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.StatusToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Whether the node receiving the request has loaded all the models it prewarms. Answers {@code 503} until it has,
+ * so load balancers can hold traffic back from a node whose models are still cold.
+ */
+public class AknnReadinessAction extends Action<AknnReadinessAction.Request, AknnReadinessAction.Response,
+        AknnReadinessAction.RequestBuilder> {
+
+    public static final AknnReadinessAction INSTANCE = new AknnReadinessAction();
+    public static final String NAME = "cluster:monitor/aknn/ready";
+
+    private AknnReadinessAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RequestBuilder(client);
+    }
+
+    @Override
+    public Response newResponse() {
+        return new Response();
+    }
+
+    public static class Request extends ActionRequest {
+
+        @Override
+        public ActionRequestValidationException validate() {
+            return null;
+        }
+    }
+
+    public static class RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder> {
+
+        public RequestBuilder(ElasticsearchClient client) {
+            super(client, INSTANCE, new Request());
+        }
+    }
+
+    public static class Response extends ActionResponse implements StatusToXContentObject {
+
+        private boolean ready;
+        private List<String> pendingIndices;
+        private Map<String, String> models;
+
+        public Response() {
+        }
+
+        public Response(boolean ready, List<String> pendingIndices, Map<String, String> models) {
+            this.ready = ready;
+            this.pendingIndices = pendingIndices;
+            this.models = models;
+        }
+
+        public boolean isReady() {
+            return ready;
+        }
+
+        public List<String> getPendingIndices() {
+            return pendingIndices;
+        }
+
+        public Map<String, String> getModels() {
+            return models;
+        }
+
+        @Override
+        public RestStatus status() {
+            return ready ? RestStatus.OK : RestStatus.SERVICE_UNAVAILABLE;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            ready = in.readBoolean();
+            pendingIndices = in.readList(StreamInput::readString);
+            models = in.readMap(StreamInput::readString, StreamInput::readString);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeBoolean(ready);
+            out.writeStringList(pendingIndices);
+            out.writeMap(models, StreamOutput::writeString, StreamOutput::writeString);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("ready", ready);
+            builder.field("pending_indices", pendingIndices);
+            builder.field("models", models);
+            return builder.endObject();
+        }
+    }
+}
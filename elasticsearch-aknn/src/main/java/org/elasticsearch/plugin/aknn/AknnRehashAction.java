@@ -0,0 +1,286 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.StatusToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskId;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Recomputes the hashes of the documents of an index with the current bases of an LSH model, after the model was
+ * regenerated or replaced. The index is scrolled in parallel slices, and every document is written back with its new
+ * hashes unless it changed in the meantime.
+ */
+public class AknnRehashAction extends Action<AknnRehashAction.Request, AknnRehashAction.Response, AknnRehashAction.RequestBuilder> {
+
+    public static final AknnRehashAction INSTANCE = new AknnRehashAction();
+    public static final String NAME = "indices:data/write/aknn/rehash";
+
+    private AknnRehashAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RequestBuilder(client);
+    }
+
+    @Override
+    public Response newResponse() {
+        return new Response();
+    }
+
+    public static class Request extends ActionRequest {
+
+        public static final int DEFAULT_SCROLL_SIZE = 500;
+
+        private String index;
+        private String type;
+        private String aknnURI;
+        private int slices = 1;
+        private int scrollSize = DEFAULT_SCROLL_SIZE;
+        private float requestsPerSecond = Float.POSITIVE_INFINITY;
+        private boolean shouldStoreResult = false;
+
+        public Request() {
+        }
+
+        public Request(String index, String type, String aknnURI) {
+            this.index = index;
+            this.type = type;
+            this.aknnURI = aknnURI;
+        }
+
+        public String index() {
+            return index;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        public String aknnURI() {
+            return aknnURI;
+        }
+
+        public int slices() {
+            return slices;
+        }
+
+        /**
+         * Number of slices the index is scrolled in, each scrolled and rehashed concurrently with the others.
+         */
+        public Request slices(int slices) {
+            this.slices = slices;
+            return this;
+        }
+
+        public int scrollSize() {
+            return scrollSize;
+        }
+
+        /**
+         * Number of documents fetched, hashed and written per batch of a slice.
+         */
+        public Request scrollSize(int scrollSize) {
+            this.scrollSize = scrollSize;
+            return this;
+        }
+
+        public float requestsPerSecond() {
+            return requestsPerSecond;
+        }
+
+        /**
+         * Documents rehashed per second over all slices, {@link Float#POSITIVE_INFINITY} (the default) disables
+         * throttling. Slices wait between their batches to keep to it.
+         */
+        public Request requestsPerSecond(float requestsPerSecond) {
+            this.requestsPerSecond = requestsPerSecond;
+            return this;
+        }
+
+        /**
+         * Whether the response is stored in the {@code .tasks} index once the task completes, for requests that do
+         * not wait for their completion.
+         */
+        public Request shouldStoreResult(boolean shouldStoreResult) {
+            this.shouldStoreResult = shouldStoreResult;
+            return this;
+        }
+
+        @Override
+        public boolean getShouldStoreResult() {
+            return shouldStoreResult;
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException validationException = null;
+            if (index == null) {
+                validationException = addValidationError("_index is missing", validationException);
+            }
+            if (type == null) {
+                validationException = addValidationError("_type is missing", validationException);
+            }
+            if (aknnURI == null) {
+                validationException = addValidationError("_aknn_uri is missing", validationException);
+            }
+            if (slices < 1) {
+                validationException = addValidationError("slices must be at least 1", validationException);
+            }
+            if (scrollSize < 1) {
+                validationException = addValidationError("scroll_size must be positive", validationException);
+            }
+            if (Float.isNaN(requestsPerSecond) || requestsPerSecond <= 0) {
+                validationException = addValidationError("requests_per_second must be positive", validationException);
+            }
+            return validationException;
+        }
+
+        @Override
+        public Task createTask(long id, String type, String action, TaskId parentTaskId, Map<String, String> headers) {
+            return new AknnRehashTask(id, type, action, getDescription(), parentTaskId, headers, requestsPerSecond);
+        }
+
+        @Override
+        public String getDescription() {
+            return "index[" + index + "], model[" + aknnURI + "], slices[" + slices + "]";
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            index = in.readString();
+            type = in.readString();
+            aknnURI = in.readString();
+            slices = in.readVInt();
+            scrollSize = in.readVInt();
+            requestsPerSecond = in.readFloat();
+            shouldStoreResult = in.readBoolean();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(index);
+            out.writeString(type);
+            out.writeString(aknnURI);
+            out.writeVInt(slices);
+            out.writeVInt(scrollSize);
+            out.writeFloat(requestsPerSecond);
+            out.writeBoolean(shouldStoreResult);
+        }
+    }
+
+    public static class RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder> {
+
+        public RequestBuilder(ElasticsearchClient client) {
+            super(client, INSTANCE, new Request());
+        }
+    }
+
+    public static class Response extends ActionResponse implements StatusToXContentObject {
+
+        private long tookInMillis;
+        private AknnRehashTask.Status status;
+        private List<AknnIndexAction.Failure> failures;
+
+        public Response() {
+        }
+
+        /**
+         * @param failures the first failures of the rehash, their total number is in the status
+         */
+        public Response(long tookInMillis, AknnRehashTask.Status status, List<AknnIndexAction.Failure> failures) {
+            this.tookInMillis = tookInMillis;
+            this.status = status;
+            this.failures = failures;
+        }
+
+        public long getTookInMillis() {
+            return tookInMillis;
+        }
+
+        public AknnRehashTask.Status getStatus() {
+            return status;
+        }
+
+        public List<AknnIndexAction.Failure> getFailures() {
+            return failures;
+        }
+
+        /**
+         * The most severe status of the failed documents, like {@link AknnIndexAction.Response#status()}.
+         */
+        @Override
+        public RestStatus status() {
+            RestStatus status = RestStatus.OK;
+            for (AknnIndexAction.Failure failure : failures) {
+                if (failure.getStatus().getStatus() > status.getStatus()) {
+                    status = failure.getStatus();
+                }
+            }
+            return status;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            tookInMillis = in.readVLong();
+            status = new AknnRehashTask.Status(in);
+            failures = in.readList(AknnIndexAction.Failure::new);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVLong(tookInMillis);
+            status.writeTo(out);
+            out.writeList(failures);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("took", tookInMillis);
+            status.innerToXContent(builder);
+            builder.startArray("failures");
+            for (AknnIndexAction.Failure failure : failures) {
+                failure.toXContent(builder, params);
+            }
+            builder.endArray();
+            return builder.endObject();
+        }
+    }
+}
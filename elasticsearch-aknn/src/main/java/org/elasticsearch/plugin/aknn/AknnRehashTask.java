@@ -0,0 +1,188 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.TaskId;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Task of an {@link AknnRehashAction}, counting the progress of all of its slices. The counts show up as the status
+ * of the task in the task management API.
+ */
+public class AknnRehashTask extends CancellableTask {
+
+    private final float requestsPerSecond;
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong updated = new AtomicLong();
+    private final AtomicLong versionConflicts = new AtomicLong();
+    private final AtomicLong noops = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    public AknnRehashTask(long id, String type, String action, String description, TaskId parentTaskId,
+                          Map<String, String> headers, float requestsPerSecond) {
+        super(id, type, action, description, parentTaskId, headers);
+        this.requestsPerSecond = requestsPerSecond;
+    }
+
+    @Override
+    public boolean shouldCancelChildrenOnCancellation() {
+        return true;
+    }
+
+    void addTotal(long count) {
+        total.addAndGet(count);
+    }
+
+    void onBatch(long updatedCount, long versionConflictCount, long noopCount, long failureCount) {
+        batches.incrementAndGet();
+        updated.addAndGet(updatedCount);
+        versionConflicts.addAndGet(versionConflictCount);
+        noops.addAndGet(noopCount);
+        failures.addAndGet(failureCount);
+    }
+
+    void onThrottled(long nanos) {
+        throttledNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public Status getStatus() {
+        return new Status(total.get(), updated.get(), versionConflicts.get(), noops.get(), failures.get(), batches.get(),
+                TimeValue.nsecToMSec(throttledNanos.get()), requestsPerSecond, getReasonCancelled());
+    }
+
+    public static class Status implements org.elasticsearch.tasks.Task.Status {
+
+        public static final String NAME = "aknn_rehash";
+
+        private final long total;
+        private final long updated;
+        private final long versionConflicts;
+        private final long noops;
+        private final long failures;
+        private final long batches;
+        private final long throttledMillis;
+        private final float requestsPerSecond;
+        private final String reasonCancelled;
+
+        public Status(long total, long updated, long versionConflicts, long noops, long failures, long batches,
+                      long throttledMillis, float requestsPerSecond, String reasonCancelled) {
+            this.total = total;
+            this.updated = updated;
+            this.versionConflicts = versionConflicts;
+            this.noops = noops;
+            this.failures = failures;
+            this.batches = batches;
+            this.throttledMillis = throttledMillis;
+            this.requestsPerSecond = requestsPerSecond;
+            this.reasonCancelled = reasonCancelled;
+        }
+
+        public Status(StreamInput in) throws IOException {
+            total = in.readVLong();
+            updated = in.readVLong();
+            versionConflicts = in.readVLong();
+            noops = in.readVLong();
+            failures = in.readVLong();
+            batches = in.readVLong();
+            throttledMillis = in.readVLong();
+            requestsPerSecond = in.readFloat();
+            reasonCancelled = in.readOptionalString();
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getUpdated() {
+            return updated;
+        }
+
+        public long getVersionConflicts() {
+            return versionConflicts;
+        }
+
+        /**
+         * The number of documents left as they were because they have no vector to hash.
+         */
+        public long getNoops() {
+            return noops;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        public String getReasonCancelled() {
+            return reasonCancelled;
+        }
+
+        @Override
+        public String getWriteableName() {
+            return NAME;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(total);
+            out.writeVLong(updated);
+            out.writeVLong(versionConflicts);
+            out.writeVLong(noops);
+            out.writeVLong(failures);
+            out.writeVLong(batches);
+            out.writeVLong(throttledMillis);
+            out.writeFloat(requestsPerSecond);
+            out.writeOptionalString(reasonCancelled);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            innerToXContent(builder);
+            return builder.endObject();
+        }
+
+        XContentBuilder innerToXContent(XContentBuilder builder) throws IOException {
+            builder.field("total", total);
+            builder.field("updated", updated);
+            builder.field("version_conflicts", versionConflicts);
+            builder.field("noops", noops);
+            builder.field("failed", failures);
+            builder.field("batches", batches);
+            builder.field("throttled_millis", throttledMillis);
+            builder.field("requests_per_second", requestsPerSecond == Float.POSITIVE_INFINITY ? -1 : requestsPerSecond);
+            if (reasonCancelled != null) {
+                builder.field("canceled", reasonCancelled);
+            }
+            return builder;
+        }
+    }
+}
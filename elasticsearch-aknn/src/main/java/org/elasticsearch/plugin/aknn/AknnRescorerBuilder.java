@@ -0,0 +1,336 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryRewriteContext;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.Rewriteable;
+import org.elasticsearch.search.rescore.RescoreContext;
+import org.elasticsearch.search.rescore.Rescorer;
+import org.elasticsearch.search.rescore.RescorerBuilder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Rescores the best documents of each shard by the cosine similarity of their vector to a query vector, read from the
+ * {@link AknnVectorCache} of the node. With a text query, the score is the weighted sum of the similarity and of the
+ * score of the text query, so semantic and keyword relevance are blended in one search. Documents outside of the window
+ * keep their score.
+ */
+public class AknnRescorerBuilder extends RescorerBuilder<AknnRescorerBuilder> {
+
+    public static final String NAME = "aknn_cosine";
+
+    public static final float DEFAULT_WEIGHT = 1.0f;
+
+    private static final ParseField QUERY_VECTOR_FIELD = new ParseField("query_vector");
+    private static final ParseField TEXT_QUERY_FIELD = new ParseField("text_query");
+    private static final ParseField VECTOR_WEIGHT_FIELD = new ParseField("vector_weight");
+    private static final ParseField TEXT_WEIGHT_FIELD = new ParseField("text_weight");
+
+    private final double[] queryVector;
+    private final Supplier<AknnVectorCache> vectorCache;
+    private QueryBuilder textQuery;
+    private float vectorWeight = DEFAULT_WEIGHT;
+    private float textWeight = DEFAULT_WEIGHT;
+
+    public AknnRescorerBuilder(double[] queryVector, Supplier<AknnVectorCache> vectorCache) {
+        this.queryVector = Objects.requireNonNull(queryVector, "query vector must not be null");
+        this.vectorCache = vectorCache;
+    }
+
+    public AknnRescorerBuilder(StreamInput in, Supplier<AknnVectorCache> vectorCache) throws IOException {
+        super(in);
+        this.queryVector = in.readDoubleArray();
+        this.vectorCache = vectorCache;
+        this.textQuery = in.readOptionalNamedWriteable(QueryBuilder.class);
+        this.vectorWeight = in.readFloat();
+        this.textWeight = in.readFloat();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeDoubleArray(queryVector);
+        out.writeOptionalNamedWriteable(textQuery);
+        out.writeFloat(vectorWeight);
+        out.writeFloat(textWeight);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    public double[] queryVector() {
+        return queryVector;
+    }
+
+    /**
+     * The query whose score is blended with the similarity of the vectors, null to score by similarity only.
+     */
+    public QueryBuilder textQuery() {
+        return textQuery;
+    }
+
+    public AknnRescorerBuilder textQuery(QueryBuilder textQuery) {
+        this.textQuery = textQuery;
+        return this;
+    }
+
+    public float vectorWeight() {
+        return vectorWeight;
+    }
+
+    public AknnRescorerBuilder vectorWeight(float vectorWeight) {
+        this.vectorWeight = vectorWeight;
+        return this;
+    }
+
+    public float textWeight() {
+        return textWeight;
+    }
+
+    public AknnRescorerBuilder textWeight(float textWeight) {
+        this.textWeight = textWeight;
+        return this;
+    }
+
+    public static AknnRescorerBuilder fromXContent(XContentParser parser, Supplier<AknnVectorCache> vectorCache) throws IOException {
+        double[] queryVector = null;
+        QueryBuilder textQuery = null;
+        float vectorWeight = DEFAULT_WEIGHT;
+        float textWeight = DEFAULT_WEIGHT;
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (QUERY_VECTOR_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                queryVector = AknnService.parseVector(token == XContentParser.Token.START_ARRAY ? parser.list() : parser.text());
+            } else if (TEXT_QUERY_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                textQuery = AbstractQueryBuilder.parseInnerQueryBuilder(parser);
+            } else if (VECTOR_WEIGHT_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                vectorWeight = parser.floatValue();
+            } else if (TEXT_WEIGHT_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                textWeight = parser.floatValue();
+            } else {
+                throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] unknown field [" + currentFieldName + "]");
+            }
+        }
+        if (queryVector == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] requires [" + QUERY_VECTOR_FIELD + "]");
+        }
+        return new AknnRescorerBuilder(queryVector, vectorCache).textQuery(textQuery).vectorWeight(vectorWeight)
+                .textWeight(textWeight);
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.array(QUERY_VECTOR_FIELD.getPreferredName(), queryVector);
+        if (textQuery != null) {
+            builder.field(TEXT_QUERY_FIELD.getPreferredName(), textQuery);
+        }
+        builder.field(VECTOR_WEIGHT_FIELD.getPreferredName(), vectorWeight);
+        builder.field(TEXT_WEIGHT_FIELD.getPreferredName(), textWeight);
+        builder.endObject();
+    }
+
+    @Override
+    protected RescoreContext innerBuildContext(int windowSize, QueryShardContext context) throws IOException {
+        Query query = textQuery == null ? null : Rewriteable.rewrite(textQuery, context).toQuery(context);
+        return new RescoreContext(windowSize, new CosineRescorer(HnswGraph.normalize(queryVector), vectorCache.get(), query,
+                vectorWeight, textWeight));
+    }
+
+    @Override
+    public AknnRescorerBuilder rewrite(QueryRewriteContext ctx) throws IOException {
+        if (textQuery == null) {
+            return this;
+        }
+        QueryBuilder rewritten = textQuery.rewrite(ctx);
+        if (rewritten == textQuery) {
+            return this;
+        }
+        AknnRescorerBuilder builder = new AknnRescorerBuilder(queryVector, vectorCache).textQuery(rewritten)
+                .vectorWeight(vectorWeight).textWeight(textWeight);
+        if (windowSize != null) {
+            builder.windowSize(windowSize);
+        }
+        return builder;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (super.equals(obj) == false) {
+            return false;
+        }
+        AknnRescorerBuilder other = (AknnRescorerBuilder) obj;
+        return Arrays.equals(queryVector, other.queryVector) && Objects.equals(textQuery, other.textQuery)
+                && vectorWeight == other.vectorWeight && textWeight == other.textWeight;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + Objects.hash(Arrays.hashCode(queryVector), textQuery, vectorWeight, textWeight);
+    }
+
+    private static final class CosineRescorer implements Rescorer {
+
+        private final float[] queryVector;
+        private final AknnVectorCache vectorCache;
+        private final Query textQuery;
+        private final float vectorWeight;
+        private final float textWeight;
+
+        CosineRescorer(float[] queryVector, AknnVectorCache vectorCache, Query textQuery, float vectorWeight, float textWeight) {
+            this.queryVector = queryVector;
+            this.vectorCache = vectorCache;
+            this.textQuery = textQuery;
+            this.vectorWeight = vectorWeight;
+            this.textWeight = textWeight;
+        }
+
+        @Override
+        public TopDocs rescore(TopDocs topDocs, IndexSearcher searcher, RescoreContext rescoreContext) throws IOException {
+            if (topDocs == null || topDocs.scoreDocs.length == 0) {
+                return topDocs;
+            }
+            ScoreDoc[] hits = topDocs.scoreDocs.clone();
+            int window = Math.min(rescoreContext.getWindowSize(), hits.length);
+            float[] textScores = textScores(searcher, hits, window);
+            Set<Integer> rescored = new HashSet<>();
+            for (int i = 0; i < window; i++) {
+                float score = vectorWeight * similarity(searcher.getIndexReader(), hits[i].doc);
+                if (textScores != null) {
+                    score += textWeight * textScores[i];
+                }
+                hits[i] = new ScoreDoc(hits[i].doc, score, hits[i].shardIndex);
+                rescored.add(hits[i].doc);
+            }
+            Arrays.sort(hits, 0, window, Comparator.comparing((ScoreDoc hit) -> hit.score).reversed());
+            rescoreContext.setRescoredDocs(rescored);
+            float maxScore = Float.NEGATIVE_INFINITY;
+            for (ScoreDoc hit : hits) {
+                maxScore = Math.max(maxScore, hit.score);
+            }
+            return new TopDocs(topDocs.totalHits, hits, maxScore);
+        }
+
+        /**
+         * The scores of the text query of the first hits, 0 for the hits it does not match, null without a text query.
+         */
+        private float[] textScores(IndexSearcher searcher, ScoreDoc[] hits, int window) throws IOException {
+            if (textQuery == null) {
+                return null;
+            }
+            float[] scores = new float[window];
+            Integer[] order = new Integer[window];
+            for (int i = 0; i < window; i++) {
+                order[i] = i;
+            }
+            // Scorers only move forward, so the hits are scored in the order of their documents.
+            Arrays.sort(order, Comparator.comparingInt(i -> hits[i].doc));
+            Weight weight = searcher.createWeight(searcher.rewrite(textQuery), true, 1f);
+            List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+            LeafReaderContext leaf = null;
+            Scorer scorer = null;
+            for (int i : order) {
+                int doc = hits[i].doc;
+                if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+                    leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+                    scorer = weight.scorer(leaf);
+                }
+                if (scorer == null) {
+                    continue;
+                }
+                int target = doc - leaf.docBase;
+                int current = scorer.docID() < target ? scorer.iterator().advance(target) : scorer.docID();
+                if (current == target) {
+                    scores[i] = scorer.score();
+                }
+            }
+            return scores;
+        }
+
+        private float similarity(IndexReader reader, int doc) throws IOException {
+            List<LeafReaderContext> leaves = reader.leaves();
+            LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+            float[] vector = vectorCache.vector(leaf.reader(), doc - leaf.docBase);
+            if (vector.length != queryVector.length) {
+                throw new IllegalArgumentException("query vector has [" + queryVector.length + "] dimensions, document ["
+                        + doc + "] has [" + vector.length + "]");
+            }
+            float similarity = 0f;
+            for (int i = 0; i < vector.length; i++) {
+                similarity += queryVector[i] * vector[i];
+            }
+            return similarity;
+        }
+
+        @Override
+        public Explanation explain(int topLevelDocId, IndexSearcher searcher, RescoreContext rescoreContext,
+                                   Explanation sourceExplanation) throws IOException {
+            if (rescoreContext.isRescored(topLevelDocId) == false) {
+                return sourceExplanation;
+            }
+            float similarity = similarity(searcher.getIndexReader(), topLevelDocId);
+            Explanation vectorExplanation = Explanation.match(vectorWeight * similarity,
+                    "product of:", Explanation.match(similarity, "cosine similarity to the query vector"),
+                    Explanation.match(vectorWeight, "vector_weight"));
+            if (textQuery == null) {
+                return Explanation.match(vectorExplanation.getValue(), "aknn rescore score", vectorExplanation, sourceExplanation);
+            }
+            Explanation text = searcher.explain(textQuery, topLevelDocId);
+            float textScore = text.isMatch() ? text.getValue() : 0f;
+            Explanation textExplanation = Explanation.match(textWeight * textScore, "product of:", text,
+                    Explanation.match(textWeight, "text_weight"));
+            return Explanation.match(vectorExplanation.getValue() + textExplanation.getValue(), "sum of:", vectorExplanation,
+                    textExplanation);
+        }
+
+        @Override
+        public void extractTerms(IndexSearcher searcher, RescoreContext rescoreContext, Set<Term> termsSet) {
+        }
+    }
+}
@@ -16,20 +16,9 @@
  */
 package org.elasticsearch.plugin.aknn;
 
-import com.typesafe.config.Config;
-import com.typesafe.config.ConfigFactory;
-import org.apache.logging.log4j.Level;
-import org.elasticsearch.ElasticsearchException;
-import org.elasticsearch.ResourceAlreadyExistsException;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.action.get.GetResponse;
-import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestValidationException;
 import org.elasticsearch.client.node.NodeClient;
-import org.elasticsearch.common.Randomness;
-import org.elasticsearch.common.StopWatch;
-import org.elasticsearch.common.cache.Cache;
-import org.elasticsearch.common.cache.CacheBuilder;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
@@ -38,62 +27,43 @@ import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.DeprecationHandler;
 import org.elasticsearch.common.Strings;
-import org.elasticsearch.index.query.BoolQueryBuilder;
-import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.WrapperQueryBuilder;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.BytesRestResponse;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.rest.RestStatus;
-import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.rest.action.RestActions;
+import org.elasticsearch.rest.action.RestStatusToXContentListener;
+import org.elasticsearch.rest.action.RestToXContentListener;
+import org.elasticsearch.tasks.Task;
 
 import java.io.IOException;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
+import java.util.Collections;
 import java.util.List;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Comparator;
-import java.util.Random;
 import java.util.Locale;
-import java.util.ArrayList;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.stream.Collectors;
 
-import static java.lang.Math.min;
+import static org.elasticsearch.rest.RestRequest.Method.DELETE;
 import static org.elasticsearch.rest.RestRequest.Method.GET;
 import static org.elasticsearch.rest.RestRequest.Method.POST;
 
+/**
+ * REST layer of the plugin. Parses the REST requests into the requests of the aknn transport actions,
+ * which do the actual work.
+ */
 public class AknnRestAction extends BaseRestHandler {
 
     public static String NAME = "_aknn";
     private final String NAME_SEARCH = "_aknn_search";
     private final String NAME_SEARCH_VEC = "_aknn_search_vec";
     private final String NAME_INDEX = "_aknn_index";
+    private final String NAME_REHASH = "_aknn_rehash";
     private final String NAME_CREATE = "_aknn_create";
     private final String NAME_CREATE_RANDOM = "_aknn_create_random";
     private final String NAME_CLEAR_CACHE = "_aknn_clear_cache";
-
-    private final String RESCORE_COSINE = "COSINE";
-    private final String RESCORE_NONE = "NONE";
-
-    // TODO: check how parameters should be defined at the plugin level.
-    private final String HASHES_KEY = "_aknn_hashes";
-    private final String VECTOR_KEY = "_aknn_vector";
-    private final Integer K1_DEFAULT = 99;
-    private final Integer K2_DEFAULT = 10;
-    private final String RESCORE_DEFAULT = RESCORE_COSINE;
-    private final Integer MINIMUM_DEFAULT = 1;
-
-    // TODO: add an option to the index endpoint handler that empties the cache.
-    private Cache<Object, Object> lshModelCache;
-    private ExecutorService indexingExecutorService;
-    private ExecutorService queryingExecutorService;
+    private final String NAME_STATS = "_aknn/_stats";
+    private final String NAME_READY = "_aknn/_ready";
+    private final String NAME_MODELS = "_aknn/_models";
 
     @Inject
     public AknnRestAction(Settings settings, RestController controller) {
@@ -101,30 +71,14 @@ public class AknnRestAction extends BaseRestHandler {
         controller.registerHandler(GET, "/{index}/{type}/{id}/" + NAME_SEARCH, this);
         controller.registerHandler(POST, NAME_SEARCH_VEC, this);
         controller.registerHandler(POST, NAME_INDEX, this);
+        controller.registerHandler(POST, "/{index}/{type}/" + NAME_REHASH, this);
         controller.registerHandler(POST, NAME_CREATE, this);
         controller.registerHandler(POST, NAME_CREATE_RANDOM, this);
         controller.registerHandler(GET, NAME_CLEAR_CACHE, this);
-
-        AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
-            Config cfg = ConfigFactory.load(AknnRestAction.class.getClassLoader());
-            indexingExecutorService = createExecutorService(cfg, "index-executor-service");
-            queryingExecutorService = createExecutorService(cfg, "query-executor-service");
-            lshModelCache = CacheBuilder.builder()
-                    .setMaximumWeight(cfg.getLong("lsh-cache.maxSizeMb") * 1000000L)
-                    .weigher((s, lshModel) -> ((LshModel) lshModel).estimateBytesUsage())
-                    .build();
-            return null;
-        });
-    }
-
-    private ThreadPoolExecutor createExecutorService(Config cfg, String executor) {
-        return new ThreadPoolExecutor(
-                cfg.getInt(executor+".corePoolSize"),
-                cfg.getInt(executor+".maximumPoolSize"),
-                cfg.getLong(executor+".keepAliveTimeMs"),
-                TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>()
-        );
+        controller.registerHandler(GET, "/" + NAME_STATS, this);
+        controller.registerHandler(GET, "/" + NAME_STATS + "/{node_id}", this);
+        controller.registerHandler(GET, "/" + NAME_READY, this);
+        controller.registerHandler(DELETE, "/" + NAME_MODELS + "/{index}/{type}/{id}", this);
     }
 
     // @Override
@@ -134,167 +88,34 @@ public class AknnRestAction extends BaseRestHandler {
 
     @Override
     protected RestChannelConsumer prepareRequest(RestRequest restRequest, NodeClient client) throws IOException {
-        // wrap whole task in another Thread
-        RunnableWithResult<RestChannelConsumer> task = new RunnableWithResult<>(() -> {
-            if (restRequest.path().endsWith(NAME_SEARCH_VEC))
-                return handleSearchVecRequest(restRequest, client);
-            else if (restRequest.path().endsWith(NAME_SEARCH))
-                return handleSearchRequest(restRequest, client);
-            else if (restRequest.path().endsWith(NAME_INDEX))
-                return handleIndexRequest(restRequest, client);
-            else if (restRequest.path().endsWith(NAME_CLEAR_CACHE))
-                return handleClearRequest(restRequest, client);
-            else if (restRequest.path().endsWith(NAME_CREATE))
-                return handleCreateRequest(restRequest, client, false);
-            else
-                return handleCreateRequest(restRequest, client, true);
-        });
-
-        ExecutorService executorService = null;
-
-            if (restRequest.path().endsWith(NAME_SEARCH_VEC))
-                executorService = queryingExecutorService;
-            else if (restRequest.path().endsWith(NAME_SEARCH))
-                executorService = queryingExecutorService;
-            else if (restRequest.path().endsWith(NAME_INDEX))
-                executorService = queryingExecutorService;
-            else if (restRequest.path().endsWith(NAME_CLEAR_CACHE))
-                executorService = queryingExecutorService;
-            else
-                executorService = indexingExecutorService;
-
-        executorService.submit(task);
-        try {
-            return task.getResult();
-        } catch (ElasticsearchException e) {
-            logger.log(Level.ERROR, "Unexpected Elasticsearch exception", e);
-            throw e;
-        } catch (Exception e) {
-            logger.log(Level.ERROR, "Unexpected exception", e);
-            throw new AknnException(e);
-        }
+        if (restRequest.path().contains(NAME_STATS))
+            return handleStatsRequest(restRequest, client);
+        else if (restRequest.path().contains(NAME_READY))
+            return channel -> client.execute(AknnReadinessAction.INSTANCE, new AknnReadinessAction.Request(),
+                    new RestStatusToXContentListener<>(channel));
+        else if (restRequest.path().contains(NAME_MODELS))
+            return handleDeleteModelRequest(restRequest, client);
+        else if (restRequest.path().endsWith(NAME_SEARCH_VEC))
+            return handleSearchVecRequest(restRequest, client);
+        else if (restRequest.path().endsWith(NAME_SEARCH))
+            return handleSearchRequest(restRequest, client);
+        else if (restRequest.path().endsWith(NAME_INDEX))
+            return handleIndexRequest(restRequest, client);
+        else if (restRequest.path().endsWith(NAME_REHASH))
+            return handleRehashRequest(restRequest, client);
+        else if (restRequest.path().endsWith(NAME_CLEAR_CACHE))
+            return handleClearRequest(restRequest, client);
+        else if (restRequest.path().endsWith(NAME_CREATE))
+            return handleCreateRequest(restRequest, client, false);
+        else
+            return handleCreateRequest(restRequest, client, true);
     }
 
     public static Double cosineSimilarity(List<Double> first, List<Double> second) {
-        double dotProduct = 0.0;
-        double normA = 0.0;
-        double normB = 0.0;
-        for (int i = 0; i < first.size(); i++) {
-            double a = first.get(i), b = second.get(i);
-            dotProduct += a * b;
-            normA += Math.pow(a, 2.0);
-            normB += Math.pow(b, 2.0);
-        }
-        return dotProduct / (Math.sqrt(normA) * Math.sqrt(normB));
-    }
-
-    // Loading LSH model refactored as function
-    //TODO Fix issues with stopwatch 
-    public LshModel initLsh(String aknnURI, NodeClient client) throws ExecutionException {
-        StopWatch stopWatch = new StopWatch("StopWatch to load LSH cache");
-        LshModel model = (LshModel) lshModelCache.computeIfAbsent(aknnURI, key -> {
-            // Get the Aknn document.
-            logger.debug("Get Aknn model document from {}", aknnURI);
-            stopWatch.start("Get Aknn model document");
-            String[] annURITokens = aknnURI.split("/");
-            GetResponse aknnGetResponse = client.prepareGet(annURITokens[0], annURITokens[1], annURITokens[2]).get();
-            stopWatch.stop();
-
-            // Instantiate LSH from the source map.
-            logger.debug("Parse Aknn model document");
-            stopWatch.start("Parse Aknn model document");
-            LshModel lshModel = LshModel.fromMap(aknnGetResponse.getSourceAsMap());
-            stopWatch.stop();
-            return lshModel;
-        });
-        return model;
-    }
-
-    //  Query execution refactored as function and added wrapper query
-    private List<Map<String, Object>> queryLsh(List<Double> queryVector, Map<String, Long> queryHashes, String index,
-                                               String type, Integer k1, String rescore, String filterString, Integer minimumShouldMatch,
-                                               Boolean debug, NodeClient client, Boolean orderDesc) {
-        // Retrieve the documents with most matching hashes. https://stackoverflow.com/questions/10773581
-        StopWatch stopWatch = new StopWatch("StopWatch to query LSH cache");
-        logger.debug("Build boolean query from hashes");
-        stopWatch.start("Build boolean query from hashes");
-        BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
-        for (Map.Entry<String, Long> entry : queryHashes.entrySet()) {
-            String termKey = HASHES_KEY + "." + entry.getKey();
-            queryBuilder.should(QueryBuilders.termQuery(termKey, entry.getValue()));
-        }
-        queryBuilder.minimumShouldMatch(minimumShouldMatch);
-
-        if (filterString != null) {
-            queryBuilder.filter(new WrapperQueryBuilder(filterString));
-        }
-        //logger.debug(queryBuilder.toString());
-        stopWatch.stop();
-
-        String hashes;
-        if (!debug) {
-            hashes = HASHES_KEY;
-        } else {
-            hashes = null;
-        }
-
-
-        logger.debug("Execute boolean search");
-        stopWatch.start("Execute boolean search");
-        SearchResponse approximateSearchResponse = client
-                .prepareSearch(index)
-                .setTypes(type)
-                .setFetchSource("*", hashes)
-                .setQuery(queryBuilder)
-                .setSize(k1)
-                .get();
-        stopWatch.stop();
-
-        // Compute exact KNN on the approximate neighbors.
-        // Recreate the SearchHit structure, but remove the vector and hashes.
-        logger.debug("Compute exact distance and construct search hits");
-        stopWatch.start("Compute exact distance and construct search hits");
-        List<Map<String, Object>> modifiedSortedHits = new ArrayList<>();
-        for (SearchHit hit : approximateSearchResponse.getHits()) {
-            Map<String, Object> hitSource = hit.getSourceAsMap();
-            List<Double> hitVector = parseVectorFrom(hitSource);
-            if (!debug) {
-                hitSource.remove(VECTOR_KEY);
-                hitSource.remove(HASHES_KEY);
-            }
-
-            Double computedScore;
-            if (rescore.equals(RESCORE_COSINE)) {
-                computedScore = cosineSimilarity(queryVector, hitVector);
-            } else {
-                computedScore = (double) hit.getScore();
-            }
-
-            modifiedSortedHits.add(new HashMap<String, Object>() {{
-                put("_index", hit.getIndex());
-                put("_id", hit.getId());
-                put("_type", hit.getType());
-                put("_score", computedScore);
-                put("_source", hitSource);
-            }});
-        }
-        stopWatch.stop();
-
-        if (!rescore.equals(RESCORE_NONE)) {
-            logger.debug("Sort search hits by exact distance");
-            stopWatch.start("Sort search hits by exact distance");
-            Comparator<Double> order = orderDesc ? Comparator.reverseOrder() : Comparator.naturalOrder();
-            modifiedSortedHits.sort(Comparator.comparing(x -> (Double) x.get("_score"), order));
-            stopWatch.stop();
-        } else {
-            logger.debug("Exact distance rescoring passed");
-        }
-        logger.debug("Timing summary for querying\n {}", stopWatch.prettyPrint());
-        return modifiedSortedHits;
+        return AknnService.cosineSimilarity(first, second);
     }
 
-
-    private RestChannelConsumer handleSearchRequest(RestRequest restRequest, NodeClient client) throws IOException {
+    private RestChannelConsumer handleSearchRequest(RestRequest restRequest, NodeClient client) {
         /**
          * Original handleSearchRequest() refactored for further reusability
          * and added some additional parameters, such as filter query.
@@ -302,6 +123,7 @@ public class AknnRestAction extends BaseRestHandler {
          * @param  index    Index name
          * @param  type     Doc type (keep in mind forthcoming _type removal in ES7)
          * @param  id       Query document id
+         * @param  _aknn_uri Model of the index, required if the query document has no hashes (HNSW models)
          * @param  filter   String in format of ES bool query filter (excluding
          *                  parent 'filter' node)
          * @param  k1       Number of candidates for scoring
@@ -309,69 +131,27 @@ public class AknnRestAction extends BaseRestHandler {
          * @param  minimum_should_match    number of hashes should match for hit to be returned
          * @param  rescore  If set to 'True' will return results without exact matching stage
          * @param  debug    If set to 'True' will include original vectors and hashes in hits
+         * @param  exact    If set to 'True' will compare the query vector to every indexed vector
          * @param  order    One of 'asc' or 'desc' (default)
+         * @param  profile  If set to 'True' will report the time spent in each phase
+         * @param  from     Number of hits skipped before the returned ones
+         * @param  search_after Token of the next page, from the previous response
+         * @param  keep_alive How long the ranked hits are kept for the following pages
          * @return Return search hits
          */
 
-        StopWatch stopWatch = new StopWatch("StopWatch to Time Search Request");
-
-        // Parse request parameters.
-        stopWatch.start("Parse request parameters");
-        final String index = restRequest.param("index");
-        final String type = restRequest.param("type");
-        final String id = restRequest.param("id");
-        final String filter = restRequest.param("filter", null);
-        final Integer k1 = restRequest.paramAsInt("k1", K1_DEFAULT);
-        final Integer k2 = restRequest.paramAsInt("k2", K2_DEFAULT);
-        final Integer minimumShouldMatch = restRequest.paramAsInt("minimum_should_match", MINIMUM_DEFAULT);
-        final String rescore = restRequest.param("rescore", RESCORE_DEFAULT);
-        final Boolean debug = restRequest.paramAsBoolean("debug", false);
-        final Boolean orderDesc = restRequest.param("order", "desc").toUpperCase(Locale.ENGLISH).equals("DESC");
-        stopWatch.stop();
-
-        logger.debug("Get query document at {}/{}/{}", index, type, id);
-        stopWatch.start("Get query document");
-        GetResponse queryGetResponse = client.prepareGet(index, type, id).get();
-        Map<String, Object> baseSource = queryGetResponse.getSource();
-        stopWatch.stop();
-
-        logger.debug("Parse query document hashes");
-        stopWatch.start("Parse query document hashes");
-        @SuppressWarnings("unchecked")
-        Map<String, Long> queryHashes = (Map<String, Long>) baseSource.get(HASHES_KEY);
-        stopWatch.stop();
-
-        stopWatch.start("Parse query document vector");
-        List<Double> queryVector = parseVectorFrom(baseSource);
-        stopWatch.stop();
-
-        stopWatch.start("Query nearest neighbors");
-        List<Map<String, Object>> modifiedSortedHits = queryLsh(queryVector, queryHashes, index, type, k1,
-                rescore, filter, minimumShouldMatch, debug, client, orderDesc);
-
-        stopWatch.stop();
-
-        logger.debug("Timing summary\n {}", stopWatch.prettyPrint());
-
-        return channel -> {
-            XContentBuilder builder = channel.newBuilder();
-            builder.startObject();
-            builder.field("took", stopWatch.totalTime().getMillis());
-            builder.field("timed_out", false);
-            builder.startObject("hits");
-            builder.field("max_score", 0);
+        AknnSearchAction.Request request = new AknnSearchAction.Request(restRequest.param("index"), restRequest.param("type"))
+                .id(restRequest.param("id"))
+                .aknnURI(restRequest.param("_aknn_uri"))
+                .filter(restRequest.param("filter", null))
+                .k1(restRequest.paramAsInt("k1", AknnSearchAction.K1_DEFAULT))
+                .k2(restRequest.paramAsInt("k2", AknnSearchAction.K2_DEFAULT));
+        parseCommonSearchParams(restRequest, request);
 
-            // In some cases there will not be enough approximate matches to return *k2* hits. For example, this could
-            // be the case if the number of bits per table in the LSH model is too high, over-partioning the space.
-            builder.field("total", min(k2, modifiedSortedHits.size()));
-            builder.field("hits", modifiedSortedHits.subList(0, min(k2, modifiedSortedHits.size())));
-            builder.endObject();
-            builder.endObject();
-            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
-        };
+        return channel -> client.execute(AknnSearchAction.INSTANCE, request, new RestToXContentListener<>(channel));
     }
 
-    private RestChannelConsumer handleSearchVecRequest(RestRequest restRequest, NodeClient client) throws Exception {
+    private RestChannelConsumer handleSearchVecRequest(RestRequest restRequest, NodeClient client) throws IOException {
 
         /**
          * Hybrid of refactored handleSearchRequest() and handleIndexRequest()
@@ -383,27 +163,25 @@ public class AknnRestAction extends BaseRestHandler {
          * @param  _aknn_vector Query vector
          * @param  filter       String in format of ES bool query filter (excluding
          *                      parent 'filter' node)
+         * @param  query        Full text query blended with the vector similarity
+         * @param  blend        Weights of the blend, 'vector_weight' and 'text_weight'
          * @param  k1           Number of candidates for scoring
          * @param  k2           Number of hits returned
+         * @param  ef           Number of candidates kept while walking the graphs of an HNSW model
+         * @param  nprobe       Number of cells probed with an IVF model
          * @param  minimum_should_match    number of hashes should match for hit to be returned
          * @param  rescore      If set to 'True' will return results without exact matching stage
          * @param  debug        If set to 'True' will include original vectors and hashes in hits
+         * @param  exact        If set to 'True' will compare the query vector to every indexed vector
          * @param  order        One of 'asc' or 'desc' (default)
+         * @param  profile      If set to 'True' will report the time spent in each phase
+         * @param  from         Number of hits skipped before the returned ones
+         * @param  search_after Token of the next page, from the previous response
+         * @param  keep_alive   How long the ranked hits are kept for the following pages
          * @return Return search hits
          */
 
-
-        StopWatch stopWatch = new StopWatch("StopWatch to Time Search Request");
-
-        // Parse request parameters.
-        stopWatch.start("Parse request parameters");
-        XContentParser xContentParser = XContentHelper.createParser(
-                restRequest.getXContentRegistry(),
-                DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
-                restRequest.content(),
-                restRequest.getXContentType());
-        @SuppressWarnings("unchecked")
-        Map<String, Object> contentMap = xContentParser.mapOrdered();
+        Map<String, Object> contentMap = parseContent(restRequest);
         @SuppressWarnings("unchecked")
         Map<String, Object> aknnQueryMap = (Map<String, Object>) contentMap.get("query_aknn");
         @SuppressWarnings("unchecked")
@@ -414,250 +192,166 @@ public class AknnRestAction extends BaseRestHandler {
                     .map(filterMap);
             filter = Strings.toString(filterBuilder);
         }
-
-        final String index = (String) contentMap.get("_index");
-        final String type = (String) contentMap.get("_type");
-        final String aknnURI = (String) contentMap.get("_aknn_uri");
-        final Integer k1 = (Integer) aknnQueryMap.get("k1");
-        final Integer k2 = (Integer) aknnQueryMap.get("k2");
-        final Integer minimumShouldMatch = restRequest.paramAsInt("minimum_should_match", MINIMUM_DEFAULT);
-        final String rescore = restRequest.param("rescore", RESCORE_DEFAULT);
-        final Boolean debug = restRequest.paramAsBoolean("debug", false);
-        final Boolean orderDesc = restRequest.param("order", "desc").toUpperCase(Locale.ENGLISH).equals("DESC");
-
-        List<Double> queryVector = parseVectorFrom(aknnQueryMap);
-        stopWatch.stop();
-        // Check if the LshModel has been cached. If not, retrieve the Aknn document and use it to populate the model.
-        LshModel lshModel = initLsh(aknnURI, client);
-
-        stopWatch.start("Query nearest neighbors");
-        List<Map<String, Object>> modifiedSortedHits;
-        if (!lshModel.hasBases()) {
-            modifiedSortedHits = new ArrayList<>();
-        } else {
-            @SuppressWarnings("unchecked")
-            Map<String, Long> queryHashes = lshModel.getVectorHashes(queryVector);
-            //logger.debug("HASHES: {}", queryHashes);
-            modifiedSortedHits = queryLsh(queryVector, queryHashes, index, type, k1, rescore,
-                    filter, minimumShouldMatch, debug, client, orderDesc);
+        @SuppressWarnings("unchecked")
+        Map<String, ?> textQueryMap = (Map<String, ?>) contentMap.get("query");
+        String textQuery = null;
+        if (textQueryMap != null) {
+            textQuery = Strings.toString(XContentFactory.jsonBuilder().map(textQueryMap));
         }
-
-        stopWatch.stop();
-        logger.debug("Timing summary\n {}", stopWatch.prettyPrint());
-        return channel -> {
-            XContentBuilder builder = channel.newBuilder();
-            builder.startObject();
-            builder.field("took", stopWatch.totalTime().getMillis());
-            builder.field("timed_out", false);
-            builder.startObject("hits");
-            builder.field("max_score", 0);
-
-            // In some cases there will not be enough approximate matches to return *k2* hits. For example, this could
-            // be the case if the number of bits per table in the LSH model is too high, over-partioning the space.
-            builder.field("total", min(k2, modifiedSortedHits.size()));
-            builder.field("hits", modifiedSortedHits.subList(0, min(k2, modifiedSortedHits.size())));
-            builder.endObject();
-            builder.endObject();
-            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
-        };
+        @SuppressWarnings("unchecked")
+        Map<String, Object> blendMap = (Map<String, Object>) contentMap.getOrDefault("blend", Collections.emptyMap());
+
+        AknnSearchAction.Request request = new AknnSearchAction.Request(
+                (String) contentMap.get("_index"), (String) contentMap.get("_type"))
+                .aknnURI((String) contentMap.get("_aknn_uri"))
+                .queryVector(AknnService.parseVectorFrom(aknnQueryMap))
+                .filter(filter)
+                .textQuery(textQuery)
+                .vectorWeight(((Number) blendMap.getOrDefault("vector_weight", AknnRescorerBuilder.DEFAULT_WEIGHT)).floatValue())
+                .textWeight(((Number) blendMap.getOrDefault("text_weight", AknnRescorerBuilder.DEFAULT_WEIGHT)).floatValue())
+                .k1((Integer) aknnQueryMap.getOrDefault("k1", AknnSearchAction.K1_DEFAULT))
+                .k2((Integer) aknnQueryMap.getOrDefault("k2", AknnSearchAction.K2_DEFAULT))
+                .ef((Integer) aknnQueryMap.get("ef"))
+                .nprobe((Integer) aknnQueryMap.get("nprobe"));
+        parseCommonSearchParams(restRequest, request);
+
+        return channel -> client.execute(AknnSearchAction.INSTANCE, request, new RestToXContentListener<>(channel));
     }
 
+    private void parseCommonSearchParams(RestRequest restRequest, AknnSearchAction.Request request) {
+        request.minimumShouldMatch(restRequest.paramAsInt("minimum_should_match", AknnSearchAction.MINIMUM_DEFAULT))
+                .rescore(restRequest.param("rescore", AknnSearchAction.RESCORE_DEFAULT))
+                .debug(restRequest.paramAsBoolean("debug", false))
+                .exact(restRequest.paramAsBoolean("exact", false))
+                .orderDesc(restRequest.param("order", "desc").toUpperCase(Locale.ENGLISH).equals("DESC"))
+                .timeout(restRequest.paramAsTime("timeout", null))
+                .profile(restRequest.paramAsBoolean("profile", false))
+                .from(restRequest.paramAsInt("from", 0))
+                .searchAfter(restRequest.param("search_after"))
+                .keepAlive(restRequest.paramAsTime("keep_alive", null));
+    }
 
     private RestChannelConsumer handleCreateRequest(RestRequest restRequest, NodeClient client, boolean randomBase) throws IOException {
 
-        StopWatch stopWatch = new StopWatch("StopWatch to time create request");
-        logger.debug("Parse request");
-        stopWatch.start("Parse request");
-
-        XContentParser xContentParser = XContentHelper.createParser(
-                restRequest.getXContentRegistry(),
-                DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
-                restRequest.content(),
-                restRequest.getXContentType());
-        Map<String, Object> contentMap = xContentParser.mapOrdered();
+        Map<String, Object> contentMap = parseContent(restRequest);
         @SuppressWarnings("unchecked")
         Map<String, Object> sourceMap = (Map<String, Object>) contentMap.get("_source");
-
-
-        final String _index = (String) contentMap.get("_index");
-        final String _type = (String) contentMap.get("_type");
-        final String _id = (String) contentMap.get("_id");
-        final String description = (String) sourceMap.get("_aknn_description");
-        final Integer nbTables = (Integer) sourceMap.get("_aknn_nb_tables");
-        final Integer nbBitsPerTable = (Integer) sourceMap.get("_aknn_nb_bits_per_table");
-        final Integer nbDimensions = (Integer) sourceMap.get("_aknn_nb_dimensions");
-        stopWatch.stop();
-
-
-        logger.debug("Create LSH index");
-        stopWatch.start("Create LSH index");
-
-        try {
-            client.admin().indices()
-                    .prepareCreate(_index)
-                    .addMapping(_type, "_aknn_bases", "index=false,type=double", "_aknn_bases_seed", "index=false,type=long")
-                    .get();
-        } catch (ResourceAlreadyExistsException ignored) {
-            logger.warn("Index " + _index + " already exists, skipping adding mapping");
-            stopWatch.stop();
-            return channel -> {
-                XContentBuilder builder = channel.newBuilder();
-                builder.startObject();
-                builder.field("took", stopWatch.totalTime().getMillis());
-                builder.endObject();
-                channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
-            };
+        @SuppressWarnings("unchecked")
+        List<List<Double>> vectorSample = (List<List<Double>>) contentMap.get("_aknn_vector_sample");
+
+        AknnCreateAction.Request request = new AknnCreateAction.Request(
+                (String) contentMap.get("_index"), (String) contentMap.get("_type"), (String) contentMap.get("_id"))
+                .description((String) sourceMap.get("_aknn_description"))
+                .nbTables((Integer) sourceMap.get("_aknn_nb_tables"))
+                .nbBitsPerTable((Integer) sourceMap.get("_aknn_nb_bits_per_table"))
+                .nbDimensions((Integer) sourceMap.get("_aknn_nb_dimensions"))
+                .randomBase(randomBase)
+                .vectorSample(vectorSample);
+        if (sourceMap.containsKey("_aknn_model_type")) {
+            request.modelType((String) sourceMap.get("_aknn_model_type"));
         }
-        stopWatch.stop();
-
-        logger.debug("Fit LSH model with base vectors");
-        stopWatch.start("Fit LSH model with base vectors");
-        LshModel lshModel;
-        if (randomBase) {
-            Random rng = Randomness.get();
-            lshModel = new LshModel(nbTables, nbBitsPerTable, nbDimensions, description, rng.nextLong());
-        } else {
-            @SuppressWarnings("unchecked") final List<List<Double>> vectorSample =
-                    (List<List<Double>>) contentMap.get("_aknn_vector_sample");
-            lshModel = new LshModel(nbTables, nbBitsPerTable, nbDimensions, description, vectorSample);
+        if (sourceMap.containsKey("_aknn_hnsw_m")) {
+            request.hnswM((Integer) sourceMap.get("_aknn_hnsw_m"));
+        }
+        if (sourceMap.containsKey("_aknn_hnsw_ef_construction")) {
+            request.hnswEfConstruction((Integer) sourceMap.get("_aknn_hnsw_ef_construction"));
+        }
+        if (sourceMap.containsKey("_aknn_ivf_nlist")) {
+            request.ivfNlist((Integer) sourceMap.get("_aknn_ivf_nlist"));
+        }
+        if (sourceMap.containsKey("_aknn_ivf_nprobe")) {
+            request.ivfNprobe((Integer) sourceMap.get("_aknn_ivf_nprobe"));
+        }
+        if (sourceMap.containsKey("_aknn_ivf_assignments")) {
+            request.ivfAssignments((Integer) sourceMap.get("_aknn_ivf_assignments"));
+        }
+        if (sourceMap.containsKey("_aknn_pq_m")) {
+            request.pqM((Integer) sourceMap.get("_aknn_pq_m"));
+        }
+        if (contentMap.containsKey("_aknn_storage")) {
+            request.storage((String) contentMap.get("_aknn_storage"));
         }
-        stopWatch.stop();
-
-        logger.debug("Serialize LSH model");
-        stopWatch.start("Serialize LSH model");
-        Map<String, Object> lshSerialized = lshModel.toMap();
-        stopWatch.stop();
-
-
-        logger.debug("Index LSH model");
-        stopWatch.start("Index LSH model");
-        client.prepareIndex(_index, _type, _id)
-                .setSource(lshSerialized)
-                .setCreate(true)
-                .get();
-        stopWatch.stop();
-
-        logger.debug("Timing summary\n {}", stopWatch.prettyPrint());
 
-        return channel -> {
-            XContentBuilder builder = channel.newBuilder();
-            builder.startObject();
-            builder.field("took", stopWatch.totalTime().getMillis());
-            builder.endObject();
-            channel.sendResponse(new BytesRestResponse(RestStatus.CREATED, builder));
-        };
+        return channel -> client.execute(AknnCreateAction.INSTANCE, request, new RestStatusToXContentListener<>(channel,
+                response -> "/" + request.index() + "/" + request.type() + "/" + request.id()));
     }
 
-    private RestChannelConsumer handleIndexRequest(RestRequest restRequest, NodeClient client) throws Exception {
-
-        StopWatch stopWatch = new StopWatch("StopWatch to time bulk indexing request");
+    private RestChannelConsumer handleIndexRequest(RestRequest restRequest, NodeClient client) throws IOException {
 
-        logger.debug("Parse request parameters");
-        stopWatch.start("Parse request parameters");
-        XContentParser xContentParser = XContentHelper.createParser(
-                restRequest.getXContentRegistry(),
-                DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
-                restRequest.content(),
-                restRequest.getXContentType());
-        Map<String, Object> contentMap = xContentParser.mapOrdered();
-        final String index = (String) contentMap.get("_index");
-        final String type = (String) contentMap.get("_type");
-        final String aknnURI = (String) contentMap.get("_aknn_uri");
-        final int retryOnConflict = restRequest.paramAsInt("retryOnConflict", 5);
+        Map<String, Object> contentMap = parseContent(restRequest);
+        AknnIndexAction.Request request = new AknnIndexAction.Request(
+                (String) contentMap.get("_index"), (String) contentMap.get("_type"), (String) contentMap.get("_aknn_uri"))
+                .retryOnConflict(restRequest.paramAsInt("retryOnConflict", 5))
+                .opType(restRequest.param("op_type", "update"))
+                .bulkSize(restRequest.paramAsInt("bulk_size", AknnIndexAction.Request.DEFAULT_BULK_SIZE))
+                .concurrentBulks(restRequest.paramAsInt("concurrent_bulks", AknnIndexAction.Request.DEFAULT_CONCURRENT_BULKS))
+                .hashFormat(restRequest.param("hash_format", AknnService.HASH_FORMAT_FIELDS));
         @SuppressWarnings("unchecked") final List<Map<String, Object>> docs = (List<Map<String, Object>>) contentMap.get("_aknn_docs");
-        logger.debug("Received {} docs for indexing", docs.size());
-        stopWatch.stop();
-
-        // TODO: check if the index exists. If not, create a mapping which does not index continuous values.
-        // This is rather low priority, as I tried it via Python and it doesn't make much difference.
-
-        // Check if the LshModel has been cached. If not, retrieve the Aknn document and use it to populate the model.
-        LshModel lshModel = initLsh(aknnURI, client);
-        // lazily generate bases if needed
-        if (!lshModel.hasBases() && docs.size() > 0) {
-            logger.debug("Lazily generate bases");
-            stopWatch.start("Lazily generate bases");
-            Map<String, Object> doc = docs.get(0);
-            @SuppressWarnings("unchecked")
-            Map<String, Object> source = (Map<String, Object>) doc.get("_source");
-            List<Double> vector = parseVectorFrom(source);
-            lshModel.generateBases(vector.size());
-            Map<String, Object> lshSerialized = lshModel.toMap();
-            String[] annURITokens = aknnURI.split("/");
-            client.prepareIndex(annURITokens[0], annURITokens[1], annURITokens[2])
-                    .setSource(lshSerialized)
-                    .get();
-            stopWatch.stop();
-        }
-
-        // Prepare documents for batch indexing.
-        logger.debug("Hash documents for indexing");
-        stopWatch.start("Hash documents for indexing");
-        BulkRequestBuilder bulkIndexRequest = client.prepareBulk();
         for (Map<String, Object> doc : docs) {
             @SuppressWarnings("unchecked")
             Map<String, Object> source = (Map<String, Object>) doc.get("_source");
-            List<Double> vector = parseVectorFrom(source);
-            source.put(HASHES_KEY, lshModel.getVectorHashes(vector));
-            bulkIndexRequest.add(client
-                    .prepareUpdate(index, type, String.valueOf(doc.get("_id")))
-                    .setDoc(source)
-                    .setRetryOnConflict(retryOnConflict)
-                    .setDocAsUpsert(true));
+            request.add(String.valueOf(doc.get("_id")), source);
         }
-        stopWatch.stop();
-
-        logger.debug("Execute bulk indexing");
-        stopWatch.start("Execute bulk indexing");
-        BulkResponse bulkIndexResponse = bulkIndexRequest.get();
-        stopWatch.stop();
 
-        logger.debug("Timing summary\n {}", stopWatch.prettyPrint());
+        return channel -> client.execute(AknnIndexAction.INSTANCE, request, new RestStatusToXContentListener<>(channel));
+    }
 
-        if (bulkIndexResponse.hasFailures()) {
-            logger.error("Indexing failed with message: {}", bulkIndexResponse.buildFailureMessage());
-            return channel -> {
-                XContentBuilder builder = channel.newBuilder();
-                builder.startObject();
-                builder.field("took", stopWatch.totalTime().getMillis());
-                builder.field("error", bulkIndexResponse.buildFailureMessage());
-                builder.endObject();
-                channel.sendResponse(new BytesRestResponse(RestStatus.INTERNAL_SERVER_ERROR, builder));
-            };
+    private RestChannelConsumer handleRehashRequest(RestRequest restRequest, NodeClient client) {
+        float requestsPerSecond = restRequest.paramAsFloat("requests_per_second", -1);
+        AknnRehashAction.Request request = new AknnRehashAction.Request(
+                restRequest.param("index"), restRequest.param("type"), restRequest.param("_aknn_uri"))
+                .slices(restRequest.paramAsInt("slices", 1))
+                .scrollSize(restRequest.paramAsInt("scroll_size", AknnRehashAction.Request.DEFAULT_SCROLL_SIZE))
+                .requestsPerSecond(requestsPerSecond == -1 ? Float.POSITIVE_INFINITY : requestsPerSecond);
+        if (restRequest.paramAsBoolean("wait_for_completion", true)) {
+            return channel -> client.execute(AknnRehashAction.INSTANCE, request, new RestStatusToXContentListener<>(channel));
         }
 
-        logger.debug("Indexed {} docs successfully", docs.size());
+        // Run in the background, the response is stored in the .tasks index and read with GET _tasks/<task id>.
+        ActionRequestValidationException validationException = request.validate();
+        if (validationException != null) {
+            throw validationException;
+        }
+        request.shouldStoreResult(true);
         return channel -> {
+            Task task = client.executeLocally(AknnRehashAction.INSTANCE, request, ActionListener.wrap(
+                    response -> logger.debug("Rehash of [{}] completed", request.index()),
+                    e -> logger.warn("Rehash of [" + request.index() + "] failed", e)));
             XContentBuilder builder = channel.newBuilder();
-            builder.startObject();
-            builder.field("size", docs.size());
-            builder.field("took", stopWatch.totalTime().getMillis());
-            builder.endObject();
+            builder.startObject().field("task", client.getLocalNodeId() + ":" + task.getId()).endObject();
             channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
         };
     }
 
     private RestChannelConsumer handleClearRequest(RestRequest restRequest, NodeClient client) {
-        StopWatch stopWatch = new StopWatch("StopWatch to time clear cache");
-        logger.debug("Clearing LSH models cache");
-        stopWatch.start("Clearing cache");
-        lshModelCache.invalidateAll();
-        stopWatch.stop();
-        logger.debug("Timing summary\n {}", stopWatch.prettyPrint());
+        AknnClearCacheAction.Request request = new AknnClearCacheAction.Request(
+                Strings.splitStringByCommaToArray(restRequest.param("nodes", "_all")))
+                .aknnURIs(Strings.splitStringByCommaToArray(restRequest.param("_aknn_uri")));
+        return channel -> client.execute(AknnClearCacheAction.INSTANCE, request, new RestActions.NodesResponseRestListener<>(channel));
+    }
 
-        return channel -> {
-            XContentBuilder builder = channel.newBuilder();
-            builder.startObject();
-            builder.field("took", stopWatch.totalTime().getMillis());
-            builder.field("acknowledged", true);
-            builder.endObject();
-            channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
-        };
+    private RestChannelConsumer handleDeleteModelRequest(RestRequest restRequest, NodeClient client) {
+        AknnDeleteModelAction.Request request = new AknnDeleteModelAction.Request(
+                restRequest.param("index") + "/" + restRequest.param("type") + "/" + restRequest.param("id"));
+        request.timeout(restRequest.paramAsTime("timeout", request.timeout()));
+        request.masterNodeTimeout(restRequest.paramAsTime("master_timeout", request.masterNodeTimeout()));
+        return channel -> client.execute(AknnDeleteModelAction.INSTANCE, request, new RestToXContentListener<>(channel));
     }
 
-    private List<Double> parseVectorFrom(Map<String, Object> source) {
-        @SuppressWarnings("unchecked")
-        List<Object> vec = (List<Object>) source.get(VECTOR_KEY);
-        return vec.stream().map(v -> Double.valueOf(v.toString())).collect(Collectors.toList());
+    private RestChannelConsumer handleStatsRequest(RestRequest restRequest, NodeClient client) {
+        AknnStatsAction.Request request = new AknnStatsAction.Request(
+                Strings.splitStringByCommaToArray(restRequest.param("node_id", "_all")));
+        request.timeout(restRequest.param("timeout"));
+        return channel -> client.execute(AknnStatsAction.INSTANCE, request, new RestActions.NodesResponseRestListener<>(channel));
+    }
+
+    private Map<String, Object> parseContent(RestRequest restRequest) throws IOException {
+        try (XContentParser xContentParser = XContentHelper.createParser(
+                restRequest.getXContentRegistry(),
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                restRequest.content(),
+                restRequest.getXContentType())) {
+            return xContentParser.mapOrdered();
+        }
     }
 }
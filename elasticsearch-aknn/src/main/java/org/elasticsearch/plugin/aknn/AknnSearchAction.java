@@ -0,0 +1,714 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskId;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Approximate nearest neighbors search, either by the vector of an already indexed document
+ * ({@code _aknn_search}) or by a vector given in the request ({@code _aknn_search_vec}).
+ */
+public class AknnSearchAction extends Action<AknnSearchAction.Request, AknnSearchAction.Response, AknnSearchAction.RequestBuilder> {
+
+    public static final AknnSearchAction INSTANCE = new AknnSearchAction();
+    public static final String NAME = "indices:data/read/aknn/search";
+
+    public static final String RESCORE_COSINE = "COSINE";
+    public static final String RESCORE_NONE = "NONE";
+
+    public static final int K1_DEFAULT = 99;
+    public static final int K2_DEFAULT = 10;
+    public static final String RESCORE_DEFAULT = RESCORE_COSINE;
+    public static final int MINIMUM_DEFAULT = 1;
+    public static final int EF_DEFAULT = 100;
+    public static final TimeValue KEEP_ALIVE_DEFAULT = TimeValue.timeValueMinutes(1);
+
+    private AknnSearchAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RequestBuilder(client);
+    }
+
+    @Override
+    public Response newResponse() {
+        return new Response();
+    }
+
+    public static class Request extends ActionRequest {
+
+        private String index;
+        private String type;
+        // Either the id of an indexed query document, or a query vector together with the model uri.
+        private String id;
+        private double[] queryVector;
+        private String aknnURI;
+        private String filter;
+        private String textQuery;
+        private float vectorWeight = AknnRescorerBuilder.DEFAULT_WEIGHT;
+        private float textWeight = AknnRescorerBuilder.DEFAULT_WEIGHT;
+        private int k1 = K1_DEFAULT;
+        private int k2 = K2_DEFAULT;
+        private int minimumShouldMatch = MINIMUM_DEFAULT;
+        private Integer ef;
+        private Integer nprobe;
+        private String rescore = RESCORE_DEFAULT;
+        private boolean debug = false;
+        private boolean exact = false;
+        private boolean orderDesc = true;
+        private TimeValue timeout;
+        private boolean profile = false;
+        private int from = 0;
+        private String searchAfter;
+        private TimeValue keepAlive;
+
+        public Request() {
+        }
+
+        public Request(String index, String type) {
+            this.index = index;
+            this.type = type;
+        }
+
+        public String index() {
+            return index;
+        }
+
+        public Request index(String index) {
+            this.index = index;
+            return this;
+        }
+
+        public String type() {
+            return type;
+        }
+
+        public Request type(String type) {
+            this.type = type;
+            return this;
+        }
+
+        public String id() {
+            return id;
+        }
+
+        public Request id(String id) {
+            this.id = id;
+            return this;
+        }
+
+        public double[] queryVector() {
+            return queryVector;
+        }
+
+        public Request queryVector(double[] queryVector) {
+            this.queryVector = queryVector;
+            return this;
+        }
+
+        public Request queryVector(List<Double> queryVector) {
+            this.queryVector = queryVector.stream().mapToDouble(Double::doubleValue).toArray();
+            return this;
+        }
+
+        public String aknnURI() {
+            return aknnURI;
+        }
+
+        public Request aknnURI(String aknnURI) {
+            this.aknnURI = aknnURI;
+            return this;
+        }
+
+        public String filter() {
+            return filter;
+        }
+
+        public Request filter(String filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * A full text query, in the same format as the filter. Documents it matches are candidates too, and the hits
+         * are scored by {@code vectorWeight * cosine similarity + textWeight * text query score}.
+         */
+        public String textQuery() {
+            return textQuery;
+        }
+
+        public Request textQuery(String textQuery) {
+            this.textQuery = textQuery;
+            return this;
+        }
+
+        public float vectorWeight() {
+            return vectorWeight;
+        }
+
+        public Request vectorWeight(float vectorWeight) {
+            this.vectorWeight = vectorWeight;
+            return this;
+        }
+
+        public float textWeight() {
+            return textWeight;
+        }
+
+        public Request textWeight(float textWeight) {
+            this.textWeight = textWeight;
+            return this;
+        }
+
+        public int k1() {
+            return k1;
+        }
+
+        /**
+         * Number of candidates rescored by cosine similarity. Every shard rescores its own k1 best candidates, except
+         * in ascending order, where the k1 best candidates of all shards are fetched and rescored together.
+         */
+        public Request k1(int k1) {
+            this.k1 = k1;
+            return this;
+        }
+
+        public int k2() {
+            return k2;
+        }
+
+        public Request k2(int k2) {
+            this.k2 = k2;
+            return this;
+        }
+
+        public int minimumShouldMatch() {
+            return minimumShouldMatch;
+        }
+
+        public Request minimumShouldMatch(int minimumShouldMatch) {
+            this.minimumShouldMatch = minimumShouldMatch;
+            return this;
+        }
+
+        public Integer ef() {
+            return ef;
+        }
+
+        /**
+         * Number of candidates kept while walking the graphs of an HNSW model, at least k2. Defaults to the larger of
+         * k2 and {@link #EF_DEFAULT}. LSH models do not use it.
+         */
+        public Request ef(Integer ef) {
+            this.ef = ef;
+            return this;
+        }
+
+        public Integer nprobe() {
+            return nprobe;
+        }
+
+        /**
+         * Number of cells probed with an IVF model, the cells of the centroids nearest to the query vector. Defaults to
+         * the number set in the model. Other models do not use it.
+         */
+        public Request nprobe(Integer nprobe) {
+            this.nprobe = nprobe;
+            return this;
+        }
+
+        public String rescore() {
+            return rescore;
+        }
+
+        public Request rescore(String rescore) {
+            this.rescore = rescore;
+            return this;
+        }
+
+        public boolean debug() {
+            return debug;
+        }
+
+        public Request debug(boolean debug) {
+            this.debug = debug;
+            return this;
+        }
+
+        /**
+         * Whether the hits are the exact k2 nearest documents, found by comparing the query vector to every vector of the
+         * index rather than through the model. k1 and the model parameters are then ignored.
+         */
+        public boolean exact() {
+            return exact;
+        }
+
+        public Request exact(boolean exact) {
+            this.exact = exact;
+            return this;
+        }
+
+        public boolean orderDesc() {
+            return orderDesc;
+        }
+
+        public Request orderDesc(boolean orderDesc) {
+            this.orderDesc = orderDesc;
+            return this;
+        }
+
+        public TimeValue timeout() {
+            return timeout;
+        }
+
+        /**
+         * Time budget of the search. When it runs out, the results gathered so far are returned and the response is
+         * flagged as timed out.
+         */
+        public Request timeout(TimeValue timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        public boolean profile() {
+            return profile;
+        }
+
+        /**
+         * Whether the response reports the time spent in each phase of the search.
+         */
+        public Request profile(boolean profile) {
+            this.profile = profile;
+            return this;
+        }
+
+        public int from() {
+            return from;
+        }
+
+        /**
+         * Number of hits skipped before the k2 returned ones.
+         */
+        public Request from(int from) {
+            this.from = from;
+            return this;
+        }
+
+        public String searchAfter() {
+            return searchAfter;
+        }
+
+        /**
+         * The {@code search_after} token of a previous response. The next k2 hits are read from the cursor of that
+         * search if the node still has it, otherwise the search runs again from the offset of the token.
+         */
+        public Request searchAfter(String searchAfter) {
+            this.searchAfter = searchAfter;
+            return this;
+        }
+
+        public TimeValue keepAlive() {
+            return keepAlive;
+        }
+
+        /**
+         * How long the ranked hits of the search are kept for its following pages after each read. Without it, only
+         * searches with {@code search_after} keep their hits, for {@link #KEEP_ALIVE_DEFAULT}.
+         */
+        public Request keepAlive(TimeValue keepAlive) {
+            this.keepAlive = keepAlive;
+            return this;
+        }
+
+        /**
+         * Digest of everything the ranked hits of the search depend on, so a {@code search_after} token only reads the
+         * cursor of the same search. Paging and timing parameters are left out.
+         */
+        String fingerprint() {
+            try (BytesStreamOutput out = new BytesStreamOutput()) {
+                out.writeString(index);
+                out.writeOptionalString(type);
+                out.writeOptionalString(id);
+                out.writeBoolean(queryVector != null);
+                if (queryVector != null) {
+                    out.writeDoubleArray(queryVector);
+                }
+                out.writeOptionalString(aknnURI);
+                out.writeOptionalString(filter);
+                out.writeOptionalString(textQuery);
+                out.writeFloat(vectorWeight);
+                out.writeFloat(textWeight);
+                out.writeVInt(k1);
+                out.writeVInt(minimumShouldMatch);
+                out.writeOptionalVInt(ef);
+                out.writeOptionalVInt(nprobe);
+                out.writeString(rescore);
+                out.writeBoolean(debug);
+                out.writeBoolean(exact);
+                out.writeBoolean(orderDesc);
+                return MessageDigests.toHexString(MessageDigests.sha256().digest(BytesReference.toBytes(out.bytes())));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Task createTask(long id, String type, String action, TaskId parentTaskId, Map<String, String> headers) {
+            return new CancellableTask(id, type, action, getDescription(), parentTaskId, headers) {
+                @Override
+                public boolean shouldCancelChildrenOnCancellation() {
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public String getDescription() {
+            return "index[" + index + "], " + (id != null ? "id[" + id + "], " : "model[" + aknnURI + "], ")
+                    + "k1[" + k1 + "], k2[" + k2 + "]";
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException validationException = null;
+            if (index == null) {
+                validationException = addValidationError("index is missing", validationException);
+            }
+            if (id == null && queryVector == null) {
+                validationException = addValidationError("either a query document id or a query vector is required",
+                        validationException);
+            }
+            if (queryVector != null && aknnURI == null && !exact) {
+                validationException = addValidationError("_aknn_uri is required to search by vector", validationException);
+            }
+            if (textQuery != null && exact) {
+                validationException = addValidationError("a text query can not be blended into an exact search", validationException);
+            }
+            if (textQuery != null && !orderDesc) {
+                validationException = addValidationError("a text query can not be blended into a search in ascending order",
+                        validationException);
+            }
+            if (vectorWeight < 0 || textWeight < 0) {
+                validationException = addValidationError("vector_weight and text_weight must not be negative", validationException);
+            }
+            if (k1 < 1 || k2 < 1) {
+                validationException = addValidationError("k1 and k2 must be positive", validationException);
+            }
+            if (ef != null && ef < 1) {
+                validationException = addValidationError("ef must be positive", validationException);
+            }
+            if (nprobe != null && nprobe < 1) {
+                validationException = addValidationError("nprobe must be positive", validationException);
+            }
+            if (nprobe != null && id != null && aknnURI == null && !exact) {
+                validationException = addValidationError("_aknn_uri is required to probe nprobe cells in a search by id",
+                        validationException);
+            }
+            if (from < 0) {
+                validationException = addValidationError("from must not be negative", validationException);
+            }
+            if (from > 0 && searchAfter != null) {
+                validationException = addValidationError("from can not be combined with search_after", validationException);
+            }
+            if (keepAlive != null && keepAlive.nanos() <= 0) {
+                validationException = addValidationError("keep_alive must be positive", validationException);
+            }
+            return validationException;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            index = in.readString();
+            type = in.readOptionalString();
+            id = in.readOptionalString();
+            if (in.readBoolean()) {
+                queryVector = in.readDoubleArray();
+            }
+            aknnURI = in.readOptionalString();
+            filter = in.readOptionalString();
+            textQuery = in.readOptionalString();
+            vectorWeight = in.readFloat();
+            textWeight = in.readFloat();
+            k1 = in.readVInt();
+            k2 = in.readVInt();
+            minimumShouldMatch = in.readVInt();
+            ef = in.readOptionalVInt();
+            nprobe = in.readOptionalVInt();
+            rescore = in.readString();
+            debug = in.readBoolean();
+            exact = in.readBoolean();
+            orderDesc = in.readBoolean();
+            timeout = in.readOptionalTimeValue();
+            profile = in.readBoolean();
+            from = in.readVInt();
+            searchAfter = in.readOptionalString();
+            keepAlive = in.readOptionalTimeValue();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeString(index);
+            out.writeOptionalString(type);
+            out.writeOptionalString(id);
+            out.writeBoolean(queryVector != null);
+            if (queryVector != null) {
+                out.writeDoubleArray(queryVector);
+            }
+            out.writeOptionalString(aknnURI);
+            out.writeOptionalString(filter);
+            out.writeOptionalString(textQuery);
+            out.writeFloat(vectorWeight);
+            out.writeFloat(textWeight);
+            out.writeVInt(k1);
+            out.writeVInt(k2);
+            out.writeVInt(minimumShouldMatch);
+            out.writeOptionalVInt(ef);
+            out.writeOptionalVInt(nprobe);
+            out.writeString(rescore);
+            out.writeBoolean(debug);
+            out.writeBoolean(exact);
+            out.writeBoolean(orderDesc);
+            out.writeOptionalTimeValue(timeout);
+            out.writeBoolean(profile);
+            out.writeVInt(from);
+            out.writeOptionalString(searchAfter);
+            out.writeOptionalTimeValue(keepAlive);
+        }
+    }
+
+    public static class RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder> {
+
+        public RequestBuilder(ElasticsearchClient client) {
+            super(client, INSTANCE, new Request());
+        }
+    }
+
+    /**
+     * A rescored search hit. The source has the vector and hashes removed unless the request was in debug mode.
+     */
+    public static class Hit implements Writeable, ToXContentObject {
+
+        private final String index;
+        private final String type;
+        private final String id;
+        private final double score;
+        private final Map<String, Object> source;
+
+        public Hit(String index, String type, String id, double score, Map<String, Object> source) {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+            this.score = score;
+            this.source = source;
+        }
+
+        public Hit(StreamInput in) throws IOException {
+            index = in.readString();
+            type = in.readString();
+            id = in.readString();
+            score = in.readDouble();
+            source = in.readMap();
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public Map<String, Object> getSource() {
+            return source;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeString(index);
+            out.writeString(type);
+            out.writeString(id);
+            out.writeDouble(score);
+            out.writeMap(source);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("_index", index);
+            builder.field("_type", type);
+            builder.field("_id", id);
+            builder.field("_score", score);
+            builder.field("_source", source);
+            return builder.endObject();
+        }
+    }
+
+    public static class Response extends ActionResponse implements ToXContentObject {
+
+        private long tookInMillis;
+        private boolean timedOut;
+        private List<Hit> hits;
+        // Phase name to time spent in nanoseconds, in execution order. Only set for profiled requests.
+        private Map<String, Long> profile;
+        // Token of the next page, only set when the hits of the search are kept in a cursor and more of them follow.
+        private String searchAfter;
+
+        public Response() {
+        }
+
+        public Response(long tookInMillis, boolean timedOut, List<Hit> hits) {
+            this(tookInMillis, timedOut, hits, null);
+        }
+
+        public Response(long tookInMillis, boolean timedOut, List<Hit> hits, Map<String, Long> profile) {
+            this(tookInMillis, timedOut, hits, profile, null);
+        }
+
+        public Response(long tookInMillis, boolean timedOut, List<Hit> hits, Map<String, Long> profile, String searchAfter) {
+            this.tookInMillis = tookInMillis;
+            this.timedOut = timedOut;
+            this.hits = hits;
+            this.profile = profile;
+            this.searchAfter = searchAfter;
+        }
+
+        public long getTookInMillis() {
+            return tookInMillis;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public List<Hit> getHits() {
+            return Collections.unmodifiableList(hits);
+        }
+
+        @Nullable
+        public Map<String, Long> getProfile() {
+            return profile;
+        }
+
+        @Nullable
+        public String getSearchAfter() {
+            return searchAfter;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            tookInMillis = in.readVLong();
+            timedOut = in.readBoolean();
+            hits = in.readList(Hit::new);
+            if (in.readBoolean()) {
+                int size = in.readVInt();
+                profile = new LinkedHashMap<>(size);
+                for (int i = 0; i < size; i++) {
+                    profile.put(in.readString(), in.readVLong());
+                }
+            }
+            searchAfter = in.readOptionalString();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVLong(tookInMillis);
+            out.writeBoolean(timedOut);
+            out.writeList(hits);
+            out.writeBoolean(profile != null);
+            if (profile != null) {
+                out.writeVInt(profile.size());
+                for (Map.Entry<String, Long> phase : profile.entrySet()) {
+                    out.writeString(phase.getKey());
+                    out.writeVLong(phase.getValue());
+                }
+            }
+            out.writeOptionalString(searchAfter);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject();
+            builder.field("took", tookInMillis);
+            builder.field("timed_out", timedOut);
+            if (searchAfter != null) {
+                builder.field("search_after", searchAfter);
+            }
+            builder.startObject("hits");
+            builder.field("max_score", 0);
+            builder.field("total", hits.size());
+            builder.startArray("hits");
+            for (Hit hit : hits) {
+                hit.toXContent(builder, params);
+            }
+            builder.endArray();
+            builder.endObject();
+            if (profile != null) {
+                builder.startArray("profile");
+                for (Map.Entry<String, Long> phase : profile.entrySet()) {
+                    builder.startObject();
+                    builder.field("phase", phase.getKey());
+                    builder.field("time_in_nanos", phase.getValue());
+                    builder.endObject();
+                }
+                builder.endArray();
+            }
+            return builder.endObject();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Short-lived cursors over the ranked hits of searches, so the following pages of a search are read from memory instead
+ * of running the search again. A cursor is kept by the node that coordinated the search, and expires once it was not
+ * read for the keep alive of the search. A cursor is only read by the search that created it: a request with the same
+ * parameters, as compared by {@link AknnSearchAction.Request#fingerprint}.
+ */
+public class AknnSearchCursors extends AbstractComponent {
+
+    public static final Setting<TimeValue> MAX_KEEP_ALIVE_SETTING = Setting.positiveTimeSetting("aknn.search.cursor.max_keep_alive",
+            TimeValue.timeValueMinutes(5), Setting.Property.NodeScope);
+
+    /**
+     * Estimated heap used by the hits of all the cursors of the node, the least recently read cursors are dropped beyond
+     * it.
+     */
+    public static final Setting<ByteSizeValue> SIZE_SETTING = Setting.memorySizeSetting("aknn.search.cursor.size", "1%",
+            Setting.Property.NodeScope);
+
+    // Rough heap usage of the objects making up a hit and its source, headers and references included.
+    private static final long HIT_BYTES = 96L;
+    private static final long STRING_BYTES = 56L;
+    private static final long NUMBER_BYTES = 24L;
+    private static final long ENTRY_BYTES = 48L;
+    private static final long REFERENCE_BYTES = 8L;
+
+    private final TimeValue maxKeepAlive;
+    private final Cache<String, Cursor> cache;
+
+    public AknnSearchCursors(Settings settings) {
+        super(settings);
+        this.maxKeepAlive = MAX_KEEP_ALIVE_SETTING.get(settings);
+        this.cache = CacheBuilder.<String, Cursor>builder()
+                .setMaximumWeight(SIZE_SETTING.get(settings).getBytes())
+                .weigher((id, cursor) -> cursor.bytes)
+                .setExpireAfterAccess(maxKeepAlive)
+                .build();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the keep alive is longer than {@code aknn.search.cursor.max_keep_alive}
+     */
+    void checkKeepAlive(TimeValue keepAlive) {
+        if (keepAlive.nanos() > maxKeepAlive.nanos()) {
+            throw new IllegalArgumentException("keep_alive [" + keepAlive + "] is longer than the maximum ["
+                    + maxKeepAlive + "], set by [" + MAX_KEEP_ALIVE_SETTING.getKey() + "]");
+        }
+    }
+
+    /**
+     * Keeps the hits of a search and returns the id of their cursor.
+     */
+    String put(List<AknnSearchAction.Hit> hits, String fingerprint, TimeValue keepAlive) {
+        String id = UUIDs.randomBase64UUID();
+        cache.put(id, new Cursor(hits, fingerprint, keepAlive));
+        return id;
+    }
+
+    /**
+     * The hits of a cursor, or null if it expired, never existed on this node or belongs to a search with another
+     * fingerprint. Reading a cursor extends its keep alive.
+     */
+    @Nullable
+    List<AknnSearchAction.Hit> get(String id, String fingerprint) {
+        Cursor cursor = cache.get(id);
+        if (cursor == null || cursor.fingerprint.equals(fingerprint) == false) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (now - cursor.expiresNanos > 0) {
+            cache.invalidate(id);
+            return null;
+        }
+        cursor.expiresNanos = now + cursor.keepAlive.nanos();
+        return cursor.hits;
+    }
+
+    /**
+     * The {@code search_after} token of the hits of a cursor following the given offset.
+     */
+    static String token(String id, int offset) {
+        return id + ":" + offset;
+    }
+
+    static String id(String token) {
+        return token.substring(0, separator(token));
+    }
+
+    static int offset(String token) {
+        try {
+            int offset = Integer.parseInt(token.substring(separator(token) + 1));
+            if (offset >= 0) {
+                return offset;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below.
+        }
+        throw new IllegalArgumentException("invalid search_after [" + token + "]");
+    }
+
+    private static int separator(String token) {
+        int separator = token.lastIndexOf(':');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("invalid search_after [" + token + "]");
+        }
+        return separator;
+    }
+
+    int count() {
+        return cache.count();
+    }
+
+    long ramBytesUsed() {
+        return cache.weight();
+    }
+
+    private static long ramBytesUsed(AknnSearchAction.Hit hit) {
+        return HIT_BYTES + ramBytesUsed(hit.getIndex()) + ramBytesUsed(hit.getType()) + ramBytesUsed(hit.getId())
+                + ramBytesUsed(hit.getSource());
+    }
+
+    /**
+     * Estimates the heap used by a value of a parsed source: maps, lists, strings, numbers and booleans.
+     */
+    private static long ramBytesUsed(Object value) {
+        if (value == null || value instanceof Boolean) {
+            return 0L;
+        } else if (value instanceof String) {
+            return STRING_BYTES + 2L * ((String) value).length();
+        } else if (value instanceof Map) {
+            long bytes = ENTRY_BYTES;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                bytes += ENTRY_BYTES + ramBytesUsed(entry.getKey()) + ramBytesUsed(entry.getValue());
+            }
+            return bytes;
+        } else if (value instanceof List) {
+            long bytes = ENTRY_BYTES;
+            for (Object element : (List<?>) value) {
+                bytes += REFERENCE_BYTES + ramBytesUsed(element);
+            }
+            return bytes;
+        }
+        return NUMBER_BYTES;
+    }
+
+    private static final class Cursor {
+
+        private final List<AknnSearchAction.Hit> hits;
+        private final String fingerprint;
+        private final TimeValue keepAlive;
+        private final long bytes;
+        private volatile long expiresNanos;
+
+        Cursor(List<AknnSearchAction.Hit> hits, String fingerprint, TimeValue keepAlive) {
+            this.hits = hits;
+            this.fingerprint = fingerprint;
+            this.keepAlive = keepAlive;
+            long bytes = HIT_BYTES;
+            for (AknnSearchAction.Hit hit : hits) {
+                bytes += ramBytesUsed(hit);
+            }
+            this.bytes = bytes;
+            this.expiresNanos = System.nanoTime() + keepAlive.nanos();
+        }
+    }
+}
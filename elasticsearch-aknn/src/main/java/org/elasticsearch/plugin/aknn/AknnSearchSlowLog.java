@@ -0,0 +1,164 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.StopWatch;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Slow log of the aknn searches, written to the {@code org.elasticsearch.plugin.aknn.slowlog.search} logger. A search
+ * is logged at the most severe level whose threshold it exceeds. Thresholds are read from the settings of the searched
+ * index, falling back to the node settings, and are disabled ({@code -1}) by default. The log line is formatted and
+ * written on the {@code aknn_slowlog} thread pool so logging does not add to the latency of the search; when that
+ * pool is saturated the entry is dropped.
+ */
+public class AknnSearchSlowLog extends AbstractComponent {
+
+    public static final String THREAD_POOL_NAME = "aknn_slowlog";
+
+    private static final String INDEX_PREFIX = "index.aknn.slowlog.threshold.search.";
+    private static final String NODE_PREFIX = "aknn.slowlog.threshold.search.";
+    private static final Level[] LEVELS = {Level.WARN, Level.INFO, Level.DEBUG, Level.TRACE};
+
+    public static final Setting<TimeValue> INDEX_WARN_SETTING = indexThreshold("warn");
+    public static final Setting<TimeValue> INDEX_INFO_SETTING = indexThreshold("info");
+    public static final Setting<TimeValue> INDEX_DEBUG_SETTING = indexThreshold("debug");
+    public static final Setting<TimeValue> INDEX_TRACE_SETTING = indexThreshold("trace");
+    public static final Setting<TimeValue> NODE_WARN_SETTING = nodeThreshold("warn");
+    public static final Setting<TimeValue> NODE_INFO_SETTING = nodeThreshold("info");
+    public static final Setting<TimeValue> NODE_DEBUG_SETTING = nodeThreshold("debug");
+    public static final Setting<TimeValue> NODE_TRACE_SETTING = nodeThreshold("trace");
+
+    private static final List<Setting<TimeValue>> INDEX_SETTINGS =
+            Arrays.asList(INDEX_WARN_SETTING, INDEX_INFO_SETTING, INDEX_DEBUG_SETTING, INDEX_TRACE_SETTING);
+    private static final List<Setting<TimeValue>> NODE_SETTINGS =
+            Arrays.asList(NODE_WARN_SETTING, NODE_INFO_SETTING, NODE_DEBUG_SETTING, NODE_TRACE_SETTING);
+
+    private final Logger slowLogger = LogManager.getLogger("org.elasticsearch.plugin.aknn.slowlog.search");
+    private final ClusterService clusterService;
+    private final ThreadPool threadPool;
+    // Node level thresholds in nanoseconds, in the order of LEVELS.
+    private final long[] nodeThresholds = new long[LEVELS.length];
+
+    public AknnSearchSlowLog(Settings settings, ClusterService clusterService, ThreadPool threadPool) {
+        super(settings);
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        for (int i = 0; i < LEVELS.length; i++) {
+            final int level = i;
+            Setting<TimeValue> setting = NODE_SETTINGS.get(level);
+            nodeThresholds[level] = setting.get(settings).nanos();
+            clusterService.getClusterSettings().addSettingsUpdateConsumer(setting, value -> nodeThresholds[level] = value.nanos());
+        }
+    }
+
+    public static List<Setting<?>> getSettings() {
+        return Arrays.asList(INDEX_WARN_SETTING, INDEX_INFO_SETTING, INDEX_DEBUG_SETTING, INDEX_TRACE_SETTING,
+                NODE_WARN_SETTING, NODE_INFO_SETTING, NODE_DEBUG_SETTING, NODE_TRACE_SETTING);
+    }
+
+    private static Setting<TimeValue> indexThreshold(String level) {
+        return Setting.timeSetting(INDEX_PREFIX + level, TimeValue.timeValueNanos(-1), TimeValue.timeValueMillis(-1),
+                Property.Dynamic, Property.IndexScope);
+    }
+
+    private static Setting<TimeValue> nodeThreshold(String level) {
+        return Setting.timeSetting(NODE_PREFIX + level, TimeValue.timeValueNanos(-1), TimeValue.timeValueMillis(-1),
+                Property.Dynamic, Property.NodeScope);
+    }
+
+    /**
+     * Logs the search if it took longer than one of the thresholds of its index.
+     *
+     * @param request    The search request
+     * @param stopWatch  The stopwatch that timed the phases of the search
+     * @param candidates Number of candidates returned by the LSH search
+     * @param timedOut   Whether the search ran out of time
+     */
+    public void onSearch(AknnSearchAction.Request request, StopWatch stopWatch, long candidates, boolean timedOut) {
+        long tookNanos = stopWatch.totalTime().nanos();
+        Level level = levelFor(request.index(), tookNanos);
+        if (level == null || slowLogger.isEnabled(level) == false) {
+            return;
+        }
+        StopWatch.TaskInfo[] phases = stopWatch.taskInfo();
+        try {
+            threadPool.executor(THREAD_POOL_NAME).execute(
+                    () -> slowLogger.log(level, message(request, tookNanos, phases, candidates, timedOut)));
+        } catch (EsRejectedExecutionException e) {
+            // Never hold up the search for the slow log.
+            logger.trace("dropped slow log entry of aknn search on [{}]", request.index());
+        }
+    }
+
+    private Level levelFor(String index, long tookNanos) {
+        IndexMetaData indexMetaData = clusterService.state().metaData().index(index);
+        Settings indexSettings = indexMetaData == null ? Settings.EMPTY : indexMetaData.getSettings();
+        for (int i = 0; i < LEVELS.length; i++) {
+            Setting<TimeValue> indexSetting = INDEX_SETTINGS.get(i);
+            long threshold = indexSetting.exists(indexSettings) ? indexSetting.get(indexSettings).nanos() : nodeThresholds[i];
+            if (threshold >= 0 && tookNanos > threshold) {
+                return LEVELS[i];
+            }
+        }
+        return null;
+    }
+
+    private static String message(AknnSearchAction.Request request, long tookNanos, StopWatch.TaskInfo[] phases,
+                                  long candidates, boolean timedOut) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("[").append(request.index()).append("] ");
+        sb.append("took[").append(TimeValue.timeValueNanos(tookNanos)).append("], ");
+        sb.append("took_millis[").append(TimeUnit.NANOSECONDS.toMillis(tookNanos)).append("], ");
+        sb.append("timed_out[").append(timedOut).append("], ");
+        if (request.id() != null) {
+            sb.append("id[").append(request.id()).append("], ");
+        } else {
+            sb.append("model[").append(request.aknnURI()).append("], ");
+        }
+        sb.append("k1[").append(request.k1()).append("], ");
+        sb.append("k2[").append(request.k2()).append("], ");
+        sb.append("minimum_should_match[").append(request.minimumShouldMatch()).append("], ");
+        sb.append("rescore[").append(request.rescore()).append("], ");
+        sb.append("filter[").append(request.filter() == null ? "" : request.filter()).append("], ");
+        sb.append("candidates[").append(candidates).append("], ");
+        sb.append("phases[");
+        for (int i = 0; i < phases.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(phases[i].getTaskName()).append("=").append(phases[i].getTime());
+        }
+        sb.append("]");
+        return sb.toString();
+    }
+}
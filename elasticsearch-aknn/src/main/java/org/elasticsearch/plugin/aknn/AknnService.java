@@ -0,0 +1,686 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.StopWatch;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.lucene.uid.Versions;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.StreamSupport;
+
+/**
+ * Node level state shared by the aknn transport actions: the LSH model cache and the request stats. Models loaded
+ * from model documents are also kept memory-mapped by the {@link AknnModelStore} when it is enabled, so the heap
+ * cache only holds their definition.
+ */
+public class AknnService extends AbstractComponent {
+
+    public static final String HASHES_KEY = "_aknn_hashes";
+    public static final String VECTOR_KEY = "_aknn_vector";
+    /**
+     * Product quantization code of the vector of a document, for models with a {@link ProductQuantizer}.
+     */
+    public static final String PQ_CODE_KEY = "_aknn_pq_code";
+
+    /**
+     * Hashes as an object with a field per table, one term dictionary per table.
+     */
+    public static final String HASH_FORMAT_FIELDS = "fields";
+    /**
+     * Hashes as a single keyword field of {@code <table>:<hash>} tokens, one term dictionary for all tables and a
+     * constant size mapping whatever the number of tables.
+     */
+    public static final String HASH_FORMAT_TOKENS = "tokens";
+
+    /**
+     * How long a cached model is trusted before its version is compared with the one of the model document again.
+     * Zero checks on every use, a negative value never does.
+     */
+    public static final Setting<TimeValue> VERSION_CHECK_INTERVAL_SETTING = Setting.timeSetting(
+            "aknn.model_cache.version_check_interval", TimeValue.timeValueSeconds(1), TimeValue.timeValueMillis(-1),
+            Setting.Property.Dynamic, Setting.Property.NodeScope);
+
+    private final Client client;
+    private final ClusterService clusterService;
+    private final AknnModelStore modelStore;
+    private final AknnStats stats = new AknnStats();
+    private final Set<String> checkedMappings = ConcurrentCollections.newConcurrentSet();
+    private volatile long versionCheckIntervalNanos;
+
+    private Cache<String, CachedModel> lshModelCache;
+
+    public AknnService(Settings settings, ClusterService clusterService, Client client, @Nullable AknnModelStore modelStore) {
+        super(settings);
+        this.client = client;
+        this.clusterService = clusterService;
+        this.modelStore = modelStore;
+        this.versionCheckIntervalNanos = VERSION_CHECK_INTERVAL_SETTING.get(settings).nanos();
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(VERSION_CHECK_INTERVAL_SETTING,
+                value -> versionCheckIntervalNanos = value.nanos());
+
+        AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+            Config cfg = ConfigFactory.load(AknnService.class.getClassLoader());
+            lshModelCache = CacheBuilder.<String, CachedModel>builder()
+                    .setMaximumWeight(cfg.getLong("lsh-cache.maxSizeMb") * 1000000L)
+                    .weigher((s, cached) -> cached.model.estimateBytesUsage())
+                    .build();
+            return null;
+        });
+    }
+
+    // Loading LSH model refactored as function
+    public LshModel initLsh(String aknnURI) throws ExecutionException {
+        AknnModelsMetaData.Model definition = clusterStateModel(aknnURI);
+        if (definition != null) {
+            // Models in the cluster state are already local, only their bases have to be generated.
+            CachedModel cached = lshModelCache.computeIfAbsent(aknnURI, key -> new CachedModel(definition.toLshModel(), definition));
+            if (definition.equals(cached.definition) == false) {
+                lshModelCache.invalidate(aknnURI, cached);
+                cached = lshModelCache.computeIfAbsent(aknnURI, key -> new CachedModel(definition.toLshModel(), definition));
+            }
+            return cached.model;
+        }
+
+        CachedModel cached = lshModelCache.computeIfAbsent(aknnURI, this::loadModel);
+        // Versions start over when the model index is recreated, its uuid tells the two apart without any request.
+        if (Objects.equals(cached.indexUUID, indexUUID(aknnURI)) == false) {
+            logger.debug("Aknn model index of {} was recreated, reloading it", aknnURI);
+            lshModelCache.invalidate(aknnURI, cached);
+            cached = lshModelCache.computeIfAbsent(aknnURI, this::loadModel);
+        }
+        long intervalNanos = versionCheckIntervalNanos;
+        if (intervalNanos >= 0 && System.nanoTime() - cached.checkedNanos >= intervalNanos) {
+            checkVersion(aknnURI, cached);
+        }
+        return cached.model;
+    }
+
+    /**
+     * Compares the version of a cached model to the one of its model document in the background, and drops the model
+     * from the cache if it changed so that its next use reloads it. Only one check of a cached model runs at a time,
+     * uses of the model in the meantime keep the cached copy.
+     */
+    private void checkVersion(String aknnURI, CachedModel cached) {
+        if (cached.checking.compareAndSet(false, true) == false) {
+            return;
+        }
+        // Fetching only the version is a realtime get without source, much cheaper than reloading the bases.
+        prepareGet(aknnURI).setFetchSource(false).execute(ActionListener.wrap(
+                response -> {
+                    if (response.getVersion() == cached.version) {
+                        cached.checkedNanos = System.nanoTime();
+                    } else {
+                        logger.debug("Aknn model {} changed from version {} to {}, dropping it from the cache", aknnURI,
+                                cached.version, response.getVersion());
+                        lshModelCache.invalidate(aknnURI, cached);
+                    }
+                    cached.checking.set(false);
+                },
+                e -> {
+                    logger.debug("Failed to check the version of aknn model " + aknnURI, e);
+                    cached.checking.set(false);
+                }));
+    }
+
+    private CachedModel loadModel(String aknnURI) {
+        StopWatch stopWatch = new StopWatch("StopWatch to load LSH cache");
+        String indexUUID = indexUUID(aknnURI);
+        if (modelStore != null) {
+            // A stored copy of the current version is mapped as is, without fetching and parsing the bases.
+            logger.debug("Get Aknn model version from {}", aknnURI);
+            stopWatch.start("Get Aknn model version");
+            GetResponse versionResponse = prepareGet(aknnURI).setFetchSource(false).get();
+            stopWatch.stop();
+            if (versionResponse.isExists()) {
+                LshModel stored = modelStore.open(aknnURI, indexUUID, versionResponse.getVersion());
+                if (stored != null) {
+                    return new CachedModel(stored, indexUUID, versionResponse.getVersion());
+                }
+            }
+        }
+
+        // Get the Aknn document.
+        logger.debug("Get Aknn model document from {}", aknnURI);
+        stopWatch.start("Get Aknn model document");
+        GetResponse aknnGetResponse = prepareGet(aknnURI).get();
+        stopWatch.stop();
+
+        // Instantiate LSH from the source map.
+        logger.debug("Parse Aknn model document");
+        stopWatch.start("Parse Aknn model document");
+        LshModel lshModel = LshModel.fromMap(aknnGetResponse.getSourceAsMap());
+        stopWatch.stop();
+
+        // Only LSH bases are memory-mapped, centroids and codebooks stay on the heap.
+        if (modelStore != null && lshModel.hasBases() && lshModel.isMappable()) {
+            logger.debug("Store Aknn model");
+            stopWatch.start("Store Aknn model");
+            lshModel = modelStore.store(aknnURI, indexUUID, aknnGetResponse.getVersion(), lshModel);
+            stopWatch.stop();
+        }
+        return new CachedModel(lshModel, indexUUID, aknnGetResponse.getVersion());
+    }
+
+    /**
+     * The uuid of the index of a model document, null if the index does not exist or is an alias.
+     */
+    @Nullable
+    private String indexUUID(String aknnURI) {
+        IndexMetaData indexMetaData = clusterService.state().metaData().index(aknnURI.split("/")[0]);
+        return indexMetaData == null ? null : indexMetaData.getIndexUUID();
+    }
+
+    /**
+     * The definition of the model if it is stored in the cluster state rather than in a model document.
+     */
+    @Nullable
+    public AknnModelsMetaData.Model clusterStateModel(String aknnURI) {
+        return AknnModelsMetaData.get(clusterService.state()).get(aknnURI);
+    }
+
+    private GetRequestBuilder prepareGet(String aknnURI) {
+        String[] annURITokens = aknnURI.split("/");
+        return client.prepareGet(annURITokens[0], annURITokens[1], annURITokens[2]);
+    }
+
+    private IndexRequestBuilder prepareIndex(String aknnURI) {
+        String[] annURITokens = aknnURI.split("/");
+        return client.prepareIndex(annURITokens[0], annURITokens[1], annURITokens[2]);
+    }
+
+    /**
+     * Records that the model at the given uri was written by this node, so the cached copy stays valid without
+     * being reloaded.
+     */
+    public void modelUpdated(String aknnURI, LshModel model, long version) {
+        String indexUUID = indexUUID(aknnURI);
+        if (modelStore != null && model.hasBases() && model.isMappable()) {
+            model = modelStore.store(aknnURI, indexUUID, version, model);
+        }
+        lshModelCache.put(aknnURI, new CachedModel(model, indexUUID, version));
+    }
+
+    /**
+     * Generates the bases of a model that was created without a vector sample, now that the number of dimensions is
+     * known, and publishes them: through the cluster state for seeded cluster state models, otherwise by writing the
+     * model document and dropping the model from the caches of the other nodes. The model document is only written
+     * if it did not change since the model was loaded; if another node wrote its bases first, the stored bases are
+     * used instead of the generated ones.
+     */
+    public void ensureBases(String aknnURI, LshModel lshModel, int nbDimensions) {
+        ensureBases(aknnURI, lshModel, nbDimensions, true);
+    }
+
+    /**
+     * @param waitForWrite whether to wait for the model to be published, callers running on the write thread pool
+     *                     (ingest processors) can not as the write needs a thread of that pool. If publishing fails
+     *                     the model is dropped from the cache, so the next use loads or generates it again.
+     */
+    public void ensureBases(String aknnURI, LshModel lshModel, int nbDimensions, boolean waitForWrite) {
+        // Concurrent index requests and ingest pipelines share the cached model, only the first one generates.
+        synchronized (lshModel) {
+            if (lshModel.hasBases()) {
+                return;
+            }
+            lshModel.generateBases(nbDimensions);
+            AknnModelsMetaData.Model definition = clusterStateModel(aknnURI);
+            if (definition != null) {
+                // The other nodes regenerate the same bases from the seed once they see the dimensions.
+                AknnPutModelAction.Request putRequest = new AknnPutModelAction.Request(aknnURI, definition.withDimensions(nbDimensions));
+                if (waitForWrite) {
+                    client.execute(AknnPutModelAction.INSTANCE, putRequest).actionGet();
+                } else {
+                    client.execute(AknnPutModelAction.INSTANCE, putRequest, ActionListener.wrap(
+                            response -> {},
+                            e -> {
+                                logger.warn("Failed to publish the dimensions of aknn model " + aknnURI, e);
+                                clearCache(aknnURI);
+                            }));
+                }
+                return;
+            }
+            IndexRequestBuilder indexRequest = prepareIndex(aknnURI).setSource(lshModel.toMap())
+                    .setVersion(loadedVersion(aknnURI, lshModel));
+            if (waitForWrite) {
+                try {
+                    IndexResponse modelIndexResponse = indexRequest.get();
+                    modelUpdated(aknnURI, lshModel, modelIndexResponse.getVersion());
+                    invalidateOnOtherNodes(aknnURI);
+                } catch (VersionConflictEngineException e) {
+                    logger.debug("Aknn model {} was written concurrently, using its stored bases", aknnURI);
+                    useStoredBases(aknnURI, lshModel, prepareGet(aknnURI).get());
+                }
+            } else {
+                indexRequest.execute(ActionListener.wrap(
+                        response -> {
+                            modelUpdated(aknnURI, lshModel, response.getVersion());
+                            invalidateOnOtherNodes(aknnURI);
+                        },
+                        e -> {
+                            if (ExceptionsHelper.unwrapCause(e) instanceof VersionConflictEngineException) {
+                                logger.debug("Aknn model {} was written concurrently, using its stored bases", aknnURI);
+                                prepareGet(aknnURI).execute(ActionListener.wrap(
+                                        stored -> useStoredBases(aknnURI, lshModel, stored),
+                                        getFailure -> {
+                                            logger.warn("Failed to get the stored bases of aknn model " + aknnURI, getFailure);
+                                            clearCache(aknnURI);
+                                        }));
+                            } else {
+                                logger.warn("Failed to write the generated bases of aknn model " + aknnURI, e);
+                                clearCache(aknnURI);
+                            }
+                        }));
+            }
+        }
+    }
+
+    /**
+     * The version of the model document the cached model was loaded from, any version if the model is no longer
+     * cached.
+     */
+    private long loadedVersion(String aknnURI, LshModel lshModel) {
+        CachedModel cached = lshModelCache.get(aknnURI);
+        return cached != null && cached.model == lshModel ? cached.version : Versions.MATCH_ANY;
+    }
+
+    /**
+     * Replaces the generated bases of a model whose document was written concurrently by the stored ones. The model is
+     * updated in place, as the callers that generated the bases keep hashing with it.
+     */
+    private void useStoredBases(String aknnURI, LshModel lshModel, GetResponse stored) {
+        LshModel storedModel = LshModel.fromMap(stored.getSourceAsMap());
+        if (storedModel.hasBases() == false) {
+            // The model was redefined rather than given bases, its next use loads the new definition.
+            logger.warn("Aknn model {} changed while generating its bases, dropping it from the cache", aknnURI);
+            clearCache(aknnURI);
+            return;
+        }
+        synchronized (lshModel) {
+            lshModel.copyBasesFrom(storedModel);
+        }
+        modelUpdated(aknnURI, lshModel, stored.getVersion());
+    }
+
+    /**
+     * Drops the model from the caches of the other nodes, so they pick up the new bases on their next use instead of
+     * waiting for their next version check.
+     */
+    private void invalidateOnOtherNodes(String aknnURI) {
+        DiscoveryNodes nodes = clusterService.state().nodes();
+        String[] otherNodes = StreamSupport.stream(nodes.spliterator(), false)
+                .map(DiscoveryNode::getId)
+                .filter(id -> id.equals(nodes.getLocalNodeId()) == false)
+                .toArray(String[]::new);
+        if (otherNodes.length == 0) {
+            return;
+        }
+        AknnClearCacheAction.Request clearRequest = new AknnClearCacheAction.Request(otherNodes).aknnURIs(aknnURI);
+        client.execute(AknnClearCacheAction.INSTANCE, clearRequest, ActionListener.wrap(
+                response -> {
+                    for (FailedNodeException failure : response.failures()) {
+                        logger.warn("Failed to invalidate aknn model " + aknnURI + " on node " + failure.nodeId(), failure);
+                    }
+                },
+                e -> logger.warn("Failed to invalidate aknn model " + aknnURI + " on the other nodes", e)));
+    }
+
+    /**
+     * Creates a missing target index with a mapping made for aknn documents: the vector is only kept in the source,
+     * and every hash is a keyword indexed without frequencies, positions and norms, with eagerly loaded global
+     * ordinals. The mapping of an existing index is checked instead, once per index, and mappings that index the
+     * vector or map the hashes as numbers are reported, as only a new index can change them.
+     *
+     * @param hashFormat the format of the hashes of a new index, or of an existing one that did not map them yet
+     * @param productQuantizer whether the documents get product quantization codes, mapped as binary doc values
+     * @return the format of the hashes of the index
+     */
+    public String ensureIndex(String index, String type, String hashFormat, boolean productQuantizer) throws IOException {
+        MetaData metaData = clusterService.state().metaData();
+        if (metaData.getAliasAndIndexLookup().containsKey(index) == false) {
+            logger.debug("Create index [{}] with the aknn mapping", index);
+            try {
+                client.admin().indices().prepareCreate(index).addMapping(type, mapping(type, hashFormat, productQuantizer)).get();
+            } catch (ResourceAlreadyExistsException e) {
+                logger.debug("Index [{}] was created concurrently", index);
+                return hashFormat(index, type, hashFormat);
+            }
+            return hashFormat;
+        }
+        IndexMetaData indexMetaData = metaData.index(index);
+        if (indexMetaData != null && indexMetaData.mapping(type) != null && checkedMappings.add(indexMetaData.getIndexUUID())) {
+            checkMapping(index, indexMetaData.mapping(type).sourceAsMap());
+        }
+        if (productQuantizer && indexMetaData != null && mappedProperties(indexMetaData, type).containsKey(PQ_CODE_KEY) == false) {
+            // An index created for a model without product quantization gets the doc values of the codes of a model
+            // that has one, left to dynamic mapping they would become text.
+            client.admin().indices().preparePutMapping(index).setType(type).setSource(XContentFactory.jsonBuilder()
+                    .startObject().startObject(type).startObject("properties")
+                    .startObject(PQ_CODE_KEY).field("type", "binary").field("doc_values", true).endObject()
+                    .endObject().endObject().endObject()).get();
+        }
+        String mappedFormat = mappedHashFormat(indexMetaData, type);
+        if (mappedFormat != null) {
+            return mappedFormat;
+        }
+        if (HASH_FORMAT_TOKENS.equals(hashFormat) && indexMetaData != null) {
+            // Left to dynamic mapping, the tokens would become a text field with a keyword sub field.
+            client.admin().indices().preparePutMapping(index).setType(type).setSource(XContentFactory.jsonBuilder()
+                    .startObject().startObject(type).startObject("properties")
+                    .startObject(HASHES_KEY).field("type", "keyword").field("index_options", "docs").field("norms", false)
+                    .field("eager_global_ordinals", true).endObject()
+                    .endObject().endObject().endObject()).get();
+        }
+        return hashFormat;
+    }
+
+    static XContentBuilder mapping(String type, String hashFormat, boolean productQuantizer) throws IOException {
+        XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject(type);
+        if (HASH_FORMAT_FIELDS.equals(hashFormat)) {
+            mapping.startArray("dynamic_templates")
+                    .startObject().startObject(HASHES_KEY)
+                        .field("path_match", HASHES_KEY + ".*")
+                        .startObject("mapping")
+                            .field("type", "keyword")
+                            .field("index_options", "docs")
+                            .field("norms", false)
+                            .field("eager_global_ordinals", true)
+                        .endObject()
+                    .endObject().endObject()
+                    .endArray();
+        }
+        mapping.startObject("properties")
+                // Not parsed at all, so the vector can be numbers as well as base64 or binary.
+                .startObject(VECTOR_KEY).field("type", "object").field("enabled", false).endObject();
+        if (productQuantizer) {
+            // Doc values let searches read the codes of their candidates without loading their source.
+            mapping.startObject(PQ_CODE_KEY).field("type", "binary").field("doc_values", true).endObject();
+        }
+        if (HASH_FORMAT_FIELDS.equals(hashFormat)) {
+            mapping.startObject(HASHES_KEY).field("type", "object").endObject();
+        } else {
+            mapping.startObject(HASHES_KEY)
+                    .field("type", "keyword")
+                    .field("index_options", "docs")
+                    .field("norms", false)
+                    .field("eager_global_ordinals", true)
+                    .endObject();
+        }
+        return mapping.endObject().endObject().endObject();
+    }
+
+    /**
+     * The format of the hashes of an index according to its mapping, or the given default when they are not mapped
+     * or the index does not exist.
+     */
+    public String hashFormat(String index, String type, String defaultFormat) {
+        String mappedFormat = mappedHashFormat(clusterService.state().metaData().index(index), type);
+        return mappedFormat == null ? defaultFormat : mappedFormat;
+    }
+
+    /**
+     * Whether the product quantization codes of an index can be read from doc values, as an index created by
+     * {@link #ensureIndex} maps them. Other indices map the base64 strings of the codes as text.
+     */
+    @SuppressWarnings("unchecked")
+    public boolean pqCodesInDocValues(String index, String type) {
+        Map<String, Object> code = (Map<String, Object>) mappedProperties(clusterService.state().metaData().index(index), type)
+                .get(PQ_CODE_KEY);
+        return code != null && "binary".equals(code.get("type")) && Boolean.TRUE.equals(code.get("doc_values"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String mappedHashFormat(@Nullable IndexMetaData indexMetaData, String type) {
+        Map<String, Object> hashes = (Map<String, Object>) mappedProperties(indexMetaData, type).get(HASHES_KEY);
+        if (hashes == null) {
+            return null;
+        }
+        return "keyword".equals(hashes.get("type")) ? HASH_FORMAT_TOKENS : HASH_FORMAT_FIELDS;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> mappedProperties(@Nullable IndexMetaData indexMetaData, String type) {
+        if (indexMetaData == null || indexMetaData.mapping(type) == null) {
+            return Collections.emptyMap();
+        }
+        return (Map<String, Object>) indexMetaData.mapping(type).sourceAsMap().getOrDefault("properties", Collections.emptyMap());
+    }
+
+    /**
+     * The value of the hashes field of a document: an object with the hash of every table, or for
+     * {@link #HASH_FORMAT_TOKENS} a list of {@code <table>:<hash>} tokens.
+     */
+    public static Object hashesValue(Map<String, Long> hashes, String hashFormat) {
+        if (HASH_FORMAT_FIELDS.equals(hashFormat)) {
+            return hashes;
+        }
+        List<String> tokens = new ArrayList<>(hashes.size());
+        for (Map.Entry<String, Long> entry : hashes.entrySet()) {
+            tokens.add(entry.getKey() + ":" + entry.getValue());
+        }
+        return tokens;
+    }
+
+    /**
+     * Reads the hashes of a document in either format, see {@link #hashesValue(Map, String)}.
+     */
+    public static Map<String, Long> parseHashes(Object value) {
+        Map<String, Long> hashes = new HashMap<>();
+        if (value instanceof List) {
+            for (Object token : (List<?>) value) {
+                String string = token.toString();
+                int separator = string.indexOf(':');
+                hashes.put(string.substring(0, separator), Long.parseLong(string.substring(separator + 1)));
+            }
+        } else {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                hashes.put(entry.getKey().toString(), ((Number) entry.getValue()).longValue());
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Reads a product quantization code, written to the source as a binary value: raw bytes in binary sources and
+     * doc values, base64 in JSON sources.
+     */
+    public static byte[] parsePqCode(Object value) {
+        if (value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        if (value instanceof BytesRef) {
+            return BytesRef.deepCopyOf((BytesRef) value).bytes;
+        }
+        return Base64.getDecoder().decode(value.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    private void checkMapping(String index, Map<String, Object> mapping) {
+        Map<String, Object> properties = (Map<String, Object>) mapping.getOrDefault("properties", Collections.emptyMap());
+        Map<String, Object> vector = (Map<String, Object>) properties.get(VECTOR_KEY);
+        if (vector != null && vector.containsKey("type") && Boolean.FALSE.equals(vector.get("index")) == false) {
+            logger.warn("Index [{}] indexes [{}] as [{}], an index created by _aknn_index keeps it only in the source",
+                    index, VECTOR_KEY, vector.get("type"));
+        }
+        Map<String, Object> hashes = (Map<String, Object>) properties.get(HASHES_KEY);
+        if (hashes != null) {
+            Map<String, Object> tables = (Map<String, Object>) hashes.getOrDefault("properties", Collections.emptyMap());
+            for (Object table : tables.values()) {
+                Object tableType = ((Map<String, Object>) table).get("type");
+                if ("keyword".equals(tableType) == false) {
+                    logger.warn("Index [{}] maps [{}] as [{}], an index created by _aknn_index maps them as [keyword]",
+                            index, HASHES_KEY, tableType);
+                    break;
+                }
+            }
+        }
+    }
+
+    public void clearCache() {
+        lshModelCache.invalidateAll();
+        if (modelStore != null) {
+            modelStore.deleteAll();
+        }
+    }
+
+    public void clearCache(String aknnURI) {
+        lshModelCache.invalidate(aknnURI);
+        if (modelStore != null) {
+            modelStore.delete(aknnURI);
+        }
+    }
+
+    public AknnStats stats() {
+        return stats;
+    }
+
+    public AknnStats.Snapshot statsSnapshot() {
+        return stats.snapshot(lshModelCache.stats(), lshModelCache.count());
+    }
+
+    public static Double cosineSimilarity(List<Double> first, List<Double> second) {
+        return cosineSimilarity(first.stream().mapToDouble(Double::doubleValue).toArray(),
+                second.stream().mapToDouble(Double::doubleValue).toArray());
+    }
+
+    public static double cosineSimilarity(double[] first, double[] second) {
+        double dotProduct = 0.0;
+        double normA = 0.0;
+        double normB = 0.0;
+        for (int i = 0; i < first.length; i++) {
+            double a = first[i], b = second[i];
+            dotProduct += a * b;
+            normA += a * a;
+            normB += b * b;
+        }
+        return dotProduct / (Math.sqrt(normA) * Math.sqrt(normB));
+    }
+
+    private static final class CachedModel {
+
+        private final LshModel model;
+        private final String indexUUID;
+        private final long version;
+        private final AknnModelsMetaData.Model definition;
+        private volatile long checkedNanos = System.nanoTime();
+        private final AtomicBoolean checking = new AtomicBoolean();
+
+        CachedModel(LshModel model, String indexUUID, long version) {
+            this.model = model;
+            this.indexUUID = indexUUID;
+            this.version = version;
+            this.definition = null;
+        }
+
+        CachedModel(LshModel model, AknnModelsMetaData.Model definition) {
+            this.model = model;
+            this.indexUUID = null;
+            this.version = -1L;
+            this.definition = definition;
+        }
+    }
+
+    public static double[] parseVectorFrom(Map<String, Object> source) {
+        return parseVector(source.get(VECTOR_KEY));
+    }
+
+    /**
+     * Parses a vector given either as an array of numbers, as the base64 encoding of its little-endian float32
+     * values (JSON) or as the raw bytes of these values (binary fields of CBOR and SMILE).
+     */
+    public static double[] parseVector(Object value) {
+        if (value instanceof List) {
+            List<?> values = (List<?>) value;
+            double[] vector = new double[values.size()];
+            for (int i = 0; i < vector.length; i++) {
+                Object v = values.get(i);
+                vector[i] = v instanceof Number ? ((Number) v).doubleValue() : Double.parseDouble(v.toString());
+            }
+            return vector;
+        } else if (value instanceof byte[]) {
+            return decodeVector((byte[]) value);
+        } else if (value instanceof String) {
+            return decodeVector(Base64.getDecoder().decode((String) value));
+        }
+        throw new IllegalArgumentException(VECTOR_KEY + " must be an array of numbers or base64 encoded float32 values, got ["
+                + value + "]");
+    }
+
+    private static double[] decodeVector(byte[] bytes) {
+        if (bytes.length % Float.BYTES != 0) {
+            throw new IllegalArgumentException("binary " + VECTOR_KEY + " must hold float32 values, got [" + bytes.length
+                    + "] bytes");
+        }
+        FloatBuffer floats = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        double[] vector = new double[floats.remaining()];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = floats.get(i);
+        }
+        return vector;
+    }
+
+    /**
+     * The base64 encoding of the little-endian float32 values of a vector, as accepted by {@link #parseVector}.
+     */
+    public static String encodeVector(float[] vector) {
+        ByteBuffer bytes = ByteBuffer.allocate(vector.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asFloatBuffer().put(vector);
+        return Base64.getEncoder().encodeToString(bytes.array());
+    }
+}
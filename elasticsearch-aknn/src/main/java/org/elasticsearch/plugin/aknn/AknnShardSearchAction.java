@@ -0,0 +1,369 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastRequest;
+import org.elasticsearch.action.support.broadcast.BroadcastResponse;
+import org.elasticsearch.action.support.broadcast.BroadcastShardRequest;
+import org.elasticsearch.action.support.broadcast.BroadcastShardResponse;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskId;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Searches the HNSW graphs of the segments of every shard of the given indices, for the nearest neighbors search of
+ * HNSW models. Internal to {@link AknnSearchAction}, which merges the hits of the shards. Runs as a cancellable child
+ * task of the search.
+ */
+public class AknnShardSearchAction extends Action<AknnShardSearchAction.Request, AknnShardSearchAction.Response,
+        AknnShardSearchAction.RequestBuilder> {
+
+    public static final AknnShardSearchAction INSTANCE = new AknnShardSearchAction();
+    public static final String NAME = "indices:data/read/aknn/shard_search";
+
+    private AknnShardSearchAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RequestBuilder(client);
+    }
+
+    @Override
+    public Response newResponse() {
+        return new Response();
+    }
+
+    public static class Request extends BroadcastRequest<Request> {
+
+        private double[] queryVector;
+        private int m = LshModel.DEFAULT_HNSW_M;
+        private int efConstruction = LshModel.DEFAULT_HNSW_EF_CONSTRUCTION;
+        private int k = AknnSearchAction.K2_DEFAULT;
+        private int ef = AknnSearchAction.EF_DEFAULT;
+        private String filter;
+        private boolean debug = false;
+        private boolean exact = false;
+        private boolean orderDesc = true;
+        private TimeValue timeout;
+
+        public Request() {
+        }
+
+        public Request(double[] queryVector, String... indices) {
+            super(indices);
+            this.queryVector = queryVector;
+        }
+
+        public double[] queryVector() {
+            return queryVector;
+        }
+
+        public int m() {
+            return m;
+        }
+
+        public int efConstruction() {
+            return efConstruction;
+        }
+
+        /**
+         * The parameters of the model, graphs built with other parameters are rebuilt.
+         */
+        public Request model(int m, int efConstruction) {
+            this.m = m;
+            this.efConstruction = efConstruction;
+            return this;
+        }
+
+        public int k() {
+            return k;
+        }
+
+        /**
+         * Number of hits returned by every shard.
+         */
+        public Request k(int k) {
+            this.k = k;
+            return this;
+        }
+
+        public int ef() {
+            return ef;
+        }
+
+        /**
+         * Number of candidates kept while walking the graph of a segment.
+         */
+        public Request ef(int ef) {
+            this.ef = ef;
+            return this;
+        }
+
+        public String filter() {
+            return filter;
+        }
+
+        public Request filter(String filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        public boolean debug() {
+            return debug;
+        }
+
+        public Request debug(boolean debug) {
+            this.debug = debug;
+            return this;
+        }
+
+        /**
+         * Whether every vector of the shards is compared to the query vector instead of searching the graphs.
+         */
+        public boolean exact() {
+            return exact;
+        }
+
+        public Request exact(boolean exact) {
+            this.exact = exact;
+            return this;
+        }
+
+        /**
+         * Whether the shards return their most similar documents, or their least similar ones.
+         */
+        public boolean orderDesc() {
+            return orderDesc;
+        }
+
+        public Request orderDesc(boolean orderDesc) {
+            this.orderDesc = orderDesc;
+            return this;
+        }
+
+        public TimeValue timeout() {
+            return timeout;
+        }
+
+        /**
+         * Time budget of every shard, checked between segments and while scanning the segments that are not loaded yet.
+         * Shards out of time return the hits found so far.
+         */
+        public Request timeout(TimeValue timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        @Override
+        public Task createTask(long id, String type, String action, TaskId parentTaskId, Map<String, String> headers) {
+            return new CancellableTask(id, type, action, getDescription(), parentTaskId, headers) {
+                @Override
+                public boolean shouldCancelChildrenOnCancellation() {
+                    return true;
+                }
+            };
+        }
+
+        @Override
+        public ActionRequestValidationException validate() {
+            ActionRequestValidationException validationException = super.validate();
+            if (queryVector == null) {
+                validationException = addValidationError("query vector is missing", validationException);
+            }
+            if (k < 1 || ef < 1) {
+                validationException = addValidationError("k and ef must be positive", validationException);
+            }
+            return validationException;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            queryVector = in.readDoubleArray();
+            m = in.readVInt();
+            efConstruction = in.readVInt();
+            k = in.readVInt();
+            ef = in.readVInt();
+            filter = in.readOptionalString();
+            debug = in.readBoolean();
+            exact = in.readBoolean();
+            orderDesc = in.readBoolean();
+            timeout = in.readOptionalTimeValue();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeDoubleArray(queryVector);
+            out.writeVInt(m);
+            out.writeVInt(efConstruction);
+            out.writeVInt(k);
+            out.writeVInt(ef);
+            out.writeOptionalString(filter);
+            out.writeBoolean(debug);
+            out.writeBoolean(exact);
+            out.writeBoolean(orderDesc);
+            out.writeOptionalTimeValue(timeout);
+        }
+    }
+
+    public static class RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder> {
+
+        public RequestBuilder(ElasticsearchClient client) {
+            super(client, INSTANCE, new Request());
+        }
+    }
+
+    /**
+     * The hits of all shards, each shard contributing up to {@code k} of them in no particular order.
+     */
+    public static class Response extends BroadcastResponse {
+
+        private List<AknnSearchAction.Hit> hits;
+        private boolean timedOut;
+
+        public Response() {
+        }
+
+        public Response(int totalShards, int successfulShards, int failedShards,
+                        List<DefaultShardOperationFailedException> shardFailures, List<AknnSearchAction.Hit> hits, boolean timedOut) {
+            super(totalShards, successfulShards, failedShards, shardFailures);
+            this.hits = hits;
+            this.timedOut = timedOut;
+        }
+
+        public List<AknnSearchAction.Hit> getHits() {
+            return Collections.unmodifiableList(hits);
+        }
+
+        /**
+         * Whether a shard ran out of time before it searched all its segments.
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            hits = in.readList(AknnSearchAction.Hit::new);
+            timedOut = in.readBoolean();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeList(hits);
+            out.writeBoolean(timedOut);
+        }
+    }
+
+    public static class ShardRequest extends BroadcastShardRequest {
+
+        private Request request;
+
+        public ShardRequest() {
+        }
+
+        public ShardRequest(ShardId shardId, Request request) {
+            super(shardId, request);
+            this.request = request;
+        }
+
+        public Request request() {
+            return request;
+        }
+
+        @Override
+        public Task createTask(long id, String type, String action, TaskId parentTaskId, Map<String, String> headers) {
+            return new CancellableTask(id, type, action, getDescription(), parentTaskId, headers) {
+                @Override
+                public boolean shouldCancelChildrenOnCancellation() {
+                    return false;
+                }
+            };
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            request = new Request();
+            request.readFrom(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            request.writeTo(out);
+        }
+    }
+
+    public static class ShardResponse extends BroadcastShardResponse {
+
+        private List<AknnSearchAction.Hit> hits;
+        private boolean timedOut;
+
+        public ShardResponse() {
+        }
+
+        public ShardResponse(ShardId shardId, List<AknnSearchAction.Hit> hits, boolean timedOut) {
+            super(shardId);
+            this.hits = hits;
+            this.timedOut = timedOut;
+        }
+
+        public List<AknnSearchAction.Hit> getHits() {
+            return hits;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            hits = in.readList(AknnSearchAction.Hit::new);
+            timedOut = in.readBoolean();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeList(hits);
+            out.writeBoolean(timedOut);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.elasticsearch.common.StopWatch;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+/**
+ * Node level latency histograms of the aknn endpoints and their phases, plus candidate and bulk size distributions.
+ * Latencies are recorded in microseconds.
+ */
+public class AknnStats {
+
+    public static final String ENDPOINT_SEARCH = "search";
+    public static final String ENDPOINT_INDEX = "index";
+    public static final String ENDPOINT_CREATE = "create";
+
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final ConcurrentMap<String, ConcurrentHistogram> endpoints = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentHistogram> phases = new ConcurrentHashMap<>();
+    private final ConcurrentHistogram candidates = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+    private final ConcurrentHistogram bulkSizes = new ConcurrentHistogram(SIGNIFICANT_DIGITS);
+
+    public void recordEndpoint(String endpoint, StopWatch stopWatch) {
+        record(endpoints, endpoint, stopWatch.totalTime().nanos());
+        for (StopWatch.TaskInfo taskInfo : stopWatch.taskInfo()) {
+            record(phases, endpoint + "." + taskInfo.getTaskName(), taskInfo.getTime().nanos());
+        }
+    }
+
+    public void recordCandidates(long count) {
+        candidates.recordValue(count);
+    }
+
+    public void recordBulkSize(long size) {
+        bulkSizes.recordValue(size);
+    }
+
+    private static void record(ConcurrentMap<String, ConcurrentHistogram> histograms, String key, long nanos) {
+        histograms.computeIfAbsent(key, k -> new ConcurrentHistogram(SIGNIFICANT_DIGITS))
+                .recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public Snapshot snapshot(Cache.CacheStats cacheStats, int cachedModels) {
+        Map<String, Histogram> endpointsCopy = new TreeMap<>();
+        endpoints.forEach((k, v) -> endpointsCopy.put(k, v.copy()));
+        Map<String, Histogram> phasesCopy = new TreeMap<>();
+        phases.forEach((k, v) -> phasesCopy.put(k, v.copy()));
+        return new Snapshot(endpointsCopy, phasesCopy, candidates.copy(), bulkSizes.copy(),
+                cacheStats.getHits(), cacheStats.getMisses(), cacheStats.getEvictions(), cachedModels);
+    }
+
+    /**
+     * Point in time copy of the stats of a node. Snapshots of several nodes can be merged into cluster wide stats.
+     */
+    public static class Snapshot implements Writeable, ToXContentFragment {
+
+        private final Map<String, Histogram> endpoints;
+        private final Map<String, Histogram> phases;
+        private final Histogram candidates;
+        private final Histogram bulkSizes;
+        private long cacheHits;
+        private long cacheMisses;
+        private long cacheEvictions;
+        private long cachedModels;
+
+        Snapshot(Map<String, Histogram> endpoints, Map<String, Histogram> phases, Histogram candidates,
+                 Histogram bulkSizes, long cacheHits, long cacheMisses, long cacheEvictions, long cachedModels) {
+            this.endpoints = endpoints;
+            this.phases = phases;
+            this.candidates = candidates;
+            this.bulkSizes = bulkSizes;
+            this.cacheHits = cacheHits;
+            this.cacheMisses = cacheMisses;
+            this.cacheEvictions = cacheEvictions;
+            this.cachedModels = cachedModels;
+        }
+
+        public static Snapshot empty() {
+            return new Snapshot(new TreeMap<>(), new TreeMap<>(), new Histogram(SIGNIFICANT_DIGITS),
+                    new Histogram(SIGNIFICANT_DIGITS), 0, 0, 0, 0);
+        }
+
+        public Snapshot(StreamInput in) throws IOException {
+            endpoints = readHistograms(in);
+            phases = readHistograms(in);
+            candidates = readHistogram(in);
+            bulkSizes = readHistogram(in);
+            cacheHits = in.readVLong();
+            cacheMisses = in.readVLong();
+            cacheEvictions = in.readVLong();
+            cachedModels = in.readVLong();
+        }
+
+        public void merge(Snapshot other) {
+            other.endpoints.forEach((k, v) -> endpoints.computeIfAbsent(k, key -> new Histogram(SIGNIFICANT_DIGITS)).add(v));
+            other.phases.forEach((k, v) -> phases.computeIfAbsent(k, key -> new Histogram(SIGNIFICANT_DIGITS)).add(v));
+            candidates.add(other.candidates);
+            bulkSizes.add(other.bulkSizes);
+            cacheHits += other.cacheHits;
+            cacheMisses += other.cacheMisses;
+            cacheEvictions += other.cacheEvictions;
+            cachedModels += other.cachedModels;
+        }
+
+        public Map<String, Histogram> getEndpoints() {
+            return endpoints;
+        }
+
+        public Map<String, Histogram> getPhases() {
+            return phases;
+        }
+
+        public long getCacheHits() {
+            return cacheHits;
+        }
+
+        public long getCacheMisses() {
+            return cacheMisses;
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            writeHistograms(out, endpoints);
+            writeHistograms(out, phases);
+            writeHistogram(out, candidates);
+            writeHistogram(out, bulkSizes);
+            out.writeVLong(cacheHits);
+            out.writeVLong(cacheMisses);
+            out.writeVLong(cacheEvictions);
+            out.writeVLong(cachedModels);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.startObject("latency");
+            for (Map.Entry<String, Histogram> entry : endpoints.entrySet()) {
+                latencyToXContent(builder, entry.getKey(), entry.getValue());
+            }
+            builder.endObject();
+            builder.startObject("phases");
+            for (Map.Entry<String, Histogram> entry : phases.entrySet()) {
+                latencyToXContent(builder, entry.getKey(), entry.getValue());
+            }
+            builder.endObject();
+            builder.startObject("model_cache");
+            builder.field("hits", cacheHits);
+            builder.field("misses", cacheMisses);
+            builder.field("evictions", cacheEvictions);
+            builder.field("count", cachedModels);
+            builder.endObject();
+            builder.startObject("candidates");
+            countsToXContent(builder, candidates);
+            builder.endObject();
+            builder.startObject("bulk_sizes");
+            countsToXContent(builder, bulkSizes);
+            builder.endObject();
+            return builder;
+        }
+
+        private static void latencyToXContent(XContentBuilder builder, String name, Histogram histogram) throws IOException {
+            builder.startObject(name);
+            builder.field("count", histogram.getTotalCount());
+            builder.field("mean_micros", histogram.getTotalCount() > 0 ? histogram.getMean() : 0);
+            builder.field("p50_micros", histogram.getValueAtPercentile(50.0));
+            builder.field("p99_micros", histogram.getValueAtPercentile(99.0));
+            builder.field("p999_micros", histogram.getValueAtPercentile(99.9));
+            builder.field("max_micros", histogram.getMaxValue());
+            builder.endObject();
+        }
+
+        private static void countsToXContent(XContentBuilder builder, Histogram histogram) throws IOException {
+            builder.field("count", histogram.getTotalCount());
+            builder.field("sum", histogram.getTotalCount() > 0 ? Math.round(histogram.getMean() * histogram.getTotalCount()) : 0);
+            builder.field("p50", histogram.getValueAtPercentile(50.0));
+            builder.field("p99", histogram.getValueAtPercentile(99.0));
+            builder.field("max", histogram.getMaxValue());
+        }
+
+        private static Map<String, Histogram> readHistograms(StreamInput in) throws IOException {
+            int size = in.readVInt();
+            Map<String, Histogram> histograms = new TreeMap<>();
+            for (int i = 0; i < size; i++) {
+                histograms.put(in.readString(), readHistogram(in));
+            }
+            return histograms;
+        }
+
+        private static void writeHistograms(StreamOutput out, Map<String, Histogram> histograms) throws IOException {
+            out.writeVInt(histograms.size());
+            for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                out.writeString(entry.getKey());
+                writeHistogram(out, entry.getValue());
+            }
+        }
+
+        private static Histogram readHistogram(StreamInput in) throws IOException {
+            byte[] bytes = in.readByteArray();
+            try {
+                return Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(bytes), 0);
+            } catch (DataFormatException e) {
+                throw new IOException("failed to decode histogram", e);
+            }
+        }
+
+        private static void writeHistogram(StreamOutput out, Histogram histogram) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+            int length = histogram.encodeIntoCompressedByteBuffer(buffer);
+            byte[] bytes = new byte[length];
+            buffer.flip();
+            buffer.get(bytes);
+            out.writeByteArray(bytes);
+        }
+    }
+}
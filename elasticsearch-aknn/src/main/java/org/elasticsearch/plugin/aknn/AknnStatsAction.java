@@ -0,0 +1,160 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.action.support.nodes.NodesOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Collects the latency histograms, model cache and candidate stats of every node, together with their
+ * cluster wide aggregate.
+ */
+public class AknnStatsAction extends Action<AknnStatsAction.Request, AknnStatsAction.Response, AknnStatsAction.RequestBuilder> {
+
+    public static final AknnStatsAction INSTANCE = new AknnStatsAction();
+    public static final String NAME = "cluster:monitor/aknn/stats";
+
+    private AknnStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RequestBuilder(client);
+    }
+
+    @Override
+    public Response newResponse() {
+        return new Response();
+    }
+
+    public static class Request extends BaseNodesRequest<Request> {
+
+        public Request(String... nodesIds) {
+            super(nodesIds);
+        }
+    }
+
+    public static class RequestBuilder extends NodesOperationRequestBuilder<Request, Response, RequestBuilder> {
+
+        public RequestBuilder(ElasticsearchClient client) {
+            super(client, INSTANCE, new Request());
+        }
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(String nodeId) {
+            super(nodeId);
+        }
+    }
+
+    public static class NodeResponse extends BaseNodeResponse {
+
+        private AknnStats.Snapshot stats;
+
+        public NodeResponse() {
+        }
+
+        NodeResponse(DiscoveryNode node, AknnStats.Snapshot stats) {
+            super(node);
+            this.stats = stats;
+        }
+
+        public AknnStats.Snapshot getStats() {
+            return stats;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            stats = new AknnStats.Snapshot(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            stats.writeTo(out);
+        }
+    }
+
+    public static class Response extends BaseNodesResponse<NodeResponse> implements ToXContentFragment {
+
+        public Response() {
+        }
+
+        public Response(ClusterName clusterName, List<NodeResponse> nodes, List<FailedNodeException> failures) {
+            super(clusterName, nodes, failures);
+        }
+
+        /**
+         * The stats of all the nodes that responded, merged together.
+         */
+        public AknnStats.Snapshot getAggregated() {
+            AknnStats.Snapshot aggregated = AknnStats.Snapshot.empty();
+            for (NodeResponse node : getNodes()) {
+                aggregated.merge(node.getStats());
+            }
+            return aggregated;
+        }
+
+        @Override
+        protected List<NodeResponse> readNodesFrom(StreamInput in) throws IOException {
+            return in.readStreamableList(NodeResponse::new);
+        }
+
+        @Override
+        protected void writeNodesTo(StreamOutput out, List<NodeResponse> nodes) throws IOException {
+            out.writeStreamableList(nodes);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("cluster_name", getClusterName().value());
+            builder.startObject("aggregated");
+            getAggregated().toXContent(builder, params);
+            builder.endObject();
+            builder.startObject("nodes");
+            for (NodeResponse node : getNodes()) {
+                builder.startObject(node.getNode().getId());
+                builder.field("name", node.getNode().getName());
+                node.getStats().toXContent(builder, params);
+                builder.endObject();
+            }
+            builder.endObject();
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.fieldvisitor.FieldsVisitor;
+import org.elasticsearch.search.lookup.SourceLookup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static org.elasticsearch.plugin.aknn.AknnService.VECTOR_KEY;
+
+/**
+ * Node level cache of the normalized vectors of documents, decoded from their source the first time they are rescored,
+ * so rescoring popular documents again only reads memory. Entries are keyed by the core of their segment and the
+ * document, and dropped when the segment is closed, typically once it was merged away.
+ */
+public class AknnVectorCache extends AbstractComponent {
+
+    public static final Setting<ByteSizeValue> SIZE_SETTING = Setting.memorySizeSetting("aknn.vector_cache.size", "2%",
+            Setting.Property.NodeScope);
+
+    /**
+     * Heap used by an entry besides the values of its vector: the key, the array header, the entry of the cache and the
+     * entry of the keys of its segment.
+     */
+    private static final long ENTRY_BYTES = 144L;
+
+    private final Cache<Key, float[]> cache;
+    // Keys of the cached vectors of every segment, so a closed segment drops its entries without walking the cache.
+    private final Map<IndexReader.CacheKey, Set<Key>> segmentKeys = ConcurrentCollections.newConcurrentMap();
+
+    public AknnVectorCache(Settings settings) {
+        super(settings);
+        this.cache = CacheBuilder.<Key, float[]>builder()
+                .setMaximumWeight(SIZE_SETTING.get(settings).getBytes())
+                .weigher((key, vector) -> ENTRY_BYTES + (long) vector.length * Float.BYTES)
+                .removalListener(notification -> {
+                    Set<Key> keys = segmentKeys.get(notification.getKey().segment);
+                    if (keys != null) {
+                        keys.remove(notification.getKey());
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * The vector of a document of the segment, normalized by {@link HnswGraph#normalize}.
+     *
+     * @throws IllegalArgumentException if the document has no valid vector
+     */
+    float[] vector(LeafReader leaf, int doc) throws IOException {
+        IndexReader.CacheHelper cacheHelper = leaf.getCoreCacheHelper();
+        if (cacheHelper == null) {
+            return decode(leaf, doc);
+        }
+        IndexReader.CacheKey segment = cacheHelper.getKey();
+        Set<Key> keys = segmentKeys.get(segment);
+        if (keys == null) {
+            Set<Key> newKeys = ConcurrentCollections.newConcurrentSet();
+            keys = segmentKeys.putIfAbsent(segment, newKeys);
+            if (keys == null) {
+                keys = newKeys;
+                cacheHelper.addClosedListener(this::invalidate);
+            }
+        }
+        Set<Key> keysOfSegment = keys;
+        Key key = new Key(segment, doc);
+        try {
+            float[] vector = cache.computeIfAbsent(key, k -> {
+                float[] decoded = decode(leaf, doc);
+                keysOfSegment.add(k);
+                return decoded;
+            });
+            if (segmentKeys.get(segment) != keysOfSegment) {
+                // The segment was closed while the vector was decoded, after its keys were invalidated.
+                cache.invalidate(key);
+            }
+            return vector;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new UncheckedIOException(new IOException("failed to decode the vector of [" + doc + "] in " + leaf, e.getCause()));
+        }
+    }
+
+    private static float[] decode(LeafReader leaf, int doc) throws IOException {
+        FieldsVisitor visitor = new FieldsVisitor(true);
+        leaf.document(doc, visitor);
+        if (visitor.source() == null) {
+            throw new IllegalArgumentException("document [" + doc + "] of " + leaf + " has no source");
+        }
+        return HnswGraph.normalize(AknnService.parseVectorFrom(SourceLookup.sourceAsMap(visitor.source())));
+    }
+
+    /**
+     * Drops the vectors of a closed segment. Their documents can not be searched anymore.
+     */
+    private void invalidate(IndexReader.CacheKey segment) {
+        Set<Key> keys = segmentKeys.remove(segment);
+        if (keys != null) {
+            for (Key key : keys) {
+                cache.invalidate(key);
+            }
+        }
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    int count() {
+        return cache.count();
+    }
+
+    long ramBytesUsed() {
+        return cache.weight();
+    }
+
+    private static final class Key {
+
+        private final IndexReader.CacheKey segment;
+        private final int doc;
+
+        Key(IndexReader.CacheKey segment, int doc) {
+            this.segment = segment;
+            this.doc = doc;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return doc == key.doc && segment.equals(key.segment);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(segment, doc);
+        }
+    }
+}
@@ -0,0 +1,607 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.SparseFixedBitSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A hierarchical navigable small world graph (Malkov and Yashunin, 2016) over the vectors of one segment. Nodes are the
+ * documents of the segment that have a vector, including deleted ones: a segment never changes, so its graph does not
+ * either, and deleted documents are skipped when collecting results. Vectors are normalized when the graph is built,
+ * the similarity of two nodes is the dot product of their vectors, that is the cosine similarity of the original ones.
+ *
+ * The graph is held in flat buffers, on the heap right after it is built and memory-mapped once it is written to a
+ * file, see {@link #writeTo} and {@link #read}. Every node has a block of {@code 1 + 2m} ints on the bottom layer, the
+ * number of neighbors followed by the neighbors, and nodes on upper layers one block of {@code 1 + m} ints per layer.
+ */
+final class HnswGraph {
+
+    private final int m;
+    private final int efConstruction;
+    private final int dimensions;
+    private final int size;
+    private final int entryPoint;
+    private final int maxLevel;
+    private final IntBuffer docIds;
+    private final IntBuffer bottomLinks;
+    private final IntBuffer upperOffsets;
+    private final IntBuffer upperLinks;
+    private final FloatBuffer vectors;
+
+    private HnswGraph(int m, int efConstruction, int dimensions, int size, int entryPoint, int maxLevel, IntBuffer docIds,
+                      IntBuffer bottomLinks, IntBuffer upperOffsets, IntBuffer upperLinks, FloatBuffer vectors) {
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.dimensions = dimensions;
+        this.size = size;
+        this.entryPoint = entryPoint;
+        this.maxLevel = maxLevel;
+        this.docIds = docIds;
+        this.bottomLinks = bottomLinks;
+        this.upperOffsets = upperOffsets;
+        this.upperLinks = upperLinks;
+        this.vectors = vectors;
+    }
+
+    int m() {
+        return m;
+    }
+
+    int efConstruction() {
+        return efConstruction;
+    }
+
+    int dimensions() {
+        return dimensions;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Size of the graph once written by {@link #writeTo}.
+     */
+    long sizeInBytes() {
+        return (7L + docIds.capacity() + bottomLinks.capacity() + upperOffsets.capacity() + upperLinks.capacity()
+                + vectors.capacity()) * Integer.BYTES;
+    }
+
+    /**
+     * Heap used by the graph, buffers of a memory-mapped graph live in the page cache and do not count.
+     */
+    long ramBytesUsed() {
+        if (vectors.isDirect()) {
+            return 0L;
+        }
+        return (long) (docIds.capacity() + bottomLinks.capacity() + upperOffsets.capacity() + upperLinks.capacity()
+                + vectors.capacity()) * Integer.BYTES;
+    }
+
+    private final Layers layers = new Layers() {
+        @Override
+        int neighborCount(int node, int level) {
+            return level == 0 ? bottomLinks.get(node * (1 + 2 * m)) : upperLinks.get(upperBlock(node, level));
+        }
+
+        @Override
+        int neighbor(int node, int level, int i) {
+            return level == 0 ? bottomLinks.get(node * (1 + 2 * m) + 1 + i) : upperLinks.get(upperBlock(node, level) + 1 + i);
+        }
+
+        private int upperBlock(int node, int level) {
+            return upperOffsets.get(node) + (level - 1) * (1 + m);
+        }
+
+        @Override
+        float similarity(float[] query, int node) {
+            int offset = node * dimensions;
+            float dotProduct = 0f;
+            for (int i = 0; i < dimensions; i++) {
+                dotProduct += query[i] * vectors.get(offset + i);
+            }
+            return dotProduct;
+        }
+    };
+
+    /**
+     * Finds the {@code k} documents most similar to the query vector among {@code ef} candidates, and passes them to
+     * the collector from the most to the least similar one.
+     *
+     * @param acceptDocs the documents that may be returned, all of them if null. Other documents are still visited,
+     *                   so a graph stays connected whatever the filter.
+     */
+    void search(double[] query, int k, int ef, Bits acceptDocs, Collector collector) {
+        if (size == 0) {
+            return;
+        }
+        if (query.length != dimensions) {
+            throw new IllegalArgumentException("query vector has [" + query.length + "] dimensions, the indexed vectors have ["
+                    + dimensions + "]");
+        }
+        float[] normalized = normalize(query);
+        int entry = layers.greedySearch(normalized, entryPoint, maxLevel, 0);
+        Bits acceptNodes = acceptDocs == null ? null : new Bits() {
+            @Override
+            public boolean get(int node) {
+                return acceptDocs.get(docIds.get(node));
+            }
+
+            @Override
+            public int length() {
+                return size;
+            }
+        };
+        NodeHeap results = layers.searchLayer(normalized, new int[]{entry}, Math.max(ef, k), 0, acceptNodes, size);
+        while (results.size() > k) {
+            results.pop();
+        }
+        int[] nodes = new int[results.size()];
+        float[] scores = new float[results.size()];
+        for (int i = nodes.length - 1; i >= 0; i--) {
+            scores[i] = results.topScore();
+            nodes[i] = results.pop();
+        }
+        for (int i = 0; i < nodes.length; i++) {
+            collector.collect(docIds.get(nodes[i]), scores[i]);
+        }
+    }
+
+    @FunctionalInterface
+    interface Collector {
+        void collect(int doc, float score);
+    }
+
+    static float[] normalize(double[] vector) {
+        double norm = 0.0;
+        for (double v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+        float[] normalized = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            normalized[i] = norm == 0.0 ? 0f : (float) (vector[i] / norm);
+        }
+        return normalized;
+    }
+
+    /**
+     * Builds the graph of the given (normalized) vectors of the given documents, in ascending order of documents.
+     */
+    static HnswGraph build(int[] docIds, float[][] vectors, int m, int efConstruction, long seed) {
+        Builder builder = new Builder(vectors, m, efConstruction, seed);
+        for (int node = 0; node < vectors.length; node++) {
+            builder.insert(node);
+        }
+        return builder.finish(docIds);
+    }
+
+    /**
+     * Writes the graph in little-endian order, the layout {@link #read} maps back.
+     */
+    void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(7 * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(m).putInt(efConstruction).putInt(dimensions).putInt(size).putInt(entryPoint).putInt(maxLevel)
+                .putInt(upperLinks.capacity());
+        header.flip();
+        writeFully(channel, header);
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (IntBuffer ints : new IntBuffer[]{docIds, bottomLinks, upperOffsets, upperLinks}) {
+            for (int i = 0; i < ints.capacity(); i++) {
+                if (chunk.remaining() < Integer.BYTES) {
+                    chunk.flip();
+                    writeFully(channel, chunk);
+                    chunk.clear();
+                }
+                chunk.putInt(ints.get(i));
+            }
+        }
+        for (int i = 0; i < vectors.capacity(); i++) {
+            if (chunk.remaining() < Float.BYTES) {
+                chunk.flip();
+                writeFully(channel, chunk);
+                chunk.clear();
+            }
+            chunk.putFloat(vectors.get(i));
+        }
+        chunk.flip();
+        writeFully(channel, chunk);
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a graph written by {@link #writeTo} from the current position of the buffer, without copying it.
+     *
+     * @throws IllegalStateException if the buffer is too short for the graph
+     */
+    static HnswGraph read(ByteBuffer buffer) {
+        buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int m = buffer.getInt();
+        int efConstruction = buffer.getInt();
+        int dimensions = buffer.getInt();
+        int size = buffer.getInt();
+        int entryPoint = buffer.getInt();
+        int maxLevel = buffer.getInt();
+        int upperSize = buffer.getInt();
+        long expected = buffer.position() + Integer.BYTES * ((long) size * (3 + 2 * m) + upperSize + (long) size * dimensions);
+        if (buffer.limit() != expected) {
+            throw new IllegalStateException("expected [" + expected + "] bytes, got [" + buffer.limit() + "]");
+        }
+        IntBuffer docIds = ints(buffer, size);
+        IntBuffer bottomLinks = ints(buffer, (long) size * (1 + 2 * m));
+        IntBuffer upperOffsets = ints(buffer, size);
+        IntBuffer upperLinks = ints(buffer, upperSize);
+        FloatBuffer vectors = ((ByteBuffer) buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+                .limit(Math.toIntExact((long) size * dimensions * Float.BYTES))).asFloatBuffer();
+        return new HnswGraph(m, efConstruction, dimensions, size, entryPoint, maxLevel, docIds, bottomLinks, upperOffsets,
+                upperLinks, vectors);
+    }
+
+    private static IntBuffer ints(ByteBuffer buffer, long count) {
+        int bytes = Math.toIntExact(count * Integer.BYTES);
+        ByteBuffer slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        slice.limit(bytes);
+        buffer.position(buffer.position() + bytes);
+        return slice.asIntBuffer();
+    }
+
+    /**
+     * The navigation shared by searches and by the insertion of nodes while the graph is built.
+     */
+    private abstract static class Layers {
+
+        abstract int neighborCount(int node, int level);
+
+        abstract int neighbor(int node, int level, int i);
+
+        abstract float similarity(float[] query, int node);
+
+        /**
+         * Walks down from the top level to the given one, moving to the most similar neighbor until there is none
+         * more similar than the current node, and returns the node the walk ends on.
+         */
+        int greedySearch(float[] query, int entry, int fromLevel, int toLevel) {
+            float score = similarity(query, entry);
+            for (int level = fromLevel; level > toLevel; level--) {
+                boolean changed = true;
+                while (changed) {
+                    changed = false;
+                    int node = entry;
+                    int count = neighborCount(node, level);
+                    for (int i = 0; i < count; i++) {
+                        int candidate = neighbor(node, level, i);
+                        float candidateScore = similarity(query, candidate);
+                        if (candidateScore > score) {
+                            score = candidateScore;
+                            entry = candidate;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+            return entry;
+        }
+
+        /**
+         * Best-first search of one layer. Returns the (up to) {@code ef} most similar accepted nodes found, in a heap
+         * that pops the least similar first.
+         */
+        NodeHeap searchLayer(float[] query, int[] entries, int ef, int level, Bits acceptNodes, int size) {
+            SparseFixedBitSet visited = new SparseFixedBitSet(size);
+            NodeHeap candidates = new NodeHeap(true, Math.max(ef, entries.length));
+            NodeHeap results = new NodeHeap(false, ef + 1);
+            for (int entry : entries) {
+                visited.set(entry);
+                float score = similarity(query, entry);
+                candidates.push(entry, score);
+                if (acceptNodes == null || acceptNodes.get(entry)) {
+                    results.push(entry, score);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+            while (candidates.size() > 0) {
+                float bestScore = candidates.topScore();
+                if (results.size() >= ef && bestScore < results.topScore()) {
+                    break;
+                }
+                int node = candidates.pop();
+                int count = neighborCount(node, level);
+                for (int i = 0; i < count; i++) {
+                    int neighbor = neighbor(node, level, i);
+                    if (visited.get(neighbor)) {
+                        continue;
+                    }
+                    visited.set(neighbor);
+                    float score = similarity(query, neighbor);
+                    if (results.size() < ef || score > results.topScore()) {
+                        candidates.push(neighbor, score);
+                        if (acceptNodes == null || acceptNodes.get(neighbor)) {
+                            results.push(neighbor, score);
+                            if (results.size() > ef) {
+                                results.pop();
+                            }
+                        }
+                    }
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Inserts nodes one after the other into growable adjacency lists, then flattens them into a graph.
+     */
+    private static final class Builder extends Layers {
+
+        private final float[][] vectors;
+        private final int m;
+        private final int efConstruction;
+        private final double levelMultiplier;
+        private final Random random;
+        private final int[][][] links;
+        private final int[][] linkCounts;
+        private int entryPoint = -1;
+        private int maxLevel = -1;
+
+        Builder(float[][] vectors, int m, int efConstruction, long seed) {
+            this.vectors = vectors;
+            this.m = m;
+            this.efConstruction = efConstruction;
+            this.levelMultiplier = 1 / Math.log(Math.max(2, m));
+            this.random = new Random(seed);
+            this.links = new int[vectors.length][][];
+            this.linkCounts = new int[vectors.length][];
+        }
+
+        @Override
+        int neighborCount(int node, int level) {
+            return linkCounts[node][level];
+        }
+
+        @Override
+        int neighbor(int node, int level, int i) {
+            return links[node][level][i];
+        }
+
+        @Override
+        float similarity(float[] query, int node) {
+            return dotProduct(query, vectors[node]);
+        }
+
+        private int maxConnections(int level) {
+            return level == 0 ? 2 * m : m;
+        }
+
+        void insert(int node) {
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            links[node] = new int[level + 1][];
+            linkCounts[node] = new int[level + 1];
+            for (int l = 0; l <= level; l++) {
+                // One more slot for the link that makes a list overflow before it is pruned.
+                links[node][l] = new int[maxConnections(l) + 1];
+            }
+            if (entryPoint == -1) {
+                entryPoint = node;
+                maxLevel = level;
+                return;
+            }
+            float[] vector = vectors[node];
+            int[] entries = new int[]{greedySearch(vector, entryPoint, maxLevel, level)};
+            for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+                NodeHeap found = searchLayer(vector, entries, efConstruction, l, null, vectors.length);
+                int[] candidates = new int[found.size()];
+                for (int i = candidates.length - 1; i >= 0; i--) {
+                    candidates[i] = found.pop();
+                }
+                // The neighbors are selected from a copy, all candidates are the entry points of the next layer.
+                entries = candidates;
+                int[] selected = Arrays.copyOf(candidates, candidates.length);
+                int count = selectNeighbors(vector, selected, selected.length, m);
+                System.arraycopy(selected, 0, links[node][l], 0, count);
+                linkCounts[node][l] = count;
+                for (int i = 0; i < count; i++) {
+                    link(selected[i], node, l);
+                }
+            }
+            if (level > maxLevel) {
+                entryPoint = node;
+                maxLevel = level;
+            }
+        }
+
+        /**
+         * Adds a link from one node to another, and prunes the links of the node if it has too many.
+         */
+        private void link(int from, int to, int level) {
+            int[] neighbors = links[from][level];
+            int count = linkCounts[from][level];
+            neighbors[count++] = to;
+            if (count > maxConnections(level)) {
+                float[] vector = vectors[from];
+                Integer[] order = new Integer[count];
+                for (int i = 0; i < count; i++) {
+                    order[i] = neighbors[i];
+                }
+                Arrays.sort(order, (a, b) -> Float.compare(similarity(vector, b), similarity(vector, a)));
+                for (int i = 0; i < count; i++) {
+                    neighbors[i] = order[i];
+                }
+                count = selectNeighbors(vector, neighbors, count, maxConnections(level));
+            }
+            linkCounts[from][level] = count;
+        }
+
+        /**
+         * The neighbor selection heuristic of the paper: goes through the candidates from the most to the least similar
+         * one, and keeps a candidate only if it is more similar to the node than to any candidate kept before it. This
+         * keeps links towards other regions of the space, which a plain top-m selection drops on clustered data. The
+         * kept candidates are moved to the front of the array.
+         *
+         * @return the number of candidates kept
+         */
+        private int selectNeighbors(float[] vector, int[] candidates, int count, int max) {
+            int selected = 0;
+            for (int i = 0; i < count && selected < max; i++) {
+                int candidate = candidates[i];
+                float score = similarity(vector, candidate);
+                boolean diverse = true;
+                for (int j = 0; j < selected; j++) {
+                    if (dotProduct(vectors[candidate], vectors[candidates[j]]) > score) {
+                        diverse = false;
+                        break;
+                    }
+                }
+                if (diverse) {
+                    candidates[selected++] = candidate;
+                }
+            }
+            return selected;
+        }
+
+        HnswGraph finish(int[] docIds) {
+            int size = vectors.length;
+            int dimensions = size == 0 ? 0 : vectors[0].length;
+            IntBuffer bottomLinks = IntBuffer.allocate(Math.toIntExact((long) size * (1 + 2 * m)));
+            IntBuffer upperOffsets = IntBuffer.allocate(size);
+            int upperSize = 0;
+            for (int node = 0; node < size; node++) {
+                upperOffsets.put(node, upperSize);
+                upperSize += (links[node].length - 1) * (1 + m);
+            }
+            IntBuffer upperLinks = IntBuffer.allocate(upperSize);
+            FloatBuffer flatVectors = FloatBuffer.allocate(Math.toIntExact((long) size * dimensions));
+            for (int node = 0; node < size; node++) {
+                for (int level = 0; level < links[node].length; level++) {
+                    IntBuffer target = level == 0 ? bottomLinks : upperLinks;
+                    int offset = level == 0 ? node * (1 + 2 * m) : upperOffsets.get(node) + (level - 1) * (1 + m);
+                    target.put(offset, linkCounts[node][level]);
+                    for (int i = 0; i < linkCounts[node][level]; i++) {
+                        target.put(offset + 1 + i, links[node][level][i]);
+                    }
+                }
+                flatVectors.position(node * dimensions);
+                flatVectors.put(vectors[node]);
+            }
+            flatVectors.clear();
+            return new HnswGraph(m, efConstruction, dimensions, size, entryPoint, maxLevel, IntBuffer.wrap(docIds),
+                    bottomLinks, upperOffsets, upperLinks, flatVectors);
+        }
+    }
+
+    static float dotProduct(float[] first, float[] second) {
+        float dotProduct = 0f;
+        for (int i = 0; i < first.length; i++) {
+            dotProduct += first[i] * second[i];
+        }
+        return dotProduct;
+    }
+
+    /**
+     * A binary heap of nodes and their scores, with the most similar node on top for a max heap and the least similar
+     * one otherwise.
+     */
+    static final class NodeHeap {
+
+        private final boolean max;
+        private int[] nodes;
+        private float[] scores;
+        private int size = 0;
+
+        NodeHeap(boolean max, int initialCapacity) {
+            this.max = max;
+            this.nodes = new int[Math.max(1, initialCapacity)];
+            this.scores = new float[Math.max(1, initialCapacity)];
+        }
+
+        int size() {
+            return size;
+        }
+
+        float topScore() {
+            return scores[0];
+        }
+
+        void push(int node, float score) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (before(score, scores[parent]) == false) {
+                    break;
+                }
+                nodes[i] = nodes[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+        }
+
+        /**
+         * Removes the top node and returns it.
+         */
+        int pop() {
+            int top = nodes[0];
+            size--;
+            int node = nodes[size];
+            float score = scores[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && before(scores[child + 1], scores[child])) {
+                    child++;
+                }
+                if (before(scores[child], score) == false) {
+                    break;
+                }
+                nodes[i] = nodes[child];
+                scores[i] = scores[child];
+                i = child;
+            }
+            nodes[i] = node;
+            scores[i] = score;
+            return top;
+        }
+
+        private boolean before(float a, float b) {
+            return max ? a > b : a < b;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Mini-batch k-means (Sculley, 2010) on a sample of vectors. The spherical variant is the coarse quantizer of IVF models:
+ * vectors are normalized and assigned to the centroid with the largest dot product, so cells follow the cosine
+ * similarity used to rescore candidates. The euclidean one learns the codebooks of {@link ProductQuantizer}s.
+ * Centroids are initialized with greedy k-means++ (Arthur and Vassilvitskii, 2007), then every iteration assigns a
+ * random batch of the sample in parallel and moves each centroid towards its vectors with a learning rate of one over
+ * the number of vectors it was assigned so far.
+ */
+final class KMeans {
+
+    static final int ITERATIONS = 100;
+    static final int BATCH_SIZE = 1024;
+    // Smaller slices are not worth a task.
+    private static final int SLICE_SIZE = 64;
+
+    private KMeans() {
+    }
+
+    /**
+     * Trains {@code k} centroids on the given sample, which must hold at least {@code k} vectors.
+     *
+     * @param spherical   whether to normalize the vectors and centroids and compare them by their dot product rather
+     *                    than their euclidean distance
+     * @param executor    runs the assignment of slices of the batches besides the calling thread, which claims the slices
+     *                    no task picked up. It never waits on a task that has not started, so the executor may be the
+     *                    pool the caller runs on.
+     * @param parallelism number of threads assigning the vectors of a batch, including the calling thread
+     */
+    static double[][] train(double[][] sample, int k, boolean spherical, long seed, Executor executor, int parallelism)
+            throws InterruptedException {
+        double[][] vectors = new double[sample.length][];
+        for (int i = 0; i < sample.length; i++) {
+            vectors[i] = spherical ? normalize(sample[i].clone()) : sample[i];
+        }
+        Random random = new Random(seed);
+
+        // Greedy k-means++ initialization: every centroid is the best of a few vectors of the sample picked with a
+        // probability proportional to their squared distance to the closest centroid so far, the one that brings the
+        // sum of these distances down the most.
+        double[][] centroids = new double[k][];
+        centroids[0] = vectors[random.nextInt(vectors.length)].clone();
+        double[] distances = new double[vectors.length];
+        for (int i = 0; i < vectors.length; i++) {
+            distances[i] = distance(centroids[0], vectors[i], spherical);
+        }
+        int trials = 2 + (int) Math.log(k);
+        for (int c = 1; c < k; c++) {
+            double total = Arrays.stream(distances).sum();
+            double bestPotential = Double.MAX_VALUE;
+            double[] bestDistances = null;
+            for (int trial = 0; trial < trials; trial++) {
+                int candidate = pick(distances, total, random);
+                double[] candidateDistances = new double[vectors.length];
+                double potential = 0.0;
+                for (int i = 0; i < vectors.length; i++) {
+                    candidateDistances[i] = Math.min(distances[i], distance(vectors[candidate], vectors[i], spherical));
+                    potential += candidateDistances[i];
+                }
+                if (potential < bestPotential) {
+                    bestPotential = potential;
+                    bestDistances = candidateDistances;
+                    centroids[c] = vectors[candidate].clone();
+                }
+            }
+            distances = bestDistances;
+        }
+
+        long[] counts = new long[k];
+        int batchSize = Math.min(vectors.length, Math.max(BATCH_SIZE, 4 * k));
+        int[] batch = new int[batchSize];
+        for (int iteration = 0; iteration < ITERATIONS; iteration++) {
+            for (int i = 0; i < batchSize; i++) {
+                batch[i] = batchSize == vectors.length ? i : random.nextInt(vectors.length);
+            }
+            int[] assignments = new int[batchSize];
+            assign(centroids, vectors, batch, assignments, spherical, executor, parallelism);
+            for (int i = 0; i < batchSize; i++) {
+                double[] centroid = centroids[assignments[i]];
+                double[] vector = vectors[batch[i]];
+                double rate = 1.0 / ++counts[assignments[i]];
+                for (int d = 0; d < centroid.length; d++) {
+                    centroid[d] += rate * (vector[d] - centroid[d]);
+                }
+            }
+            if (spherical) {
+                for (double[] centroid : centroids) {
+                    normalize(centroid);
+                }
+            }
+        }
+        return centroids;
+    }
+
+    private static void assign(double[][] centroids, double[][] vectors, int[] batch, int[] assignments, boolean spherical,
+                               Executor executor, int parallelism) throws InterruptedException {
+        int slices = Math.max(1, Math.min(parallelism, batch.length / SLICE_SIZE));
+        AtomicInteger nextSlice = new AtomicInteger();
+        CountDownLatch assigned = new CountDownLatch(slices);
+        Runnable assignSlices = () -> {
+            int slice;
+            while ((slice = nextSlice.getAndIncrement()) < slices) {
+                for (int i = slice * batch.length / slices; i < (slice + 1) * batch.length / slices; i++) {
+                    assignments[i] = spherical ? nearest(centroids, vectors[batch[i]], 1)[0] : closest(centroids, vectors[batch[i]]);
+                }
+                assigned.countDown();
+            }
+        };
+        for (int i = 1; i < slices; i++) {
+            try {
+                executor.execute(assignSlices);
+            } catch (RejectedExecutionException e) {
+                // The calling thread assigns the slice.
+                break;
+            }
+        }
+        assignSlices.run();
+        assigned.await();
+    }
+
+    /**
+     * Indices of the {@code n} centroids closest to the given vector, closest first. The vector does not need to be
+     * normalized, its norm does not change the order.
+     */
+    static int[] nearest(double[][] centroids, double[] vector, int n) {
+        n = Math.min(n, centroids.length);
+        int[] nearest = new int[n];
+        double[] similarities = new double[n];
+        int found = 0;
+        for (int c = 0; c < centroids.length; c++) {
+            double similarity = dot(centroids[c], vector);
+            if (found < n || similarity > similarities[found - 1]) {
+                // Insertion into the sorted top n.
+                int i = found < n ? found++ : n - 1;
+                while (i > 0 && similarities[i - 1] < similarity) {
+                    similarities[i] = similarities[i - 1];
+                    nearest[i] = nearest[i - 1];
+                    i--;
+                }
+                similarities[i] = similarity;
+                nearest[i] = c;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Index of the centroid with the smallest euclidean distance to the given vector.
+     */
+    static int closest(double[][] centroids, double[] vector) {
+        int closest = 0;
+        double closestDistance = Double.MAX_VALUE;
+        for (int c = 0; c < centroids.length; c++) {
+            double distance = 0.0;
+            for (int d = 0; d < vector.length; d++) {
+                double diff = centroids[c][d] - vector[d];
+                distance += diff * diff;
+            }
+            if (distance < closestDistance) {
+                closestDistance = distance;
+                closest = c;
+            }
+        }
+        return closest;
+    }
+
+    private static int pick(double[] distances, double total, Random random) {
+        double target = random.nextDouble() * total;
+        for (int i = 0; i < distances.length; i++) {
+            target -= distances[i];
+            if (target < 0.0) {
+                return i;
+            }
+        }
+        // All vectors are centroids already, or rounding left the target positive.
+        return random.nextInt(distances.length);
+    }
+
+    /**
+     * Squared euclidean distance of two vectors, computed from their dot product if they are normalized.
+     */
+    private static double distance(double[] a, double[] b, boolean normalized) {
+        if (normalized) {
+            return Math.max(0.0, 2.0 - 2.0 * dot(a, b));
+        }
+        double distance = 0.0;
+        for (int d = 0; d < a.length; d++) {
+            distance += (a[d] - b[d]) * (a[d] - b[d]);
+        }
+        return distance;
+    }
+
+    private static double dot(double[] centroid, double[] vector) {
+        double dot = 0.0;
+        for (int d = 0; d < vector.length; d++) {
+            dot += centroid[d] * vector[d];
+        }
+        return dot;
+    }
+
+    private static double[] normalize(double[] vector) {
+        double norm = 0.0;
+        for (double v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+        if (norm > 0.0) {
+            for (int d = 0; d < vector.length; d++) {
+                vector[d] /= norm;
+            }
+        }
+        return vector;
+    }
+}
@@ -24,22 +24,52 @@ import org.apache.commons.math3.random.GaussianRandomGenerator;
 import org.apache.commons.math3.random.UncorrelatedRandomVectorGenerator;
 import org.apache.commons.math3.util.Pair;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
 import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 public class LshModel {
 
+    public static final String TYPE_LSH = "lsh";
+    /**
+     * Models that do not hash vectors: documents only store their vector, and searches walk the HNSW graphs of the
+     * segments of every shard, see {@link AknnGraphStore}.
+     */
+    public static final String TYPE_HNSW = "hnsw";
+    /**
+     * Inverted file models: the vectors of a sample are clustered with k-means, documents are hashed to the ids of
+     * their nearest centroids and searches probe the cells of the centroids nearest to the query, see {@link KMeans}.
+     */
+    public static final String TYPE_IVF = "ivf";
+
+    public static final int DEFAULT_HNSW_M = 16;
+    public static final int DEFAULT_HNSW_EF_CONSTRUCTION = 100;
+    public static final int DEFAULT_IVF_NPROBE = 8;
+    public static final int DEFAULT_IVF_ASSIGNMENTS = 1;
+
+    private String modelType = TYPE_LSH;
     private Integer nbTables;
     private Integer nbBitsPerTable;
     private Integer nbDimensions;
     private String description;
 
     private List<RealMatrix> bases = null;
+    // Bases read off-heap from a memory-mapped model file, table after table, row after row.
+    private DoubleBuffer mappedBases = null;
     private Long basesSeed = null;
+    private int hnswM = DEFAULT_HNSW_M;
+    private int hnswEfConstruction = DEFAULT_HNSW_EF_CONSTRUCTION;
+    private double[][] centroids = null;
+    private int ivfNprobe = DEFAULT_IVF_NPROBE;
+    private int ivfAssignments = DEFAULT_IVF_ASSIGNMENTS;
+    private ProductQuantizer productQuantizer = null;
 
 
     public LshModel(Integer nbTables, Integer nbBitsPerTable, Integer nbDimensions, String description, List<List<Double>> bases) {
@@ -65,14 +95,71 @@ public class LshModel {
         this.basesSeed = basesSeed;
     }
 
+    /**
+     * A graph model: {@code m} is the number of neighbors of a node on the upper layers of the graphs (twice as many on
+     * the bottom layer), {@code efConstruction} the number of candidates considered when linking a new node.
+     */
+    static LshModel hnsw(int m, int efConstruction, Integer nbDimensions, String description) {
+        LshModel lshModel = new LshModel(null, null, nbDimensions, description, (Long) null);
+        lshModel.modelType = TYPE_HNSW;
+        lshModel.hnswM = m;
+        lshModel.hnswEfConstruction = efConstruction;
+        return lshModel;
+    }
+
+    /**
+     * An inverted file model over the given normalized centroids: documents are hashed to their {@code assignments}
+     * nearest centroids, one table per assignment, and searches probe the {@code nprobe} nearest ones by default.
+     */
+    static LshModel ivf(int nprobe, int assignments, String description, double[][] centroids) {
+        LshModel lshModel = new LshModel(assignments, null, centroids[0].length, description, (Long) null);
+        lshModel.modelType = TYPE_IVF;
+        lshModel.ivfNprobe = nprobe;
+        lshModel.ivfAssignments = assignments;
+        lshModel.centroids = centroids;
+        return lshModel;
+    }
+
+    /**
+     * A model whose bases are read from the given buffer, usually a memory-mapped model file, instead of the heap.
+     */
+    static LshModel withMappedBases(Integer nbTables, Integer nbBitsPerTable, Integer nbDimensions, String description,
+                                    Long basesSeed, DoubleBuffer mappedBases) {
+        LshModel lshModel = new LshModel(nbTables, nbBitsPerTable, nbDimensions, description, basesSeed);
+        lshModel.mappedBases = mappedBases;
+        return lshModel;
+    }
+
+    /**
+     * Adds product quantization codes to the documents of this model, which searches rank their candidates by before
+     * fetching and rescoring the best ones.
+     */
+    LshModel withProductQuantizer(ProductQuantizer productQuantizer) {
+        this.productQuantizer = productQuantizer;
+        return this;
+    }
+
     public Map<String, Long> getVectorHashes(List<Double> queryVector) {
+        return getVectorHashes(queryVector.stream().mapToDouble(Double::doubleValue).toArray());
+    }
+
+    public Map<String, Long> getVectorHashes(double[] queryVector) {
+        if (isIvf()) {
+            int[] nearest = nearestCentroids(queryVector, ivfAssignments);
+            Map<String, Long> hashes = new HashMap<>();
+            for (int i = 0; i < nearest.length; i++) {
+                hashes.put(Integer.toString(i), (long) nearest[i]);
+            }
+            return hashes;
+        }
+        if (mappedBases != null) {
+            return getMappedVectorHashes(queryVector);
+        }
         return IntStream.range(0, bases.size()).mapToObj(i -> new Pair<>(Integer.toString(i), bases.get(i)))
             .collect(Collectors.toMap(
                 Pair::getKey,
                 basePair -> {
-                    RealMatrix queryVectorAsMatrix = MatrixUtils.createColumnRealMatrix(
-                            queryVector.stream().mapToDouble(Double::doubleValue).toArray());
-                    double[] dotProducts = basePair.getValue().multiply(queryVectorAsMatrix).getColumn(0);
+                    double[] dotProducts = basePair.getValue().operate(queryVector);
                     long hash = IntStream.range(0, dotProducts.length).mapToLong(i ->
                             dotProducts[i] >= 0 ? (long) Math.pow(2, i) : 0L).sum();
                     return hash;
@@ -80,8 +167,73 @@ public class LshModel {
         ));
     }
 
+    /**
+     * The hashes a query matches, per table. LSH queries match the one hash of every table, IVF queries the ids of the
+     * {@code nprobe} centroids nearest to the query in every table, nearest first.
+     *
+     * @param nprobe number of cells to probe, null for the default of the model
+     */
+    public Map<String, List<Long>> getQueryHashes(double[] queryVector, Integer nprobe) {
+        Map<String, List<Long>> queryHashes = new HashMap<>();
+        if (isIvf()) {
+            List<Long> probes = new ArrayList<>();
+            for (int centroid : nearestCentroids(queryVector, nprobe != null ? nprobe : ivfNprobe)) {
+                probes.add((long) centroid);
+            }
+            for (int i = 0; i < ivfAssignments; i++) {
+                queryHashes.put(Integer.toString(i), probes);
+            }
+            return queryHashes;
+        }
+        for (Map.Entry<String, Long> hash : getVectorHashes(queryVector).entrySet()) {
+            queryHashes.put(hash.getKey(), Collections.singletonList(hash.getValue()));
+        }
+        return queryHashes;
+    }
+
+    private int[] nearestCentroids(double[] vector, int n) {
+        if (vector.length != centroids[0].length) {
+            throw new IllegalArgumentException("vector has " + vector.length + " dimensions, the centroids of the model have "
+                    + centroids[0].length);
+        }
+        return KMeans.nearest(centroids, vector, n);
+    }
+
+    private Map<String, Long> getMappedVectorHashes(double[] query) {
+        Map<String, Long> hashes = new HashMap<>();
+        int offset = 0;
+        for (int i = 0; i < nbTables; i++) {
+            long hash = 0L;
+            for (int j = 0; j < nbBitsPerTable; j++) {
+                double dotProduct = 0.0;
+                for (int k = 0; k < nbDimensions; k++) {
+                    dotProduct += mappedBases.get(offset++) * query[k];
+                }
+                if (dotProduct >= 0) {
+                    hash += 1L << j;
+                }
+            }
+            hashes.put(Integer.toString(i), hash);
+        }
+        return hashes;
+    }
+
     @SuppressWarnings("unchecked")
     public static LshModel fromMap(Map<String, Object> serialized) {
+        if (TYPE_HNSW.equals(serialized.get("_aknn_model_type"))) {
+            return hnsw((Integer) serialized.get("_aknn_hnsw_m"), (Integer) serialized.get("_aknn_hnsw_ef_construction"),
+                    (Integer) serialized.get("_aknn_nb_dimensions"), (String) serialized.get("_aknn_description"));
+        }
+        List<List<List<Double>>> codebooks = (List<List<List<Double>>>) serialized.get("_aknn_pq_codebooks");
+        ProductQuantizer productQuantizer = codebooks == null ? null : new ProductQuantizer(codebooks.stream()
+                .map(LshModel::nestedListToNestedArraysDouble)
+                .toArray(double[][][]::new));
+        if (TYPE_IVF.equals(serialized.get("_aknn_model_type"))) {
+            return ivf((Integer) serialized.get("_aknn_ivf_nprobe"), (Integer) serialized.get("_aknn_ivf_assignments"),
+                    (String) serialized.get("_aknn_description"),
+                    nestedListToNestedArraysDouble((List<List<Double>>) serialized.get("_aknn_centroids")))
+                    .withProductQuantizer(productQuantizer);
+        }
 
         LshModel lshModel = new LshModel(
                 (Integer) serialized.get("_aknn_nb_tables"), (Integer) serialized.get("_aknn_nb_bits_per_table"),
@@ -96,20 +248,148 @@ public class LshModel {
                     .collect(Collectors.toList());
         }
 
-        return lshModel;
+        return lshModel.withProductQuantizer(productQuantizer);
     }
 
     public Map<String, Object> toMap() {
+        if (isHnsw()) {
+            return new HashMap<String, Object>() {{
+                put("_aknn_model_type", modelType);
+                put("_aknn_nb_dimensions", nbDimensions);
+                put("_aknn_description", description);
+                put("_aknn_hnsw_m", hnswM);
+                put("_aknn_hnsw_ef_construction", hnswEfConstruction);
+            }};
+        }
+        if (isIvf()) {
+            return new HashMap<String, Object>() {{
+                put("_aknn_model_type", modelType);
+                put("_aknn_nb_dimensions", nbDimensions);
+                put("_aknn_description", description);
+                put("_aknn_ivf_nlist", centroids.length);
+                put("_aknn_ivf_nprobe", ivfNprobe);
+                put("_aknn_ivf_assignments", ivfAssignments);
+                put("_aknn_centroids", centroids);
+                if (productQuantizer != null) {
+                    put("_aknn_pq_codebooks", productQuantizer.codebooks());
+                }
+            }};
+        }
         return new HashMap<String, Object>() {{
             put("_aknn_nb_tables", nbTables);
             put("_aknn_nb_bits_per_table", nbBitsPerTable);
             put("_aknn_nb_dimensions", nbDimensions);
             put("_aknn_description", description);
             put("_aknn_bases_seed", basesSeed);
-            put("_aknn_bases", bases != null ? bases.stream().map(RealMatrix::getData).collect(Collectors.toList()) : null);
+            put("_aknn_bases", hasBases() ? basesAsArrays() : null);
+            if (productQuantizer != null) {
+                put("_aknn_pq_codebooks", productQuantizer.codebooks());
+            }
         }};
     }
 
+    private List<double[][]> basesAsArrays() {
+        if (bases != null) {
+            return bases.stream().map(RealMatrix::getData).collect(Collectors.toList());
+        }
+        List<double[][]> tables = new ArrayList<>(nbTables);
+        int offset = 0;
+        for (int i = 0; i < nbTables; i++) {
+            double[][] table = new double[nbBitsPerTable][nbDimensions];
+            for (int j = 0; j < nbBitsPerTable; j++) {
+                for (int k = 0; k < nbDimensions; k++) {
+                    table[j][k] = mappedBases.get(offset++);
+                }
+            }
+            tables.add(table);
+        }
+        return tables;
+    }
+
+    /**
+     * Writes the bases table after table, row after row, in the layout read back by {@link #withMappedBases}.
+     */
+    void writeBasesTo(DataOutput out) throws IOException {
+        for (double[][] table : basesAsArrays()) {
+            for (double[] row : table) {
+                for (double v : row) {
+                    out.writeDouble(v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Dimensions of the bases, which models fit on a vector sample do not always record in {@code nbDimensions}.
+     */
+    int basesDimensions() {
+        return bases != null ? bases.get(0).getColumnDimension() : nbDimensions;
+    }
+
+    String getModelType() {
+        return modelType;
+    }
+
+    /**
+     * Whether this is a graph model, which has no bases and does not hash vectors.
+     */
+    public boolean isHnsw() {
+        return TYPE_HNSW.equals(modelType);
+    }
+
+    /**
+     * Whether this is an inverted file model, which hashes vectors to the ids of their nearest centroids.
+     */
+    public boolean isIvf() {
+        return TYPE_IVF.equals(modelType);
+    }
+
+    /**
+     * Whether documents of this model hold a product quantization code of their vector.
+     */
+    public boolean hasProductQuantizer() {
+        return productQuantizer != null;
+    }
+
+    ProductQuantizer getProductQuantizer() {
+        return productQuantizer;
+    }
+
+    /**
+     * Whether the model is only made of LSH bases, the only models the {@link AknnModelStore} memory-maps.
+     */
+    boolean isMappable() {
+        return TYPE_LSH.equals(modelType) && productQuantizer == null;
+    }
+
+    int getHnswM() {
+        return hnswM;
+    }
+
+    int getHnswEfConstruction() {
+        return hnswEfConstruction;
+    }
+
+    Integer getNbTables() {
+        return nbTables;
+    }
+
+    Integer getNbBitsPerTable() {
+        return nbBitsPerTable;
+    }
+
+    Integer getNbDimensions() {
+        return nbDimensions;
+    }
+
+    String getDescription() {
+        return description;
+    }
+
+    Long getBasesSeed() {
+        return basesSeed;
+    }
+
     private static double[][] nestedListToNestedArraysDouble(List<List<Double>> data) {
         return data.stream()
                 .map(a -> a.stream().mapToDouble(Double::doubleValue).toArray())
@@ -121,16 +401,31 @@ public class LshModel {
         this.bases = this.getRandomNormalVectors(nbTables, nbBitsPerTable, nbDimensions);
     }
 
+    /**
+     * Takes the bases of another copy of this model, in place, for the callers already hashing with this one.
+     */
+    void copyBasesFrom(LshModel other) {
+        this.nbDimensions = other.nbDimensions;
+        this.bases = other.bases;
+        this.mappedBases = other.mappedBases;
+    }
+
     public boolean hasBases() {
-        return this.bases != null;
+        return this.bases != null || this.mappedBases != null || this.centroids != null;
     }
 
+    /**
+     * Heap used by the bases or centroids and codebooks. Memory-mapped bases live in the page cache and do not count.
+     */
     public int estimateBytesUsage() {
-        if(hasBases() && bases.size() > 0) {
+        int bytes = productQuantizer == null ? 0 : (int) productQuantizer.ramBytesUsed();
+        if(bases != null && bases.size() > 0) {
             RealMatrix base = bases.get(0);
-            return bases.size() * base.getColumnDimension() * base.getRowDimension() * 8;
+            return bytes + bases.size() * base.getColumnDimension() * base.getRowDimension() * 8;
+        } else if (centroids != null) {
+            return bytes + centroids.length * centroids[0].length * 8;
         } else {
-            return 0;
+            return bytes;
         }
     }
 
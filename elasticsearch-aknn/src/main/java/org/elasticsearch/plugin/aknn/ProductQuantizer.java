@@ -0,0 +1,145 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Product quantization (Jegou, Douze and Schmid, 2011) of normalized vectors: a vector is split into {@code m}
+ * sub-vectors, and each one is replaced by the index of the closest centroid of the codebook of its subspace, so a
+ * vector is encoded in {@code m} bytes. The codebooks are learned by k-means on a sample of vectors.
+ *
+ * Codes are compared to a query without being decoded, with an asymmetric distance table: the dot products of every
+ * sub-vector of the query with every centroid of its subspace are computed once per query, and the similarity of a
+ * code is the sum of one lookup per subspace. As both the query and the encoded vectors are normalized, it approximates
+ * their cosine similarity.
+ */
+final class ProductQuantizer {
+
+    /**
+     * Centroids per subspace, the values of a byte.
+     */
+    static final int MAX_CENTROIDS = 256;
+
+    // codebooks[subspace][centroid][dimension of the subspace]
+    private final double[][][] codebooks;
+    private final int subDimensions;
+
+    ProductQuantizer(double[][][] codebooks) {
+        this.codebooks = codebooks;
+        this.subDimensions = codebooks[0][0].length;
+    }
+
+    /**
+     * Learns the codebooks of {@code m} subspaces on the given sample, with up to {@link #MAX_CENTROIDS} centroids per
+     * subspace. The number of dimensions of the vectors must be a multiple of {@code m}.
+     */
+    static ProductQuantizer train(double[][] sample, int m, long seed, Executor executor, int parallelism)
+            throws InterruptedException {
+        int subDimensions = sample[0].length / m;
+        double[][] normalized = new double[sample.length][];
+        for (int i = 0; i < sample.length; i++) {
+            normalized[i] = normalize(sample[i]);
+        }
+        double[][][] codebooks = new double[m][][];
+        for (int subspace = 0; subspace < m; subspace++) {
+            double[][] subVectors = new double[sample.length][subDimensions];
+            for (int i = 0; i < sample.length; i++) {
+                System.arraycopy(normalized[i], subspace * subDimensions, subVectors[i], 0, subDimensions);
+            }
+            codebooks[subspace] = KMeans.train(subVectors, Math.min(MAX_CENTROIDS, sample.length), false, seed + subspace,
+                    executor, parallelism);
+        }
+        return new ProductQuantizer(codebooks);
+    }
+
+    double[][][] codebooks() {
+        return codebooks;
+    }
+
+    int dimensions() {
+        return codebooks.length * subDimensions;
+    }
+
+    byte[] encode(double[] vector) {
+        if (vector.length != dimensions()) {
+            throw new IllegalArgumentException("vector has " + vector.length + " dimensions, the codebooks of the model have "
+                    + dimensions());
+        }
+        double[] normalized = normalize(vector);
+        double[] subVector = new double[subDimensions];
+        byte[] code = new byte[codebooks.length];
+        for (int subspace = 0; subspace < codebooks.length; subspace++) {
+            System.arraycopy(normalized, subspace * subDimensions, subVector, 0, subDimensions);
+            code[subspace] = (byte) KMeans.closest(codebooks[subspace], subVector);
+        }
+        return code;
+    }
+
+    /**
+     * The asymmetric distance table of a query, flattened subspace after subspace.
+     */
+    float[] table(double[] query) {
+        if (query.length != dimensions()) {
+            throw new IllegalArgumentException("vector has " + query.length + " dimensions, the codebooks of the model have "
+                    + dimensions());
+        }
+        double[] normalized = normalize(query);
+        float[] table = new float[codebooks.length * MAX_CENTROIDS];
+        for (int subspace = 0; subspace < codebooks.length; subspace++) {
+            for (int c = 0; c < codebooks[subspace].length; c++) {
+                double dot = 0.0;
+                for (int d = 0; d < subDimensions; d++) {
+                    dot += normalized[subspace * subDimensions + d] * codebooks[subspace][c][d];
+                }
+                table[subspace * MAX_CENTROIDS + c] = (float) dot;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * The approximate cosine similarity of the query of the given table and the vector of the given code.
+     */
+    static float score(float[] table, byte[] code) {
+        float score = 0f;
+        for (int subspace = 0; subspace < code.length; subspace++) {
+            score += table[subspace * MAX_CENTROIDS + (code[subspace] & 0xFF)];
+        }
+        return score;
+    }
+
+    /**
+     * Heap used by the codebooks.
+     */
+    long ramBytesUsed() {
+        return (long) codebooks.length * codebooks[0].length * subDimensions * 8;
+    }
+
+    private static double[] normalize(double[] vector) {
+        double norm = 0.0;
+        for (double v : vector) {
+            norm += v * v;
+        }
+        norm = Math.sqrt(norm);
+        double[] normalized = new double[vector.length];
+        for (int d = 0; d < vector.length; d++) {
+            normalized[d] = norm == 0.0 ? 0.0 : vector[d] / norm;
+        }
+        return normalized;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The normalized vectors of the documents of one segment, stored contiguously for exact searches. Like
+ * {@link HnswGraph}s, they include deleted documents, are held on the heap right after they are read from the stored
+ * documents and memory-mapped once written to a file, see {@link #writeTo} and {@link #read}.
+ */
+final class SegmentVectors {
+
+    private final int dimensions;
+    private final int size;
+    private final IntBuffer docIds;
+    private final FloatBuffer vectors;
+
+    private SegmentVectors(int dimensions, int size, IntBuffer docIds, FloatBuffer vectors) {
+        this.dimensions = dimensions;
+        this.size = size;
+        this.docIds = docIds;
+        this.vectors = vectors;
+    }
+
+    /**
+     * The vectors of the given documents, in ascending order of documents, normalized by {@link HnswGraph#normalize}.
+     */
+    static SegmentVectors build(int[] docIds, float[][] vectors) {
+        int dimensions = vectors.length == 0 ? 0 : vectors[0].length;
+        float[] flat = new float[Math.toIntExact((long) vectors.length * dimensions)];
+        for (int i = 0; i < vectors.length; i++) {
+            System.arraycopy(vectors[i], 0, flat, i * dimensions, dimensions);
+        }
+        return new SegmentVectors(dimensions, docIds.length, IntBuffer.wrap(docIds), FloatBuffer.wrap(flat));
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Size of the vectors once written by {@link #writeTo}.
+     */
+    long sizeInBytes() {
+        return (2L + docIds.capacity() + vectors.capacity()) * Integer.BYTES;
+    }
+
+    /**
+     * Heap used by the vectors. Memory-mapped vectors live in the page cache and do not count.
+     */
+    long ramBytesUsed() {
+        if (vectors.isDirect()) {
+            return 0L;
+        }
+        return (long) (docIds.capacity() + vectors.capacity()) * Integer.BYTES;
+    }
+
+    /**
+     * Compares the query vector to the vector of every accepted document, and passes the documents and their cosine
+     * similarity to the query to the collector in ascending order of documents.
+     *
+     * @param acceptDocs the documents to compare, all of them if null
+     */
+    void scan(double[] query, Bits acceptDocs, HnswGraph.Collector collector) {
+        if (size == 0) {
+            return;
+        }
+        if (query.length != dimensions) {
+            throw new IllegalArgumentException("query vector has [" + query.length + "] dimensions, the indexed vectors have ["
+                    + dimensions + "]");
+        }
+        float[] normalized = HnswGraph.normalize(query);
+        for (int node = 0; node < size; node++) {
+            int doc = docIds.get(node);
+            if (acceptDocs == null || acceptDocs.get(doc)) {
+                collector.collect(doc, dotProduct(normalized, node * dimensions));
+            }
+        }
+    }
+
+    /**
+     * Four independent sums, so consecutive multiply-adds do not wait on each other.
+     */
+    private float dotProduct(float[] query, int offset) {
+        float sum0 = 0f;
+        float sum1 = 0f;
+        float sum2 = 0f;
+        float sum3 = 0f;
+        int i = 0;
+        for (int upTo = dimensions & ~3; i < upTo; i += 4) {
+            sum0 += query[i] * vectors.get(offset + i);
+            sum1 += query[i + 1] * vectors.get(offset + i + 1);
+            sum2 += query[i + 2] * vectors.get(offset + i + 2);
+            sum3 += query[i + 3] * vectors.get(offset + i + 3);
+        }
+        for (; i < dimensions; i++) {
+            sum0 += query[i] * vectors.get(offset + i);
+        }
+        return sum0 + sum1 + sum2 + sum3;
+    }
+
+    /**
+     * Writes the number of dimensions and of documents, the documents and the vectors in little-endian order.
+     */
+    void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.putInt(dimensions).putInt(size);
+        for (int i = 0; i < docIds.capacity(); i++) {
+            if (chunk.remaining() < Integer.BYTES) {
+                flush(channel, chunk);
+            }
+            chunk.putInt(docIds.get(i));
+        }
+        for (int i = 0; i < vectors.capacity(); i++) {
+            if (chunk.remaining() < Float.BYTES) {
+                flush(channel, chunk);
+            }
+            chunk.putFloat(vectors.get(i));
+        }
+        flush(channel, chunk);
+    }
+
+    private static void flush(WritableByteChannel channel, ByteBuffer chunk) throws IOException {
+        chunk.flip();
+        while (chunk.hasRemaining()) {
+            channel.write(chunk);
+        }
+        chunk.clear();
+    }
+
+    /**
+     * Reads vectors written by {@link #writeTo} from the current position of the buffer, without copying them.
+     *
+     * @throws IllegalStateException if the buffer is too short for the vectors
+     */
+    static SegmentVectors read(ByteBuffer buffer) {
+        buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        int dimensions = buffer.getInt();
+        int size = buffer.getInt();
+        long expected = buffer.position() + Integer.BYTES * ((long) size + (long) size * dimensions);
+        if (buffer.limit() != expected) {
+            throw new IllegalStateException("expected [" + expected + "] bytes, got [" + buffer.limit() + "]");
+        }
+        int docIdsBytes = Math.toIntExact((long) size * Integer.BYTES);
+        ByteBuffer docIds = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        docIds.limit(docIdsBytes);
+        buffer.position(buffer.position() + docIdsBytes);
+        ByteBuffer vectors = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        return new SegmentVectors(dimensions, size, docIds.asIntBuffer(), vectors.asFloatBuffer());
+    }
+}
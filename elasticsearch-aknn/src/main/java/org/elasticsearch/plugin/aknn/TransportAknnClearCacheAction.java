@@ -0,0 +1,84 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+
+public class TransportAknnClearCacheAction extends TransportNodesAction<AknnClearCacheAction.Request,
+        AknnClearCacheAction.Response, AknnClearCacheAction.NodeRequest, AknnClearCacheAction.NodeResponse> {
+
+    private final AknnService aknnService;
+    private final AknnGraphStore graphStore;
+    private final AknnVectorCache vectorCache;
+
+    @Inject
+    public TransportAknnClearCacheAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                         TransportService transportService, ActionFilters actionFilters,
+                                         IndexNameExpressionResolver indexNameExpressionResolver, AknnService aknnService,
+                                         AknnGraphStore graphStore, AknnVectorCache vectorCache) {
+        super(settings, AknnClearCacheAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, AknnClearCacheAction.Request::new, AknnClearCacheAction.NodeRequest::new,
+                ThreadPool.Names.MANAGEMENT, AknnClearCacheAction.NodeResponse.class);
+        this.aknnService = aknnService;
+        this.graphStore = graphStore;
+        this.vectorCache = vectorCache;
+    }
+
+    @Override
+    protected AknnClearCacheAction.Response newResponse(AknnClearCacheAction.Request request,
+                                                        List<AknnClearCacheAction.NodeResponse> nodes,
+                                                        List<FailedNodeException> failures) {
+        return new AknnClearCacheAction.Response(clusterService.getClusterName(), nodes, failures);
+    }
+
+    @Override
+    protected AknnClearCacheAction.NodeRequest newNodeRequest(String nodeId, AknnClearCacheAction.Request request) {
+        return new AknnClearCacheAction.NodeRequest(nodeId, request);
+    }
+
+    @Override
+    protected AknnClearCacheAction.NodeResponse newNodeResponse() {
+        return new AknnClearCacheAction.NodeResponse();
+    }
+
+    @Override
+    protected AknnClearCacheAction.NodeResponse nodeOperation(AknnClearCacheAction.NodeRequest request) {
+        if (request.aknnURIs().length == 0) {
+            logger.debug("Clearing LSH models cache");
+            aknnService.clearCache();
+            // Graph files stay, they belong to the segments and not to a model.
+            graphStore.clear();
+            vectorCache.clear();
+        } else {
+            for (String aknnURI : request.aknnURIs()) {
+                logger.debug("Clearing LSH model {} from cache", aknnURI);
+                aknnService.clearCache(aknnURI);
+            }
+        }
+        return new AknnClearCacheAction.NodeResponse(clusterService.localNode());
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRunnable;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.Randomness;
+import org.elasticsearch.common.StopWatch;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.Map;
+import java.util.Random;
+
+public class TransportAknnCreateAction extends HandledTransportAction<AknnCreateAction.Request, AknnCreateAction.Response> {
+
+    private final Client client;
+    private final AknnService aknnService;
+
+    @Inject
+    public TransportAknnCreateAction(Settings settings, ThreadPool threadPool, TransportService transportService,
+                                     ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver,
+                                     Client client, AknnService aknnService) {
+        super(settings, AknnCreateAction.NAME, threadPool, transportService, actionFilters, indexNameExpressionResolver,
+                AknnCreateAction.Request::new);
+        this.client = client;
+        this.aknnService = aknnService;
+    }
+
+    @Override
+    protected void doExecute(AknnCreateAction.Request request, ActionListener<AknnCreateAction.Response> listener) {
+        threadPool.executor(AknnPlugin.INDEX_THREAD_POOL_NAME).execute(new ActionRunnable<AknnCreateAction.Response>(listener) {
+            @Override
+            protected void doRun() throws Exception {
+                listener.onResponse(create(request));
+            }
+        });
+    }
+
+    private AknnCreateAction.Response create(AknnCreateAction.Request request) throws InterruptedException {
+        StopWatch stopWatch = new StopWatch("StopWatch to time create request");
+        if (AknnCreateAction.STORAGE_CLUSTER_STATE.equals(request.storage())) {
+            return createInClusterState(request, stopWatch);
+        }
+
+        logger.debug("Create LSH index");
+        stopWatch.start("create_index");
+        try {
+            client.admin().indices()
+                    .prepareCreate(request.index())
+                    .addMapping(request.type(), "_aknn_bases", "index=false,type=double", "_aknn_bases_seed", "index=false,type=long",
+                            "_aknn_centroids", "index=false,type=double", "_aknn_pq_codebooks", "index=false,type=double")
+                    .get();
+        } catch (ResourceAlreadyExistsException ignored) {
+            logger.warn("Index " + request.index() + " already exists, skipping adding mapping");
+            stopWatch.stop();
+            return new AknnCreateAction.Response(stopWatch.totalTime().getMillis(), false);
+        }
+        stopWatch.stop();
+
+        logger.debug("Fit LSH model with base vectors");
+        stopWatch.start("fit_model");
+        LshModel lshModel;
+        if (LshModel.TYPE_HNSW.equals(request.modelType())) {
+            lshModel = LshModel.hnsw(request.hnswM(), request.hnswEfConstruction(), request.nbDimensions(),
+                    request.description());
+        } else if (LshModel.TYPE_IVF.equals(request.modelType())) {
+            double[][] centroids = KMeans.train(sample(request), request.ivfNlist(), true, Randomness.get().nextLong(),
+                    threadPool.executor(AknnPlugin.INDEX_THREAD_POOL_NAME),
+                    threadPool.info(AknnPlugin.INDEX_THREAD_POOL_NAME).getMax());
+            lshModel = LshModel.ivf(request.ivfNprobe(), request.ivfAssignments(), request.description(), centroids);
+        } else if (request.randomBase()) {
+            Random rng = Randomness.get();
+            lshModel = new LshModel(request.nbTables(), request.nbBitsPerTable(), request.nbDimensions(),
+                    request.description(), rng.nextLong());
+        } else {
+            lshModel = new LshModel(request.nbTables(), request.nbBitsPerTable(), request.nbDimensions(),
+                    request.description(), request.vectorSample());
+        }
+        stopWatch.stop();
+
+        if (request.pqM() != null) {
+            logger.debug("Train product quantizer codebooks");
+            stopWatch.start("train_codebooks");
+            lshModel.withProductQuantizer(ProductQuantizer.train(sample(request), request.pqM(), Randomness.get().nextLong(),
+                    threadPool.executor(AknnPlugin.INDEX_THREAD_POOL_NAME),
+                    threadPool.info(AknnPlugin.INDEX_THREAD_POOL_NAME).getMax()));
+            stopWatch.stop();
+        }
+
+        logger.debug("Serialize LSH model");
+        stopWatch.start("serialize_model");
+        Map<String, Object> lshSerialized = lshModel.toMap();
+        stopWatch.stop();
+
+        logger.debug("Index LSH model");
+        stopWatch.start("index_model");
+        client.prepareIndex(request.index(), request.type(), request.id())
+                .setSource(lshSerialized)
+                .setCreate(true)
+                .get();
+        stopWatch.stop();
+
+        logger.debug("Timing summary\n {}", stopWatch.prettyPrint());
+        aknnService.stats().recordEndpoint(AknnStats.ENDPOINT_CREATE, stopWatch);
+        return new AknnCreateAction.Response(stopWatch.totalTime().getMillis(), true);
+    }
+
+    private static double[][] sample(AknnCreateAction.Request request) {
+        return request.vectorSample().stream()
+                .map(row -> row.stream().mapToDouble(Double::doubleValue).toArray())
+                .toArray(double[][]::new);
+    }
+
+    /**
+     * Seeded models only need their definition, so it is put into the cluster state instead of a model document.
+     * No model index is created.
+     */
+    private AknnCreateAction.Response createInClusterState(AknnCreateAction.Request request, StopWatch stopWatch) {
+        logger.debug("Put LSH model into the cluster state");
+        stopWatch.start("put_model");
+        String aknnURI = request.index() + "/" + request.type() + "/" + request.id();
+        AknnModelsMetaData.Model model = new AknnModelsMetaData.Model(request.nbTables(), request.nbBitsPerTable(),
+                request.nbDimensions(), request.description(), Randomness.get().nextLong());
+        try {
+            client.execute(AknnPutModelAction.INSTANCE, new AknnPutModelAction.Request(aknnURI, model).create(true)).actionGet();
+        } catch (ResourceAlreadyExistsException ignored) {
+            logger.warn("Aknn model " + aknnURI + " already exists in the cluster state");
+            stopWatch.stop();
+            return new AknnCreateAction.Response(stopWatch.totalTime().getMillis(), false);
+        }
+        stopWatch.stop();
+
+        logger.debug("Timing summary\n {}", stopWatch.prettyPrint());
+        aknnService.stats().recordEndpoint(AknnStats.ENDPOINT_CREATE, stopWatch);
+        return new AknnCreateAction.Response(stopWatch.totalTime().getMillis(), true);
+    }
+}
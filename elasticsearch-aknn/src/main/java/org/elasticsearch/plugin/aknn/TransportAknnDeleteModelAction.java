@@ -0,0 +1,85 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.master.AcknowledgedResponse;
+import org.elasticsearch.action.support.master.TransportMasterNodeAction;
+import org.elasticsearch.cluster.AckedClusterStateUpdateTask;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+public class TransportAknnDeleteModelAction
+        extends TransportMasterNodeAction<AknnDeleteModelAction.Request, AcknowledgedResponse> {
+
+    @Inject
+    public TransportAknnDeleteModelAction(Settings settings, TransportService transportService, ClusterService clusterService,
+                                          ThreadPool threadPool, ActionFilters actionFilters,
+                                          IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(settings, AknnDeleteModelAction.NAME, transportService, clusterService, threadPool, actionFilters,
+                indexNameExpressionResolver, AknnDeleteModelAction.Request::new);
+    }
+
+    @Override
+    protected String executor() {
+        return ThreadPool.Names.SAME;
+    }
+
+    @Override
+    protected AcknowledgedResponse newResponse() {
+        return new AcknowledgedResponse();
+    }
+
+    @Override
+    protected void masterOperation(AknnDeleteModelAction.Request request, ClusterState state,
+                                   ActionListener<AcknowledgedResponse> listener) {
+        clusterService.submitStateUpdateTask("aknn-delete-model [" + request.aknnURI() + "]",
+                new AckedClusterStateUpdateTask<AcknowledgedResponse>(request, listener) {
+                    @Override
+                    protected AcknowledgedResponse newResponse(boolean acknowledged) {
+                        return new AcknowledgedResponse(acknowledged);
+                    }
+
+                    @Override
+                    public ClusterState execute(ClusterState currentState) {
+                        AknnModelsMetaData models = AknnModelsMetaData.get(currentState);
+                        if (models.get(request.aknnURI()) == null) {
+                            throw new ResourceNotFoundException("aknn model [{}] not found", request.aknnURI());
+                        }
+                        MetaData metaData = MetaData.builder(currentState.metaData())
+                                .putCustom(AknnModelsMetaData.TYPE, models.remove(request.aknnURI()))
+                                .build();
+                        return ClusterState.builder(currentState).metaData(metaData).build();
+                    }
+                });
+    }
+
+    @Override
+    protected ClusterBlockException checkBlock(AknnDeleteModelAction.Request request, ClusterState state) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.METADATA_WRITE);
+    }
+}
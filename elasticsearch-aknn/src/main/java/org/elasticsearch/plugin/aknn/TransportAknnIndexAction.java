@@ -0,0 +1,436 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRunnable;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.StopWatch;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContent;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.elasticsearch.plugin.aknn.AknnService.HASHES_KEY;
+import static org.elasticsearch.plugin.aknn.AknnService.PQ_CODE_KEY;
+
+public class TransportAknnIndexAction extends HandledTransportAction<AknnIndexAction.Request, AknnIndexAction.Response> {
+
+    private static final int HASH_CHUNK_SIZE = 100;
+    private static final ByteSizeValue MAX_BULK_BYTES = new ByteSizeValue(5, ByteSizeUnit.MB);
+
+    private final Client client;
+    private final AknnService aknnService;
+
+    @Inject
+    public TransportAknnIndexAction(Settings settings, ThreadPool threadPool, TransportService transportService,
+                                    ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver,
+                                    Client client, AknnService aknnService) {
+        super(settings, AknnIndexAction.NAME, threadPool, transportService, actionFilters, indexNameExpressionResolver,
+                AknnIndexAction.Request::new);
+        this.client = client;
+        this.aknnService = aknnService;
+    }
+
+    @Override
+    protected void doExecute(AknnIndexAction.Request request, ActionListener<AknnIndexAction.Response> listener) {
+        threadPool.executor(AknnPlugin.INDEX_THREAD_POOL_NAME).execute(new ActionRunnable<AknnIndexAction.Response>(listener) {
+            @Override
+            protected void doRun() throws Exception {
+                listener.onResponse(index(request));
+            }
+        });
+    }
+
+    private AknnIndexAction.Response index(AknnIndexAction.Request request) throws Exception {
+        StopWatch stopWatch = new StopWatch("StopWatch to time bulk indexing request");
+        Iterator<AknnIndexAction.Doc> docs;
+        if (request.content() != null) {
+            logger.debug("Stream docs for indexing");
+            docs = new StreamedDocs(request.content(), request.xContentType());
+        } else {
+            logger.debug("Received {} docs for indexing", request.docs().size());
+            docs = request.docs().iterator();
+        }
+
+        // Check if the LshModel has been cached. If not, retrieve the Aknn document and use it to populate the model.
+        LshModel lshModel = aknnService.initLsh(request.aknnURI());
+
+        String hashFormat = aknnService.ensureIndex(request.index(), request.type(), request.hashFormat(),
+                lshModel.hasProductQuantizer());
+
+        // The bulk processor sends a bulk request once bulkSize documents or MAX_BULK_BYTES are added, keeps up to
+        // concurrentBulks of them in flight while the following documents are hashed and retries rejected documents
+        // with an exponential backoff.
+        BulkResults results = new BulkResults();
+        BulkProcessor bulkProcessor = BulkProcessor.builder(client, results)
+                .setBulkActions(request.bulkSize())
+                .setBulkSize(request.bulkSize() == -1 ? new ByteSizeValue(-1) : MAX_BULK_BYTES)
+                .setConcurrentRequests(request.concurrentBulks())
+                .build();
+        HashingPipeline pipeline = new HashingPipeline(request, lshModel, hashFormat, bulkProcessor, results);
+
+        int size = 0;
+        try {
+            logger.debug("Hash documents for indexing");
+            stopWatch.start("hash_documents");
+            List<AknnIndexAction.Doc> chunk = nextChunk(docs);
+            size += chunk.size();
+            if (!lshModel.isHnsw() && !lshModel.hasBases() && chunk.isEmpty() == false) {
+                double[] vector = null;
+                try {
+                    vector = AknnService.parseVectorFrom(chunk.get(0).getSource());
+                } catch (Exception e) {
+                    // Reported as the failure of the document once it is hashed.
+                    logger.debug("Failed to parse the vector of the first document", e);
+                }
+                if (vector != null) {
+                    stopWatch.stop();
+                    logger.debug("Lazily generate bases");
+                    stopWatch.start("generate_bases");
+                    aknnService.ensureBases(request.aknnURI(), lshModel, vector.length);
+                    stopWatch.stop();
+                    stopWatch.start("hash_documents");
+                }
+            }
+            // Small requests are hashed on this thread, larger ones are handed out chunk by chunk to the threads of
+            // the index thread pool.
+            pipeline.hash(chunk);
+            while (docs.hasNext()) {
+                chunk = nextChunk(docs);
+                size += chunk.size();
+                pipeline.submit(chunk);
+            }
+            pipeline.finish();
+            stopWatch.stop();
+        } catch (Exception e) {
+            pipeline.finish();
+            bulkProcessor.close();
+            throw e;
+        }
+
+        logger.debug("Execute bulk indexing");
+        stopWatch.start("bulk_index");
+        bulkProcessor.awaitClose(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        stopWatch.stop();
+        pipeline.rethrowFailure();
+
+        logger.debug("Timing summary\n {}", stopWatch.prettyPrint());
+        aknnService.stats().recordEndpoint(AknnStats.ENDPOINT_INDEX, stopWatch);
+
+        AknnIndexAction.Response response = results.response(stopWatch.totalTime().getMillis(), size);
+        if (response.hasFailures()) {
+            logger.error("Indexing failed with message: {}", response.getFailureMessage());
+        } else {
+            logger.debug("Indexed {} docs successfully", size);
+        }
+        return response;
+    }
+
+    private static List<AknnIndexAction.Doc> nextChunk(Iterator<AknnIndexAction.Doc> docs) {
+        List<AknnIndexAction.Doc> chunk = new ArrayList<>(HASH_CHUNK_SIZE);
+        while (docs.hasNext() && chunk.size() < HASH_CHUNK_SIZE) {
+            chunk.add(docs.next());
+        }
+        return chunk;
+    }
+
+    /**
+     * Hashes chunks of documents in parallel and adds them to the bulk processor. Each chunk is handed to the index
+     * thread pool as a task of its own while fewer than half the threads of the pool hash chunks of the request,
+     * otherwise, or when the pool rejects the task, the submitting thread hashes the chunk itself. Threads are only held
+     * while they hash a chunk, and the submitting thread hashes the chunks whose task has not started by the time it
+     * is done, so it never waits on a task that is queued behind other requests.
+     */
+    private final class HashingPipeline {
+
+        private final AknnIndexAction.Request request;
+        private final LshModel lshModel;
+        private final String hashFormat;
+        private final BulkProcessor bulkProcessor;
+        private final BulkResults results;
+        private final int maxTasks;
+        // Tasks that are submitted and not done yet, at most maxTasks of them.
+        private final Queue<HashingTask> tasks = new ConcurrentLinkedQueue<>();
+        private int pendingTasks = 0;
+        private volatile Exception failure;
+
+        HashingPipeline(AknnIndexAction.Request request, LshModel lshModel, String hashFormat, BulkProcessor bulkProcessor,
+                        BulkResults results) {
+            this.request = request;
+            this.lshModel = lshModel;
+            this.hashFormat = hashFormat;
+            this.bulkProcessor = bulkProcessor;
+            this.results = results;
+            // Leaves threads to the other requests, graph builds and rehash slices sharing the pool.
+            this.maxTasks = threadPool.info(AknnPlugin.INDEX_THREAD_POOL_NAME).getMax() / 2;
+        }
+
+        void submit(List<AknnIndexAction.Doc> chunk) {
+            HashingTask task = null;
+            synchronized (this) {
+                if (pendingTasks < maxTasks) {
+                    pendingTasks++;
+                    task = new HashingTask(chunk);
+                }
+            }
+            if (task == null) {
+                hash(chunk);
+                return;
+            }
+            tasks.add(task);
+            threadPool.executor(AknnPlugin.INDEX_THREAD_POOL_NAME).execute(task);
+        }
+
+        /**
+         * Hashes the chunks whose task has not started and waits for the running tasks to complete theirs.
+         */
+        void finish() throws InterruptedException {
+            for (HashingTask task : tasks) {
+                task.hashIfUnclaimed();
+            }
+            synchronized (this) {
+                while (pendingTasks > 0) {
+                    wait();
+                }
+            }
+        }
+
+        void rethrowFailure() throws Exception {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void done(HashingTask task) {
+            tasks.remove(task);
+            synchronized (this) {
+                pendingTasks--;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Hashes a chunk on the thread that claims it first: a thread of the pool, the submitting thread if the pool
+         * rejects the task, or the submitting thread once all chunks are submitted.
+         */
+        private final class HashingTask extends AbstractRunnable {
+
+            private final List<AknnIndexAction.Doc> chunk;
+            private final AtomicBoolean claimed = new AtomicBoolean();
+
+            HashingTask(List<AknnIndexAction.Doc> chunk) {
+                this.chunk = chunk;
+            }
+
+            void hashIfUnclaimed() {
+                if (claimed.compareAndSet(false, true) == false) {
+                    return;
+                }
+                try {
+                    hash(chunk);
+                } catch (Exception e) {
+                    failure = e;
+                } finally {
+                    done(this);
+                }
+            }
+
+            @Override
+            protected void doRun() {
+                hashIfUnclaimed();
+            }
+
+            @Override
+            public void onRejection(Exception e) {
+                logger.debug("Index thread pool rejected a hashing task, hashing the chunk on the submitting thread");
+                hashIfUnclaimed();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                failure = e;
+            }
+        }
+
+        void hash(List<AknnIndexAction.Doc> chunk) {
+            for (AknnIndexAction.Doc doc : chunk) {
+                Map<String, Object> source = doc.getSource();
+                try {
+                    double[] vector = AknnService.parseVectorFrom(source);
+                    // Documents of HNSW models are only checked for a valid vector.
+                    if (!lshModel.isHnsw()) {
+                        if (!lshModel.hasBases()) {
+                            aknnService.ensureBases(request.aknnURI(), lshModel, vector.length);
+                        }
+                        source.put(HASHES_KEY, AknnService.hashesValue(lshModel.getVectorHashes(vector), hashFormat));
+                        if (lshModel.hasProductQuantizer()) {
+                            source.put(PQ_CODE_KEY, lshModel.getProductQuantizer().encode(vector));
+                        }
+                    }
+                } catch (Exception e) {
+                    results.onHashFailure(doc.getId(), e);
+                    continue;
+                }
+                if (request.opType() == DocWriteRequest.OpType.UPDATE) {
+                    bulkProcessor.add(client
+                            .prepareUpdate(request.index(), request.type(), doc.getId())
+                            .setDoc(source)
+                            .setRetryOnConflict(request.retryOnConflict())
+                            .setDocAsUpsert(true)
+                            .request());
+                } else {
+                    // Plain index and create requests skip the get and merge of the update path.
+                    bulkProcessor.add(client
+                            .prepareIndex(request.index(), request.type(), doc.getId())
+                            .setSource(source)
+                            .setOpType(request.opType())
+                            .request());
+                }
+            }
+        }
+    }
+
+    /**
+     * Aggregates the results of the documents over all bulk requests of an index request.
+     */
+    private final class BulkResults implements BulkProcessor.Listener {
+
+        private final Map<String, Long> counts = new TreeMap<>();
+        private final List<AknnIndexAction.Failure> failures = new ArrayList<>();
+
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            aknnService.stats().recordBulkSize(request.numberOfActions());
+        }
+
+        @Override
+        public synchronized void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            for (BulkItemResponse item : response) {
+                if (item.isFailed()) {
+                    failures.add(new AknnIndexAction.Failure(item.getId(), item.status(), item.getFailureMessage()));
+                } else {
+                    counts.merge(item.getResponse().getResult().getLowercase(), 1L, Long::sum);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            RestStatus status = ExceptionsHelper.status(failure);
+            for (DocWriteRequest<?> item : request.requests()) {
+                failures.add(new AknnIndexAction.Failure(item.id(), status, failure.toString()));
+            }
+        }
+
+        synchronized void onHashFailure(String id, Exception e) {
+            failures.add(new AknnIndexAction.Failure(id, ExceptionsHelper.status(e), e.toString()));
+        }
+
+        synchronized AknnIndexAction.Response response(long tookInMillis, int size) {
+            return new AknnIndexAction.Response(tookInMillis, size, new TreeMap<>(counts), new ArrayList<>(failures));
+        }
+    }
+
+    /**
+     * Parses the documents of a streamed request lazily, one document per separator delimited line.
+     */
+    private static final class StreamedDocs implements Iterator<AknnIndexAction.Doc> {
+
+        private final BytesReference content;
+        private final XContent xContent;
+        private final byte separator;
+        private int from = 0;
+
+        StreamedDocs(BytesReference content, XContentType xContentType) {
+            this.content = content;
+            this.xContent = xContentType.xContent();
+            this.separator = xContent.streamSeparator();
+            skipEmptyLines();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return from < content.length();
+        }
+
+        @Override
+        public AknnIndexAction.Doc next() {
+            if (hasNext() == false) {
+                throw new NoSuchElementException();
+            }
+            int to = from;
+            while (to < content.length() && content.get(to) != separator) {
+                to++;
+            }
+            Map<String, Object> line;
+            try (XContentParser parser = xContent.createParser(NamedXContentRegistry.EMPTY,
+                    DeprecationHandler.THROW_UNSUPPORTED_OPERATION, content.slice(from, to - from).streamInput())) {
+                line = parser.map();
+            } catch (IOException e) {
+                throw new UncheckedIOException("failed to parse the document at offset " + from, e);
+            }
+            from = to + 1;
+            skipEmptyLines();
+
+            @SuppressWarnings("unchecked")
+            Map<String, Object> source = (Map<String, Object>) line.get("_source");
+            if (line.get("_id") == null || source == null) {
+                throw new IllegalArgumentException("streamed documents require an _id and a _source");
+            }
+            return new AknnIndexAction.Doc(String.valueOf(line.get("_id")), source);
+        }
+
+        private void skipEmptyLines() {
+            while (from < content.length() && (content.get(from) == separator || content.get(from) == '\r')) {
+                from++;
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+public class TransportAknnReadinessAction
+        extends HandledTransportAction<AknnReadinessAction.Request, AknnReadinessAction.Response> {
+
+    private final AknnModelPrewarmer prewarmer;
+
+    @Inject
+    public TransportAknnReadinessAction(Settings settings, ThreadPool threadPool, TransportService transportService,
+                                        ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver,
+                                        AknnModelPrewarmer prewarmer) {
+        super(settings, AknnReadinessAction.NAME, threadPool, transportService, actionFilters, indexNameExpressionResolver,
+                AknnReadinessAction.Request::new);
+        this.prewarmer = prewarmer;
+    }
+
+    @Override
+    protected void doExecute(AknnReadinessAction.Request request, ActionListener<AknnReadinessAction.Response> listener) {
+        listener.onResponse(new AknnReadinessAction.Response(prewarmer.isReady(), prewarmer.getPendingIndices(),
+                prewarmer.getModels()));
+    }
+}
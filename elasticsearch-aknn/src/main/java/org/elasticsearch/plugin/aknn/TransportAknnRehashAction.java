@@ -0,0 +1,342 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRunnable;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.bulk.Retry;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskId;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.elasticsearch.plugin.aknn.AknnService.HASHES_KEY;
+import static org.elasticsearch.plugin.aknn.AknnService.PQ_CODE_KEY;
+import static org.elasticsearch.plugin.aknn.AknnService.VECTOR_KEY;
+
+public class TransportAknnRehashAction extends HandledTransportAction<AknnRehashAction.Request, AknnRehashAction.Response> {
+
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(5);
+    private static final TimeValue REJECTED_RETRY_DELAY = TimeValue.timeValueMillis(500);
+    private static final int MAX_REPORTED_FAILURES = 100;
+
+    private final Client client;
+    private final ClusterService clusterService;
+    private final AknnService aknnService;
+    private final Retry retry;
+
+    @Inject
+    public TransportAknnRehashAction(Settings settings, ThreadPool threadPool, TransportService transportService,
+                                     ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver,
+                                     Client client, ClusterService clusterService, AknnService aknnService) {
+        super(settings, AknnRehashAction.NAME, threadPool, transportService, actionFilters, indexNameExpressionResolver,
+                AknnRehashAction.Request::new);
+        this.client = client;
+        this.clusterService = clusterService;
+        this.aknnService = aknnService;
+        this.retry = new Retry(BackoffPolicy.exponentialBackoff(), threadPool);
+    }
+
+    @Override
+    protected void doExecute(Task task, AknnRehashAction.Request request, ActionListener<AknnRehashAction.Response> listener) {
+        threadPool.executor(AknnPlugin.INDEX_THREAD_POOL_NAME).execute(new ActionRunnable<AknnRehashAction.Response>(listener) {
+            @Override
+            protected void doRun() throws Exception {
+                new Rehash((AknnRehashTask) task, request, listener).start();
+            }
+        });
+    }
+
+    @Override
+    protected void doExecute(AknnRehashAction.Request request, ActionListener<AknnRehashAction.Response> listener) {
+        doExecute(null, request, listener);
+    }
+
+    /**
+     * State of a running rehash: the model it hashes with and the failures of all of its slices.
+     */
+    private final class Rehash {
+
+        private final AknnRehashTask task;
+        private final TaskId taskId;
+        private final AknnRehashAction.Request request;
+        private final ActionListener<AknnRehashAction.Response> listener;
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger runningSlices;
+        private final List<AknnIndexAction.Failure> failures = new ArrayList<>();
+        private LshModel lshModel;
+
+        /**
+         * @param task the registered task of the rehash, or {@code null} to count its progress in a task that cannot be
+         *             listed nor cancelled
+         */
+        Rehash(@Nullable AknnRehashTask task, AknnRehashAction.Request request,
+               ActionListener<AknnRehashAction.Response> listener) {
+            if (task != null) {
+                this.task = task;
+                this.taskId = new TaskId(clusterService.localNode().getId(), task.getId());
+            } else {
+                this.task = (AknnRehashTask) request.createTask(-1, "transport", actionName, TaskId.EMPTY_TASK_ID,
+                        Collections.emptyMap());
+                this.taskId = TaskId.EMPTY_TASK_ID;
+            }
+            this.request = request;
+            this.listener = listener;
+            this.runningSlices = new AtomicInteger(request.slices());
+        }
+
+        void start() throws Exception {
+            lshModel = aknnService.initLsh(request.aknnURI());
+            if (lshModel.isHnsw()) {
+                throw new IllegalArgumentException("aknn model [" + request.aknnURI() + "] is an hnsw model, which does not "
+                        + "hash vectors");
+            }
+            logger.debug("Rehash [{}] with model [{}] in {} slices", request.index(), request.aknnURI(), request.slices());
+            for (int i = 0; i < request.slices(); i++) {
+                new Slice(this, i).start();
+            }
+        }
+
+        synchronized void onFailure(String id, Exception e) {
+            task.onBatch(0, 0, 0, 1);
+            if (failures.size() < MAX_REPORTED_FAILURES) {
+                failures.add(new AknnIndexAction.Failure(id, ExceptionsHelper.status(e), e.toString()));
+            }
+        }
+
+        synchronized void onFailure(BulkItemResponse.Failure failure) {
+            if (failures.size() < MAX_REPORTED_FAILURES) {
+                failures.add(new AknnIndexAction.Failure(failure.getId(), failure.getStatus(), failure.getMessage()));
+            }
+        }
+
+        void onSliceDone() {
+            if (runningSlices.decrementAndGet() == 0) {
+                long tookInMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                List<AknnIndexAction.Failure> reported;
+                synchronized (this) {
+                    reported = new ArrayList<>(failures);
+                }
+                listener.onResponse(new AknnRehashAction.Response(tookInMillis, task.getStatus(), reported));
+            }
+        }
+    }
+
+    /**
+     * Scrolls one slice of the index: every batch is hashed on the index thread pool and written back with a bulk
+     * request, and the next batch is fetched once the bulk request completed and the throttle delay passed.
+     */
+    private final class Slice {
+
+        private final Rehash rehash;
+        private final int id;
+        private String scrollId;
+
+        Slice(Rehash rehash, int id) {
+            this.rehash = rehash;
+            this.id = id;
+        }
+
+        void start() {
+            AknnRehashAction.Request request = rehash.request;
+            SearchRequestBuilder search = client.prepareSearch(request.index())
+                    .setTypes(request.type())
+                    .setScroll(SCROLL_KEEP_ALIVE)
+                    // The vector is not indexed in the aknn mapping, so no query finds the documents that have one:
+                    // they are told apart by their source when hashed.
+                    .setQuery(QueryBuilders.matchAllQuery())
+                    .setSize(request.scrollSize())
+                    .setVersion(true)
+                    .addSort(FieldSortBuilder.DOC_FIELD_NAME, SortOrder.ASC);
+            if (request.slices() > 1) {
+                search.slice(new SliceBuilder(id, request.slices()));
+            }
+            search.request().setParentTask(rehash.taskId);
+            search.execute(ActionListener.wrap(response -> {
+                rehash.task.addTotal(response.getHits().getTotalHits());
+                onBatch(response);
+            }, this::onFailure));
+        }
+
+        private void onBatch(SearchResponse response) {
+            scrollId = response.getScrollId();
+            if (response.getShardFailures().length > 0) {
+                for (ShardSearchFailure failure : response.getShardFailures()) {
+                    rehash.onFailure(null, (Exception) failure.getCause());
+                }
+                finish();
+                return;
+            }
+            SearchHit[] hits = response.getHits().getHits();
+            if (rehash.task.isCancelled() || hits.length == 0) {
+                finish();
+                return;
+            }
+            long batchStartNanos = System.nanoTime();
+            threadPool.executor(AknnPlugin.INDEX_THREAD_POOL_NAME).execute(new AbstractRunnable() {
+                @Override
+                protected void doRun() {
+                    hashAndWrite(hits, batchStartNanos);
+                }
+
+                @Override
+                public void onRejection(Exception e) {
+                    // A rehash runs for long, it waits for the index thread pool instead of failing.
+                    threadPool.schedule(REJECTED_RETRY_DELAY, AknnPlugin.INDEX_THREAD_POOL_NAME, this);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    Slice.this.onFailure(e);
+                }
+            });
+        }
+
+        private void hashAndWrite(SearchHit[] hits, long batchStartNanos) {
+            LshModel lshModel = rehash.lshModel;
+            Map<String, String> hashFormats = new HashMap<>();
+            BulkRequest bulkRequest = new BulkRequest();
+            long noops = 0;
+            for (SearchHit hit : hits) {
+                Map<String, Object> source = hit.getSourceAsMap();
+                if (source == null || source.get(VECTOR_KEY) == null) {
+                    noops++;
+                    continue;
+                }
+                try {
+                    double[] vector = AknnService.parseVectorFrom(source);
+                    if (!lshModel.hasBases()) {
+                        aknnService.ensureBases(rehash.request.aknnURI(), lshModel, vector.length);
+                    }
+                    String hashFormat = hashFormats.computeIfAbsent(hit.getIndex(),
+                            index -> aknnService.hashFormat(index, hit.getType(), AknnService.HASH_FORMAT_FIELDS));
+                    source.put(HASHES_KEY, AknnService.hashesValue(lshModel.getVectorHashes(vector), hashFormat));
+                    if (lshModel.hasProductQuantizer()) {
+                        source.put(PQ_CODE_KEY, lshModel.getProductQuantizer().encode(vector));
+                    } else {
+                        source.remove(PQ_CODE_KEY);
+                    }
+                } catch (Exception e) {
+                    rehash.onFailure(hit.getId(), e);
+                    continue;
+                }
+                // Written with the version it was read with, so documents changed since are not overwritten.
+                IndexRequest indexRequest = new IndexRequest(hit.getIndex(), hit.getType(), hit.getId())
+                        .source(source)
+                        .version(hit.getVersion());
+                DocumentField routing = hit.field("_routing");
+                if (routing != null) {
+                    indexRequest.routing(routing.getValue());
+                }
+                bulkRequest.add(indexRequest);
+            }
+            if (bulkRequest.numberOfActions() == 0) {
+                rehash.task.onBatch(0, 0, noops, 0);
+                next(batchStartNanos, hits.length);
+                return;
+            }
+            long batchNoops = noops;
+            bulkRequest.setParentTask(rehash.taskId);
+            retry.withBackoff(client::bulk, bulkRequest, ActionListener.wrap(response -> {
+                long updated = 0;
+                long versionConflicts = 0;
+                long failed = 0;
+                for (BulkItemResponse item : response) {
+                    if (item.isFailed() == false) {
+                        updated++;
+                    } else if (item.getFailure().getStatus() == RestStatus.CONFLICT) {
+                        versionConflicts++;
+                    } else {
+                        failed++;
+                        rehash.onFailure(item.getFailure());
+                    }
+                }
+                rehash.task.onBatch(updated, versionConflicts, batchNoops, failed);
+                next(batchStartNanos, hits.length);
+            }, this::onFailure));
+        }
+
+        private void next(long batchStartNanos, int batchSize) {
+            // Each slice keeps to its share of the requests per second, waiting for the rest of the time the batch
+            // is allotted.
+            float requestsPerSecond = rehash.request.requestsPerSecond() / rehash.request.slices();
+            long delayNanos = Math.max(0L, (long) (batchSize / requestsPerSecond * TimeUnit.SECONDS.toNanos(1))
+                    - (System.nanoTime() - batchStartNanos));
+            SearchScrollRequest scrollRequest = new SearchScrollRequest(scrollId)
+                    .scroll(TimeValue.timeValueNanos(SCROLL_KEEP_ALIVE.nanos() + delayNanos));
+            scrollRequest.setParentTask(rehash.taskId);
+            Runnable scroll = () -> client.searchScroll(scrollRequest, ActionListener.wrap(this::onBatch, this::onFailure));
+            if (delayNanos > 0) {
+                rehash.task.onThrottled(delayNanos);
+                threadPool.schedule(TimeValue.timeValueNanos(delayNanos), ThreadPool.Names.GENERIC, scroll);
+            } else {
+                scroll.run();
+            }
+        }
+
+        private void onFailure(Exception e) {
+            if (rehash.task.isCancelled() == false) {
+                logger.warn("Rehash of slice " + id + " of [" + rehash.request.index() + "] failed", e);
+                rehash.onFailure(null, e);
+            }
+            finish();
+        }
+
+        private void finish() {
+            if (scrollId != null) {
+                client.prepareClearScroll().addScrollId(scrollId).execute(ActionListener.wrap(
+                        response -> { }, e -> logger.debug("Failed to clear scroll", e)));
+            }
+            rehash.onSliceDone();
+        }
+    }
+}
@@ -0,0 +1,704 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ResourceNotFoundException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRunnable;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.HandledTransportAction;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.StopWatch;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.WrapperQueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.tasks.TaskId;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.lang.Math.min;
+import static org.elasticsearch.plugin.aknn.AknnService.HASHES_KEY;
+import static org.elasticsearch.plugin.aknn.AknnService.PQ_CODE_KEY;
+import static org.elasticsearch.plugin.aknn.AknnService.VECTOR_KEY;
+
+public class TransportAknnSearchAction extends HandledTransportAction<AknnSearchAction.Request, AknnSearchAction.Response> {
+
+    /**
+     * Filtered LSH searches whose filter matches at most this many documents compare the query vector to all of them
+     * instead, 0 never does.
+     */
+    public static final Setting<Integer> EXACT_FILTER_THRESHOLD_SETTING = Setting.intSetting("aknn.search.exact_filter_threshold",
+            10000, 0, Setting.Property.Dynamic, Setting.Property.NodeScope);
+    public static final Setting<TimeValue> EXACT_FILTER_COUNT_TTL_SETTING = Setting.positiveTimeSetting(
+            "aknn.search.exact_filter_count_ttl", TimeValue.timeValueMinutes(1), Setting.Property.NodeScope);
+    // Number of filters whose count is kept.
+    private static final int MAX_FILTER_COUNTS = 1000;
+
+    private final Client client;
+    private final ClusterService clusterService;
+    private final AknnService aknnService;
+    private final AknnSearchSlowLog slowLog;
+    private final AknnVectorCache vectorCache;
+    private final AknnSearchCursors cursors;
+    private final Cache<String, Long> filterCounts;
+    private final Set<String> countingFilters = ConcurrentCollections.newConcurrentSet();
+    private volatile int exactFilterThreshold;
+
+    @Inject
+    public TransportAknnSearchAction(Settings settings, ThreadPool threadPool, TransportService transportService,
+                                     ActionFilters actionFilters, IndexNameExpressionResolver indexNameExpressionResolver,
+                                     Client client, ClusterService clusterService, AknnService aknnService,
+                                     AknnSearchSlowLog slowLog, AknnVectorCache vectorCache, AknnSearchCursors cursors) {
+        super(settings, AknnSearchAction.NAME, threadPool, transportService, actionFilters, indexNameExpressionResolver,
+                AknnSearchAction.Request::new);
+        this.client = client;
+        this.clusterService = clusterService;
+        this.aknnService = aknnService;
+        this.slowLog = slowLog;
+        this.vectorCache = vectorCache;
+        this.cursors = cursors;
+        this.filterCounts = CacheBuilder.<String, Long>builder()
+                .setExpireAfterWrite(EXACT_FILTER_COUNT_TTL_SETTING.get(settings))
+                .setMaximumWeight(MAX_FILTER_COUNTS)
+                .build();
+        this.exactFilterThreshold = EXACT_FILTER_THRESHOLD_SETTING.get(settings);
+        clusterService.getClusterSettings().addSettingsUpdateConsumer(EXACT_FILTER_THRESHOLD_SETTING,
+                value -> exactFilterThreshold = value);
+    }
+
+    @Override
+    protected void doExecute(Task task, AknnSearchAction.Request request, ActionListener<AknnSearchAction.Response> listener) {
+        threadPool.executor(AknnPlugin.SEARCH_THREAD_POOL_NAME).execute(new ActionRunnable<AknnSearchAction.Response>(listener) {
+            @Override
+            protected void doRun() throws Exception {
+                listener.onResponse(search(new SearchContext((CancellableTask) task, request)));
+            }
+        });
+    }
+
+    @Override
+    protected void doExecute(AknnSearchAction.Request request, ActionListener<AknnSearchAction.Response> listener) {
+        doExecute(null, request, listener);
+    }
+
+    private AknnSearchAction.Response search(SearchContext context) throws Exception {
+        AknnSearchAction.Request request = context.request;
+        StopWatch stopWatch = context.stopWatch;
+
+        if (request.searchAfter() != null) {
+            String cursorId = AknnSearchCursors.id(request.searchAfter());
+            stopWatch.start("read_cursor");
+            List<AknnSearchAction.Hit> hits = cursors.get(cursorId, request.fingerprint());
+            stopWatch.stop();
+            if (hits != null) {
+                context.cursorId = cursorId;
+                return context.response(hits);
+            }
+            logger.debug("Cursor [{}] expired or belongs to another search, search again from [{}]", cursorId, context.from);
+        }
+
+        double[] queryVector;
+        // Stored hashes of the query document, searches by id that have them do not hash the query vector.
+        Map<String, List<Long>> queryHashes = null;
+        LshModel lshModel = null;
+        if (request.id() != null) {
+            logger.debug("Get query document at {}/{}/{}", request.index(), request.type(), request.id());
+            stopWatch.start("get_query_document");
+            GetRequestBuilder getRequest = client.prepareGet(request.index(), request.type(), request.id());
+            getRequest.request().setParentTask(context.taskId);
+            Map<String, Object> baseSource = getRequest.get().getSource();
+            stopWatch.stop();
+            if (baseSource == null) {
+                throw new ResourceNotFoundException("query document [{}] not found", request.id());
+            }
+
+            logger.debug("Parse query document hashes and vector");
+            stopWatch.start("parse_query_document");
+            queryVector = AknnService.parseVectorFrom(baseSource);
+            if (!request.exact() && baseSource.get(HASHES_KEY) != null) {
+                queryHashes = new HashMap<>();
+                for (Map.Entry<String, Long> hash : AknnService.parseHashes(baseSource.get(HASHES_KEY)).entrySet()) {
+                    queryHashes.put(hash.getKey(), Collections.singletonList(hash.getValue()));
+                }
+            }
+            stopWatch.stop();
+            // Documents of HNSW models have no hashes, their vector is searched like a query vector.
+            if (!request.exact() && queryHashes == null && request.aknnURI() == null) {
+                throw new IllegalArgumentException("query document [" + request.id() + "] has no hashes, _aknn_uri is required "
+                        + "to search by its vector");
+            }
+        } else {
+            queryVector = request.queryVector();
+        }
+
+        if (request.exact()) {
+            // Exact searches compare vectors only, they need neither the model nor the query hashes.
+            queryHashes = Collections.emptyMap();
+        } else if (queryHashes == null) {
+            // Check if the LshModel has been cached. If not, retrieve the Aknn document and use it to populate the model.
+            stopWatch.start("load_model");
+            lshModel = aknnService.initLsh(request.aknnURI());
+            stopWatch.stop();
+            if (lshModel.isHnsw()) {
+                if (request.textQuery() != null) {
+                    throw new IllegalArgumentException("a text query can only be blended into searches of lsh and ivf models");
+                }
+                List<AknnSearchAction.Hit> hits = context.isTimedOut() ? new ArrayList<>() : queryHnsw(context, lshModel, queryVector);
+                logger.debug("Timing summary\n {}", stopWatch.prettyPrint());
+                return context.response(hits);
+            }
+            if (!lshModel.hasBases()) {
+                return context.response(new ArrayList<>());
+            }
+            stopWatch.start("hash_query_vector");
+            queryHashes = lshModel.getQueryHashes(queryVector, request.nprobe());
+            stopWatch.stop();
+        } else if (request.aknnURI() != null) {
+            // The model of a search by id ranks the product quantization codes of the candidates, as for a search by
+            // vector. It is cached, so loading it costs little.
+            stopWatch.start("load_model");
+            lshModel = aknnService.initLsh(request.aknnURI());
+            stopWatch.stop();
+            if (lshModel.isIvf() && lshModel.hasBases()) {
+                // The stored hashes only hold the cells of the query document, the search probes the nprobe nearest.
+                stopWatch.start("hash_query_vector");
+                queryHashes = lshModel.getQueryHashes(queryVector, request.nprobe());
+                stopWatch.stop();
+            }
+        }
+
+        // Few of the documents of a selective filter share buckets with the query, while comparing the query vector
+        // to all of them is cheap and finds every neighbor.
+        if (request.exact() || (request.textQuery() == null && !context.isTimedOut() && selectiveFilter(context))) {
+            List<AknnSearchAction.Hit> hits = context.isTimedOut() ? new ArrayList<>() : queryExact(context, queryVector);
+            logger.debug("Timing summary\n {}", stopWatch.prettyPrint());
+            return context.response(hits);
+        }
+
+        List<AknnSearchAction.Hit> modifiedSortedHits;
+        if (context.isTimedOut()) {
+            modifiedSortedHits = new ArrayList<>();
+        } else {
+            modifiedSortedHits = queryLsh(context, lshModel, queryVector, queryHashes, request.minimumShouldMatch());
+            if (request.filter() != null && request.minimumShouldMatch() > 1
+                    && modifiedSortedHits.size() < context.from + request.k2() && !context.isTimedOut()) {
+                logger.debug("Only [{}] filtered candidates match [{}] hashes, relax the query to any matching hash",
+                        modifiedSortedHits.size(), request.minimumShouldMatch());
+                modifiedSortedHits = queryLsh(context, lshModel, queryVector, queryHashes, 1);
+            }
+        }
+
+        logger.debug("Timing summary\n {}", stopWatch.prettyPrint());
+
+        // In some cases there will not be enough approximate matches to return *k2* hits. For example, this could
+        // be the case if the number of bits per table in the LSH model is too high, over-partioning the space.
+        return context.response(modifiedSortedHits);
+    }
+
+    //  Query execution refactored as function and added wrapper query
+    private List<AknnSearchAction.Hit> queryLsh(SearchContext context, @Nullable LshModel lshModel, double[] queryVector,
+                                                Map<String, List<Long>> queryHashes, int minimumShouldMatch) {
+        AknnSearchAction.Request request = context.request;
+        StopWatch stopWatch = context.stopWatch;
+        // Retrieve the documents with most matching hashes. https://stackoverflow.com/questions/10773581
+        logger.debug("Build boolean query from hashes");
+        stopWatch.start("build_query");
+        BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
+        // Every document only matches the clauses of the hash format of its index, so indices using either format
+        // can be searched together.
+        // The probes of an IVF query are ranked by the similarity of their centroid, so the documents of the nearest
+        // cells come first within the k1 candidates.
+        Set<String> hashFormats = hashFormats(request);
+        for (Map.Entry<String, List<Long>> entry : queryHashes.entrySet()) {
+            List<Long> values = entry.getValue();
+            for (int i = 0; i < values.size(); i++) {
+                if (hashFormats.contains(AknnService.HASH_FORMAT_FIELDS)) {
+                    String termKey = HASHES_KEY + "." + entry.getKey();
+                    queryBuilder.should(rank(QueryBuilders.termQuery(termKey, values.get(i)), i, values.size()));
+                }
+                if (hashFormats.contains(AknnService.HASH_FORMAT_TOKENS)) {
+                    String token = entry.getKey() + ":" + values.get(i);
+                    queryBuilder.should(rank(QueryBuilders.termQuery(HASHES_KEY, token), i, values.size()));
+                }
+            }
+        }
+        queryBuilder.minimumShouldMatch(minimumShouldMatch);
+        if (request.textQuery() != null) {
+            // Documents matching the text query are candidates too, their score adds to the one of their hashes. One of
+            // the clauses must match, the filter alone would make every filtered document a candidate.
+            queryBuilder = QueryBuilders.boolQuery().should(queryBuilder).should(new WrapperQueryBuilder(request.textQuery()))
+                    .minimumShouldMatch(1);
+        }
+
+        if (request.filter() != null) {
+            queryBuilder.filter(new WrapperQueryBuilder(request.filter()));
+        }
+        stopWatch.stop();
+
+        if (lshModel != null && lshModel.hasProductQuantizer() && !request.rescore().equals(AknnSearchAction.RESCORE_NONE)
+                && request.textQuery() == null) {
+            return rankCodes(context, lshModel.getProductQuantizer(), queryVector, queryBuilder);
+        }
+
+        // The shards rescore their k1 best candidates with the vectors of their vector cache, so only the candidates
+        // up to the requested page are fetched, without their vector and hashes unless debugging. Shards keep their
+        // most similar candidates though, so the least similar ones asked for by an ascending order are found by
+        // fetching the k1 best candidates and rescoring all of them here.
+        boolean rescore = request.rescore().equals(AknnSearchAction.RESCORE_COSINE);
+        boolean rescoreOnShards = rescore && request.orderDesc();
+        String[] excludes = request.debug() ? null
+                : rescoreOnShards ? new String[] {VECTOR_KEY, HASHES_KEY} : new String[] {HASHES_KEY};
+
+        logger.debug("Execute boolean search");
+        stopWatch.start("fetch_candidates");
+        SearchRequestBuilder approximateSearchRequest = client
+                .prepareSearch(request.index())
+                .setTypes(request.type())
+                .setFetchSource(new String[] {"*"}, excludes)
+                .setQuery(queryBuilder);
+        if (rescoreOnShards) {
+            AknnRescorerBuilder rescorer = new AknnRescorerBuilder(queryVector, () -> vectorCache);
+            if (request.textQuery() != null) {
+                rescorer.textQuery(new WrapperQueryBuilder(request.textQuery()))
+                        .vectorWeight(request.vectorWeight())
+                        .textWeight(request.textWeight());
+            }
+            approximateSearchRequest.setSize(min(request.k1(), context.depth)).setRescorer(rescorer, request.k1());
+        } else {
+            approximateSearchRequest.setSize(request.k1());
+        }
+        if (request.timeout() != null) {
+            approximateSearchRequest.setTimeout(context.remaining());
+        }
+        approximateSearchRequest.request().setParentTask(context.taskId);
+        SearchResponse approximateSearchResponse = approximateSearchRequest.get();
+        stopWatch.stop();
+        // The rescore window applies to every shard, each of them rescores up to k1 candidates.
+        context.candidates = rescoreOnShards ? min((long) request.k1() * approximateSearchResponse.getSuccessfulShards(),
+                approximateSearchResponse.getHits().getTotalHits()) : approximateSearchResponse.getHits().getHits().length;
+        aknnService.stats().recordCandidates(context.candidates);
+
+        if (approximateSearchResponse.isTimedOut()) {
+            context.timedOut = true;
+        }
+        // Without time left for rescoring here, the candidates stay in the order of their number of matching hashes.
+        boolean rescored = rescoreOnShards || (rescore && !context.isTimedOut());
+
+        // Recreate the SearchHit structure, but remove the vector and hashes.
+        logger.debug("Construct search hits");
+        stopWatch.start("rescore");
+        List<AknnSearchAction.Hit> modifiedSortedHits = new ArrayList<>();
+        for (SearchHit hit : approximateSearchResponse.getHits()) {
+            Map<String, Object> hitSource = hit.getSourceAsMap();
+            double computedScore = rescored && !rescoreOnShards
+                    ? AknnService.cosineSimilarity(queryVector, AknnService.parseVectorFrom(hitSource)) : (double) hit.getScore();
+            if (!request.debug()) {
+                hitSource.remove(VECTOR_KEY);
+            }
+            modifiedSortedHits.add(new AknnSearchAction.Hit(hit.getIndex(), hit.getType(), hit.getId(), computedScore, hitSource));
+        }
+        stopWatch.stop();
+
+        if (rescored) {
+            logger.debug("Sort search hits by exact distance");
+            stopWatch.start("sort");
+            Comparator<Double> order = request.orderDesc() ? Comparator.reverseOrder() : Comparator.naturalOrder();
+            modifiedSortedHits.sort(Comparator.comparing(AknnSearchAction.Hit::getScore, order));
+            stopWatch.stop();
+        } else {
+            logger.debug("Exact distance rescoring passed");
+        }
+        return modifiedSortedHits;
+    }
+
+    /**
+     * Ranks the candidates of a model with a product quantizer by the approximate similarity of their codes, read from
+     * doc values rather than from their source, then fetches and rescores only the best ones, up to the requested page:
+     * the most similar ones, or the least similar ones in ascending order.
+     * k1 can be much larger than when every candidate is fetched and rescored.
+     */
+    private List<AknnSearchAction.Hit> rankCodes(SearchContext context, ProductQuantizer productQuantizer, double[] queryVector,
+                                                 BoolQueryBuilder queryBuilder) {
+        AknnSearchAction.Request request = context.request;
+        StopWatch stopWatch = context.stopWatch;
+        logger.debug("Execute boolean search for the codes of the candidates");
+        stopWatch.start("fetch_candidates");
+        boolean docValues = pqCodesInDocValues(request);
+        SearchRequestBuilder approximateSearchRequest = client
+                .prepareSearch(request.index())
+                .setTypes(request.type())
+                .setQuery(queryBuilder)
+                .setSize(request.k1());
+        if (docValues) {
+            approximateSearchRequest.setFetchSource(false).addDocValueField(PQ_CODE_KEY);
+        } else {
+            approximateSearchRequest.setFetchSource(PQ_CODE_KEY, null);
+        }
+        if (request.timeout() != null) {
+            approximateSearchRequest.setTimeout(context.remaining());
+        }
+        approximateSearchRequest.request().setParentTask(context.taskId);
+        SearchResponse approximateSearchResponse = approximateSearchRequest.get();
+        stopWatch.stop();
+        context.candidates = approximateSearchResponse.getHits().getHits().length;
+        aknnService.stats().recordCandidates(context.candidates);
+        if (approximateSearchResponse.isTimedOut()) {
+            context.timedOut = true;
+        }
+
+        // Without time left, the candidates stay in the order of their number of matching hashes.
+        List<SearchHit> candidates = new ArrayList<>(Arrays.asList(approximateSearchResponse.getHits().getHits()));
+        if (!context.isTimedOut()) {
+            logger.debug("Rank candidates by the similarity of their codes");
+            stopWatch.start("rank_codes");
+            float[] table = productQuantizer.table(queryVector);
+            // The least similar candidates come first in ascending order, so the cut keeps them.
+            Comparator<Float> order = request.orderDesc() ? Comparator.reverseOrder() : Comparator.naturalOrder();
+            Map<SearchHit, Float> scores = new IdentityHashMap<>();
+            for (SearchHit hit : candidates) {
+                Object value = docValues ? (hit.field(PQ_CODE_KEY) == null ? null : hit.field(PQ_CODE_KEY).getValue())
+                        : hit.getSourceAsMap().get(PQ_CODE_KEY);
+                byte[] code = value == null ? null : AknnService.parsePqCode(value);
+                // Documents indexed before the model had codebooks, or with another model, come last.
+                scores.put(hit, code == null || code.length != productQuantizer.codebooks().length
+                        ? (request.orderDesc() ? Float.NEGATIVE_INFINITY : Float.POSITIVE_INFINITY)
+                        : ProductQuantizer.score(table, code));
+            }
+            candidates.sort(Comparator.comparing(scores::get, order));
+            stopWatch.stop();
+        }
+        candidates = candidates.subList(0, min(context.depth, candidates.size()));
+
+        logger.debug("Fetch the best candidates");
+        stopWatch.start("fetch_hits");
+        List<AknnSearchAction.Hit> hits = new ArrayList<>();
+        if (candidates.isEmpty() == false) {
+            MultiGetRequestBuilder multiGetRequest = client.prepareMultiGet();
+            for (SearchHit hit : candidates) {
+                MultiGetRequest.Item item = new MultiGetRequest.Item(hit.getIndex(), hit.getType(), hit.getId());
+                DocumentField routing = hit.field("_routing");
+                if (routing != null) {
+                    item.routing(routing.getValue());
+                }
+                multiGetRequest.add(item);
+            }
+            multiGetRequest.request().setParentTask(context.taskId);
+            for (MultiGetItemResponse item : multiGetRequest.get()) {
+                // Skips documents deleted since they were found.
+                if (item.isFailed() || item.getResponse().isExists() == false) {
+                    continue;
+                }
+                hits.add(new AknnSearchAction.Hit(item.getIndex(), item.getType(), item.getId(), 0.0,
+                        item.getResponse().getSourceAsMap()));
+            }
+        }
+        stopWatch.stop();
+
+        boolean rescore = !context.isTimedOut();
+        logger.debug("Compute exact distance of the best candidates");
+        stopWatch.start("rescore");
+        List<AknnSearchAction.Hit> modifiedSortedHits = new ArrayList<>(hits.size());
+        for (AknnSearchAction.Hit hit : hits) {
+            Map<String, Object> hitSource = hit.getSource();
+            double computedScore = rescore ? AknnService.cosineSimilarity(queryVector, AknnService.parseVectorFrom(hitSource))
+                    : 0.0;
+            if (!request.debug()) {
+                hitSource.remove(VECTOR_KEY);
+                hitSource.remove(HASHES_KEY);
+                hitSource.remove(PQ_CODE_KEY);
+            }
+            modifiedSortedHits.add(new AknnSearchAction.Hit(hit.getIndex(), hit.getType(), hit.getId(), computedScore, hitSource));
+        }
+        if (rescore) {
+            Comparator<Double> order = request.orderDesc() ? Comparator.reverseOrder() : Comparator.naturalOrder();
+            modifiedSortedHits.sort(Comparator.comparing(AknnSearchAction.Hit::getScore, order));
+        }
+        stopWatch.stop();
+        return modifiedSortedHits;
+    }
+
+    private boolean pqCodesInDocValues(AknnSearchAction.Request request) {
+        String[] indices = indexNameExpressionResolver.concreteIndexNames(clusterService.state(),
+                IndicesOptions.lenientExpandOpen(), request.index());
+        for (String index : indices) {
+            if (aknnService.pqCodesInDocValues(index, request.type()) == false) {
+                return false;
+            }
+        }
+        return indices.length > 0;
+    }
+
+    private static QueryBuilder rank(QueryBuilder query, int rank, int probes) {
+        return probes == 1 ? query : QueryBuilders.constantScoreQuery(query).boost(probes - rank);
+    }
+
+    /**
+     * Searches the graphs of the segments of every shard. The graphs compare vectors exactly, so the hits of the shards
+     * are already scored by their cosine similarity and only have to be merged. In ascending order, the graphs are
+     * searched for the approximate least similar documents.
+     */
+    private List<AknnSearchAction.Hit> queryHnsw(SearchContext context, LshModel lshModel, double[] queryVector) {
+        AknnSearchAction.Request request = context.request;
+        StopWatch stopWatch = context.stopWatch;
+        logger.debug("Search the graphs of the shards");
+        stopWatch.start("search_graphs");
+        int ef = request.ef() != null ? request.ef() : AknnSearchAction.EF_DEFAULT;
+        AknnShardSearchAction.Request shardSearchRequest = new AknnShardSearchAction.Request(queryVector, request.index())
+                .model(lshModel.getHnswM(), lshModel.getHnswEfConstruction())
+                .orderDesc(request.orderDesc())
+                .k(context.depth)
+                .ef(Math.max(ef, context.depth))
+                .filter(request.filter())
+                .debug(request.debug());
+        return queryShards(context, shardSearchRequest);
+    }
+
+    /**
+     * Whether the filter of the request matches at most {@code aknn.search.exact_filter_threshold} documents, as last
+     * counted. Counts are kept for {@code aknn.search.exact_filter_count_ttl}: an unknown filter is counted in the
+     * background while its first searches go through the model, so searches never wait for a count. Shards stop
+     * counting past the threshold, so counting a filter that is not selective is cheap too.
+     */
+    private boolean selectiveFilter(SearchContext context) {
+        AknnSearchAction.Request request = context.request;
+        int threshold = exactFilterThreshold;
+        if (request.filter() == null || threshold == 0) {
+            return false;
+        }
+        String[] indices = indexNameExpressionResolver.concreteIndexNames(clusterService.state(),
+                IndicesOptions.lenientExpandOpen(), request.index());
+        Arrays.sort(indices);
+        String key = String.join(",", indices) + '/' + request.type() + '/' + threshold + '/' + request.filter();
+        Long count = filterCounts.get(key);
+        if (count == null) {
+            countFilter(key, request, threshold);
+            return false;
+        }
+        logger.debug("The filter matches [{}] documents, the threshold is [{}]", count, threshold);
+        return count <= threshold;
+    }
+
+    /**
+     * Counts the documents matching the filter of the request, up to the threshold, unless they are being counted
+     * already, and keeps the count under the given key.
+     */
+    private void countFilter(String key, AknnSearchAction.Request request, int threshold) {
+        if (countingFilters.add(key) == false) {
+            return;
+        }
+        logger.debug("Count the documents matching the filter in the background");
+        client.prepareSearch(request.index())
+                .setTypes(request.type())
+                .setQuery(QueryBuilders.boolQuery().filter(new WrapperQueryBuilder(request.filter())))
+                .setSize(0)
+                .setTerminateAfter(threshold + 1)
+                .execute(new ActionListener<SearchResponse>() {
+                    @Override
+                    public void onResponse(SearchResponse countResponse) {
+                        countingFilters.remove(key);
+                        if (countResponse.isTimedOut() == false && countResponse.getFailedShards() == 0) {
+                            filterCounts.put(key, countResponse.getHits().getTotalHits());
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        countingFilters.remove(key);
+                        logger.debug("Failed to count the documents matching a filter", e);
+                    }
+                });
+    }
+
+    /**
+     * Compares the query vector to the vector of every document of the shards, see {@link AknnShardSearchAction.Request#exact}.
+     */
+    private List<AknnSearchAction.Hit> queryExact(SearchContext context, double[] queryVector) {
+        AknnSearchAction.Request request = context.request;
+        logger.debug("Scan the vectors of the shards");
+        context.stopWatch.start("scan_vectors");
+        AknnShardSearchAction.Request shardSearchRequest = new AknnShardSearchAction.Request(queryVector, request.index())
+                .exact(true)
+                .orderDesc(request.orderDesc())
+                .k(context.depth)
+                .filter(request.filter())
+                .debug(request.debug());
+        return queryShards(context, shardSearchRequest);
+    }
+
+    /**
+     * Executes the shard level search, timed by the phase the caller started, and merges the best hits of the shards up to
+     * the requested page: the most similar ones, or the least similar ones in ascending order.
+     */
+    private List<AknnSearchAction.Hit> queryShards(SearchContext context, AknnShardSearchAction.Request shardSearchRequest) {
+        AknnSearchAction.Request request = context.request;
+        StopWatch stopWatch = context.stopWatch;
+        shardSearchRequest.setParentTask(context.taskId);
+        if (request.timeout() != null) {
+            shardSearchRequest.timeout(context.remaining());
+        }
+        AknnShardSearchAction.Response response = client.execute(AknnShardSearchAction.INSTANCE, shardSearchRequest).actionGet();
+        stopWatch.stop();
+        if (response.isTimedOut()) {
+            context.timedOut = true;
+        }
+        if (response.getSuccessfulShards() == 0 && response.getShardFailures().length > 0) {
+            Throwable cause = response.getShardFailures()[0].getCause();
+            throw cause instanceof ElasticsearchException ? (ElasticsearchException) cause : new ElasticsearchException(cause);
+        }
+        context.candidates = response.getHits().size();
+        aknnService.stats().recordCandidates(context.candidates);
+
+        logger.debug("Merge the hits of the shards");
+        stopWatch.start("sort");
+        List<AknnSearchAction.Hit> hits = new ArrayList<>(response.getHits());
+        Comparator<Double> order = request.orderDesc() ? Comparator.reverseOrder() : Comparator.naturalOrder();
+        hits.sort(Comparator.comparing(AknnSearchAction.Hit::getScore, order));
+        hits = new ArrayList<>(hits.subList(0, min(context.depth, hits.size())));
+        stopWatch.stop();
+        return hits;
+    }
+
+    private Set<String> hashFormats(AknnSearchAction.Request request) {
+        Set<String> hashFormats = new HashSet<>();
+        for (String index : indexNameExpressionResolver.concreteIndexNames(clusterService.state(),
+                IndicesOptions.lenientExpandOpen(), request.index())) {
+            hashFormats.add(aknnService.hashFormat(index, request.type(), AknnService.HASH_FORMAT_FIELDS));
+        }
+        if (hashFormats.isEmpty()) {
+            hashFormats.add(AknnService.HASH_FORMAT_FIELDS);
+        }
+        return hashFormats;
+    }
+
+    /**
+     * Per request state: the task the search runs as if any, the deadline derived from the request timeout and the
+     * stopwatch timing its phases. Checked between the phases of the search, so a cancelled search stops at the
+     * next phase and a timed out search returns the partial results it has. Also the page of the ranked hits to
+     * return and the cursor keeping them for the following pages.
+     */
+    private final class SearchContext {
+
+        @Nullable
+        private final CancellableTask task;
+        private final TaskId taskId;
+        private final AknnSearchAction.Request request;
+        private final long deadlineNanos;
+        private final StopWatch stopWatch = new StopWatch("StopWatch to time search request");
+        private boolean timedOut = false;
+        private long candidates = 0;
+        // Offset of the page, and number of ranked hits the search needs: the ones up to the end of the page, or with
+        // a cursor all the k1 candidates, so the following pages come from memory.
+        private final int from;
+        private final int depth;
+        @Nullable
+        private final TimeValue keepAlive;
+        @Nullable
+        private String cursorId;
+
+        SearchContext(@Nullable CancellableTask task, AknnSearchAction.Request request) {
+            this.task = task;
+            this.taskId = task == null ? TaskId.EMPTY_TASK_ID : new TaskId(clusterService.localNode().getId(), task.getId());
+            this.request = request;
+            this.deadlineNanos = request.timeout() == null ? Long.MAX_VALUE : System.nanoTime() + request.timeout().nanos();
+            this.from = request.searchAfter() != null ? AknnSearchCursors.offset(request.searchAfter()) : request.from();
+            this.keepAlive = request.keepAlive() != null || request.searchAfter() == null ? request.keepAlive()
+                    : AknnSearchAction.KEEP_ALIVE_DEFAULT;
+            if (keepAlive != null) {
+                cursors.checkKeepAlive(keepAlive);
+            }
+            int end = (int) Math.min(Integer.MAX_VALUE, (long) from + request.k2());
+            this.depth = keepAlive != null ? Math.max(request.k1(), end) : end;
+        }
+
+        TimeValue remaining() {
+            return TimeValue.timeValueNanos(Math.max(0L, deadlineNanos - System.nanoTime()));
+        }
+
+        boolean isTimedOut() {
+            if (task != null && task.isCancelled()) {
+                throw new TaskCancelledException("cancelled");
+            }
+            if (timedOut == false && System.nanoTime() > deadlineNanos) {
+                logger.debug("Aknn search timed out after {}", request.timeout());
+                timedOut = true;
+            }
+            return timedOut;
+        }
+
+        /**
+         * The page of the ranked hits. Unless they come from a cursor already, they are kept in a new one when the
+         * request asks for it and more pages follow.
+         */
+        AknnSearchAction.Response response(List<AknnSearchAction.Hit> hits) {
+            int end = (int) Math.min(hits.size(), (long) from + request.k2());
+            // Partial hits of a timed out search are not kept, the following pages would miss hits.
+            if (cursorId == null && keepAlive != null && end < hits.size() && !timedOut) {
+                cursorId = cursors.put(hits, request.fingerprint(), keepAlive);
+            }
+            String searchAfter = cursorId != null && end < hits.size() ? AknnSearchCursors.token(cursorId, end) : null;
+            List<AknnSearchAction.Hit> page = new ArrayList<>(hits.subList(min(from, end), end));
+
+            aknnService.stats().recordEndpoint(AknnStats.ENDPOINT_SEARCH, stopWatch);
+            slowLog.onSearch(request, stopWatch, candidates, timedOut);
+            Map<String, Long> profile = null;
+            if (request.profile()) {
+                profile = new LinkedHashMap<>();
+                for (StopWatch.TaskInfo taskInfo : stopWatch.taskInfo()) {
+                    // Relaxed queries run their phases twice.
+                    profile.merge(taskInfo.getTaskName(), taskInfo.getTime().nanos(), Long::sum);
+                }
+            }
+            return new AknnSearchAction.Response(stopWatch.totalTime().getMillis(), timedOut, page, profile, searchAfter);
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.ThreadInterruptedException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastAction;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.fieldvisitor.FieldsVisitor;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.Rewriteable;
+import org.elasticsearch.index.query.WrapperQueryBuilder;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.search.lookup.SourceLookup;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.elasticsearch.plugin.aknn.AknnService.HASHES_KEY;
+import static org.elasticsearch.plugin.aknn.AknnService.PQ_CODE_KEY;
+import static org.elasticsearch.plugin.aknn.AknnService.VECTOR_KEY;
+
+public class TransportAknnShardSearchAction extends TransportBroadcastAction<AknnShardSearchAction.Request,
+        AknnShardSearchAction.Response, AknnShardSearchAction.ShardRequest, AknnShardSearchAction.ShardResponse> {
+
+    private static final Bits NO_DOCS = new Bits.MatchNoBits(0);
+    private static final Comparator<LeafHit> LEAST_SIMILAR_FIRST = (a, b) -> Float.compare(a.score, b.score);
+    // Number of documents between two checks of the deadline when scanning the sources of a segment.
+    private static final int CHECK_INTERVAL = 1024;
+
+    private final IndicesService indicesService;
+    private final AknnGraphStore graphStore;
+    private final AknnVectorCache vectorCache;
+
+    @Inject
+    public TransportAknnShardSearchAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                          TransportService transportService, ActionFilters actionFilters,
+                                          IndexNameExpressionResolver indexNameExpressionResolver, IndicesService indicesService,
+                                          AknnGraphStore graphStore, AknnVectorCache vectorCache) {
+        // Shards are searched on the search thread pool: the aknn search waiting for them holds a thread of its own pool.
+        super(settings, AknnShardSearchAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, AknnShardSearchAction.Request::new, AknnShardSearchAction.ShardRequest::new,
+                ThreadPool.Names.SEARCH);
+        this.indicesService = indicesService;
+        this.graphStore = graphStore;
+        this.vectorCache = vectorCache;
+    }
+
+    @Override
+    protected AknnShardSearchAction.Response newResponse(AknnShardSearchAction.Request request,
+                                                         AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<DefaultShardOperationFailedException> shardFailures = new ArrayList<>();
+        List<AknnSearchAction.Hit> hits = new ArrayList<>();
+        boolean timedOut = false;
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse == null) {
+                // The shard has no active copy.
+                failedShards++;
+            } else if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                failedShards++;
+                shardFailures.add(new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+            } else {
+                successfulShards++;
+                hits.addAll(((AknnShardSearchAction.ShardResponse) shardResponse).getHits());
+                timedOut |= ((AknnShardSearchAction.ShardResponse) shardResponse).isTimedOut();
+            }
+        }
+        return new AknnShardSearchAction.Response(shardsResponses.length(), successfulShards, failedShards, shardFailures, hits,
+                timedOut);
+    }
+
+    @Override
+    protected AknnShardSearchAction.ShardRequest newShardRequest(int numShards, ShardRouting shard,
+                                                                 AknnShardSearchAction.Request request) {
+        return new AknnShardSearchAction.ShardRequest(shard.shardId(), request);
+    }
+
+    @Override
+    protected AknnShardSearchAction.ShardResponse newShardResponse() {
+        return new AknnShardSearchAction.ShardResponse();
+    }
+
+    @Override
+    protected AknnShardSearchAction.ShardResponse shardOperation(AknnShardSearchAction.ShardRequest shardRequest, Task task)
+            throws IOException {
+        AknnShardSearchAction.Request request = shardRequest.request();
+        ShardContext context = new ShardContext((CancellableTask) task, request.timeout());
+        IndexService indexService = indicesService.indexServiceSafe(shardRequest.shardId().getIndex());
+        IndexShard indexShard = indexService.getShard(shardRequest.shardId().id());
+        try (Engine.Searcher searcher = indexShard.acquireSearcher("aknn")) {
+            Weight filter = null;
+            if (request.filter() != null) {
+                QueryShardContext queryShardContext = indexService.newQueryShardContext(shardRequest.shardId().id(),
+                        searcher.reader(), System::currentTimeMillis, null);
+                QueryBuilder filterBuilder = Rewriteable.rewrite(new WrapperQueryBuilder(request.filter()), queryShardContext, true);
+                IndexSearcher indexSearcher = searcher.searcher();
+                filter = indexSearcher.createWeight(indexSearcher.rewrite(queryShardContext.toFilter(filterBuilder).query()), false, 1f);
+            }
+
+            // The least similar documents to the query vector are the most similar ones to its opposite, whose similarity
+            // is the opposite of theirs.
+            double[] queryVector = request.orderDesc() ? request.queryVector() : negate(request.queryVector());
+            float sign = request.orderDesc() ? 1f : -1f;
+            List<LeafReaderContext> leaves = searcher.reader().leaves();
+            PriorityQueue<LeafHit> top = request.exact()
+                    ? scan(indexShard, leaves, filter, queryVector, request, context)
+                    : searchGraphs(indexShard, leaves, filter, queryVector, request, context);
+
+            List<AknnSearchAction.Hit> hits = new ArrayList<>(top.size());
+            for (LeafHit leafHit : top) {
+                hits.add(leafHit.toHit(indexShard, sign, request.debug()));
+            }
+            return new AknnShardSearchAction.ShardResponse(shardRequest.shardId(), hits, context.timedOut);
+        }
+    }
+
+    /**
+     * The k best hits over all segments, the least similar one on top. Segments whose graph is not loaded yet are
+     * scanned instead.
+     */
+    private PriorityQueue<LeafHit> searchGraphs(IndexShard indexShard, List<LeafReaderContext> leaves, Weight filter,
+                                                double[] queryVector, AknnShardSearchAction.Request request,
+                                                ShardContext context) throws IOException {
+        PriorityQueue<LeafHit> top = new PriorityQueue<>(LEAST_SIMILAR_FIRST);
+        for (LeafReaderContext leaf : leaves) {
+            if (context.isTimedOut()) {
+                break;
+            }
+            Bits acceptDocs = acceptDocs(leaf, filter);
+            if (acceptDocs == NO_DOCS) {
+                continue;
+            }
+            HnswGraph graph = graphStore.graph(indexShard, leaf.reader(), request.m(), request.efConstruction());
+            if (graph != null) {
+                graph.search(queryVector, request.k(), request.ef(), acceptDocs,
+                        (doc, score) -> offer(top, request.k(), leaf, doc, score));
+            } else {
+                scanSources(leaf, acceptDocs, queryVector, context, (doc, score) -> offer(top, request.k(), leaf, doc, score));
+            }
+        }
+        return top;
+    }
+
+    /**
+     * The exact k best hits over all segments, the least similar one on top. Segments are scanned in parallel on the
+     * search thread pool, the calling thread included: each thread keeps the k best hits of the segments it claimed,
+     * and publishes them once no segment is left. Segments whose vectors are not loaded yet are scanned from their
+     * sources.
+     */
+    private PriorityQueue<LeafHit> scan(IndexShard indexShard, List<LeafReaderContext> leaves, Weight filter, double[] queryVector,
+                                        AknnShardSearchAction.Request request, ShardContext context) throws IOException {
+        int threads = Math.min(leaves.size(), threadPool.info(ThreadPool.Names.SEARCH).getMax());
+        AtomicInteger nextLeaf = new AtomicInteger();
+        CountDownLatch scanned = new CountDownLatch(leaves.size());
+        Queue<PriorityQueue<LeafHit>> threadTops = new ConcurrentLinkedQueue<>();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Runnable scanLeaves = () -> {
+            PriorityQueue<LeafHit> threadTop = new PriorityQueue<>(LEAST_SIMILAR_FIRST);
+            int claimed = 0;
+            int i;
+            while ((i = nextLeaf.getAndIncrement()) < leaves.size()) {
+                claimed++;
+                if (failure.get() != null) {
+                    continue;
+                }
+                LeafReaderContext leaf = leaves.get(i);
+                try {
+                    if (context.isTimedOut()) {
+                        continue;
+                    }
+                    Bits acceptDocs = acceptDocs(leaf, filter);
+                    if (acceptDocs == NO_DOCS) {
+                        continue;
+                    }
+                    HnswGraph.Collector collector = (doc, score) -> offer(threadTop, request.k(), leaf, doc, score);
+                    SegmentVectors segmentVectors = graphStore.vectors(indexShard, leaf.reader());
+                    if (segmentVectors != null) {
+                        segmentVectors.scan(queryVector, acceptDocs, collector);
+                    } else {
+                        scanSources(leaf, acceptDocs, queryVector, context, collector);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                }
+            }
+            threadTops.add(threadTop);
+            for (int c = 0; c < claimed; c++) {
+                scanned.countDown();
+            }
+        };
+        for (int t = 1; t < threads; t++) {
+            try {
+                threadPool.executor(ThreadPool.Names.SEARCH).execute(scanLeaves);
+            } catch (RejectedExecutionException e) {
+                // The calling thread scans the segments.
+                break;
+            }
+        }
+        scanLeaves.run();
+        try {
+            scanned.await();
+        } catch (InterruptedException e) {
+            throw new ThreadInterruptedException(e);
+        }
+        if (failure.get() instanceof IOException) {
+            throw (IOException) failure.get();
+        } else if (failure.get() != null) {
+            throw (RuntimeException) failure.get();
+        }
+
+        PriorityQueue<LeafHit> top = new PriorityQueue<>(LEAST_SIMILAR_FIRST);
+        for (PriorityQueue<LeafHit> threadTop : threadTops) {
+            for (LeafHit leafHit : threadTop) {
+                offer(top, request.k(), leafHit.leaf, leafHit.doc, leafHit.score);
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Compares the query vector to the vectors of the accepted documents of a segment whose graph or vectors are still
+     * being loaded, read from their source through the vector cache. Documents without a valid vector are skipped.
+     */
+    private void scanSources(LeafReaderContext leaf, Bits acceptDocs, double[] queryVector, ShardContext context,
+                             HnswGraph.Collector collector) throws IOException {
+        float[] normalized = HnswGraph.normalize(queryVector);
+        LeafReader reader = leaf.reader();
+        for (int doc = 0; doc < reader.maxDoc(); doc++) {
+            if (doc % CHECK_INTERVAL == 0 && doc > 0 && context.isTimedOut()) {
+                return;
+            }
+            if (acceptDocs != null && acceptDocs.get(doc) == false) {
+                continue;
+            }
+            float[] vector;
+            try {
+                vector = vectorCache.vector(reader, doc);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (vector.length == normalized.length) {
+                collector.collect(doc, HnswGraph.dotProduct(normalized, vector));
+            }
+        }
+    }
+
+    private static double[] negate(double[] vector) {
+        double[] negated = new double[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            negated[i] = -vector[i];
+        }
+        return negated;
+    }
+
+    private static void offer(PriorityQueue<LeafHit> top, int k, LeafReaderContext leaf, int doc, float score) {
+        if (top.size() < k) {
+            top.add(new LeafHit(leaf, doc, score));
+        } else if (score > top.peek().score) {
+            top.poll();
+            top.add(new LeafHit(leaf, doc, score));
+        }
+    }
+
+    /**
+     * The live documents of the segment that match the filter, null if all documents are accepted.
+     */
+    private static Bits acceptDocs(LeafReaderContext leaf, Weight filter) throws IOException {
+        Bits liveDocs = leaf.reader().getLiveDocs();
+        if (filter == null) {
+            return liveDocs;
+        }
+        Scorer scorer = filter.scorer(leaf);
+        if (scorer == null) {
+            return NO_DOCS;
+        }
+        FixedBitSet matches = new FixedBitSet(leaf.reader().maxDoc());
+        DocIdSetIterator iterator = scorer.iterator();
+        for (int doc = iterator.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = iterator.nextDoc()) {
+            if (liveDocs == null || liveDocs.get(doc)) {
+                matches.set(doc);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Per shard request state: the task it runs as and the deadline derived from the request timeout, checked between
+     * segments and while scanning sources. A cancelled request stops at the next check.
+     */
+    private static final class ShardContext {
+
+        private final CancellableTask task;
+        private final long deadlineNanos;
+        private volatile boolean timedOut = false;
+
+        ShardContext(CancellableTask task, @Nullable TimeValue timeout) {
+            this.task = task;
+            this.deadlineNanos = timeout == null ? Long.MAX_VALUE : System.nanoTime() + timeout.nanos();
+        }
+
+        boolean isTimedOut() {
+            if (task.isCancelled()) {
+                throw new TaskCancelledException("cancelled");
+            }
+            if (timedOut == false && System.nanoTime() > deadlineNanos) {
+                timedOut = true;
+            }
+            return timedOut;
+        }
+    }
+
+    private static final class LeafHit {
+
+        private final LeafReaderContext leaf;
+        private final int doc;
+        private final float score;
+
+        LeafHit(LeafReaderContext leaf, int doc, float score) {
+            this.leaf = leaf;
+            this.doc = doc;
+            this.score = score;
+        }
+
+        AknnSearchAction.Hit toHit(IndexShard indexShard, float sign, boolean debug) throws IOException {
+            LeafReader reader = leaf.reader();
+            FieldsVisitor visitor = new FieldsVisitor(true);
+            reader.document(doc, visitor);
+            visitor.postProcess(indexShard.mapperService());
+            Map<String, Object> source = SourceLookup.sourceAsMap(visitor.source());
+            if (!debug) {
+                source.remove(VECTOR_KEY);
+                source.remove(HASHES_KEY);
+                source.remove(PQ_CODE_KEY);
+            }
+            return new AknnSearchAction.Hit(indexShard.shardId().getIndexName(), visitor.uid().type(), visitor.uid().id(),
+                    sign * score, source);
+        }
+    }
+
+    @Override
+    protected GroupShardsIterator<ShardIterator> shards(ClusterState clusterState, AknnShardSearchAction.Request request,
+                                                        String[] concreteIndices) {
+        return clusterService.operationRouting().searchShards(clusterState, concreteIndices, null, null);
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, AknnShardSearchAction.Request request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, AknnShardSearchAction.Request request,
+                                                      String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+}
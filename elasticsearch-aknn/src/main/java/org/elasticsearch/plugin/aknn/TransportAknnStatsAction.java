@@ -0,0 +1,66 @@
+/*
+ * Copyright [2018] [Alex Klibisz]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.elasticsearch.plugin.aknn;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+
+public class TransportAknnStatsAction extends TransportNodesAction<AknnStatsAction.Request, AknnStatsAction.Response,
+        AknnStatsAction.NodeRequest, AknnStatsAction.NodeResponse> {
+
+    private final AknnService aknnService;
+
+    @Inject
+    public TransportAknnStatsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                    TransportService transportService, ActionFilters actionFilters,
+                                    IndexNameExpressionResolver indexNameExpressionResolver, AknnService aknnService) {
+        super(settings, AknnStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, AknnStatsAction.Request::new, AknnStatsAction.NodeRequest::new,
+                ThreadPool.Names.MANAGEMENT, AknnStatsAction.NodeResponse.class);
+        this.aknnService = aknnService;
+    }
+
+    @Override
+    protected AknnStatsAction.Response newResponse(AknnStatsAction.Request request, List<AknnStatsAction.NodeResponse> nodes,
+                                                   List<FailedNodeException> failures) {
+        return new AknnStatsAction.Response(clusterService.getClusterName(), nodes, failures);
+    }
+
+    @Override
+    protected AknnStatsAction.NodeRequest newNodeRequest(String nodeId, AknnStatsAction.Request request) {
+        return new AknnStatsAction.NodeRequest(nodeId);
+    }
+
+    @Override
+    protected AknnStatsAction.NodeResponse newNodeResponse() {
+        return new AknnStatsAction.NodeResponse();
+    }
+
+    @Override
+    protected AknnStatsAction.NodeResponse nodeOperation(AknnStatsAction.NodeRequest request) {
+        return new AknnStatsAction.NodeResponse(clusterService.localNode(), aknnService.statsSnapshot());
+    }
+}
@@ -18,27 +18,53 @@
 package org.elasticsearch.plugin.aknn;
 
 import org.apache.commons.math3.util.Pair;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import com.google.gson.Gson;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.util.EntityUtils;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.support.WriteRequest;
+import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.Response;
 import org.elasticsearch.client.ResponseException;
 import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.plugin.aknn.models.CreateIndexRequest;
 import org.elasticsearch.plugin.aknn.models.SimilaritySearchRequest;
 import org.elasticsearch.plugin.aknn.models.SimilaritySearchResponse;
 import org.elasticsearch.plugin.aknn.models.GetVectorResponse;
 import org.elasticsearch.plugin.aknn.utils.AknnAPI;
 import org.elasticsearch.plugin.aknn.utils.RequestFactory;
+import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.test.ESIntegTestCase;
+import org.elasticsearch.test.MockLogAppender;
 import org.junit.Before;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 public class AknnSimpleIT extends ESIntegTestCase {
 
@@ -58,6 +84,11 @@ public class AknnSimpleIT extends ESIntegTestCase {
         aknnAPI = new AknnAPI(restClient);
     }
 
+    @Override
+    protected Collection<Class<? extends Plugin>> transportClientPlugins() {
+        return Collections.singletonList(AknnPlugin.class);
+    }
+
     /**
      * Test that the plugin was installed correctly by hitting the _cat/plugins endpoint.
      * @throws IOException if performing a request fails
@@ -67,6 +98,17 @@ public class AknnSimpleIT extends ESIntegTestCase {
         String body = EntityUtils.toString(response.getEntity());
         assertTrue(body.contains("elasticsearch-aknn"));
     }
+    /**
+     * Test that the aknn thread pools are registered with the node's thread pool.
+     * @throws IOException if performing a request fails
+     */
+    public void testThreadPools() throws IOException {
+        Response response = restClient.performRequest(new Request("GET", "_cat/thread_pool"));
+        String body = EntityUtils.toString(response.getEntity());
+        assertTrue(body.contains("aknn_search"));
+        assertTrue(body.contains("aknn_index"));
+    }
+
     /**
      * Test that a model create returns 201 for create
      */
@@ -164,6 +206,29 @@ public class AknnSimpleIT extends ESIntegTestCase {
         }
     }
 
+    /**
+     * Test that a search which runs out of time is flagged as timed out instead of failing
+     * @throws IOException if performing a request fails
+     */
+    public void testSearchTimeout() throws IOException {
+        aknnAPI.createModel(RequestFactory.createModelRequest(200, 1));
+        aknnAPI.createIndex(RequestFactory.createIndexRequest(simpleDocs));
+        refresh();
+
+        SimilaritySearchRequest request = RequestFactory.similaritySearchRequest(new SimilaritySearchRequest.Query(
+                new double[]{ 1.0, 0.0, 0.0 },
+                1000,
+                10
+        ));
+        SimilaritySearchResponse timedOut = aknnAPI.similaritySearch(request, "timeout=0ms");
+        assertTrue(timedOut.timed_out);
+        assertNotNull(timedOut.hits);
+
+        SimilaritySearchResponse completed = aknnAPI.similaritySearch(request, "timeout=1m");
+        assertFalse(completed.timed_out);
+        assertEquals(simpleDocs.size(), completed.hits.hits.size());
+    }
+
     /**
      * Test that indexing a document with the same ID results in update
      * @throws IOException if performing a request fails
@@ -267,4 +332,1218 @@ public class AknnSimpleIT extends ESIntegTestCase {
         System.out.println("Num intersect: " + numContains);*/
         assertTrue(numContains >= 9);
     }
+
+    /**
+     * Test that the search is reachable as a transport action, without going through REST
+     * @throws IOException if performing a request fails
+     */
+    public void testTransportSearch() throws IOException {
+        aknnAPI.createModel(RequestFactory.createModelRequest(200, 1));
+        aknnAPI.createIndex(RequestFactory.createIndexRequest(simpleDocs));
+        refresh();
+
+        AknnSearchAction.Response response = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request(RequestFactory.index, RequestFactory.indexType)
+                        .aknnURI(RequestFactory.modelIndex + "/" + RequestFactory.modelType + "/" + RequestFactory.modelId)
+                        .queryVector(Arrays.asList(1.0, 0.0, 0.0))
+                        .k1(1000)
+                        .k2(10)).actionGet();
+        assertEquals(simpleDocs.size(), response.getHits().size());
+        for(int i = 0; i < response.getHits().size(); i++) {
+            assertEquals(String.valueOf(i + 1), response.getHits().get(i).getId());
+        }
+    }
+
+    /**
+     * Test that a profiled search reports its phases and that the search shows up in the cluster stats
+     * @throws IOException if performing a request fails
+     */
+    public void testProfileAndStats() throws IOException {
+        aknnAPI.createModel(RequestFactory.createModelRequest(200, 1));
+        aknnAPI.createIndex(RequestFactory.createIndexRequest(simpleDocs));
+        refresh();
+
+        AknnSearchAction.Response response = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request(RequestFactory.index, RequestFactory.indexType)
+                        .aknnURI(RequestFactory.modelIndex + "/" + RequestFactory.modelType + "/" + RequestFactory.modelId)
+                        .queryVector(Arrays.asList(1.0, 0.0, 0.0))
+                        .k1(1000)
+                        .k2(10)
+                        .profile(true)).actionGet();
+        assertNotNull(response.getProfile());
+        assertTrue(response.getProfile().containsKey("fetch_candidates"));
+        assertTrue(response.getProfile().containsKey("rescore"));
+
+        AknnStatsAction.Response stats = client().execute(AknnStatsAction.INSTANCE, new AknnStatsAction.Request()).actionGet();
+        assertFalse(stats.hasFailures());
+        AknnStats.Snapshot aggregated = stats.getAggregated();
+        assertTrue(aggregated.getEndpoints().get(AknnStats.ENDPOINT_SEARCH).getTotalCount() >= 1);
+        assertTrue(aggregated.getEndpoints().get(AknnStats.ENDPOINT_INDEX).getTotalCount() >= 1);
+        assertTrue(aggregated.getPhases().containsKey("search.fetch_candidates"));
+
+        Response restResponse = restClient.performRequest(new Request("GET", "_aknn/_stats"));
+        String body = EntityUtils.toString(restResponse.getEntity());
+        assertTrue(body.contains("\"p99_micros\""));
+        assertTrue(body.contains("\"model_cache\""));
+    }
+
+    /**
+     * Test that a search slower than the slow log threshold of its index is logged with its parameters and phases
+     * @throws Exception if performing a request fails or the entry is not logged
+     */
+    public void testSlowLog() throws Exception {
+        aknnAPI.createModel(RequestFactory.createModelRequest(200, 1));
+        aknnAPI.createIndex(RequestFactory.createIndexRequest(simpleDocs));
+        refresh();
+        client().admin().indices().prepareUpdateSettings(RequestFactory.index)
+                .setSettings(Settings.builder().put(AknnSearchSlowLog.INDEX_WARN_SETTING.getKey(), "0ms"))
+                .get();
+
+        String loggerName = "org.elasticsearch.plugin.aknn.slowlog.search";
+        Logger slowLogger = Loggers.getLogger(loggerName);
+        MockLogAppender appender = new MockLogAppender();
+        appender.start();
+        appender.addExpectation(new MockLogAppender.SeenEventExpectation("slow search", loggerName,
+                Level.WARN, "*k1[1000], k2[10], minimum_should_match[1]*candidates[4], phases[*fetch_candidates=*"));
+        Loggers.addAppender(slowLogger, appender);
+        try {
+            aknnAPI.similaritySearch(RequestFactory.similaritySearchRequest(new SimilaritySearchRequest.Query(
+                    new double[]{ 1.0, 0.0, 0.0 },
+                    1000,
+                    10
+            )));
+            assertBusy(appender::assertAllExpectationsMatched);
+        } finally {
+            Loggers.removeAppender(slowLogger, appender);
+            appender.stop();
+        }
+    }
+
+    /**
+     * Test that a cached model is reloaded once its document gets a new version, and only then
+     * @throws Exception if performing a request fails
+     */
+    public void testModelVersionCheck() throws Exception {
+        aknnAPI.createModel(RequestFactory.createModelRequest(200, 1));
+        aknnAPI.createIndex(RequestFactory.createIndexRequest(simpleDocs));
+        refresh();
+        client().admin().cluster().prepareUpdateSettings()
+                .setTransientSettings(Settings.builder().put(AknnService.VERSION_CHECK_INTERVAL_SETTING.getKey(), "0ms"))
+                .get();
+        try {
+            AknnSearchAction.Request search = new AknnSearchAction.Request(RequestFactory.index, RequestFactory.indexType)
+                    .aknnURI(RequestFactory.modelIndex + "/" + RequestFactory.modelType + "/" + RequestFactory.modelId)
+                    .queryVector(Arrays.asList(1.0, 0.0, 0.0));
+            client().execute(AknnSearchAction.INSTANCE, search).actionGet();
+            long misses = client().execute(AknnStatsAction.INSTANCE, new AknnStatsAction.Request()).actionGet()
+                    .getAggregated().getCacheMisses();
+
+            client().execute(AknnSearchAction.INSTANCE, search).actionGet();
+            assertEquals(misses, client().execute(AknnStatsAction.INSTANCE, new AknnStatsAction.Request()).actionGet()
+                    .getAggregated().getCacheMisses());
+
+            Map<String, Object> model = client().prepareGet(RequestFactory.modelIndex, RequestFactory.modelType,
+                    RequestFactory.modelId).get().getSourceAsMap();
+            client().prepareIndex(RequestFactory.modelIndex, RequestFactory.modelType, RequestFactory.modelId)
+                    .setSource(model).get();
+            // The version is checked in the background, a use after the check reloads the model.
+            assertBusy(() -> {
+                client().execute(AknnSearchAction.INSTANCE, search).actionGet();
+                assertEquals(misses + 1, client().execute(AknnStatsAction.INSTANCE, new AknnStatsAction.Request()).actionGet()
+                        .getAggregated().getCacheMisses());
+            });
+        } finally {
+            client().admin().cluster().prepareUpdateSettings()
+                    .setTransientSettings(Settings.builder().putNull(AknnService.VERSION_CHECK_INTERVAL_SETTING.getKey()))
+                    .get();
+        }
+    }
+
+    /**
+     * Test that generated bases do not overwrite the bases another node wrote to the model document in the meantime,
+     * and that the documents are hashed with the stored bases instead
+     * @throws Exception if performing a request fails
+     */
+    public void testConcurrentBases() throws Exception {
+        String aknnURI = "lazy_models/_doc/model";
+        // Seeds out of the int range, so they are parsed back as longs.
+        LshModel lazy = new LshModel(4, 2, null, "lazy", 5_000_000_001L);
+        client().prepareIndex("lazy_models", "_doc", "model").setSource(lazy.toMap()).get();
+        client().admin().cluster().prepareUpdateSettings()
+                .setTransientSettings(Settings.builder().put(AknnService.VERSION_CHECK_INTERVAL_SETTING.getKey(), "-1"))
+                .get();
+        try {
+            for (AknnService aknnService : internalCluster().getInstances(AknnService.class)) {
+                assertFalse(aknnService.initLsh(aknnURI).hasBases());
+            }
+            LshModel written = new LshModel(4, 2, null, "lazy", 5_000_000_002L);
+            written.generateBases(3);
+            long version = client().prepareIndex("lazy_models", "_doc", "model").setSource(written.toMap()).get().getVersion();
+
+            double[] vector = new double[] {0.3, -0.5, 0.8};
+            Map<String, Object> source = new HashMap<>();
+            source.put(AknnService.VECTOR_KEY, Arrays.stream(vector).boxed().collect(Collectors.toList()));
+            AknnIndexAction.Request index = new AknnIndexAction.Request("lazy_vectors", "_doc", aknnURI).add("0", source);
+            assertFalse(client().execute(AknnIndexAction.INSTANCE, index).actionGet().hasFailures());
+
+            assertEquals(version, client().prepareGet("lazy_models", "_doc", "model").get().getVersion());
+            Map<String, Object> indexed = client().prepareGet("lazy_vectors", "_doc", "0").get().getSource();
+            assertEquals(written.getVectorHashes(vector), AknnService.parseHashes(indexed.get(AknnService.HASHES_KEY)));
+        } finally {
+            client().admin().cluster().prepareUpdateSettings()
+                    .setTransientSettings(Settings.builder().putNull(AknnService.VERSION_CHECK_INTERVAL_SETTING.getKey()))
+                    .get();
+        }
+    }
+
+    /**
+     * Test that clearing the cache reaches every node
+     * @throws IOException if performing a request fails
+     */
+    public void testClearCache() throws IOException {
+        Response response = restClient.performRequest(new Request("GET", "_aknn_clear_cache"));
+        String body = EntityUtils.toString(response.getEntity());
+        assertTrue(body.contains("\"acknowledged\":true"));
+        assertTrue(body.contains("\"successful\":" + cluster().size()));
+    }
+
+    /**
+     * Test that the models of a prewarmed model index get loaded and that the node only reports ready once they are
+     * @throws Exception if performing a request fails or the models are not loaded
+     */
+    public void testPrewarm() throws Exception {
+        aknnAPI.createModel(RequestFactory.createModelRequest(200, 1));
+        aknnAPI.createIndex(RequestFactory.createIndexRequest(simpleDocs));
+        refresh();
+        String aknnURI = RequestFactory.modelIndex + "/" + RequestFactory.modelType + "/" + RequestFactory.modelId;
+        try {
+            client().admin().cluster().prepareUpdateSettings().setTransientSettings(Settings.builder()
+                    .putList(AknnModelPrewarmer.PREWARM_SETTING.getKey(), "missing_models")).get();
+            AknnReadinessAction.Response notReady = client().execute(AknnReadinessAction.INSTANCE,
+                    new AknnReadinessAction.Request()).actionGet();
+            assertFalse(notReady.isReady());
+            assertEquals(Collections.singletonList("missing_models"), notReady.getPendingIndices());
+            ResponseException e = expectThrows(ResponseException.class,
+                    () -> restClient.performRequest(new Request("GET", "_aknn/_ready")));
+            assertEquals(503, e.getResponse().getStatusLine().getStatusCode());
+
+            client().admin().cluster().prepareUpdateSettings().setTransientSettings(Settings.builder()
+                    .putList(AknnModelPrewarmer.PREWARM_SETTING.getKey(), RequestFactory.modelIndex)).get();
+            assertBusy(() -> {
+                AknnReadinessAction.Response ready = client().execute(AknnReadinessAction.INSTANCE,
+                        new AknnReadinessAction.Request()).actionGet();
+                assertTrue(ready.isReady());
+                assertEquals(AknnModelPrewarmer.LOADED, ready.getModels().get(aknnURI));
+            });
+            Response response = restClient.performRequest(new Request("GET", "_aknn/_ready"));
+            assertEquals(200, response.getStatusLine().getStatusCode());
+        } finally {
+            client().admin().cluster().prepareUpdateSettings().setTransientSettings(Settings.builder()
+                    .putNull(AknnModelPrewarmer.PREWARM_SETTING.getKey())).get();
+        }
+    }
+
+    /**
+     * Test that a model stored in the cluster state can be created, used to index and search, and deleted
+     * @throws IOException if performing a request fails
+     */
+    public void testClusterStateModel() throws IOException {
+        String aknnURI = "cluster_state_models/_doc/model";
+        AknnCreateAction.Response created = client().execute(AknnCreateAction.INSTANCE,
+                new AknnCreateAction.Request("cluster_state_models", "_doc", "model")
+                        .nbTables(8).nbBitsPerTable(4).randomBase(true).storage(AknnCreateAction.STORAGE_CLUSTER_STATE))
+                .actionGet();
+        assertTrue(created.isCreated());
+        assertFalse(client().admin().indices().prepareExists("cluster_state_models").get().isExists());
+
+        AknnIndexAction.Request index = new AknnIndexAction.Request("cluster_state_vectors", "_doc", aknnURI);
+        for (CreateIndexRequest.Doc doc : simpleDocs) {
+            Map<String, Object> source = new HashMap<>();
+            source.put(AknnService.VECTOR_KEY, Arrays.stream(doc._source._aknn_vector).boxed().collect(Collectors.toList()));
+            index.add(doc._id, source);
+        }
+        client().execute(AknnIndexAction.INSTANCE, index).actionGet();
+        refresh();
+
+        AknnModelsMetaData.Model model = AknnModelsMetaData.get(client().admin().cluster().prepareState().get().getState())
+                .get(aknnURI);
+        assertNotNull(model);
+        assertEquals(Integer.valueOf(3), model.getNbDimensions());
+
+        AknnSearchAction.Response search = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("cluster_state_vectors", "_doc").aknnURI(aknnURI).k1(4).k2(4)
+                        .queryVector(Arrays.asList(1.0, 0.0, 0.3))).actionGet();
+        assertEquals("1", search.getHits().get(0).getId());
+
+        Response response = restClient.performRequest(new Request("DELETE", "_aknn/_models/" + aknnURI));
+        assertTrue(EntityUtils.toString(response.getEntity()).contains("\"acknowledged\":true"));
+        assertNull(AknnModelsMetaData.get(client().admin().cluster().prepareState().get().getState()).get(aknnURI));
+    }
+
+    /**
+     * Test that a stored model is memory-mapped with the same hashes, only for its version, and off the heap
+     * @throws IOException if reading or writing the model files fails
+     */
+    public void testModelStore() throws IOException {
+        aknnAPI.createModel(RequestFactory.createModelRequest(200, 1));
+        aknnAPI.createIndex(RequestFactory.createIndexRequest(simpleDocs));
+        Path nodeModels = internalCluster().getInstance(NodeEnvironment.class).nodeDataPaths()[0].resolve("aknn").resolve("models");
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(nodeModels, "*.model")) {
+            assertTrue(files.iterator().hasNext());
+        }
+
+        LshModel model = new LshModel(16, 8, null, "test", randomLong());
+        model.generateBases(25);
+        AknnModelStore store = new AknnModelStore(Settings.EMPTY, createTempDir());
+        LshModel mapped = store.store("models/_doc/test", "uuid", 3L, model);
+        assertEquals(0, mapped.estimateBytesUsage());
+        for (int i = 0; i < 10; i++) {
+            List<Double> vector = IntStream.range(0, 25).mapToObj(d -> randomDoubleBetween(-1.0, 1.0, true))
+                    .collect(Collectors.toList());
+            assertEquals(model.getVectorHashes(vector), mapped.getVectorHashes(vector));
+        }
+        assertNotNull(store.open("models/_doc/test", "uuid", 3L));
+        assertNull(store.open("models/_doc/test", "uuid", 4L));
+        assertNull(store.open("models/_doc/test", "other_uuid", 3L));
+        assertNull(store.open("models/_doc/other", "uuid", 3L));
+        store.delete("models/_doc/test");
+        assertNull(store.open("models/_doc/test", "uuid", 3L));
+    }
+
+    /**
+     * Test that documents streamed as NDJSON are hashed and indexed in bulks of the requested size
+     * @throws IOException if performing a request fails
+     */
+    public void testStreamedIndex() throws IOException {
+        aknnAPI.createModel(RequestFactory.createModelRequest(200, 1));
+        Response response = aknnAPI.streamIndex(RequestFactory.createIndexRequest(simpleDocs), 3);
+        assertTrue(EntityUtils.toString(response.getEntity()).contains("\"size\":4"));
+        refresh();
+
+        assertEquals(4, client().prepareSearch(RequestFactory.index).setSize(0).get().getHits().getTotalHits());
+        Map<String, Object> source = client().prepareGet(RequestFactory.index, RequestFactory.indexType, "3").get().getSourceAsMap();
+        assertEquals(200, ((Map<?, ?>) source.get(AknnService.HASHES_KEY)).size());
+    }
+
+    /**
+     * Test that vectors can be indexed as raw float32 bytes over CBOR and searched with a base64 encoded vector
+     * @throws IOException if performing a request fails
+     */
+    public void testBinaryVectors() throws IOException {
+        aknnAPI.createModel(RequestFactory.createModelRequest(200, 1));
+        XContentBuilder body = XContentFactory.cborBuilder().startObject()
+                .field("_index", RequestFactory.index)
+                .field("_type", RequestFactory.indexType)
+                .field("_aknn_uri", RequestFactory.modelIndex + "/" + RequestFactory.modelType + "/" + RequestFactory.modelId)
+                .startArray("_aknn_docs");
+        for (CreateIndexRequest.Doc doc : simpleDocs) {
+            float[] vector = new float[doc._source._aknn_vector.length];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = (float) doc._source._aknn_vector[i];
+            }
+            body.startObject().field("_id", doc._id).startObject("_source")
+                    .field("_aknn_vector", Base64.getDecoder().decode(AknnService.encodeVector(vector)))
+                    .endObject().endObject();
+        }
+        body.endArray().endObject();
+        Request indexRequest = new Request("POST", "_aknn_index");
+        indexRequest.setEntity(new ByteArrayEntity(BytesReference.toBytes(BytesReference.bytes(body)),
+                ContentType.create(XContentType.CBOR.mediaTypeWithoutParameters())));
+        restClient.performRequest(indexRequest);
+        refresh();
+
+        String query = "{\"_index\": \"" + RequestFactory.index + "\", \"_type\": \"" + RequestFactory.indexType
+                + "\", \"_aknn_uri\": \"" + RequestFactory.modelIndex + "/" + RequestFactory.modelType + "/" + RequestFactory.modelId
+                + "\", \"query_aknn\": {\"k1\": 4, \"k2\": 4, \"_aknn_vector\": \""
+                + AknnService.encodeVector(new float[]{ 0.0f, 1.0f, 0.6f }) + "\"}}";
+        Response response = aknnAPI.performJSONRequest(query, "_aknn_search_vec");
+        SimilaritySearchResponse searchResponse = new Gson().fromJson(EntityUtils.toString(response.getEntity()),
+                SimilaritySearchResponse.class);
+        assertEquals("4", searchResponse.hits.hits.get(0)._id);
+    }
+
+    /**
+     * Test that documents indexed with _bulk through an aknn_hash pipeline get their hashes and can be searched
+     * @throws IOException if performing a request fails
+     */
+    public void testHashProcessor() throws IOException {
+        aknnAPI.createModel(RequestFactory.createModelRequest(200, 1));
+        String aknnURI = RequestFactory.modelIndex + "/" + RequestFactory.modelType + "/" + RequestFactory.modelId;
+        client().admin().cluster().preparePutPipeline("aknn", new BytesArray(
+                "{\"processors\": [{\"aknn_hash\": {\"model\": \"" + aknnURI + "\"}}]}"), XContentType.JSON).get();
+
+        BulkRequestBuilder bulk = client().prepareBulk().setRefreshPolicy(WriteRequest.RefreshPolicy.IMMEDIATE);
+        for (CreateIndexRequest.Doc doc : simpleDocs) {
+            bulk.add(client().prepareIndex(RequestFactory.index, RequestFactory.indexType, doc._id).setPipeline("aknn")
+                    .setSource(Collections.singletonMap(AknnService.VECTOR_KEY, doc._source._aknn_vector)));
+        }
+        assertFalse(bulk.get().hasFailures());
+
+        Map<String, Object> source = client().prepareGet(RequestFactory.index, RequestFactory.indexType, "2").get().getSourceAsMap();
+        assertEquals(200, ((Map<?, ?>) source.get(AknnService.HASHES_KEY)).size());
+        AknnSearchAction.Response search = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request(RequestFactory.index, RequestFactory.indexType).aknnURI(aknnURI).k1(4).k2(4)
+                        .queryVector(Arrays.asList(1.0, 1.0, 0.3))).actionGet();
+        assertEquals("2", search.getHits().get(0).getId());
+    }
+
+    /**
+     * Test that op_type index replaces documents, update merges into them and create refuses existing ones
+     * @throws IOException if performing a request fails
+     */
+    public void testOpType() throws IOException {
+        aknnAPI.createModel(RequestFactory.createModelRequest(16, 8));
+        String aknnURI = RequestFactory.modelIndex + "/" + RequestFactory.modelType + "/" + RequestFactory.modelId;
+        Map<String, Object> source = new HashMap<>();
+        source.put(AknnService.VECTOR_KEY, Arrays.asList(1.0, 0.0, 0.0));
+        source.put("extraData", "extras!");
+        client().execute(AknnIndexAction.INSTANCE, new AknnIndexAction.Request(RequestFactory.index, RequestFactory.indexType, aknnURI)
+                .opType("create").add("1", source)).actionGet();
+
+        AknnIndexAction.Response created = client().execute(AknnIndexAction.INSTANCE,
+                new AknnIndexAction.Request(RequestFactory.index, RequestFactory.indexType, aknnURI).opType("create")
+                        .add("1", new HashMap<>(Collections.singletonMap(AknnService.VECTOR_KEY, Arrays.asList(0.0, 1.0, 0.0)))))
+                .actionGet();
+        assertTrue(created.hasFailures());
+
+        client().execute(AknnIndexAction.INSTANCE, new AknnIndexAction.Request(RequestFactory.index, RequestFactory.indexType, aknnURI)
+                .add("1", new HashMap<>(Collections.singletonMap(AknnService.VECTOR_KEY, Arrays.asList(0.0, 1.0, 0.0)))))
+                .actionGet();
+        Map<String, Object> updated = client().prepareGet(RequestFactory.index, RequestFactory.indexType, "1").get().getSourceAsMap();
+        assertEquals("extras!", updated.get("extraData"));
+        assertEquals(Arrays.asList(0.0, 1.0, 0.0), updated.get(AknnService.VECTOR_KEY));
+
+        client().execute(AknnIndexAction.INSTANCE, new AknnIndexAction.Request(RequestFactory.index, RequestFactory.indexType, aknnURI)
+                .opType("index").add("1", new HashMap<>(Collections.singletonMap(AknnService.VECTOR_KEY, Arrays.asList(0.0, 0.0, 1.0)))))
+                .actionGet();
+        Map<String, Object> replaced = client().prepareGet(RequestFactory.index, RequestFactory.indexType, "1").get().getSourceAsMap();
+        assertNull(replaced.get("extraData"));
+        assertNotNull(replaced.get(AknnService.HASHES_KEY));
+    }
+
+    /**
+     * Test that documents are hashed in parallel and sent in several concurrent bulks, and that the failure of a
+     * single document is reported per document without failing the others
+     * @throws IOException if performing a request fails
+     */
+    public void testParallelIndex() throws IOException {
+        aknnAPI.createModel(RequestFactory.createModelRequest(16, 8));
+        String aknnURI = RequestFactory.modelIndex + "/" + RequestFactory.modelType + "/" + RequestFactory.modelId;
+        AknnIndexAction.Request request = new AknnIndexAction.Request(RequestFactory.index, RequestFactory.indexType, aknnURI)
+                .opType("index").bulkSize(50).concurrentBulks(3);
+        for (int i = 0; i < 1000; i++) {
+            Map<String, Object> source = new HashMap<>();
+            source.put(AknnService.VECTOR_KEY, Arrays.asList(randomDouble(), randomDouble(), randomDouble()));
+            request.add(Integer.toString(i), source);
+        }
+        request.add("invalid", new HashMap<>(Collections.singletonMap(AknnService.VECTOR_KEY, "x")));
+        AknnIndexAction.Response response = client().execute(AknnIndexAction.INSTANCE, request).actionGet();
+        refresh();
+
+        assertEquals(1001, response.getSize());
+        assertEquals(Collections.singletonMap("created", 1000L), response.getResults());
+        assertEquals(1, response.getFailures().size());
+        assertEquals("invalid", response.getFailures().get(0).getId());
+        assertEquals(1000, client().prepareSearch(RequestFactory.index).setSize(0).get().getHits().getTotalHits());
+        Map<String, Object> source = client().prepareGet(RequestFactory.index, RequestFactory.indexType, "999").get().getSourceAsMap();
+        assertEquals(16, ((Map<?, ?>) source.get(AknnService.HASHES_KEY)).size());
+    }
+
+    /**
+     * Test that a rehash rewrites the hashes of the indexed documents with another model, hashes the documents stored
+     * with a vector but no hashes and leaves the documents without a vector, both waiting for its completion and as a
+     * background task
+     * @throws IOException if performing a request fails
+     */
+    public void testRehash() throws IOException {
+        aknnAPI.createModel(RequestFactory.createModelRequest(16, 8));
+        String aknnURI = RequestFactory.modelIndex + "/" + RequestFactory.modelType + "/" + RequestFactory.modelId;
+        AknnIndexAction.Request index = new AknnIndexAction.Request(RequestFactory.index, RequestFactory.indexType, aknnURI)
+                .opType("index");
+        for (int i = 0; i < 200; i++) {
+            Map<String, Object> source = new HashMap<>();
+            source.put(AknnService.VECTOR_KEY, Arrays.asList(randomDouble(), randomDouble(), randomDouble()));
+            index.add(Integer.toString(i), source);
+        }
+        assertFalse(client().execute(AknnIndexAction.INSTANCE, index).actionGet().hasFailures());
+        client().prepareIndex(RequestFactory.index, RequestFactory.indexType, "unhashed")
+                .setSource(Collections.singletonMap(AknnService.VECTOR_KEY, Arrays.asList(0.1, 0.2, 0.3))).get();
+        client().prepareIndex(RequestFactory.index, RequestFactory.indexType, "novector")
+                .setSource(Collections.singletonMap("name", "no vector")).get();
+        refresh();
+
+        String rehashURI = "rehash_models/_doc/model";
+        client().execute(AknnCreateAction.INSTANCE, new AknnCreateAction.Request("rehash_models", "_doc", "model")
+                .nbTables(8).nbBitsPerTable(4).randomBase(true).storage(AknnCreateAction.STORAGE_CLUSTER_STATE)).actionGet();
+        AknnRehashAction.Response response = client().execute(AknnRehashAction.INSTANCE,
+                new AknnRehashAction.Request(RequestFactory.index, RequestFactory.indexType, rehashURI)
+                        .slices(2).scrollSize(30).requestsPerSecond(2000)).actionGet();
+        assertEquals(202, response.getStatus().getTotal());
+        assertEquals(201, response.getStatus().getUpdated());
+        assertEquals(1, response.getStatus().getNoops());
+        assertTrue(response.getFailures().isEmpty());
+        refresh();
+        Map<String, Object> source = client().prepareGet(RequestFactory.index, RequestFactory.indexType, "42").get().getSourceAsMap();
+        assertEquals(8, ((Map<?, ?>) source.get(AknnService.HASHES_KEY)).size());
+        source = client().prepareGet(RequestFactory.index, RequestFactory.indexType, "unhashed").get().getSourceAsMap();
+        assertEquals(8, ((Map<?, ?>) source.get(AknnService.HASHES_KEY)).size());
+        source = client().prepareGet(RequestFactory.index, RequestFactory.indexType, "novector").get().getSourceAsMap();
+        assertFalse(source.containsKey(AknnService.HASHES_KEY));
+
+        Request rehash = new Request("POST", RequestFactory.index + "/" + RequestFactory.indexType + "/_aknn_rehash");
+        rehash.addParameter("_aknn_uri", aknnURI);
+        rehash.addParameter("wait_for_completion", "false");
+        Map<?, ?> started = new Gson().fromJson(EntityUtils.toString(restClient.performRequest(rehash).getEntity()), Map.class);
+        Request task = new Request("GET", "_tasks/" + started.get("task"));
+        task.addParameter("wait_for_completion", "true");
+        String completed = EntityUtils.toString(restClient.performRequest(task).getEntity());
+        assertTrue(completed.contains("\"completed\":true"));
+        assertTrue(completed.contains("\"updated\":201"));
+        assertTrue(completed.contains("\"noops\":1"));
+        refresh();
+        source = client().prepareGet(RequestFactory.index, RequestFactory.indexType, "42").get().getSourceAsMap();
+        assertEquals(16, ((Map<?, ?>) source.get(AknnService.HASHES_KEY)).size());
+        restClient.performRequest(new Request("DELETE", "_aknn/_models/" + rehashURI));
+    }
+
+    /**
+     * Test that _aknn_index creates its target index with a mapping that keeps the vector in the source only and
+     * maps the hashes as keywords, for numeric as well as binary vectors
+     * @throws IOException if performing a request fails
+     */
+    public void testIndexMapping() throws IOException {
+        aknnAPI.createModel(RequestFactory.createModelRequest(16, 8));
+        String aknnURI = RequestFactory.modelIndex + "/" + RequestFactory.modelType + "/" + RequestFactory.modelId;
+        client().execute(AknnIndexAction.INSTANCE, new AknnIndexAction.Request(RequestFactory.index, RequestFactory.indexType, aknnURI)
+                .add("1", new HashMap<>(Collections.singletonMap(AknnService.VECTOR_KEY, Arrays.asList(1.0, 0.0, 0.0))))
+                .add("2", new HashMap<>(Collections.singletonMap(AknnService.VECTOR_KEY,
+                        AknnService.encodeVector(new float[]{0.0f, 1.0f, 0.0f})))))
+                .actionGet();
+        refresh();
+
+        Map<String, Object> mapping = client().admin().indices().prepareGetMappings(RequestFactory.index).get()
+                .getMappings().get(RequestFactory.index).get(RequestFactory.indexType).sourceAsMap();
+        Map<?, ?> properties = (Map<?, ?>) mapping.get("properties");
+        assertEquals(false, ((Map<?, ?>) properties.get(AknnService.VECTOR_KEY)).get("enabled"));
+        assertFalse(properties.containsKey(AknnService.PQ_CODE_KEY));
+        Map<?, ?> tables = (Map<?, ?>) ((Map<?, ?>) properties.get(AknnService.HASHES_KEY)).get("properties");
+        assertEquals(16, tables.size());
+        assertEquals("keyword", ((Map<?, ?>) tables.get("0")).get("type"));
+
+        AknnSearchAction.Response search = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request(RequestFactory.index, RequestFactory.indexType).aknnURI(aknnURI).k1(2).k2(2)
+                        .queryVector(Arrays.asList(0.0, 1.0, 0.1))).actionGet();
+        assertEquals("2", search.getHits().get(0).getId());
+    }
+
+    /**
+     * Test that hashes can be indexed as a single keyword field of table:hash tokens and searched by vector and by id
+     * @throws IOException if performing a request fails
+     */
+    public void testTokenHashFormat() throws IOException {
+        aknnAPI.createModel(RequestFactory.createModelRequest(16, 4));
+        String aknnURI = RequestFactory.modelIndex + "/" + RequestFactory.modelType + "/" + RequestFactory.modelId;
+        AknnIndexAction.Request index = new AknnIndexAction.Request("token_vectors", "_doc", aknnURI)
+                .hashFormat(AknnService.HASH_FORMAT_TOKENS);
+        for (CreateIndexRequest.Doc doc : simpleDocs) {
+            Map<String, Object> source = new HashMap<>();
+            source.put(AknnService.VECTOR_KEY, Arrays.stream(doc._source._aknn_vector).boxed().collect(Collectors.toList()));
+            index.add(doc._id, source);
+        }
+        assertFalse(client().execute(AknnIndexAction.INSTANCE, index).actionGet().hasFailures());
+        refresh();
+
+        Map<String, Object> mapping = client().admin().indices().prepareGetMappings("token_vectors").get()
+                .getMappings().get("token_vectors").get("_doc").sourceAsMap();
+        assertEquals("keyword", ((Map<?, ?>) ((Map<?, ?>) mapping.get("properties")).get(AknnService.HASHES_KEY)).get("type"));
+        Map<String, Object> source = client().prepareGet("token_vectors", "_doc", "1").get().getSourceAsMap();
+        List<?> tokens = (List<?>) source.get(AknnService.HASHES_KEY);
+        assertEquals(16, tokens.size());
+        assertTrue(tokens.contains("0:" + AknnService.parseHashes(tokens).get("0")));
+
+        AknnSearchAction.Response byVector = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("token_vectors", "_doc").aknnURI(aknnURI).k1(4).k2(4)
+                        .queryVector(Arrays.asList(1.0, 0.0, 0.3))).actionGet();
+        assertEquals("1", byVector.getHits().get(0).getId());
+        AknnSearchAction.Response byId = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("token_vectors", "_doc").id("1").k1(4).k2(4)).actionGet();
+        assertEquals("1", byId.getHits().get(0).getId());
+    }
+
+    /**
+     * Test that an HNSW model finds the nearest neighbors through the graphs of the segments, with and without a
+     * filter, and that the graphs are written next to the segments and read back as they were
+     * @throws Exception if performing a request or writing a graph fails
+     */
+    public void testHnswModel() throws Exception {
+        String aknnURI = "hnsw_models/_doc/model";
+        client().execute(AknnCreateAction.INSTANCE, new AknnCreateAction.Request("hnsw_models", "_doc", "model")
+                .modelType(LshModel.TYPE_HNSW).hnswM(8).hnswEfConstruction(50)).actionGet();
+
+        int dimensions = 8;
+        List<double[]> vectors = new ArrayList<>();
+        for (int batch = 0; batch < 2; batch++) {
+            // Two refreshes, so the graphs of two segments at least are searched.
+            AknnIndexAction.Request index = new AknnIndexAction.Request("hnsw_vectors", "_doc", aknnURI);
+            for (int i = 0; i < 150; i++) {
+                double[] vector = IntStream.range(0, dimensions).mapToDouble(d -> randomDoubleBetween(-1.0, 1.0, true)).toArray();
+                Map<String, Object> source = new HashMap<>();
+                source.put(AknnService.VECTOR_KEY, Arrays.stream(vector).boxed().collect(Collectors.toList()));
+                source.put("group", vectors.size() % 2);
+                index.add(String.valueOf(vectors.size()), source);
+                vectors.add(vector);
+            }
+            assertFalse(client().execute(AknnIndexAction.INSTANCE, index).actionGet().hasFailures());
+            refresh();
+        }
+        assertNull(client().prepareGet("hnsw_vectors", "_doc", "0").get().getSource().get(AknnService.HASHES_KEY));
+
+        double[] query = vectors.get(7);
+        List<String> exact = IntStream.range(0, vectors.size()).boxed()
+                .sorted(Comparator.comparing((Integer i) -> AknnService.cosineSimilarity(query, vectors.get(i))).reversed())
+                .map(String::valueOf)
+                .collect(Collectors.toList());
+        AknnSearchAction.Response search = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("hnsw_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k2(10).ef(100))
+                .actionGet();
+        assertEquals(10, search.getHits().size());
+        assertEquals("7", search.getHits().get(0).getId());
+        assertEquals(1.0, search.getHits().get(0).getScore(), 1e-5);
+        assertFalse(search.getHits().get(0).getSource().containsKey(AknnService.VECTOR_KEY));
+        long found = search.getHits().stream().filter(hit -> exact.subList(0, 10).contains(hit.getId())).count();
+        assertTrue("found " + found + " of the 10 nearest neighbors", found >= 9);
+
+        AknnSearchAction.Response filtered = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("hnsw_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k2(10)
+                        .filter("{\"term\": {\"group\": 0}}")).actionGet();
+        assertEquals(10, filtered.getHits().size());
+        for (AknnSearchAction.Hit hit : filtered.getHits()) {
+            assertEquals(0, Integer.parseInt(hit.getId()) % 2);
+        }
+
+        // The documents have no hashes, searching by id searches their vector.
+        AknnSearchAction.Response byId = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("hnsw_vectors", "_doc").id("7").aknnURI(aknnURI).k2(10).ef(100)).actionGet();
+        assertEquals("7", byId.getHits().get(0).getId());
+        expectThrows(IllegalArgumentException.class, () -> client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("hnsw_vectors", "_doc").id("7").k2(10)).actionGet());
+
+        // The ascending order returns the least similar documents, least similar first.
+        AknnSearchAction.Response ascending = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("hnsw_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k2(10).ef(100)
+                        .orderDesc(false)).actionGet();
+        assertEquals(10, ascending.getHits().size());
+        List<String> leastSimilar = exact.subList(exact.size() - 10, exact.size());
+        double previous = -Double.MAX_VALUE;
+        for (AknnSearchAction.Hit hit : ascending.getHits()) {
+            assertEquals(AknnService.cosineSimilarity(query, vectors.get(Integer.parseInt(hit.getId()))), hit.getScore(), 1e-5);
+            assertTrue(hit.getScore() >= previous);
+            previous = hit.getScore();
+        }
+        found = ascending.getHits().stream().filter(hit -> leastSimilar.contains(hit.getId())).count();
+        assertTrue("found " + found + " of the 10 least similar documents", found >= 9);
+
+        // The graphs are built in the background, after the first search of their segment.
+        assertBusy(() -> assertTrue(countFiles(".hnsw") >= 2));
+
+        float[][] normalized = vectors.stream().map(HnswGraph::normalize).toArray(float[][]::new);
+        HnswGraph graph = HnswGraph.build(IntStream.range(0, normalized.length).toArray(), normalized, 8, 50, randomLong());
+        Path file = createTempDir().resolve("graph.hnsw");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            graph.writeTo(channel);
+        }
+        HnswGraph read = HnswGraph.read(ByteBuffer.wrap(Files.readAllBytes(file)));
+        List<Integer> expected = new ArrayList<>();
+        graph.search(query, 10, 50, null, (doc, score) -> expected.add(doc));
+        List<Integer> actual = new ArrayList<>();
+        read.search(query, 10, 50, null, (doc, score) -> actual.add(doc));
+        assertEquals(expected, actual);
+        assertEquals(Integer.valueOf(7), actual.get(0));
+    }
+
+    public void testIvfModel() throws IOException {
+        // Clustered vectors, which sign hashes split unevenly.
+        int dimensions = 16;
+        int clusters = 8;
+        List<double[]> centers = new ArrayList<>();
+        for (int c = 0; c < clusters; c++) {
+            centers.add(IntStream.range(0, dimensions).mapToDouble(d -> randomDoubleBetween(-1.0, 1.0, true)).toArray());
+        }
+        List<double[]> vectors = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            double[] center = centers.get(i % clusters);
+            vectors.add(Arrays.stream(center).map(v -> v + randomDoubleBetween(-0.1, 0.1, true)).toArray());
+        }
+        List<List<Double>> sample = vectors.subList(0, 200).stream()
+                .map(vector -> Arrays.stream(vector).boxed().collect(Collectors.toList()))
+                .collect(Collectors.toList());
+
+        String aknnURI = "ivf_models/_doc/model";
+        assertTrue(client().execute(AknnCreateAction.INSTANCE, new AknnCreateAction.Request("ivf_models", "_doc", "model")
+                .modelType(LshModel.TYPE_IVF).ivfNlist(clusters).ivfNprobe(2).vectorSample(sample)).actionGet().isCreated());
+        AknnCreateAction.Request tooFewVectors = new AknnCreateAction.Request("ivf_models", "_doc", "other")
+                .modelType(LshModel.TYPE_IVF).ivfNlist(300).vectorSample(sample);
+        assertNotNull(tooFewVectors.validate());
+
+        AknnIndexAction.Request index = new AknnIndexAction.Request("ivf_vectors", "_doc", aknnURI);
+        for (int i = 0; i < vectors.size(); i++) {
+            Map<String, Object> source = new HashMap<>();
+            source.put(AknnService.VECTOR_KEY, Arrays.stream(vectors.get(i)).boxed().collect(Collectors.toList()));
+            index.add(String.valueOf(i), source);
+        }
+        assertFalse(client().execute(AknnIndexAction.INSTANCE, index).actionGet().hasFailures());
+        refresh();
+
+        // Every document is in the cell of one centroid, and the cells follow the clusters.
+        Map<Integer, Set<Object>> cells = new HashMap<>();
+        for (int i = 0; i < vectors.size(); i++) {
+            Map<String, Long> hashes = AknnService.parseHashes(
+                    client().prepareGet("ivf_vectors", "_doc", String.valueOf(i)).get().getSource().get(AknnService.HASHES_KEY));
+            assertEquals(Collections.singleton("0"), hashes.keySet());
+            assertTrue(hashes.get("0") >= 0 && hashes.get("0") < clusters);
+            cells.computeIfAbsent(i % clusters, c -> new HashSet<>()).add(hashes.get("0"));
+        }
+        for (Set<Object> cellsOfCluster : cells.values()) {
+            assertEquals(1, cellsOfCluster.size());
+        }
+
+        double[] query = vectors.get(7);
+        List<String> exact = IntStream.range(0, vectors.size()).boxed()
+                .sorted(Comparator.comparing((Integer i) -> AknnService.cosineSimilarity(query, vectors.get(i))).reversed())
+                .map(String::valueOf)
+                .collect(Collectors.toList());
+        for (Integer nprobe : Arrays.asList(null, 1, clusters)) {
+            AknnSearchAction.Response search = client().execute(AknnSearchAction.INSTANCE,
+                    new AknnSearchAction.Request("ivf_vectors", "_doc").aknnURI(aknnURI).queryVector(query)
+                            .k1(100).k2(10).nprobe(nprobe)).actionGet();
+            assertEquals(10, search.getHits().size());
+            assertEquals("7", search.getHits().get(0).getId());
+            assertEquals(1.0, search.getHits().get(0).getScore(), 1e-5);
+            assertEquals(exact.subList(0, 10),
+                    search.getHits().stream().map(AknnSearchAction.Hit::getId).collect(Collectors.toList()));
+        }
+
+        // Searches by id probe the nprobe cells nearest to the vector of the query document, not only its own cell.
+        AknnSearchAction.Response byId = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("ivf_vectors", "_doc").id("7").aknnURI(aknnURI).k1(400).k2(400).nprobe(clusters))
+                .actionGet();
+        assertEquals(400, byId.getHits().size());
+        assertEquals("7", byId.getHits().get(0).getId());
+        assertNotNull(new AknnSearchAction.Request("ivf_vectors", "_doc").id("7").nprobe(clusters).validate());
+
+        double[][] centroids = {{1.0, 0.0}, {0.0, 1.0}, {-1.0, 0.0}};
+        assertArrayEquals(new int[] {1, 0, 2}, KMeans.nearest(centroids, new double[] {0.5, 2.0}, 5));
+        assertArrayEquals(new int[] {2}, KMeans.nearest(centroids, new double[] {-3.0, 1.0}, 1));
+    }
+
+    public void testProductQuantization() throws Exception {
+        int dimensions = 32;
+        List<double[]> vectors = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            vectors.add(IntStream.range(0, dimensions).mapToDouble(d -> randomDoubleBetween(-1.0, 1.0, true)).toArray());
+        }
+        List<List<Double>> sample = vectors.subList(0, 300).stream()
+                .map(vector -> Arrays.stream(vector).boxed().collect(Collectors.toList()))
+                .collect(Collectors.toList());
+
+        String aknnURI = "pq_models/_doc/model";
+        assertTrue(client().execute(AknnCreateAction.INSTANCE, new AknnCreateAction.Request("pq_models", "_doc", "model")
+                .nbTables(4).nbBitsPerTable(2).nbDimensions(dimensions).vectorSample(sample).pqM(8)).actionGet().isCreated());
+        assertNotNull(new AknnCreateAction.Request("pq_models", "_doc", "other")
+                .nbTables(4).nbBitsPerTable(2).vectorSample(sample).pqM(5).validate());
+
+        AknnIndexAction.Request index = new AknnIndexAction.Request("pq_vectors", "_doc", aknnURI);
+        for (int i = 0; i < vectors.size(); i++) {
+            Map<String, Object> source = new HashMap<>();
+            source.put(AknnService.VECTOR_KEY, Arrays.stream(vectors.get(i)).boxed().collect(Collectors.toList()));
+            index.add(String.valueOf(i), source);
+        }
+        assertFalse(client().execute(AknnIndexAction.INSTANCE, index).actionGet().hasFailures());
+        refresh();
+        Object code = client().prepareGet("pq_vectors", "_doc", "0").get().getSource().get(AknnService.PQ_CODE_KEY);
+        assertEquals(8, AknnService.parsePqCode(code).length);
+        Map<?, ?> pqProperties = (Map<?, ?>) client().admin().indices().prepareGetMappings("pq_vectors").get()
+                .getMappings().get("pq_vectors").get("_doc").sourceAsMap().get("properties");
+        assertEquals("binary", ((Map<?, ?>) pqProperties.get(AknnService.PQ_CODE_KEY)).get("type"));
+
+        double[] query = vectors.get(7);
+        List<String> exact = IntStream.range(0, vectors.size()).boxed()
+                .sorted(Comparator.comparing((Integer i) -> AknnService.cosineSimilarity(query, vectors.get(i))).reversed())
+                .map(String::valueOf)
+                .collect(Collectors.toList());
+        AknnSearchAction.Response search = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("pq_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k1(600).k2(10)
+                        .profile(true)).actionGet();
+        assertTrue(search.getProfile().containsKey("rank_codes"));
+        assertEquals(10, search.getHits().size());
+        assertEquals("7", search.getHits().get(0).getId());
+        double previous = Double.MAX_VALUE;
+        for (AknnSearchAction.Hit hit : search.getHits()) {
+            // Scores are exact, only the ranking of the candidates is approximate.
+            assertEquals(AknnService.cosineSimilarity(query, vectors.get(Integer.parseInt(hit.getId()))), hit.getScore(), 1e-9);
+            assertTrue(hit.getScore() <= previous);
+            previous = hit.getScore();
+            assertFalse(hit.getSource().containsKey(AknnService.PQ_CODE_KEY));
+            assertFalse(hit.getSource().containsKey(AknnService.VECTOR_KEY));
+        }
+        long found = search.getHits().stream().filter(hit -> exact.subList(0, 10).contains(hit.getId())).count();
+        assertTrue("found " + found + " of the 10 nearest neighbors", found >= 5);
+
+        // Searches by id with the model rank the codes too, with the stored hashes of the query document.
+        AknnSearchAction.Response byId = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("pq_vectors", "_doc").id("7").aknnURI(aknnURI).k1(600).k2(10).profile(true))
+                .actionGet();
+        assertTrue(byId.getProfile().containsKey("rank_codes"));
+        assertFalse(byId.getProfile().containsKey("hash_query_vector"));
+        assertEquals(10, byId.getHits().size());
+        assertEquals("7", byId.getHits().get(0).getId());
+        for (AknnSearchAction.Hit hit : byId.getHits()) {
+            assertEquals(AknnService.cosineSimilarity(query, vectors.get(Integer.parseInt(hit.getId()))), hit.getScore(), 1e-9);
+        }
+
+        // The ascending order ranks the least similar codes first.
+        AknnSearchAction.Response ascending = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("pq_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k1(600).k2(10)
+                        .orderDesc(false)).actionGet();
+        assertEquals(10, ascending.getHits().size());
+        double mostSimilar = search.getHits().get(search.getHits().size() - 1).getScore();
+        previous = -Double.MAX_VALUE;
+        for (AknnSearchAction.Hit hit : ascending.getHits()) {
+            assertEquals(AknnService.cosineSimilarity(query, vectors.get(Integer.parseInt(hit.getId()))), hit.getScore(), 1e-9);
+            assertTrue(hit.getScore() >= previous);
+            assertTrue(hit.getScore() < mostSimilar);
+            previous = hit.getScore();
+        }
+
+        // The similarity of codes approximates the cosine similarity of their vectors.
+        double[][] trainingSample = vectors.subList(0, 300).toArray(new double[0][]);
+        ProductQuantizer productQuantizer = ProductQuantizer.train(trainingSample, 8, randomLong(), Runnable::run, 2);
+        float[] table = productQuantizer.table(query);
+        for (double[] vector : vectors.subList(0, 20)) {
+            assertEquals(AknnService.cosineSimilarity(query, vector), ProductQuantizer.score(table, productQuantizer.encode(vector)),
+                    0.25);
+        }
+    }
+
+    public void testExactSearch() throws Exception {
+        int dimensions = 16;
+        String aknnURI = "exact_models/_doc/model";
+        client().execute(AknnCreateAction.INSTANCE, new AknnCreateAction.Request("exact_models", "_doc", "model")
+                .nbTables(8).nbBitsPerTable(4).nbDimensions(dimensions).randomBase(true)).actionGet();
+
+        List<double[]> vectors = new ArrayList<>();
+        for (int batch = 0; batch < 3; batch++) {
+            // Several refreshes, so the vectors of several segments are scanned.
+            AknnIndexAction.Request index = new AknnIndexAction.Request("exact_vectors", "_doc", aknnURI);
+            for (int i = 0; i < 100; i++) {
+                double[] vector = IntStream.range(0, dimensions).mapToDouble(d -> randomDoubleBetween(-1.0, 1.0, true)).toArray();
+                Map<String, Object> source = new HashMap<>();
+                source.put(AknnService.VECTOR_KEY, Arrays.stream(vector).boxed().collect(Collectors.toList()));
+                source.put("group", vectors.size() % 2);
+                index.add(String.valueOf(vectors.size()), source);
+                vectors.add(vector);
+            }
+            assertFalse(client().execute(AknnIndexAction.INSTANCE, index).actionGet().hasFailures());
+            refresh();
+        }
+
+        double[] query = vectors.get(11);
+        List<String> exact = IntStream.range(0, vectors.size()).boxed()
+                .sorted(Comparator.comparing((Integer i) -> AknnService.cosineSimilarity(query, vectors.get(i))).reversed())
+                .map(String::valueOf)
+                .collect(Collectors.toList());
+        // No model is needed to search by vector.
+        AknnSearchAction.Response search = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("exact_vectors", "_doc").queryVector(query).k2(10).exact(true)).actionGet();
+        assertEquals(exact.subList(0, 10), search.getHits().stream().map(AknnSearchAction.Hit::getId).collect(Collectors.toList()));
+        for (AknnSearchAction.Hit hit : search.getHits()) {
+            assertEquals(AknnService.cosineSimilarity(query, vectors.get(Integer.parseInt(hit.getId()))), hit.getScore(), 1e-5);
+            assertFalse(hit.getSource().containsKey(AknnService.VECTOR_KEY));
+            assertFalse(hit.getSource().containsKey(AknnService.HASHES_KEY));
+        }
+
+        AknnSearchAction.Response byId = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("exact_vectors", "_doc").id("11").k2(10).exact(true).orderDesc(false)).actionGet();
+        // The ascending order returns the least similar documents, least similar first.
+        List<String> ascending = new ArrayList<>(exact.subList(exact.size() - 10, exact.size()));
+        Collections.reverse(ascending);
+        assertEquals(ascending, byId.getHits().stream().map(AknnSearchAction.Hit::getId).collect(Collectors.toList()));
+        for (AknnSearchAction.Hit hit : byId.getHits()) {
+            assertEquals(AknnService.cosineSimilarity(query, vectors.get(Integer.parseInt(hit.getId()))), hit.getScore(), 1e-5);
+        }
+
+        AknnSearchAction.Response filtered = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("exact_vectors", "_doc").queryVector(query).k2(10).exact(true)
+                        .filter("{\"term\": {\"group\": 0}}")).actionGet();
+        List<String> exactInGroup = exact.stream().filter(id -> Integer.parseInt(id) % 2 == 0).limit(10).collect(Collectors.toList());
+        assertEquals(exactInGroup, filtered.getHits().stream().map(AknnSearchAction.Hit::getId).collect(Collectors.toList()));
+
+        // The vectors are built in the background, after the first search of their segment.
+        assertBusy(() -> assertTrue(countFiles(".vec") >= 3));
+
+        float[][] normalized = vectors.stream().map(HnswGraph::normalize).toArray(float[][]::new);
+        SegmentVectors segmentVectors = SegmentVectors.build(IntStream.range(0, normalized.length).toArray(), normalized);
+        Path file = createTempDir().resolve("segment.vec");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            segmentVectors.writeTo(channel);
+        }
+        SegmentVectors read = SegmentVectors.read(ByteBuffer.wrap(Files.readAllBytes(file)));
+        assertEquals(vectors.size(), read.size());
+        Map<Integer, Float> expected = new HashMap<>();
+        segmentVectors.scan(query, null, expected::put);
+        Map<Integer, Float> actual = new HashMap<>();
+        read.scan(query, null, actual::put);
+        assertEquals(expected, actual);
+        assertEquals(1.0f, actual.get(11), 1e-5f);
+    }
+
+    public void testVectorCache() throws Exception {
+        int dimensions = 16;
+        String aknnURI = "cache_models/_doc/model";
+        client().execute(AknnCreateAction.INSTANCE, new AknnCreateAction.Request("cache_models", "_doc", "model")
+                .nbTables(8).nbBitsPerTable(2).nbDimensions(dimensions).randomBase(true)).actionGet();
+
+        List<double[]> vectors = new ArrayList<>();
+        for (int batch = 0; batch < 2; batch++) {
+            AknnIndexAction.Request index = new AknnIndexAction.Request("cache_vectors", "_doc", aknnURI);
+            for (int i = 0; i < 100; i++) {
+                double[] vector = IntStream.range(0, dimensions).mapToDouble(d -> randomDoubleBetween(-1.0, 1.0, true)).toArray();
+                Map<String, Object> source = new HashMap<>();
+                source.put(AknnService.VECTOR_KEY, Arrays.stream(vector).boxed().collect(Collectors.toList()));
+                index.add(String.valueOf(vectors.size()), source);
+                vectors.add(vector);
+            }
+            assertFalse(client().execute(AknnIndexAction.INSTANCE, index).actionGet().hasFailures());
+            refresh();
+        }
+
+        double[] query = vectors.get(3);
+        for (int i = 0; i < 2; i++) {
+            // The second search rescores the same candidates from the cache.
+            AknnSearchAction.Response search = client().execute(AknnSearchAction.INSTANCE,
+                    new AknnSearchAction.Request("cache_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k1(200).k2(10))
+                    .actionGet();
+            assertEquals(10, search.getHits().size());
+            assertEquals("3", search.getHits().get(0).getId());
+            double previous = Double.MAX_VALUE;
+            for (AknnSearchAction.Hit hit : search.getHits()) {
+                assertEquals(AknnService.cosineSimilarity(query, vectors.get(Integer.parseInt(hit.getId()))), hit.getScore(), 1e-5);
+                assertTrue(hit.getScore() <= previous);
+                previous = hit.getScore();
+                assertFalse(hit.getSource().containsKey(AknnService.VECTOR_KEY));
+                assertFalse(hit.getSource().containsKey(AknnService.HASHES_KEY));
+            }
+        }
+        assertTrue(cachedVectors() > 0);
+
+        AknnSearchAction.Response debug = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("cache_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k1(200).k2(10).debug(true))
+                .actionGet();
+        assertTrue(debug.getHits().get(0).getSource().containsKey(AknnService.VECTOR_KEY));
+
+        Request rescore = new Request("GET", "cache_vectors/_search");
+        rescore.setJsonEntity("{\"query\": {\"match_all\": {}}, \"rescore\": {\"window_size\": 200, \"aknn_cosine\": "
+                + "{\"query_vector\": " + Arrays.toString(query) + "}}}");
+        Map<?, ?> rescored = new Gson().fromJson(EntityUtils.toString(restClient.performRequest(rescore).getEntity()), Map.class);
+        assertEquals("3", ((Map<?, ?>) ((List<?>) ((Map<?, ?>) rescored.get("hits")).get("hits")).get(0)).get("_id"));
+
+        // The vectors of merged away segments are dropped with their segments.
+        client().admin().indices().prepareForceMerge("cache_vectors").setMaxNumSegments(1).get();
+        refresh();
+        assertBusy(() -> assertEquals(0, cachedVectors()));
+    }
+
+    public void testVectorCacheAscendingOrder() throws IOException {
+        int dimensions = 16;
+        String aknnURI = "asc_models/_doc/model";
+        client().execute(AknnCreateAction.INSTANCE, new AknnCreateAction.Request("asc_models", "_doc", "model")
+                .nbTables(8).nbBitsPerTable(2).nbDimensions(dimensions).randomBase(true)).actionGet();
+        createIndex("asc_vectors", Settings.builder().put("index.number_of_shards", 3).build());
+
+        List<double[]> vectors = new ArrayList<>();
+        AknnIndexAction.Request index = new AknnIndexAction.Request("asc_vectors", "_doc", aknnURI);
+        for (int i = 0; i < 200; i++) {
+            double[] vector = IntStream.range(0, dimensions).mapToDouble(d -> randomDoubleBetween(-1.0, 1.0, true)).toArray();
+            Map<String, Object> source = new HashMap<>();
+            source.put(AknnService.VECTOR_KEY, Arrays.stream(vector).boxed().collect(Collectors.toList()));
+            index.add(String.valueOf(i), source);
+            vectors.add(vector);
+        }
+        assertFalse(client().execute(AknnIndexAction.INSTANCE, index).actionGet().hasFailures());
+        refresh();
+
+        // k1 covers every candidate, the ascending order returns the least similar ones, least similar first.
+        double[] query = vectors.get(0);
+        List<AknnSearchAction.Hit> desc = client().execute(AknnSearchAction.INSTANCE, new AknnSearchAction.Request("asc_vectors", "_doc")
+                .aknnURI(aknnURI).queryVector(query).k1(200).k2(200)).actionGet().getHits();
+        assertEquals("0", desc.get(0).getId());
+        List<AknnSearchAction.Hit> asc = client().execute(AknnSearchAction.INSTANCE, new AknnSearchAction.Request("asc_vectors", "_doc")
+                .aknnURI(aknnURI).queryVector(query).k1(200).k2(10).orderDesc(false)).actionGet().getHits();
+        assertEquals(10, asc.size());
+        for (int i = 0; i < asc.size(); i++) {
+            AknnSearchAction.Hit hit = asc.get(i);
+            assertEquals(desc.get(desc.size() - 1 - i).getId(), hit.getId());
+            assertEquals(AknnService.cosineSimilarity(query, vectors.get(Integer.parseInt(hit.getId()))), hit.getScore(), 1e-5);
+            assertFalse(hit.getSource().containsKey(AknnService.VECTOR_KEY));
+        }
+
+        assertNotNull(new AknnSearchAction.Request("asc_vectors", "_doc").aknnURI(aknnURI).queryVector(query).orderDesc(false)
+                .textQuery("{\"match_all\": {}}").validate());
+    }
+
+    public void testSelectiveFilter() throws Exception {
+        int dimensions = 16;
+        String aknnURI = "filter_models/_doc/model";
+        client().execute(AknnCreateAction.INSTANCE, new AknnCreateAction.Request("filter_models", "_doc", "model")
+                .nbTables(8).nbBitsPerTable(2).nbDimensions(dimensions).randomBase(true)).actionGet();
+
+        List<double[]> vectors = new ArrayList<>();
+        AknnIndexAction.Request index = new AknnIndexAction.Request("filter_vectors", "_doc", aknnURI);
+        for (int i = 0; i < 400; i++) {
+            double[] vector = IntStream.range(0, dimensions).mapToDouble(d -> randomDoubleBetween(-1.0, 1.0, true)).toArray();
+            Map<String, Object> source = new HashMap<>();
+            source.put(AknnService.VECTOR_KEY, Arrays.stream(vector).boxed().collect(Collectors.toList()));
+            source.put("user", i % 20);
+            index.add(String.valueOf(i), source);
+            vectors.add(vector);
+        }
+        assertFalse(client().execute(AknnIndexAction.INSTANCE, index).actionGet().hasFailures());
+        refresh();
+
+        double[] query = IntStream.range(0, dimensions).mapToDouble(d -> randomDoubleBetween(-1.0, 1.0, true)).toArray();
+        List<String> exact = IntStream.range(0, vectors.size()).filter(i -> i % 20 == 0).boxed()
+                .sorted(Comparator.comparing((Integer i) -> AknnService.cosineSimilarity(query, vectors.get(i))).reversed())
+                .map(String::valueOf)
+                .limit(10)
+                .collect(Collectors.toList());
+        // The filter is counted in the background, the first search goes through the model without waiting for it.
+        AknnSearchAction.Response first = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("filter_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k2(10)
+                        .minimumShouldMatch(8).filter("{\"term\": {\"user\": 0}}").profile(true)).actionGet();
+        assertEquals(10, first.getHits().size());
+        assertFalse(first.getProfile().containsKey("count_filter"));
+        // No document shares all the hashes of the query, the 20 documents of the user are compared to it instead.
+        assertBusy(() -> {
+            AknnSearchAction.Response selective = client().execute(AknnSearchAction.INSTANCE,
+                    new AknnSearchAction.Request("filter_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k2(10)
+                            .minimumShouldMatch(8).filter("{\"term\": {\"user\": 0}}").profile(true)).actionGet();
+            assertTrue(selective.getProfile().containsKey("scan_vectors"));
+            assertEquals(exact, selective.getHits().stream().map(AknnSearchAction.Hit::getId).collect(Collectors.toList()));
+        });
+        // In ascending order too, the exact search returns the least similar documents of the user, least similar first.
+        List<String> leastSimilar = IntStream.range(0, vectors.size()).filter(i -> i % 20 == 0).boxed()
+                .sorted(Comparator.comparing((Integer i) -> AknnService.cosineSimilarity(query, vectors.get(i))))
+                .map(String::valueOf)
+                .limit(10)
+                .collect(Collectors.toList());
+        AknnSearchAction.Response ascending = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("filter_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k2(10)
+                        .minimumShouldMatch(8).filter("{\"term\": {\"user\": 0}}").orderDesc(false).profile(true)).actionGet();
+        assertTrue(ascending.getProfile().containsKey("scan_vectors"));
+        assertEquals(leastSimilar, ascending.getHits().stream().map(AknnSearchAction.Hit::getId).collect(Collectors.toList()));
+
+        client().admin().cluster().prepareUpdateSettings().setTransientSettings(Settings.builder()
+                .put(TransportAknnSearchAction.EXACT_FILTER_THRESHOLD_SETTING.getKey(), 5)).get();
+        try {
+            // Above the threshold, the query is relaxed until enough of the documents of the user are candidates.
+            AknnSearchAction.Response relaxed = client().execute(AknnSearchAction.INSTANCE,
+                    new AknnSearchAction.Request("filter_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k2(10)
+                            .minimumShouldMatch(8).filter("{\"term\": {\"user\": 0}}").profile(true)).actionGet();
+            assertFalse(relaxed.getProfile().containsKey("scan_vectors"));
+            assertEquals(10, relaxed.getHits().size());
+            for (AknnSearchAction.Hit hit : relaxed.getHits()) {
+                assertEquals(0, Integer.parseInt(hit.getId()) % 20);
+            }
+        } finally {
+            client().admin().cluster().prepareUpdateSettings().setTransientSettings(Settings.builder()
+                    .putNull(TransportAknnSearchAction.EXACT_FILTER_THRESHOLD_SETTING.getKey())).get();
+        }
+    }
+
+    public void testHybridSearch() throws IOException {
+        int dimensions = 16;
+        String aknnURI = "hybrid_models/_doc/model";
+        client().execute(AknnCreateAction.INSTANCE, new AknnCreateAction.Request("hybrid_models", "_doc", "model")
+                .nbTables(8).nbBitsPerTable(2).nbDimensions(dimensions).randomBase(true)).actionGet();
+
+        List<double[]> vectors = new ArrayList<>();
+        AknnIndexAction.Request index = new AknnIndexAction.Request("hybrid_vectors", "_doc", aknnURI);
+        for (int i = 0; i < 200; i++) {
+            double[] vector = IntStream.range(0, dimensions).mapToDouble(d -> randomDoubleBetween(-1.0, 1.0, true)).toArray();
+            Map<String, Object> source = new HashMap<>();
+            source.put(AknnService.VECTOR_KEY, Arrays.stream(vector).boxed().collect(Collectors.toList()));
+            source.put("caption", i % 40 == 1 ? "sunset over the sea" : "photo");
+            index.add(String.valueOf(i), source);
+            vectors.add(vector);
+        }
+        assertFalse(client().execute(AknnIndexAction.INSTANCE, index).actionGet().hasFailures());
+        refresh();
+
+        double[] query = vectors.get(0);
+        String textQuery = "{\"match\": {\"caption\": \"sunset\"}}";
+        AknnSearchAction.Response vectorOnly = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("hybrid_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k1(200).k2(10)
+                        .textQuery(textQuery).textWeight(0f)).actionGet();
+        assertEquals("0", vectorOnly.getHits().get(0).getId());
+        for (AknnSearchAction.Hit hit : vectorOnly.getHits()) {
+            assertEquals(AknnService.cosineSimilarity(query, vectors.get(Integer.parseInt(hit.getId()))), hit.getScore(), 1e-5);
+        }
+
+        // The text score outweighs the similarity, the five sunsets come first.
+        String body = "{\"_index\": \"hybrid_vectors\", \"_type\": \"_doc\", \"_aknn_uri\": \"" + aknnURI + "\", "
+                + "\"query_aknn\": {\"k1\": 200, \"k2\": 10, \"_aknn_vector\": " + Arrays.toString(query) + "}, "
+                + "\"query\": " + textQuery + ", \"blend\": {\"vector_weight\": 1.0, \"text_weight\": 10.0}}";
+        SimilaritySearchResponse hybrid = new Gson().fromJson(
+                EntityUtils.toString(aknnAPI.performJSONRequest(body, "_aknn_search_vec").getEntity()), SimilaritySearchResponse.class);
+        Set<String> sunsets = IntStream.range(0, vectors.size()).filter(i -> i % 40 == 1).mapToObj(String::valueOf)
+                .collect(Collectors.toSet());
+        assertEquals(sunsets, hybrid.hits.hits.subList(0, 5).stream().map(hit -> hit._id).collect(Collectors.toSet()));
+        assertTrue(hybrid.hits.hits.get(0)._score > 1.0);
+
+        // Documents opposite to the query share none of its hashes and do not match the text query, a filter does not
+        // make them candidates.
+        AknnIndexAction.Request opposites = new AknnIndexAction.Request("hybrid_vectors", "_doc", aknnURI);
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> source = new HashMap<>();
+            source.put(AknnService.VECTOR_KEY, Arrays.stream(query).map(v -> -v).boxed().collect(Collectors.toList()));
+            source.put("caption", "photo");
+            opposites.add("opposite_" + i, source);
+        }
+        assertFalse(client().execute(AknnIndexAction.INSTANCE, opposites).actionGet().hasFailures());
+        refresh();
+        AknnSearchAction.Response filtered = client().execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("hybrid_vectors", "_doc").aknnURI(aknnURI).queryVector(query).k1(300).k2(300)
+                        .textQuery(textQuery).filter("{\"exists\": {\"field\": \"caption\"}}")).actionGet();
+        assertTrue(ids(filtered).contains("0"));
+        for (AknnSearchAction.Hit hit : filtered.getHits()) {
+            assertFalse(hit.getId().startsWith("opposite_"));
+        }
+
+        assertNotNull(new AknnSearchAction.Request("hybrid_vectors", "_doc").queryVector(query).exact(true)
+                .textQuery(textQuery).validate());
+    }
+
+    public void testPagination() throws IOException {
+        int dimensions = 16;
+        String aknnURI = "paged_models/_doc/model";
+        client().execute(AknnCreateAction.INSTANCE, new AknnCreateAction.Request("paged_models", "_doc", "model")
+                .nbTables(8).nbBitsPerTable(2).nbDimensions(dimensions).randomBase(true)).actionGet();
+
+        List<double[]> vectors = new ArrayList<>();
+        AknnIndexAction.Request index = new AknnIndexAction.Request("paged_vectors", "_doc", aknnURI);
+        for (int i = 0; i < 200; i++) {
+            double[] vector = IntStream.range(0, dimensions).mapToDouble(d -> randomDoubleBetween(-1.0, 1.0, true)).toArray();
+            Map<String, Object> source = new HashMap<>();
+            source.put(AknnService.VECTOR_KEY, Arrays.stream(vector).boxed().collect(Collectors.toList()));
+            index.add(String.valueOf(i), source);
+            vectors.add(vector);
+        }
+        assertFalse(client().execute(AknnIndexAction.INSTANCE, index).actionGet().hasFailures());
+        refresh();
+
+        double[] query = vectors.get(0);
+        // Cursors are kept by the node coordinating the search, the pages are all read through the same node.
+        Client client = internalCluster().client(internalCluster().getNodeNames()[0]);
+        List<String> all = ids(client.execute(AknnSearchAction.INSTANCE, new AknnSearchAction.Request("paged_vectors", "_doc")
+                .aknnURI(aknnURI).queryVector(query).k1(200).k2(30)).actionGet());
+        assertEquals(30, all.size());
+
+        AknnSearchAction.Response page = client.execute(AknnSearchAction.INSTANCE, new AknnSearchAction.Request("paged_vectors", "_doc")
+                .aknnURI(aknnURI).queryVector(query).k1(200).k2(10).keepAlive(TimeValue.timeValueMinutes(1))).actionGet();
+        assertEquals(all.subList(0, 10), ids(page));
+        assertNotNull(page.getSearchAfter());
+        assertEquals(1, searchCursors());
+        for (int from = 10; from < 30; from += 10) {
+            page = client.execute(AknnSearchAction.INSTANCE, new AknnSearchAction.Request("paged_vectors", "_doc")
+                    .aknnURI(aknnURI).queryVector(query).k1(200).k2(10).searchAfter(page.getSearchAfter()).profile(true)).actionGet();
+            assertEquals(all.subList(from, from + 10), ids(page));
+            assertEquals(Collections.singleton("read_cursor"), page.getProfile().keySet());
+        }
+        assertEquals(1, searchCursors());
+
+        // The token of another search does not read its cursor, the search runs again from the offset.
+        double[] otherQuery = vectors.get(1);
+        List<String> other = ids(client.execute(AknnSearchAction.INSTANCE, new AknnSearchAction.Request("paged_vectors", "_doc")
+                .aknnURI(aknnURI).queryVector(otherQuery).k1(200).k2(40)).actionGet());
+        AknnSearchAction.Response otherPage = client.execute(AknnSearchAction.INSTANCE, new AknnSearchAction.Request("paged_vectors", "_doc")
+                .aknnURI(aknnURI).queryVector(otherQuery).k1(200).k2(10).searchAfter(page.getSearchAfter()).profile(true)).actionGet();
+        assertEquals(other.subList(30, 40), ids(otherPage));
+        assertTrue(otherPage.getProfile().size() > 1);
+        assertEquals(2, searchCursors());
+
+        // Without a cursor, the search runs again from the offset.
+        AknnSearchAction.Response rerun = client.execute(AknnSearchAction.INSTANCE, new AknnSearchAction.Request("paged_vectors", "_doc")
+                .aknnURI(aknnURI).queryVector(query).k1(200).k2(10).searchAfter("expired:20")).actionGet();
+        assertEquals(all.subList(20, 30), ids(rerun));
+        assertNotNull(rerun.getSearchAfter());
+        AknnSearchAction.Response from = client.execute(AknnSearchAction.INSTANCE, new AknnSearchAction.Request("paged_vectors", "_doc")
+                .aknnURI(aknnURI).queryVector(query).k1(200).k2(10).from(15)).actionGet();
+        assertEquals(all.subList(15, 25), ids(from));
+        assertNull(from.getSearchAfter());
+        assertEquals(3, searchCursors());
+        assertTrue(searchCursorBytes() > 3 * 200 * 100);
+
+        expectThrows(IllegalArgumentException.class, () -> client.execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("paged_vectors", "_doc").aknnURI(aknnURI).queryVector(query).searchAfter("nope"))
+                .actionGet());
+        expectThrows(IllegalArgumentException.class, () -> client.execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("paged_vectors", "_doc").aknnURI(aknnURI).queryVector(query)
+                        .keepAlive(TimeValue.timeValueHours(1))).actionGet());
+        assertNotNull(new AknnSearchAction.Request("paged_vectors", "_doc").aknnURI(aknnURI).queryVector(query).from(10)
+                .searchAfter(page.getSearchAfter()).validate());
+
+        // Exact searches page the same way, and so does the REST layer.
+        List<String> exact = ids(client.execute(AknnSearchAction.INSTANCE, new AknnSearchAction.Request("paged_vectors", "_doc")
+                .queryVector(query).exact(true).k2(20)).actionGet());
+        assertEquals(exact.subList(10, 20), ids(client.execute(AknnSearchAction.INSTANCE,
+                new AknnSearchAction.Request("paged_vectors", "_doc").queryVector(query).exact(true).k2(10).from(10)).actionGet()));
+        String body = "{\"_index\": \"paged_vectors\", \"_type\": \"_doc\", \"_aknn_uri\": \"" + aknnURI + "\", "
+                + "\"query_aknn\": {\"k1\": 200, \"k2\": 10, \"_aknn_vector\": " + Arrays.toString(query) + "}}";
+        Map<?, ?> rest = new Gson().fromJson(EntityUtils.toString(
+                aknnAPI.performJSONRequest(body, "_aknn_search_vec?from=10&keep_alive=1m").getEntity()), Map.class);
+        assertNotNull(rest.get("search_after"));
+        SimilaritySearchResponse next = new Gson().fromJson(EntityUtils.toString(aknnAPI.performJSONRequest(body,
+                "_aknn_search_vec?search_after=" + rest.get("search_after")).getEntity()), SimilaritySearchResponse.class);
+        assertEquals(all.subList(20, 30), next.hits.hits.stream().map(hit -> hit._id).collect(Collectors.toList()));
+    }
+
+    private static List<String> ids(AknnSearchAction.Response response) {
+        return response.getHits().stream().map(AknnSearchAction.Hit::getId).collect(Collectors.toList());
+    }
+
+    private int searchCursors() {
+        int count = 0;
+        for (AknnSearchCursors cursors : internalCluster().getInstances(AknnSearchCursors.class)) {
+            count += cursors.count();
+        }
+        return count;
+    }
+
+    private long searchCursorBytes() {
+        long bytes = 0;
+        for (AknnSearchCursors cursors : internalCluster().getInstances(AknnSearchCursors.class)) {
+            bytes += cursors.ramBytesUsed();
+        }
+        return bytes;
+    }
+
+    private long countFiles(String extension) throws IOException {
+        long count = 0;
+        for (NodeEnvironment nodeEnvironment : internalCluster().getInstances(NodeEnvironment.class)) {
+            for (Path dataPath : nodeEnvironment.nodeDataPaths()) {
+                try (Stream<Path> files = Files.walk(dataPath)) {
+                    count += files.filter(file -> file.getFileName().toString().endsWith(extension)).count();
+                }
+            }
+        }
+        return count;
+    }
+
+    private int cachedVectors() {
+        int count = 0;
+        for (AknnVectorCache vectorCache : internalCluster().getInstances(AknnVectorCache.class)) {
+            count += vectorCache.count();
+        }
+        return count;
+    }
 }
@@ -53,6 +53,8 @@ public class SimilaritySearchResponse {
         }
     }
 
+    public long took;
+    public boolean timed_out;
     public HitInfo hits;
 
     public SimilaritySearchResponse(HitInfo hits) {
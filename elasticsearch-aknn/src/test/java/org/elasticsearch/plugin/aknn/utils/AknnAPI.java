@@ -55,11 +55,29 @@ public class AknnAPI {
         performJSONRequest(gson.toJson(request), "_aknn_index");
     }
 
+    public Response streamIndex(CreateIndexRequest request, int bulkSize) throws IOException {
+        restClient.performRequest(new Request("GET", "_aknn_clear_cache"));
+        StringBuilder ndjson = new StringBuilder();
+        for (CreateIndexRequest.Doc doc : request._aknn_docs) {
+            ndjson.append(gson.toJson(doc)).append('\n');
+        }
+        Request bulkReq = new Request("POST", request._index + "/" + request._type + "/_aknn_bulk");
+        bulkReq.addParameter("_aknn_uri", request._aknn_uri);
+        bulkReq.addParameter("bulk_size", Integer.toString(bulkSize));
+        bulkReq.setEntity(new StringEntity(ndjson.toString(), ContentType.create("application/x-ndjson")));
+        return restClient.performRequest(bulkReq);
+    }
+
     public SimilaritySearchResponse similaritySearch(SimilaritySearchRequest request, boolean orderDesc) throws IOException {
         Response response = performJSONRequest(gson.toJson(request), "_aknn_search_vec?debug=true&order=" + (orderDesc ? "desc" : "asc"));
         return gson.fromJson(EntityUtils.toString(response.getEntity()), SimilaritySearchResponse.class);
     }
 
+    public SimilaritySearchResponse similaritySearch(SimilaritySearchRequest request, String params) throws IOException {
+        Response response = performJSONRequest(gson.toJson(request), "_aknn_search_vec?debug=true&" + params);
+        return gson.fromJson(EntityUtils.toString(response.getEntity()), SimilaritySearchResponse.class);
+    }
+
     public SimilaritySearchResponse similaritySearch(SimilaritySearchRequest request) throws IOException {
         Response response = performJSONRequest(gson.toJson(request), "_aknn_search_vec?debug=true");
         return gson.fromJson(EntityUtils.toString(response.getEntity()), SimilaritySearchResponse.class);